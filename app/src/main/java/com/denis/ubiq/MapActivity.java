@@ -3,6 +3,7 @@ package com.denis.ubiq;
 import java.text.DecimalFormat;
 import java.util.*;
 
+import android.hardware.SensorManager;
 import android.location.*;
 import android.os.*;
 import android.support.v4.app.ActivityCompat;
@@ -14,7 +15,12 @@ import android.widget.*;
 
 import com.denis.ubiq.kalman.KalmanFilterWorker;
 import com.denis.ubiq.listeners.*;
+import com.denis.ubiq.logging.LogFormat;
+import com.denis.ubiq.mailbox.FrameMailbox;
+import com.denis.ubiq.metrics.*;
 import com.denis.ubiq.orientation.OrientationWorker;
+import com.denis.ubiq.sensors.*;
+import com.denis.ubiq.trail.TrailLayer;
 import com.denis.ubiq.utils.WriteUtils;
 import com.google.android.gms.location.*;
 import com.google.android.gms.maps.*;
@@ -24,14 +30,14 @@ import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.location.LocationManager.GPS_PROVIDER;
 import static android.widget.Toast.LENGTH_LONG;
-import static com.denis.ubiq.utils.CalculationUtils.getCurrentTime;
 import static com.denis.ubiq.utils.Constants.*;
 import static java.util.Objects.requireNonNull;
 
 public class MapActivity extends AppCompatActivity implements OnMapReadyCallback {
 
-    public Handler mapHandler;
-    public Handler orientationHandler;
+    public FrameMailbox mailbox;
+    public SensorHub sensorHub;
+    private AndroidSensorSource sensorSource;
     private KalmanFilterWorker kalmanWorker;
     private OrientationWorker orientationWorker;
 
@@ -41,9 +47,8 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
 
     private LatLng currentPosition;
     private LatLng initialPosition;
-    private List<Circle> circles = new ArrayList();
-    private List<Polyline> redPolylines = new ArrayList();
-    private List<Polyline> greenPolylines = new ArrayList();
+    private TrailLayer gpsTrail;
+    private TrailLayer kalmanTrail;
     private Button toggleBtn;
     private ImageButton positionBtn;
     private SettingsClient settingsClient;
@@ -51,6 +56,7 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
     private LocationSettingsRequest locationSettingsRequest;
     private LocationManager locationManager;
     private GoogleMap map;
+    private MetricsReporter metricsReporter;
 
     private int rate = 3;
 
@@ -66,6 +72,9 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
 
         this.locationManager = ( LocationManager ) getSystemService( LOCATION_SERVICE );
 
+        this.sensorSource = new AndroidSensorSource( ( SensorManager ) getSystemService( SENSOR_SERVICE ) );
+        this.sensorHub = new SensorHub( sensorSource );
+
         buildLocationSettings();
 
         ( ( Switch ) findViewById( R.id.toggleBtn ) ).setOnCheckedChangeListener( new SwitchButtonListener( this ) );
@@ -78,6 +87,20 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
         toolbar.inflateMenu( R.menu.menu );
 
         enableDisableButtons( false );
+
+        if( METRICS_ENABLED ) {
+            metricsReporter = new MetricsReporter( MetricsRegistry.getDefault(), WriteUtils.getLogger() );
+            metricsReporter.start( METRICS_REPORT_INTERVAL );
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if( metricsReporter != null ) {
+            metricsReporter.cancel();
+        }
+        sensorSource.quit();
     }
 
     private void buildLocationSettings() {
@@ -142,11 +165,22 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
         map = googleMap;
         map.getUiSettings().setZoomControlsEnabled( true );
 
+        gpsTrail = new TrailLayer( map, greenCircleOptions, greenPolylineOptions, TRAIL_MARKERS, TRAIL_MAX_VERTICES, TRAIL_TOLERANCE_PIXELS );
+        kalmanTrail = new TrailLayer( map, redCircleOptions, redPolylineOptions, TRAIL_MARKERS, TRAIL_MAX_VERTICES, TRAIL_TOLERANCE_PIXELS );
+        map.setOnCameraIdleListener( new GoogleMap.OnCameraIdleListener() {
+            @Override
+            public void onCameraIdle() {
+                CameraPosition camera = map.getCameraPosition();
+                LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+                gpsTrail.onCameraIdle( camera, bounds );
+                kalmanTrail.onCameraIdle( camera, bounds );
+            }
+        } );
+
         settingsClient.checkLocationSettings( locationSettingsRequest )
                       .addOnSuccessListener( this, new SingleUpdateOnSuccessListener( this ) )
                       .addOnFailureListener( this, new LocationOnFailureListener( this ) );
-        mapHandler = new MapHandler( this );
-        orientationHandler = new OrientationHandler( this );
+        mailbox = new FrameMailbox( new MapUpdates( this ) );
     }
 
     public void startFilteringHandler() {
@@ -209,15 +243,14 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
         enableDisableButtons( true );
 
         updateTextView( location.getLatitude(), location.getLongitude() );
-        WriteUtils.writeToLog( "%s, %s, %s: latitude=%s; longitude=%s; accuracy=%s; speed=%s; bearing=%s",
-                               getCurrentTime(),
-                               location.getTime(),
-                               "InitialGPS",
-                               location.getLatitude(),
-                               location.getLongitude(),
-                               location.getAccuracy(),
-                               location.getSpeed(),
-                               location.getBearing() );
+        WriteUtils.getLogger().log( LogFormat.LOCATION,
+                                    "InitialGPS",
+                                    location.getTime(),
+                                    location.getLatitude(),
+                                    location.getLongitude(),
+                                    location.getAccuracy(),
+                                    location.getSpeed(),
+                                    location.getBearing() );
     }
 
     private void initKalmanFilterModel( Location location ) {
@@ -248,9 +281,8 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
     public void clear( MenuItem item ) {
         if( map != null ) {
             map.clear();
-            clearCircles();
-            clearPolylines( redPolylines );
-            clearPolylines( greenPolylines );
+            gpsTrail.clear();
+            kalmanTrail.clear();
 
             if( currentPosition != null ) {
                 addMarker( currentPosition );
@@ -258,20 +290,6 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
         }
     }
 
-    private void clearCircles() {
-        for( Circle circle : circles ) {
-            circle.remove();
-        }
-        circles.clear();
-    }
-
-    private void clearPolylines( List<Polyline> polylines ) {
-        for( Polyline polyline : polylines ) {
-            polyline.remove();
-        }
-        polylines.clear();
-    }
-
     public void setRate( MenuItem item ) {
         item.setChecked( true );
 
@@ -300,18 +318,10 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
 
         switch( item.getItemId() ) {
             case R.id.kalman_poly:
-                if( item.isChecked() ) {
-                    redPolylines.add( map.addPolyline( redPolylineOptions ) );
-                } else {
-                    clearPolylines( redPolylines );
-                }
+                kalmanTrail.setPolylineVisible( item.isChecked() );
                 break;
             case R.id.gps_poly:
-                if( item.isChecked() ) {
-                    greenPolylines.add( map.addPolyline( greenPolylineOptions ) );
-                } else {
-                    clearPolylines( greenPolylines );
-                }
+                gpsTrail.setPolylineVisible( item.isChecked() );
                 break;
         }
     }
@@ -329,63 +339,55 @@ public class MapActivity extends AppCompatActivity implements OnMapReadyCallback
         }
     }
 
-    private void handleMapMessage( LatLng measuredPosition, LatLng estimatedPosition ) {
-        if( measuredPosition != null ) {
-            if( isGpsVisible ) {
-                circles.add( map.addCircle( greenCircleOptions.center( measuredPosition ) ) );
-                greenPolylineOptions.add( measuredPosition );
-            }
+    private void handleMeasurement( LatLng measuredPosition ) {
+        if( isGpsVisible ) {
+            gpsTrail.add( measuredPosition );
         }
+    }
 
-        if( estimatedPosition != null ) {
-            if( isKalmanVisible ) {
-                circles.add( map.addCircle( redCircleOptions.center( estimatedPosition ) ) );
-                redPolylineOptions.add( estimatedPosition );
-            }
+    private void handleEstimate( LatLng estimatedPosition ) {
+        if( isKalmanVisible ) {
+            kalmanTrail.add( estimatedPosition );
+        }
 
-            navigationMarker.setPosition( estimatedPosition );
-            currentPosition = estimatedPosition;
+        navigationMarker.setPosition( estimatedPosition );
+        currentPosition = estimatedPosition;
 
-            updateTextView( currentPosition.latitude, currentPosition.longitude );
-        }
+        updateTextView( currentPosition.latitude, currentPosition.longitude );
     }
 
-    private void handleOrientationMessage( float[] orientation ) {
-        if( orientation != null && navigationMarker != null ) {
-            navigationMarker.setRotation( ( float ) Math.toDegrees( orientation[0] ) );
+    private void handleOrientation( float azimuth ) {
+        if( navigationMarker != null ) {
+            navigationMarker.setRotation( ( float ) Math.toDegrees( azimuth ) );
         }
     }
 
-    private static class MapHandler extends Handler {
+    // runs on the main thread once per frame, with the newest of each kind of update
+    private static class MapUpdates implements FrameMailbox.Listener {
 
-        MapActivity mapActivity;
+        private final MapActivity mapActivity;
+        private final LatencyHistogram estimateDelay = MetricsRegistry.getDefault().histogram( "map.estimateDelay" );
 
-        MapHandler( MapActivity mapActivity ) {
-            super( Looper.getMainLooper() );
+        MapUpdates( MapActivity mapActivity ) {
             this.mapActivity = mapActivity;
         }
 
         @Override
-        public void handleMessage( Message msg ) {
-            super.handleMessage( msg );
-            mapActivity.handleMapMessage( ( LatLng ) ( ( Pair ) msg.obj ).first, ( LatLng ) ( ( Pair ) msg.obj ).second );
+        public void onMeasurement( double latitude, double longitude ) {
+            mapActivity.handleMeasurement( new LatLng( latitude, longitude ) );
         }
-    }
 
-    private static class OrientationHandler extends Handler {
-
-        private final MapActivity mapActivity;
-
-        OrientationHandler( MapActivity mapActivity ) {
-            super( Looper.getMainLooper() );
-            this.mapActivity = mapActivity;
+        @Override
+        public void onEstimate( double latitude, double longitude, long enqueueNanos ) {
+            mapActivity.handleEstimate( new LatLng( latitude, longitude ) );
+            if( METRICS_ENABLED ) {
+                estimateDelay.record( SystemClock.elapsedRealtimeNanos() - enqueueNanos );
+            }
         }
 
         @Override
-        public void handleMessage( Message msg ) {
-            super.handleMessage( msg );
-            mapActivity.handleOrientationMessage( ( float[] ) msg.obj );
+        public void onOrientation( float azimuth, float pitch, float roll ) {
+            mapActivity.handleOrientation( azimuth );
         }
     }
-
 }
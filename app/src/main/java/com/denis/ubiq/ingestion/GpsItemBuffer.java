@@ -0,0 +1,67 @@
+package com.denis.ubiq.ingestion;
+
+import com.denis.ubiq.items.GpsItem;
+
+public class GpsItemBuffer extends SpscRingBuffer {
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] altitudes;
+    private final double[] speeds;
+    private final double[] courses;
+    private final double[] positionNoises;
+
+    public GpsItemBuffer( int capacity ) {
+        super( capacity );
+        this.latitudes = new double[this.capacity];
+        this.longitudes = new double[this.capacity];
+        this.altitudes = new double[this.capacity];
+        this.speeds = new double[this.capacity];
+        this.courses = new double[this.capacity];
+        this.positionNoises = new double[this.capacity];
+    }
+
+    public boolean offer( double latitude, double longitude, double altitude, double speed, double course, double positionNoise, long timestamp ) {
+        return offer( latitude, longitude, altitude, speed, course, positionNoise, timestamp, 0L );
+    }
+
+    /** @param enqueueNanos elapsed realtime of the offer, in nanoseconds, handed to the consumer for queue latency */
+    public boolean offer( double latitude,
+                          double longitude,
+                          double altitude,
+                          double speed,
+                          double course,
+                          double positionNoise,
+                          long timestamp,
+                          long enqueueNanos ) {
+        int slot = claim();
+        if( slot < 0 ) {
+            return false;
+        }
+        timestamps[slot] = timestamp;
+        this.enqueueNanos[slot] = enqueueNanos;
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        altitudes[slot] = altitude;
+        speeds[slot] = speed;
+        courses[slot] = course;
+        positionNoises[slot] = positionNoise;
+        publish();
+        return true;
+    }
+
+    /** Copies the oldest record into the given item, only valid if the buffer is not empty. */
+    public GpsItem poll( GpsItem item ) {
+        int slot = readSlot();
+        item.timestamp = timestamps[slot];
+        item.enqueueNanos = enqueueNanos[slot];
+        item.latitude = latitudes[slot];
+        item.longitude = longitudes[slot];
+        item.altitude = altitudes[slot];
+        item.speed = speeds[slot];
+        item.course = courses[slot];
+        item.positionNoise = positionNoises[slot];
+        release();
+        return item;
+    }
+}
@@ -0,0 +1,48 @@
+package com.denis.ubiq.ingestion;
+
+import com.denis.ubiq.items.SensorItem;
+
+public class SensorItemBuffer extends SpscRingBuffer {
+
+    private final double[] eastAccelerations;
+    private final double[] northAccelerations;
+    private final float[] positionNoises;
+
+    public SensorItemBuffer( int capacity ) {
+        super( capacity );
+        this.eastAccelerations = new double[this.capacity];
+        this.northAccelerations = new double[this.capacity];
+        this.positionNoises = new float[this.capacity];
+    }
+
+    public boolean offer( double eastAcceleration, double northAcceleration, float positionNoise, long timestamp ) {
+        return offer( eastAcceleration, northAcceleration, positionNoise, timestamp, 0L );
+    }
+
+    /** @param enqueueNanos elapsed realtime of the offer, in nanoseconds, handed to the consumer for queue latency */
+    public boolean offer( double eastAcceleration, double northAcceleration, float positionNoise, long timestamp, long enqueueNanos ) {
+        int slot = claim();
+        if( slot < 0 ) {
+            return false;
+        }
+        timestamps[slot] = timestamp;
+        this.enqueueNanos[slot] = enqueueNanos;
+        eastAccelerations[slot] = eastAcceleration;
+        northAccelerations[slot] = northAcceleration;
+        positionNoises[slot] = positionNoise;
+        publish();
+        return true;
+    }
+
+    /** Copies the oldest record into the given item, only valid if the buffer is not empty. */
+    public SensorItem poll( SensorItem item ) {
+        int slot = readSlot();
+        item.timestamp = timestamps[slot];
+        item.enqueueNanos = enqueueNanos[slot];
+        item.eastAcceleration = eastAccelerations[slot];
+        item.northAcceleration = northAccelerations[slot];
+        item.positionNoise = positionNoises[slot];
+        release();
+        return item;
+    }
+}
@@ -0,0 +1,105 @@
+package com.denis.ubiq.ingestion;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer ring buffer of timestamped records.
+ * <p>
+ * Subclasses keep the record fields in preallocated primitive arrays indexed by the slot returned from
+ * {@link #claim()} and {@link #readSlot()}. Both sides are wait-free: the producer drops the record when
+ * the buffer is full instead of blocking the sensor thread.
+ */
+public abstract class SpscRingBuffer {
+
+    protected final int capacity;
+    protected final int mask;
+    protected final long[] timestamps;
+    protected final long[] enqueueNanos;
+
+    // next slot to read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer side
+    private long producerIndex;
+    private long headCache;
+    private volatile long dropped;
+
+    // consumer side
+    private long consumerIndex;
+    private long tailCache;
+
+    protected SpscRingBuffer( int capacity ) {
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "capacity must be positive" );
+        }
+        int size = Integer.highestOneBit( capacity );
+        if( size < capacity ) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.enqueueNanos = new long[size];
+    }
+
+    /** Producer: returns the slot to fill, or -1 when the buffer is full and the record has to be dropped. */
+    protected int claim() {
+        if( producerIndex - headCache >= capacity ) {
+            headCache = head.get();
+            if( producerIndex - headCache >= capacity ) {
+                dropped++;
+                return -1;
+            }
+        }
+        return ( int ) ( producerIndex & mask );
+    }
+
+    /** Producer: makes the claimed slot visible to the consumer. */
+    protected void publish() {
+        tail.lazySet( ++producerIndex );
+    }
+
+    /** Consumer: returns true if a record is available. */
+    public boolean isEmpty() {
+        if( consumerIndex < tailCache ) {
+            return false;
+        }
+        tailCache = tail.get();
+        return consumerIndex >= tailCache;
+    }
+
+    /** Consumer: timestamp of the oldest record, only valid if the buffer is not empty. */
+    public long peekTimestamp() {
+        return timestamps[( int ) ( consumerIndex & mask )];
+    }
+
+    /** Consumer: slot of the oldest record, only valid if the buffer is not empty. */
+    protected int readSlot() {
+        return ( int ) ( consumerIndex & mask );
+    }
+
+    /** Consumer: hands the slot returned by {@link #readSlot()} back to the producer. */
+    protected void release() {
+        head.lazySet( ++consumerIndex );
+    }
+
+    /** Consumer: discards every published record. */
+    public void clear() {
+        consumerIndex = tailCache = tail.get();
+        head.lazySet( consumerIndex );
+    }
+
+    public int size() {
+        return ( int ) ( tail.get() - head.get() );
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,87 @@
+package com.denis.ubiq.ingestion;
+
+import java.util.Arrays;
+
+/**
+ * K-way merge of several {@link SpscRingBuffer}s by timestamp. Must be used from the consumer thread.
+ * <p>
+ * Records of a single source are expected in timestamp order, but a source may deliver them late.
+ * A record is only emitted once every empty source has a watermark at or past its timestamp:
+ * the watermark of a source is the later of its last emitted timestamp and now minus its maximum lateness.
+ * A source with a lateness of 0 never holds the others back.
+ */
+public class TimestampMerger {
+
+    private final SpscRingBuffer[] sources;
+    private final long[] maxLateness;
+    private final long[] lastTimestamps;
+
+    private long holdUntil = Long.MAX_VALUE;
+
+    public TimestampMerger( SpscRingBuffer... sources ) {
+        this.sources = sources;
+        this.maxLateness = new long[sources.length];
+        this.lastTimestamps = new long[sources.length];
+        Arrays.fill( lastTimestamps, Long.MIN_VALUE );
+    }
+
+    public void setMaxLateness( int source, long maxLateness ) {
+        this.maxLateness[source] = maxLateness;
+    }
+
+    /** Returns the index of the source holding the oldest available record, or -1 if all sources are empty. */
+    public int next() {
+        return next( Long.MAX_VALUE );
+    }
+
+    /**
+     * Returns the index of the source holding the oldest record that is safe to emit at the given time,
+     * or -1 if there is none, see {@link #getHoldUntil()}.
+     */
+    public int next( long now ) {
+        int next = -1;
+        long oldest = Long.MAX_VALUE;
+        for( int i = 0; i < sources.length; i++ ) {
+            if( !sources[i].isEmpty() ) {
+                long timestamp = sources[i].peekTimestamp();
+                if( next < 0 || timestamp < oldest ) {
+                    next = i;
+                    oldest = timestamp;
+                }
+            }
+        }
+        if( next < 0 ) {
+            holdUntil = Long.MAX_VALUE;
+            return -1;
+        }
+
+        // a record that will be released once now reaches oldest + maxLateness[i]
+        long release = Long.MIN_VALUE;
+        for( int i = 0; i < sources.length; i++ ) {
+            if( lastTimestamps[i] < oldest && sources[i].isEmpty() ) {
+                release = Math.max( release, oldest + maxLateness[i] );
+            }
+        }
+        if( release > now ) {
+            holdUntil = release;
+            return -1;
+        }
+
+        holdUntil = Long.MAX_VALUE;
+        lastTimestamps[next] = oldest;
+        return next;
+    }
+
+    /** Time at which the record held back by the last {@link #next(long)} call becomes safe, or Long.MAX_VALUE. */
+    public long getHoldUntil() {
+        return holdUntil;
+    }
+
+    public void clear() {
+        for( SpscRingBuffer source : sources ) {
+            source.clear();
+        }
+        Arrays.fill( lastTimestamps, Long.MIN_VALUE );
+        holdUntil = Long.MAX_VALUE;
+    }
+}
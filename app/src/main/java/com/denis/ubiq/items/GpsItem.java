@@ -1,5 +1,6 @@
 package com.denis.ubiq.items;
 
+/** A GPS fix. Speed and course are NaN when the fix does not have them, the course is in degrees clockwise from north. */
 public class GpsItem extends TimestampItem {
 
     public double latitude;
@@ -18,4 +19,12 @@ public class GpsItem extends TimestampItem {
         this.course = course;
         this.positionNoise = positionNoise;
     }
+
+    public boolean hasSpeed() {
+        return !Double.isNaN( speed );
+    }
+
+    public boolean hasCourse() {
+        return !Double.isNaN( course );
+    }
 }
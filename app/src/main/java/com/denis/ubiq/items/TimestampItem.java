@@ -5,6 +5,8 @@ import android.support.annotation.NonNull;
 public class TimestampItem implements Comparable<TimestampItem> {
 
     public long timestamp;
+    // elapsed realtime, in nanoseconds, at which the record was queued, 0 when it was not given
+    public long enqueueNanos;
 
     public TimestampItem( long timestamp ) {
         this.timestamp = timestamp;
@@ -12,6 +14,6 @@ public class TimestampItem implements Comparable<TimestampItem> {
 
     @Override
     public int compareTo( @NonNull TimestampItem o ) {
-        return ( int ) ( this.timestamp - o.timestamp );
+        return Long.compare( this.timestamp, o.timestamp );
     }
 }
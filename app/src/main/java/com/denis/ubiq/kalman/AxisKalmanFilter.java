@@ -0,0 +1,152 @@
+package com.denis.ubiq.kalman;
+
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Kalman filter for a single axis of the constant-velocity model: state x = [position, velocity],
+ * control u = [acceleration] and measurement z = [position].
+ * <p>
+ * The axes of {@link KalmanFilterModel} never couple, so running one of these per axis gives the
+ * same estimate as the full filter while the update reduces to scalar arithmetic.
+ */
+public class AxisKalmanFilter {
+
+    public static final int SNAPSHOT_SIZE = 5;
+
+    private double position;
+    private double velocity;
+
+    // symmetric error covariance
+    private double p00;
+    private double p01;
+    private double p11;
+
+    private double dt;
+    private double halfDt2;
+    private double q00;
+    private double q01;
+    private double q11;
+
+    private double r;
+
+    public void setState( double position, double velocity ) {
+        this.position = position;
+        this.velocity = velocity;
+    }
+
+    public void setErrorCovariance( double variance ) {
+        this.p00 = variance;
+        this.p01 = 0d;
+        this.p11 = variance;
+    }
+
+    public void setProcessModel( double dt, double accelerationVariance ) {
+        double dt2 = dt * dt;
+        this.dt = dt;
+        this.halfDt2 = dt2 / 2d;
+        this.q00 = accelerationVariance * dt2 * dt2 / 4d;
+        this.q01 = accelerationVariance * dt2 * dt / 2d;
+        this.q11 = accelerationVariance * dt2;
+    }
+
+    public void setProcessModel( double dt, double q00, double q01, double q11 ) {
+        this.dt = dt;
+        this.halfDt2 = dt * dt / 2d;
+        this.q00 = q00;
+        this.q01 = q01;
+        this.q11 = q11;
+    }
+
+    public void setMeasurementNoise( double variance ) {
+        this.r = variance;
+    }
+
+    public void predict( double acceleration ) {
+        propagate( halfDt2 * acceleration, dt * acceleration );
+    }
+
+    /** Predicts with a control input already mapped into the state space, see {@link ImuPreIntegrator}. */
+    public void propagate( double deltaPosition, double deltaVelocity ) {
+        position += dt * velocity + deltaPosition;
+        velocity += deltaVelocity;
+
+        // P(k)- = A * P(k-1) * A' + Q
+        p00 += dt * ( 2d * p01 + dt * p11 ) + q00;
+        p01 += dt * p11 + q01;
+        p11 += q11;
+    }
+
+    public void correct( double z ) throws SingularMatrixException {
+        double s = p00 + r;
+        if( !( s > 0d ) ) {
+            throw new SingularMatrixException();
+        }
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        double innovation = z - position;
+
+        position += k0 * innovation;
+        velocity += k1 * innovation;
+
+        // P(k) = (I - K * H) * P(k)-, p11 has to use the prior p01
+        p11 -= k1 * p01;
+        p01 -= k0 * p01;
+        p00 -= k0 * p00;
+    }
+
+    /** Scalar update with a velocity measurement of the given variance. */
+    public void correctVelocity( double z, double variance ) throws SingularMatrixException {
+        double s = p11 + variance;
+        if( !( s > 0d ) ) {
+            throw new SingularMatrixException();
+        }
+        double k0 = p01 / s;
+        double k1 = p11 / s;
+        double innovation = z - velocity;
+
+        position += k0 * innovation;
+        velocity += k1 * innovation;
+
+        // P(k) = (I - K * H) * P(k)-, with H = [0, 1]
+        p00 -= k0 * p01;
+        p01 -= k0 * p11;
+        p11 -= k1 * p11;
+    }
+
+    /** Writes the state and the error covariance, {@link #SNAPSHOT_SIZE} values. */
+    public void saveState( double[] out, int offset ) {
+        out[offset] = position;
+        out[offset + 1] = velocity;
+        out[offset + 2] = p00;
+        out[offset + 3] = p01;
+        out[offset + 4] = p11;
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        position = in[offset];
+        velocity = in[offset + 1];
+        p00 = in[offset + 2];
+        p01 = in[offset + 3];
+        p11 = in[offset + 4];
+    }
+
+    public double getPosition() {
+        return position;
+    }
+
+    public double getVelocity() {
+        return velocity;
+    }
+
+    public double getPositionVariance() {
+        return p00;
+    }
+
+    public double getCovariance() {
+        return p01;
+    }
+
+    public double getVelocityVariance() {
+        return p11;
+    }
+}
@@ -0,0 +1,188 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Arrays;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+/**
+ * {@link KalmanFilterModel} split into independent {@link AxisKalmanFilter}s.
+ * <p>
+ * The returned state keeps the layout of the full model, [x, y, vx, vy], followed by
+ * [altitude, vertical velocity] when the altitude axis is enabled. The array is reused between calls.
+ */
+public class DecoupledKalmanFilterModel implements IKalmanFilterModel {
+
+    // GPS altitude is typically a lot worse than the horizontal fix
+    private static final double VERTICAL_NOISE_FACTOR = 1.5d;
+
+    private double positionNoise;
+    private double accelerationNoise = 0.1d;
+    private double velocityNoise = 1d;
+    // there is no vertical acceleration input, so the process noise has to absorb it
+    private double verticalAccelerationNoise = 0.5d;
+
+    private final AxisKalmanFilter xAxis = new AxisKalmanFilter();
+    private final AxisKalmanFilter yAxis = new AxisKalmanFilter();
+    private final AxisKalmanFilter altitudeAxis;
+    private final double[] state;
+    private final LocalTangentPlane projection;
+    // the velocity measured by a fix
+    private final double[] velocity = new double[2];
+
+    private long lastPredictTimeStamp;
+
+    public DecoupledKalmanFilterModel( GpsItem item, boolean withAltitude ) {
+        this.positionNoise = item.positionNoise;
+        this.lastPredictTimeStamp = item.timestamp;
+        this.projection = new LocalTangentPlane( item.latitude, item.longitude );
+
+        // a fix without a speed, or moving without a course, starts the filter at rest
+        GpsVelocity.measure( item, 0d, 0d, velocity );
+        xAxis.setState( projection.toNorth( item.latitude ), velocity[0] );
+        yAxis.setState( projection.toEast( item.latitude, item.longitude ), velocity[1] );
+        init( xAxis, accelerationNoise, positionNoise );
+        init( yAxis, accelerationNoise, positionNoise );
+
+        if( withAltitude ) {
+            altitudeAxis = new AxisKalmanFilter();
+            altitudeAxis.setState( item.altitude, 0d );
+            init( altitudeAxis, verticalAccelerationNoise, positionNoise * VERTICAL_NOISE_FACTOR );
+            state = new double[6];
+        } else {
+            altitudeAxis = null;
+            state = new double[4];
+        }
+    }
+
+    private static void init( AxisKalmanFilter axis, double accelerationNoise, double positionNoise ) {
+        axis.setErrorCovariance( positionNoise );
+        axis.setProcessModel( 1d, accelerationNoise * accelerationNoise );
+        axis.setMeasurementNoise( positionNoise * positionNoise );
+    }
+
+    public void updateProcessModel( SensorItem item ) {
+        double dt = ( item.timestamp - lastPredictTimeStamp ) / 1000.0;
+
+        xAxis.setProcessModel( dt, accelerationNoise * accelerationNoise );
+        yAxis.setProcessModel( dt, accelerationNoise * accelerationNoise );
+        if( altitudeAxis != null ) {
+            altitudeAxis.setProcessModel( dt, verticalAccelerationNoise * verticalAccelerationNoise );
+        }
+
+        this.lastPredictTimeStamp = item.timestamp;
+    }
+
+    public double[] predict( SensorItem item ) {
+        xAxis.predict( item.northAcceleration );
+        yAxis.predict( item.eastAcceleration );
+        if( altitudeAxis != null ) {
+            altitudeAxis.predict( 0d );
+        }
+        return getStateEstimation();
+    }
+
+    public double[] predict( ImuPreIntegrator integrator ) {
+        double dt = integrator.getDuration();
+        double variance = accelerationNoise * accelerationNoise;
+        xAxis.setProcessModel( dt, variance * integrator.getNoise00(), variance * integrator.getNoise01(), variance * integrator.getNoise11() );
+        yAxis.setProcessModel( dt, variance * integrator.getNoise00(), variance * integrator.getNoise01(), variance * integrator.getNoise11() );
+        xAxis.propagate( integrator.getDeltaPositionX(), integrator.getDeltaVelocityX() );
+        yAxis.propagate( integrator.getDeltaPositionY(), integrator.getDeltaVelocityY() );
+        if( altitudeAxis != null ) {
+            variance = verticalAccelerationNoise * verticalAccelerationNoise;
+            altitudeAxis.setProcessModel( dt, variance * integrator.getNoise00(), variance * integrator.getNoise01(), variance * integrator.getNoise11() );
+            altitudeAxis.propagate( 0d, 0d );
+        }
+
+        this.lastPredictTimeStamp = integrator.getEndTimestamp();
+        return getStateEstimation();
+    }
+
+    public void updateMeasurementModel( GpsItem item ) {
+        double variance = item.positionNoise * item.positionNoise;
+        xAxis.setMeasurementNoise( variance );
+        yAxis.setMeasurementNoise( variance );
+        if( altitudeAxis != null ) {
+            altitudeAxis.setMeasurementNoise( variance * VERTICAL_NOISE_FACTOR * VERTICAL_NOISE_FACTOR );
+        }
+    }
+
+    public double[] correct( GpsItem item ) {
+        recenter();
+        xAxis.correct( projection.toNorth( item.latitude ) );
+        yAxis.correct( projection.toEast( item.latitude, item.longitude ) );
+        if( GpsVelocity.measure( item, xAxis.getVelocity(), yAxis.getVelocity(), velocity ) ) {
+            // a standing fix counts too, it keeps the velocity from drifting while the device does not move
+            xAxis.correctVelocity( velocity[0], velocityNoise * velocityNoise );
+            yAxis.correctVelocity( velocity[1], velocityNoise * velocityNoise );
+        }
+        if( altitudeAxis != null ) {
+            altitudeAxis.correct( item.altitude );
+        }
+        return getStateEstimation();
+    }
+
+    public double[] getStateEstimation() {
+        state[0] = xAxis.getPosition();
+        state[1] = yAxis.getPosition();
+        state[2] = xAxis.getVelocity();
+        state[3] = yAxis.getVelocity();
+        if( altitudeAxis != null ) {
+            state[4] = altitudeAxis.getPosition();
+            state[5] = altitudeAxis.getVelocity();
+        }
+        return state;
+    }
+
+    // the axes never couple, so the covariance is their 2x2 blocks on [north, vNorth] and [east, vEast]
+    public double[] getErrorCovariance( double[] out ) {
+        Arrays.fill( out, 0, 16, 0d );
+        out[0] = xAxis.getPositionVariance();
+        out[2] = out[8] = xAxis.getCovariance();
+        out[10] = xAxis.getVelocityVariance();
+        out[5] = yAxis.getPositionVariance();
+        out[7] = out[13] = yAxis.getCovariance();
+        out[15] = yAxis.getVelocityVariance();
+        return out;
+    }
+
+    public LocalTangentPlane getProjection() {
+        return projection;
+    }
+
+    public int getSnapshotSize() {
+        return 3 + ( altitudeAxis != null ? 3 : 2 ) * AxisKalmanFilter.SNAPSHOT_SIZE;
+    }
+
+    public void saveState( double[] out, int offset ) {
+        out[offset] = lastPredictTimeStamp;
+        out[offset + 1] = projection.getOriginLatitude();
+        out[offset + 2] = projection.getOriginLongitude();
+        xAxis.saveState( out, offset + 3 );
+        yAxis.saveState( out, offset + 3 + AxisKalmanFilter.SNAPSHOT_SIZE );
+        if( altitudeAxis != null ) {
+            altitudeAxis.saveState( out, offset + 3 + 2 * AxisKalmanFilter.SNAPSHOT_SIZE );
+        }
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        lastPredictTimeStamp = ( long ) in[offset];
+        projection.setOrigin( in[offset + 1], in[offset + 2] );
+        xAxis.restoreState( in, offset + 3 );
+        yAxis.restoreState( in, offset + 3 + AxisKalmanFilter.SNAPSHOT_SIZE );
+        if( altitudeAxis != null ) {
+            altitudeAxis.restoreState( in, offset + 3 + 2 * AxisKalmanFilter.SNAPSHOT_SIZE );
+        }
+    }
+
+    private void recenter() {
+        double north = xAxis.getPosition();
+        double east = yAxis.getPosition();
+        if( projection.isFar( north, east ) ) {
+            projection.moveOrigin( north, east );
+            xAxis.setState( 0d, xAxis.getVelocity() );
+            yAxis.setState( 0d, yAxis.getVelocity() );
+        }
+    }
+}
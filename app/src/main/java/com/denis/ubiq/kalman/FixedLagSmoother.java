@@ -0,0 +1,272 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-lag Rauch-Tung-Striebel smoother over the constant-velocity model of the filters, fed by a
+ * {@link KalmanFilterKernel} or the horizontal state of any {@link IKalmanFilterModel}.
+ * <p>
+ * Keeps the last lag + 1 steps of the forward filter in a preallocated ring: the predicted and filtered
+ * state and covariance of each step and its dt, which is all the transition matrix depends on. The
+ * smoother gain C(k) = P(k|k) * A(k+1)' * P(k+1|k)^-1 only depends on the forward filter, so it is
+ * computed once when step k+1 is added, and smoothing the step lag steps back takes one 4x4
+ * multiply-add per step of the window. A step can span several predictions, A(dt) composes into the
+ * A of their total dt. Positions are in the frame of the forward filter, see {@link #translate}.
+ */
+public class FixedLagSmoother {
+
+    private static final int SNAPSHOT = KalmanFilterKernel.SNAPSHOT_SIZE;
+
+    private final int lag;
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[] dts;
+    // state and row-major covariance of each step, as saved by KalmanFilterKernel
+    private final double[] predicted;
+    private final double[] filtered;
+    // smoother gain from each step to the next
+    private final double[] gains;
+    private long head;
+    // oldest step still in the window, steps dropped by a rewind are not refilled from the ring
+    private long first;
+
+    // scratch for the gain and the backward pass
+    private final double[] m = new double[16];
+    private final double[] l = new double[16];
+    private final double[] x = new double[4];
+    private final double[] next = new double[4];
+    private final double[] p = new double[16];
+    private final double[] nextP = new double[16];
+    private final double[] cd = new double[16];
+    private final double[] covariance = new double[16];
+
+    /** @param lag steps between the newest step and the one smoothed */
+    public FixedLagSmoother( int lag ) {
+        if( lag <= 0 ) {
+            throw new IllegalArgumentException( "lag must be positive" );
+        }
+        this.lag = lag;
+        this.capacity = lag + 1;
+        this.timestamps = new long[capacity];
+        this.dts = new double[capacity];
+        this.predicted = new double[capacity * SNAPSHOT];
+        this.filtered = new double[capacity * SNAPSHOT];
+        this.gains = new double[capacity * 16];
+    }
+
+    /** Adds a step after the forward filter predicted it over dt seconds. */
+    public void predicted( long timestamp, double dt, KalmanFilterKernel kernel ) {
+        int slot = ( int ) ( head % capacity );
+        timestamps[slot] = timestamp;
+        dts[slot] = dt;
+        kernel.saveState( predicted, slot * SNAPSHOT );
+        add( slot );
+    }
+
+    /**
+     * Adds a step with the state of a model that was predicted up to the given time, in milliseconds. The
+     * dt of the step is the time since the previous one.
+     */
+    public void predicted( long timestamp, IKalmanFilterModel model ) {
+        int slot = ( int ) ( head % capacity );
+        dts[slot] = head > first ? ( timestamp - timestamps[( int ) ( ( head - 1 ) % capacity )] ) / 1000.0 : 0d;
+        timestamps[slot] = timestamp;
+        save( model, predicted, slot * SNAPSHOT );
+        add( slot );
+    }
+
+    private void add( int slot ) {
+        // until it is corrected, the filtered state is the predicted one
+        System.arraycopy( predicted, slot * SNAPSHOT, filtered, slot * SNAPSHOT, SNAPSHOT );
+        if( head > first ) {
+            updateGain( ( int ) ( ( head - 1 ) % capacity ), slot );
+        }
+        head++;
+        first = Math.max( first, head - capacity );
+    }
+
+    /** Replaces the filtered state of the newest step after the forward filter corrected it. */
+    public void corrected( KalmanFilterKernel kernel ) {
+        kernel.saveState( filtered, newestSlot() * SNAPSHOT );
+    }
+
+    /** Replaces the filtered state of the newest step after the model corrected it. */
+    public void corrected( IKalmanFilterModel model ) {
+        save( model, filtered, newestSlot() * SNAPSHOT );
+    }
+
+    private int newestSlot() {
+        if( head == first ) {
+            throw new IllegalStateException( "no step to correct" );
+        }
+        return ( int ) ( ( head - 1 ) % capacity );
+    }
+
+    private void save( IKalmanFilterModel model, double[] out, int offset ) {
+        System.arraycopy( model.getStateEstimation(), 0, out, offset, 4 );
+        System.arraycopy( model.getErrorCovariance( covariance ), 0, out, offset + 4, 16 );
+    }
+
+    /**
+     * Drops the newest steps, when the forward filter is rolled back to before them. The window has to
+     * fill up again before the next smoothed state.
+     */
+    public void rewind( int steps ) {
+        head = Math.max( first, head - steps );
+    }
+
+    // C(k) = P(k|k) * A' * P(k+1|k)^-1, solved as P(k+1|k) * C' = A * P(k|k) with a Cholesky factor
+    private void updateGain( int slot, int nextSlot ) {
+        double dt = dts[nextSlot];
+        int pf = slot * SNAPSHOT + 4;
+        int pp = nextSlot * SNAPSHOT + 4;
+
+        // m = A * P(k|k), A only adds dt times rows 2 and 3 to rows 0 and 1
+        for( int j = 0; j < 4; j++ ) {
+            m[j] = filtered[pf + j] + dt * filtered[pf + 8 + j];
+            m[4 + j] = filtered[pf + 4 + j] + dt * filtered[pf + 12 + j];
+            m[8 + j] = filtered[pf + 8 + j];
+            m[12 + j] = filtered[pf + 12 + j];
+        }
+
+        // P(k+1|k) = L * L'
+        for( int i = 0; i < 4; i++ ) {
+            for( int j = 0; j <= i; j++ ) {
+                double sum = predicted[pp + i * 4 + j];
+                for( int k = 0; k < j; k++ ) {
+                    sum -= l[i * 4 + k] * l[j * 4 + k];
+                }
+                if( i == j ) {
+                    // a covariance that lost definiteness gives no gain, the step is left as filtered
+                    if( !( sum > 0d ) ) {
+                        Arrays.fill( gains, slot * 16, slot * 16 + 16, 0d );
+                        return;
+                    }
+                    l[i * 4 + i] = Math.sqrt( sum );
+                } else {
+                    l[i * 4 + j] = sum / l[j * 4 + j];
+                }
+            }
+        }
+
+        // each column of m gives a row of C
+        int g = slot * 16;
+        for( int c = 0; c < 4; c++ ) {
+            for( int i = 0; i < 4; i++ ) {
+                double sum = m[i * 4 + c];
+                for( int k = 0; k < i; k++ ) {
+                    sum -= l[i * 4 + k] * x[k];
+                }
+                x[i] = sum / l[i * 4 + i];
+            }
+            for( int i = 3; i >= 0; i-- ) {
+                double sum = x[i];
+                for( int k = i + 1; k < 4; k++ ) {
+                    sum -= l[k * 4 + i] * gains[g + c * 4 + k];
+                }
+                gains[g + c * 4 + i] = sum / l[i * 4 + i];
+            }
+        }
+    }
+
+    /** True once the window holds lag steps after the smoothed one. */
+    public boolean isReady() {
+        return head - first >= capacity;
+    }
+
+    /** Timestamp of the step {@link #getSmoothedState} returns. */
+    public long getSmoothedTimestamp() {
+        return timestamps[( int ) ( head % capacity )];
+    }
+
+    /** Copies the smoothed [x, y, vx, vy] of the step lag steps back into out, once {@link #isReady()}. */
+    public double[] getSmoothedState( double[] out ) {
+        if( !isReady() ) {
+            throw new IllegalStateException( "fewer than " + capacity + " steps" );
+        }
+        int slot = ( int ) ( ( head - 1 ) % capacity );
+        System.arraycopy( filtered, slot * SNAPSHOT, next, 0, 4 );
+        for( int step = 1; step <= lag; step++ ) {
+            int nextSlot = slot;
+            slot = ( int ) ( ( head - 1 - step ) % capacity );
+            backward( slot, nextSlot );
+        }
+        System.arraycopy( next, 0, out, 0, 4 );
+        return out;
+    }
+
+    // x(k|N) = x(k|k) + C(k) * ( x(k+1|N) - x(k+1|k) ), from next into next
+    private void backward( int slot, int nextSlot ) {
+        int s = slot * SNAPSHOT;
+        int n = nextSlot * SNAPSHOT;
+        int g = slot * 16;
+        double d0 = next[0] - predicted[n];
+        double d1 = next[1] - predicted[n + 1];
+        double d2 = next[2] - predicted[n + 2];
+        double d3 = next[3] - predicted[n + 3];
+        for( int i = 0; i < 4; i++ ) {
+            next[i] = filtered[s + i] + gains[g + i * 4] * d0 + gains[g + i * 4 + 1] * d1 + gains[g + i * 4 + 2] * d2 + gains[g + i * 4 + 3] * d3;
+        }
+    }
+
+    /**
+     * Copies the smoothed covariance of the step lag steps back into out, row-major, once {@link #isReady()}.
+     * Costs a few 4x4 products per step of the window, unlike the state.
+     */
+    public double[] getSmoothedCovariance( double[] out ) {
+        if( !isReady() ) {
+            throw new IllegalStateException( "fewer than " + capacity + " steps" );
+        }
+        int slot = ( int ) ( ( head - 1 ) % capacity );
+        System.arraycopy( filtered, slot * SNAPSHOT + 4, nextP, 0, 16 );
+        for( int step = 1; step <= lag; step++ ) {
+            int nextSlot = slot;
+            slot = ( int ) ( ( head - 1 - step ) % capacity );
+            int s = slot * SNAPSHOT + 4;
+            int n = nextSlot * SNAPSHOT + 4;
+            int g = slot * 16;
+            // P(k|N) = P(k|k) + C * ( P(k+1|N) - P(k+1|k) ) * C'
+            for( int i = 0; i < 4; i++ ) {
+                for( int j = 0; j < 4; j++ ) {
+                    double sum = 0d;
+                    for( int k = 0; k < 4; k++ ) {
+                        sum += gains[g + i * 4 + k] * ( nextP[k * 4 + j] - predicted[n + k * 4 + j] );
+                    }
+                    cd[i * 4 + j] = sum;
+                }
+            }
+            for( int i = 0; i < 4; i++ ) {
+                for( int j = 0; j < 4; j++ ) {
+                    double sum = filtered[s + i * 4 + j];
+                    for( int k = 0; k < 4; k++ ) {
+                        sum += cd[i * 4 + k] * gains[g + j * 4 + k];
+                    }
+                    p[i * 4 + j] = sum;
+                }
+            }
+            System.arraycopy( p, 0, nextP, 0, 16 );
+        }
+        System.arraycopy( nextP, 0, out, 0, 16 );
+        return out;
+    }
+
+    /** Shifts every position kept by the smoother, when the forward filter moves its origin. */
+    public void translate( double north, double east ) {
+        int steps = ( int ) Math.min( head, capacity );
+        for( int i = 0; i < steps; i++ ) {
+            predicted[i * SNAPSHOT] -= north;
+            predicted[i * SNAPSHOT + 1] -= east;
+            filtered[i * SNAPSHOT] -= north;
+            filtered[i * SNAPSHOT + 1] -= east;
+        }
+    }
+
+    public int getLag() {
+        return lag;
+    }
+
+    public void reset() {
+        head = 0;
+        first = 0;
+    }
+}
@@ -0,0 +1,43 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.GpsItem;
+
+/** The velocity a GPS fix measures, in the vNorth and vEast components of the state. */
+final class GpsVelocity {
+
+    // below this estimated speed the direction of travel is noise
+    private static final double MIN_DIRECTION_SPEED = 0.5d;
+
+    private GpsVelocity() { }
+
+    /**
+     * Writes the measured [vNorth, vEast] into out, or returns false if the fix does not measure the velocity.
+     * A fix without a course only has a speed, which is taken along the estimated direction of travel; a
+     * standing fix measures a zero velocity with or without one.
+     *
+     * @param vNorth estimated velocity, 0 when there is no estimate yet
+     */
+    static boolean measure( GpsItem item, double vNorth, double vEast, double[] out ) {
+        if( !item.hasSpeed() ) {
+            return false;
+        }
+        if( item.hasCourse() ) {
+            double course = Math.toRadians( item.course );
+            out[0] = item.speed * Math.cos( course );
+            out[1] = item.speed * Math.sin( course );
+            return true;
+        }
+        if( item.speed == 0d ) {
+            out[0] = 0d;
+            out[1] = 0d;
+            return true;
+        }
+        double estimated = Math.sqrt( vNorth * vNorth + vEast * vEast );
+        if( estimated < MIN_DIRECTION_SPEED ) {
+            return false;
+        }
+        out[0] = item.speed * vNorth / estimated;
+        out[1] = item.speed * vEast / estimated;
+        return true;
+    }
+}
@@ -1,11 +1,23 @@
 package com.denis.ubiq.kalman;
 
 import com.denis.ubiq.items.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
 
 public interface IKalmanFilterModel {
 
     void updateProcessModel( SensorItem sensorItem );
     double[] predict( SensorItem item );
+    double[] predict( ImuPreIntegrator integrator );
     void updateMeasurementModel( GpsItem gpsItem );
     double[] correct( GpsItem item );
+    double[] getStateEstimation();
+    /** Copies the error covariance of the horizontal state [north, east, vNorth, vEast] into out, 16 values row-major. */
+    double[] getErrorCovariance( double[] out );
+    /** Converts between coordinates and the positions of the state, which are in meters north and east of its origin. */
+    LocalTangentPlane getProjection();
+    /** Number of values written by {@link #saveState}: the time of the state, the projection origin, the state and its error covariance. */
+    int getSnapshotSize();
+    void saveState( double[] out, int offset );
+    /** Puts the model back to a saved state, the process and measurement models are set up again by the next step. */
+    void restoreState( double[] in, int offset );
 }
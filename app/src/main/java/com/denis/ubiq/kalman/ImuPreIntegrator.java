@@ -0,0 +1,107 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.SensorItem;
+
+/**
+ * Folds consecutive {@link SensorItem}s into a single control input of the constant-velocity model.
+ * <p>
+ * Over a window of length T the model propagates as x(T) = A(T) * x(0) + [dp, dv], where dp and dv are the
+ * position and velocity reached from rest under the sampled accelerations. The process noise of the window is
+ * accumulated the same way, Q = A(dt) * Q * A(dt)' + Q(dt) per sample, per unit of acceleration variance
+ * so each model can scale it with its own noise. A single predict over the window then gives the same
+ * result as one predict per sample. X and Y are the axes of the state, north and east.
+ */
+public class ImuPreIntegrator {
+
+    private long startTimestamp;
+    private long lastTimestamp;
+    private int sampleCount;
+    private double duration;
+
+    private double deltaPositionX;
+    private double deltaPositionY;
+    private double deltaVelocityX;
+    private double deltaVelocityY;
+
+    // per axis process noise for a unit acceleration variance
+    private double noise00;
+    private double noise01;
+    private double noise11;
+
+    public ImuPreIntegrator( long timestamp ) {
+        reset( timestamp );
+    }
+
+    public void reset( long timestamp ) {
+        startTimestamp = lastTimestamp = timestamp;
+        sampleCount = 0;
+        duration = 0d;
+        deltaPositionX = deltaPositionY = deltaVelocityX = deltaVelocityY = 0d;
+        noise00 = noise01 = noise11 = 0d;
+    }
+
+    public void integrate( SensorItem item ) {
+        double dt = ( item.timestamp - lastTimestamp ) / 1000.0;
+        double dt2 = dt * dt;
+        double halfDt2 = dt2 / 2d;
+
+        // x is the first axis of the state, north, and y is east
+        deltaPositionX += dt * deltaVelocityX + halfDt2 * item.northAcceleration;
+        deltaPositionY += dt * deltaVelocityY + halfDt2 * item.eastAcceleration;
+        deltaVelocityX += dt * item.northAcceleration;
+        deltaVelocityY += dt * item.eastAcceleration;
+
+        noise00 += dt * ( 2d * noise01 + dt * noise11 ) + dt2 * dt2 / 4d;
+        noise01 += dt * noise11 + dt2 * dt / 2d;
+        noise11 += dt2;
+
+        duration += dt;
+        lastTimestamp = item.timestamp;
+        sampleCount++;
+    }
+
+    public long getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    public long getEndTimestamp() {
+        return lastTimestamp;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /** Window length in seconds. */
+    public double getDuration() {
+        return duration;
+    }
+
+    public double getDeltaPositionX() {
+        return deltaPositionX;
+    }
+
+    public double getDeltaPositionY() {
+        return deltaPositionY;
+    }
+
+    public double getDeltaVelocityX() {
+        return deltaVelocityX;
+    }
+
+    public double getDeltaVelocityY() {
+        return deltaVelocityY;
+    }
+
+    public double getNoise00() {
+        return noise00;
+    }
+
+    public double getNoise01() {
+        return noise01;
+    }
+
+    public double getNoise11() {
+        return noise11;
+    }
+}
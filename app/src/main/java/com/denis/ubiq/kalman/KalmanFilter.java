@@ -352,4 +352,38 @@ public class KalmanFilter {
         RealMatrix identity = MatrixUtils.createRealIdentityMatrix( kalmanGain.getRowDimension() );
         errorCovariance = identity.subtract( kalmanGain.multiply( measurementMatrix ) ).multiply( errorCovariance );
     }
+
+    /**
+     * Correct the current state estimate with a scalar measurement of a single state component,
+     * z = x[index] + v with var(v) = r. Components measured with independent noise can be corrected one
+     * after the other, with the same result as a joint correction and no matrix inversion.
+     *
+     * @param index the measured component of the state
+     * @param z     the measurement
+     * @param r     the variance of the measurement noise
+     *
+     * @throws SingularMatrixException if the innovation variance is not positive
+     */
+    public void correct( final int index, final double z, final double r ) throws SingularMatrixException {
+        // P(k)- * H', the column of the measured component
+        double[] column = errorCovariance.getColumn( index );
+        double s = column[index] + r;
+        if( !( s > 0d ) ) {
+            throw new SingularMatrixException();
+        }
+        double innovation = z - stateEstimation.getEntry( index );
+
+        double[] x = stateEstimation.toArray();
+        double[][] p = errorCovariance.getData();
+        for( int i = 0; i < x.length; i++ ) {
+            double k = column[i] / s;
+            x[i] += k * innovation;
+            // P(k) = P(k)- - K * H * P(k)-, where H * P(k)- is the transposed column
+            for( int j = 0; j < x.length; j++ ) {
+                p[i][j] -= k * column[j];
+            }
+        }
+        stateEstimation = new ArrayRealVector( x, false );
+        errorCovariance = new Array2DRowRealMatrix( p, false );
+    }
 }
@@ -0,0 +1,272 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Arrays;
+
+/**
+ * The constant-velocity model of {@link KalmanFilterModel} for many tracks, stored as a struct of arrays.
+ * <p>
+ * The axes never couple (see {@link AxisKalmanFilter}), so a track is two position/velocity pairs with
+ * three covariance terms each. Every term lives in its own primitive array, in segments of
+ * {@link #SEGMENT_SIZE} tracks. Inputs and measurements are staged per track, then {@link #predictAll}
+ * and {@link #correctAll} run straight loops over each segment that the JIT can vectorize.
+ * <p>
+ * Tracks occupy the slots [0, size). Removing a track moves the last one into its slot. Growing adds
+ * a segment. Neither copies the rest of the bank, and track ids stay valid until removed.
+ * Not thread-safe.
+ */
+public class KalmanFilterBank {
+
+    public static final int SEGMENT_SIZE = 1024;
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private Segment[] segments = new Segment[1];
+    private int size;
+
+    // track id -> slot and back, ids are reused after removal
+    private int[] slots = new int[SEGMENT_SIZE];
+    private int[] tracks = new int[SEGMENT_SIZE];
+    private int[] freeTracks = new int[16];
+    private int freeCount;
+    private int nextTrack;
+
+    /** Adds a track with the given state and a diagonal error covariance, returns its id. */
+    public int addTrack( double x, double y, double vx, double vy, double variance ) {
+        int slot = size;
+        if( ( slot >> SEGMENT_SHIFT ) == segments.length ) {
+            segments = Arrays.copyOf( segments, segments.length * 2 );
+        }
+        Segment segment = segments[slot >> SEGMENT_SHIFT];
+        if( segment == null ) {
+            segment = segments[slot >> SEGMENT_SHIFT] = new Segment();
+        }
+
+        int track;
+        if( freeCount > 0 ) {
+            track = freeTracks[--freeCount];
+        } else {
+            track = nextTrack++;
+            if( track == slots.length ) {
+                slots = Arrays.copyOf( slots, slots.length * 2 );
+            }
+        }
+        if( slot == tracks.length ) {
+            tracks = Arrays.copyOf( tracks, tracks.length * 2 );
+        }
+        slots[track] = slot;
+        tracks[slot] = track;
+        size++;
+
+        int i = slot & SEGMENT_MASK;
+        segment.x[i] = x;
+        segment.vx[i] = vx;
+        segment.pxx[i] = variance;
+        segment.pxvx[i] = 0d;
+        segment.pvxvx[i] = variance;
+        segment.y[i] = y;
+        segment.vy[i] = vy;
+        segment.pyy[i] = variance;
+        segment.pyvy[i] = 0d;
+        segment.pvyvy[i] = variance;
+        segment.ax[i] = 0d;
+        segment.ay[i] = 0d;
+        segment.zx[i] = 0d;
+        segment.zy[i] = 0d;
+        segment.r[i] = 1d;
+        segment.measured[i] = 0d;
+        return track;
+    }
+
+    public void removeTrack( int track ) {
+        int slot = slotOf( track );
+        int last = --size;
+        if( slot != last ) {
+            Segment.move( segments[last >> SEGMENT_SHIFT], last & SEGMENT_MASK, segments[slot >> SEGMENT_SHIFT], slot & SEGMENT_MASK );
+            int moved = tracks[last];
+            tracks[slot] = moved;
+            slots[moved] = slot;
+        }
+        slots[track] = -1;
+        if( freeCount == freeTracks.length ) {
+            freeTracks = Arrays.copyOf( freeTracks, freeCount * 2 );
+        }
+        freeTracks[freeCount++] = track;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Stages an acceleration input for the next {@link #predictAll}. Tracks without one coast at constant velocity. */
+    public void setInput( int track, double ax, double ay ) {
+        int slot = slotOf( track );
+        Segment segment = segments[slot >> SEGMENT_SHIFT];
+        segment.ax[slot & SEGMENT_MASK] = ax;
+        segment.ay[slot & SEGMENT_MASK] = ay;
+    }
+
+    /** Stages a position measurement for the next {@link #correctAll}. Tracks without one are left as they are. */
+    public void setMeasurement( int track, double zx, double zy, double variance ) {
+        if( !( variance > 0d ) ) {
+            throw new IllegalArgumentException( "variance must be positive" );
+        }
+        int slot = slotOf( track );
+        Segment segment = segments[slot >> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        segment.zx[i] = zx;
+        segment.zy[i] = zy;
+        segment.r[i] = variance;
+        segment.measured[i] = 1d;
+    }
+
+    /** Advances every track by dt seconds with its staged input, then clears the inputs. */
+    public void predictAll( double dt, double accelerationVariance ) {
+        double dt2 = dt * dt;
+        double halfDt2 = dt2 / 2d;
+        double q00 = accelerationVariance * dt2 * dt2 / 4d;
+        double q01 = accelerationVariance * dt2 * dt / 2d;
+        double q11 = accelerationVariance * dt2;
+
+        for( int s = 0; s < segmentCount(); s++ ) {
+            Segment segment = segments[s];
+            int n = segmentSize( s );
+            predictAxis( n, dt, halfDt2, q00, q01, q11, segment.x, segment.vx, segment.ax, segment.pxx, segment.pxvx, segment.pvxvx );
+            predictAxis( n, dt, halfDt2, q00, q01, q11, segment.y, segment.vy, segment.ay, segment.pyy, segment.pyvy, segment.pvyvy );
+            Arrays.fill( segment.ax, 0, n, 0d );
+            Arrays.fill( segment.ay, 0, n, 0d );
+        }
+    }
+
+    /** Corrects every track with a staged measurement, then clears the measurements. */
+    public void correctAll() {
+        for( int s = 0; s < segmentCount(); s++ ) {
+            Segment segment = segments[s];
+            int n = segmentSize( s );
+            correctAxis( n, segment.zx, segment.r, segment.measured, segment.x, segment.vx, segment.pxx, segment.pxvx, segment.pvxvx );
+            correctAxis( n, segment.zy, segment.r, segment.measured, segment.y, segment.vy, segment.pyy, segment.pyvy, segment.pvyvy );
+            Arrays.fill( segment.measured, 0, n, 0d );
+        }
+    }
+
+    /** Copies [x, y, vx, vy] of the track into out. */
+    public double[] getState( int track, double[] out ) {
+        int slot = slotOf( track );
+        Segment segment = segments[slot >> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        out[0] = segment.x[i];
+        out[1] = segment.y[i];
+        out[2] = segment.vx[i];
+        out[3] = segment.vy[i];
+        return out;
+    }
+
+    /** Copies the full 4x4 error covariance of the track into out, row-major, as {@link KalmanFilterKernel} does. */
+    public double[] getErrorCovariance( int track, double[] out ) {
+        int slot = slotOf( track );
+        Segment segment = segments[slot >> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        Arrays.fill( out, 0, 16, 0d );
+        out[0] = segment.pxx[i];
+        out[2] = out[8] = segment.pxvx[i];
+        out[10] = segment.pvxvx[i];
+        out[5] = segment.pyy[i];
+        out[7] = out[13] = segment.pyvy[i];
+        out[15] = segment.pvyvy[i];
+        return out;
+    }
+
+    private static void predictAxis( int n, double dt, double halfDt2, double q00, double q01, double q11,
+                                     double[] position, double[] velocity, double[] acceleration,
+                                     double[] p00, double[] p01, double[] p11 ) {
+        for( int i = 0; i < n; i++ ) {
+            position[i] += dt * velocity[i] + halfDt2 * acceleration[i];
+            velocity[i] += dt * acceleration[i];
+        }
+        // P(k)- = A * P(k-1) * A' + Q
+        for( int i = 0; i < n; i++ ) {
+            p00[i] += dt * ( 2d * p01[i] + dt * p11[i] ) + q00;
+            p01[i] += dt * p11[i] + q01;
+            p11[i] += q11;
+        }
+    }
+
+    // the gain is zeroed for the tracks without a measurement instead of branching on them
+    private static void correctAxis( int n, double[] z, double[] r, double[] measured,
+                                     double[] position, double[] velocity,
+                                     double[] p00, double[] p01, double[] p11 ) {
+        for( int i = 0; i < n; i++ ) {
+            double s = p00[i] + r[i];
+            double k0 = measured[i] * p00[i] / s;
+            double k1 = measured[i] * p01[i] / s;
+            double innovation = z[i] - position[i];
+
+            position[i] += k0 * innovation;
+            velocity[i] += k1 * innovation;
+
+            // P(k) = (I - K * H) * P(k)-, p11 has to use the prior p01
+            p11[i] -= k1 * p01[i];
+            p01[i] -= k0 * p01[i];
+            p00[i] -= k0 * p00[i];
+        }
+    }
+
+    private int slotOf( int track ) {
+        int slot = track >= 0 && track < nextTrack ? slots[track] : -1;
+        if( slot < 0 ) {
+            throw new IllegalArgumentException( "Unknown track " + track );
+        }
+        return slot;
+    }
+
+    private int segmentCount() {
+        return ( size + SEGMENT_SIZE - 1 ) >> SEGMENT_SHIFT;
+    }
+
+    private int segmentSize( int segment ) {
+        return Math.min( SEGMENT_SIZE, size - ( segment << SEGMENT_SHIFT ) );
+    }
+
+    private static class Segment {
+
+        final double[] x = new double[SEGMENT_SIZE];
+        final double[] vx = new double[SEGMENT_SIZE];
+        final double[] pxx = new double[SEGMENT_SIZE];
+        final double[] pxvx = new double[SEGMENT_SIZE];
+        final double[] pvxvx = new double[SEGMENT_SIZE];
+
+        final double[] y = new double[SEGMENT_SIZE];
+        final double[] vy = new double[SEGMENT_SIZE];
+        final double[] pyy = new double[SEGMENT_SIZE];
+        final double[] pyvy = new double[SEGMENT_SIZE];
+        final double[] pvyvy = new double[SEGMENT_SIZE];
+
+        // staged input
+        final double[] ax = new double[SEGMENT_SIZE];
+        final double[] ay = new double[SEGMENT_SIZE];
+
+        // staged measurement, measured is 1 or 0 so it can scale the gain
+        final double[] zx = new double[SEGMENT_SIZE];
+        final double[] zy = new double[SEGMENT_SIZE];
+        final double[] r = new double[SEGMENT_SIZE];
+        final double[] measured = new double[SEGMENT_SIZE];
+
+        static void move( Segment from, int i, Segment to, int j ) {
+            to.x[j] = from.x[i];
+            to.vx[j] = from.vx[i];
+            to.pxx[j] = from.pxx[i];
+            to.pxvx[j] = from.pxvx[i];
+            to.pvxvx[j] = from.pvxvx[i];
+            to.y[j] = from.y[i];
+            to.vy[j] = from.vy[i];
+            to.pyy[j] = from.pyy[i];
+            to.pyvy[j] = from.pyvy[i];
+            to.pvyvy[j] = from.pvyvy[i];
+            to.ax[j] = from.ax[i];
+            to.ay[j] = from.ay[i];
+            to.zx[j] = from.zx[i];
+            to.zy[j] = from.zy[i];
+            to.r[j] = from.r[i];
+            to.measured[j] = from.measured[i];
+        }
+    }
+}
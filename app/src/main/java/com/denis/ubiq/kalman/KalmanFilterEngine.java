@@ -0,0 +1,56 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.GpsItem;
+
+public enum KalmanFilterEngine {
+
+    // general purpose filter on commons-math matrices
+    COMMONS_MATH {
+        @Override
+        public IKalmanFilterModel create( GpsItem item ) {
+            return new KalmanFilterModel( item );
+        }
+    },
+
+    // allocation free, fixed-dimension filter
+    KERNEL {
+        @Override
+        public IKalmanFilterModel create( GpsItem item ) {
+            return new KalmanFilterKernelModel( item );
+        }
+    },
+
+    // fixed-dimension filter with a constant gain while the covariance has converged
+    KERNEL_STEADY_STATE {
+        @Override
+        public IKalmanFilterModel create( GpsItem item ) {
+            return new KalmanFilterKernelModel( item, true );
+        }
+    },
+
+    // fixed-dimension filter in single precision, on the U-D factors of the covariance
+    UD_FLOAT {
+        @Override
+        public IKalmanFilterModel create( GpsItem item ) {
+            return new UdKalmanFilterModel( item );
+        }
+    },
+
+    // independent filter per horizontal axis
+    DECOUPLED {
+        @Override
+        public IKalmanFilterModel create( GpsItem item ) {
+            return new DecoupledKalmanFilterModel( item, false );
+        }
+    },
+
+    // independent filter per axis, including the GPS altitude
+    DECOUPLED_3D {
+        @Override
+        public IKalmanFilterModel create( GpsItem item ) {
+            return new DecoupledKalmanFilterModel( item, true );
+        }
+    };
+
+    public abstract IKalmanFilterModel create( GpsItem item );
+}
@@ -0,0 +1,210 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.*;
+
+/**
+ * Bounded history of the records applied to a filter, with checkpoints of its state in between, so that a
+ * GPS fix arriving after later sensor items can be put in its place and the steps after it replayed.
+ * <p>
+ * Records and checkpoints live in preallocated primitive rings, the oldest are overwritten. Records are
+ * addressed by an ever increasing position; a checkpoint holds the state after every record before its position.
+ */
+public class KalmanFilterHistory {
+
+    public static final byte SENSOR = 1;
+    public static final byte GPS = 2;
+    private static final int FIELDS = 6;
+
+    private final int capacity;
+    private final int mask;
+    private final byte[] types;
+    private final long[] timestamps;
+    private final double[] values;
+    private long head;
+    private long tail;
+
+    private final int checkpointCapacity;
+    private final int checkpointMask;
+    private final int snapshotSize;
+    private final long[] checkpointPositions;
+    // latest record timestamp covered by the checkpoint, and the time the state refers to
+    private final long[] checkpointTimestamps;
+    private final long[] stateTimestamps;
+    private final double[] snapshots;
+    private long checkpointHead;
+    private long checkpointTail;
+
+    /** Capacities are rounded up to powers of two. */
+    public KalmanFilterHistory( int capacity, int checkpointCapacity, int snapshotSize ) {
+        this.capacity = powerOfTwo( capacity );
+        this.mask = this.capacity - 1;
+        this.types = new byte[this.capacity];
+        this.timestamps = new long[this.capacity];
+        this.values = new double[this.capacity * FIELDS];
+
+        this.checkpointCapacity = powerOfTwo( checkpointCapacity );
+        this.checkpointMask = this.checkpointCapacity - 1;
+        this.snapshotSize = snapshotSize;
+        this.checkpointPositions = new long[this.checkpointCapacity];
+        this.checkpointTimestamps = new long[this.checkpointCapacity];
+        this.stateTimestamps = new long[this.checkpointCapacity];
+        this.snapshots = new double[this.checkpointCapacity * snapshotSize];
+    }
+
+    private static int powerOfTwo( int capacity ) {
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "capacity must be positive" );
+        }
+        int size = Integer.highestOneBit( capacity );
+        return size < capacity ? size << 1 : size;
+    }
+
+    public void addSensor( SensorItem item ) {
+        int slot = append();
+        int offset = slot * FIELDS;
+        types[slot] = SENSOR;
+        timestamps[slot] = item.timestamp;
+        values[offset] = item.eastAcceleration;
+        values[offset + 1] = item.northAcceleration;
+        values[offset + 2] = item.positionNoise;
+    }
+
+    public void addGps( GpsItem item ) {
+        set( append(), item );
+    }
+
+    private int append() {
+        if( head - tail == capacity ) {
+            tail++;
+        }
+        return ( int ) ( head++ & mask );
+    }
+
+    private void set( int slot, GpsItem item ) {
+        int offset = slot * FIELDS;
+        types[slot] = GPS;
+        timestamps[slot] = item.timestamp;
+        values[offset] = item.latitude;
+        values[offset + 1] = item.longitude;
+        values[offset + 2] = item.altitude;
+        values[offset + 3] = item.speed;
+        values[offset + 4] = item.course;
+        values[offset + 5] = item.positionNoise;
+    }
+
+    /**
+     * Inserts a fix before the first record after the given position with a later timestamp.
+     * Returns the position of the fix. The oldest record is dropped if the history is full, so from has to be past it.
+     */
+    public long insertGps( long from, GpsItem item ) {
+        if( from < tail || from > head || ( from == tail && head - tail == capacity ) ) {
+            throw new IllegalArgumentException( "position " + from + " is not in the history" );
+        }
+        long position = from;
+        while( position < head && timestamps[( int ) ( position & mask )] <= item.timestamp ) {
+            position++;
+        }
+        append();
+        for( long i = head - 1; i > position; i-- ) {
+            copy( ( int ) ( ( i - 1 ) & mask ), ( int ) ( i & mask ) );
+        }
+        set( ( int ) ( position & mask ), item );
+        return position;
+    }
+
+    private void copy( int from, int to ) {
+        types[to] = types[from];
+        timestamps[to] = timestamps[from];
+        System.arraycopy( values, from * FIELDS, values, to * FIELDS, FIELDS );
+    }
+
+    /**
+     * Saves the state of the model as it is after every record added so far.
+     *
+     * @param checkpointTimestamp latest timestamp among those records, a later fix can be replayed from here
+     * @param stateTimestamp      time the state refers to, that of the last sensor item
+     */
+    public void checkpoint( IKalmanFilterModel model, long checkpointTimestamp, long stateTimestamp ) {
+        if( checkpointHead - checkpointTail == checkpointCapacity ) {
+            checkpointTail++;
+        }
+        int slot = ( int ) ( checkpointHead++ & checkpointMask );
+        checkpointPositions[slot] = head;
+        checkpointTimestamps[slot] = checkpointTimestamp;
+        stateTimestamps[slot] = stateTimestamp;
+        model.saveState( snapshots, slot * snapshotSize );
+    }
+
+    /**
+     * Latest checkpoint a fix with the given timestamp can be inserted after, or -1 if its records have
+     * already been overwritten.
+     */
+    public long findCheckpoint( long timestamp ) {
+        // inserting drops the oldest record when full, which must not be one to replay
+        long oldest = head - tail == capacity ? tail + 1 : tail;
+        for( long checkpoint = checkpointHead - 1; checkpoint >= checkpointTail; checkpoint-- ) {
+            int slot = ( int ) ( checkpoint & checkpointMask );
+            if( checkpointPositions[slot] < oldest ) {
+                return -1;
+            }
+            if( checkpointTimestamps[slot] <= timestamp ) {
+                return checkpoint;
+            }
+        }
+        return -1;
+    }
+
+    /** Restores the model to a checkpoint and drops the later ones, the records after it have to be replayed. */
+    public void rollback( long checkpoint, IKalmanFilterModel model ) {
+        int slot = ( int ) ( checkpoint & checkpointMask );
+        model.restoreState( snapshots, slot * snapshotSize );
+        checkpointHead = checkpoint + 1;
+    }
+
+    public long getCheckpointPosition( long checkpoint ) {
+        return checkpointPositions[( int ) ( checkpoint & checkpointMask )];
+    }
+
+    public long getStateTimestamp( long checkpoint ) {
+        return stateTimestamps[( int ) ( checkpoint & checkpointMask )];
+    }
+
+    public long getHead() {
+        return head;
+    }
+
+    public long getTail() {
+        return tail;
+    }
+
+    public byte getType( long position ) {
+        return types[( int ) ( position & mask )];
+    }
+
+    public long getTimestamp( long position ) {
+        return timestamps[( int ) ( position & mask )];
+    }
+
+    public SensorItem getSensorItem( long position, SensorItem out ) {
+        int slot = ( int ) ( position & mask );
+        int offset = slot * FIELDS;
+        out.eastAcceleration = values[offset];
+        out.northAcceleration = values[offset + 1];
+        out.positionNoise = ( float ) values[offset + 2];
+        out.timestamp = timestamps[slot];
+        return out;
+    }
+
+    public GpsItem getGpsItem( long position, GpsItem out ) {
+        int slot = ( int ) ( position & mask );
+        int offset = slot * FIELDS;
+        out.latitude = values[offset];
+        out.longitude = values[offset + 1];
+        out.altitude = values[offset + 2];
+        out.speed = values[offset + 3];
+        out.course = values[offset + 4];
+        out.positionNoise = values[offset + 5];
+        out.timestamp = timestamps[slot];
+        return out;
+    }
+}
@@ -0,0 +1,348 @@
+package com.denis.ubiq.kalman;
+
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Fixed-dimension Kalman filter for the constant-velocity model of {@link KalmanFilterModel}:
+ * state x = [x, y, vx, vy], control u = [ax, ay] and measurement z = [x, y].
+ * <p>
+ * The matrices are never materialised, A, B, Q and H are expanded by hand over primitive
+ * arrays so a predict/correct step performs no allocation.
+ * <p>
+ * In the optional steady-state mode, see {@link #enableSteadyState}, the covariance is no longer propagated
+ * once it repeats from one correction to the next. The steps between two corrections form a cycle: its
+ * length and accumulated process noise, together with the measurement noise, determine the next posterior
+ * covariance. While they stay within a tolerance of the converged cycle, predictions only move the state and
+ * corrections apply the last gain. Otherwise the prior is rebuilt exactly from the cycle and the full recursion resumes.
+ */
+public class KalmanFilterKernel {
+
+    public static final int SNAPSHOT_SIZE = 20;
+
+    // state estimation
+    private final double[] x = new double[4];
+
+    // error covariance, row-major 4x4
+    private final double[] p = new double[16];
+
+    // transition, control and process noise terms for the current dt
+    private double dt;
+    private double halfDt2;
+    private double q11;
+    private double q13;
+    private double q33;
+
+    // diagonal measurement noise
+    private double rx;
+    private double ry;
+
+    // length and per axis process noise of the steps since the last correction
+    private double cycleDt;
+    private double cycleQ11;
+    private double cycleQ13;
+    private double cycleQ33;
+
+    // steady-state mode, the cycle, noise, posterior covariance and gain of the last correction
+    private boolean steadyStateEnabled;
+    private double convergenceThreshold;
+    private double tolerance;
+    private boolean steady;
+    private double lastCycleDt;
+    private double lastCycleQ33;
+    private double lastRx;
+    private double lastRy;
+    private final double[] lastP = new double[16];
+    // K, row-major 4x2
+    private final double[] gain = new double[8];
+    private final double[] prior = new double[16];
+    private final double[] column = new double[4];
+
+    public void setState( double x0, double x1, double x2, double x3 ) {
+        x[0] = x0;
+        x[1] = x1;
+        x[2] = x2;
+        x[3] = x3;
+    }
+
+    public void setErrorCovariance( double[] covariance ) {
+        System.arraycopy( covariance, 0, p, 0, 16 );
+        leaveSteadyState();
+    }
+
+    public void setErrorCovariance( double variance ) {
+        for( int i = 0; i < 16; i++ ) {
+            p[i] = i % 5 == 0 ? variance : 0d;
+        }
+        leaveSteadyState();
+    }
+
+    /**
+     * Switches to a constant gain once the posterior covariance changes by less than convergenceThreshold,
+     * relative to its largest variance, between two corrections with the same cycle and measurement noise.
+     * Cycles and noise within tolerance, relative, of the converged ones keep using it.
+     */
+    public void enableSteadyState( double convergenceThreshold, double tolerance ) {
+        this.steadyStateEnabled = true;
+        this.convergenceThreshold = convergenceThreshold;
+        this.tolerance = tolerance;
+    }
+
+    public boolean isSteadyState() {
+        return steady;
+    }
+
+    /**
+     * @param dt                   step length in seconds
+     * @param accelerationVariance variance of the acceleration driving the process noise
+     */
+    public void setProcessModel( double dt, double accelerationVariance ) {
+        double dt2 = dt * dt;
+        this.dt = dt;
+        this.halfDt2 = dt2 / 2d;
+        this.q11 = accelerationVariance * dt2 * dt2 / 4d;
+        this.q13 = accelerationVariance * dt2 * dt / 2d;
+        this.q33 = accelerationVariance * dt2;
+    }
+
+    /**
+     * Process model with explicit noise terms, q11 the position variance, q13 the position/velocity
+     * covariance and q33 the velocity variance of each axis.
+     */
+    public void setProcessModel( double dt, double q11, double q13, double q33 ) {
+        this.dt = dt;
+        this.halfDt2 = dt * dt / 2d;
+        this.q11 = q11;
+        this.q13 = q13;
+        this.q33 = q33;
+    }
+
+    public void setMeasurementNoise( double rx, double ry ) {
+        this.rx = rx;
+        this.ry = ry;
+    }
+
+    public void predict( double ax, double ay ) {
+        // xHat(k)- = A * xHat(k-1) + B * u(k-1)
+        propagate( halfDt2 * ax, halfDt2 * ay, dt * ax, dt * ay );
+    }
+
+    /** Predicts with a control input already mapped into the state space, see {@link ImuPreIntegrator}. */
+    public void propagate( double dx0, double dx1, double dx2, double dx3 ) {
+        // xHat(k)- = A * xHat(k-1) + dx
+        x[0] += dt * x[2] + dx0;
+        x[1] += dt * x[3] + dx1;
+        x[2] += dx2;
+        x[3] += dx3;
+
+        // Qc = A * Qc * A' + Q, per axis, reads the prior cycleQ13
+        cycleQ11 += dt * ( 2d * cycleQ13 + dt * cycleQ33 ) + q11;
+        cycleQ13 += dt * cycleQ33 + q13;
+        cycleQ33 += q33;
+        cycleDt += dt;
+
+        if( !steady ) {
+            propagateCovariance( p, dt, q11, q13, q33 );
+        }
+    }
+
+    // P(k)- = A * P(k-1) * A' + Q
+    private static void propagateCovariance( double[] p, double dt, double q11, double q13, double q33 ) {
+        // A * P only changes the first two rows
+        p[0] += dt * p[8];
+        p[1] += dt * p[9];
+        p[2] += dt * p[10];
+        p[3] += dt * p[11];
+        p[4] += dt * p[12];
+        p[5] += dt * p[13];
+        p[6] += dt * p[14];
+        p[7] += dt * p[15];
+
+        // (A * P) * A' only changes the first two columns
+        p[0] += dt * p[2];
+        p[1] += dt * p[3];
+        p[4] += dt * p[6];
+        p[5] += dt * p[7];
+        p[8] += dt * p[10];
+        p[9] += dt * p[11];
+        p[12] += dt * p[14];
+        p[13] += dt * p[15];
+
+        p[0] += q11;
+        p[2] += q13;
+        p[5] += q11;
+        p[7] += q13;
+        p[8] += q13;
+        p[10] += q33;
+        p[13] += q13;
+        p[15] += q33;
+    }
+
+    public void correct( double z0, double z1 ) throws SingularMatrixException {
+        if( steady ) {
+            if( isSteadyCycle() ) {
+                correctSteady( z0, z1 );
+                return;
+            }
+            // the cycle drifted, rebuild the prior the full recursion would have reached
+            restorePrior( p );
+            steady = false;
+        }
+
+        // S = H * P(k) * H' + R
+        double s00 = p[0] + rx;
+        double s01 = p[1];
+        double s10 = p[4];
+        double s11 = p[5] + ry;
+
+        double det = s00 * s11 - s01 * s10;
+        if( !( det > 0d ) ) {
+            throw new SingularMatrixException();
+        }
+        double i00 = s11 / det;
+        double i01 = -s01 / det;
+        double i10 = -s10 / det;
+        double i11 = s00 / det;
+
+        // Inn = z(k) - H * xHat(k)-
+        double y0 = z0 - x[0];
+        double y1 = z1 - x[1];
+
+        // H * P(k)-, read before the rows are overwritten
+        double h00 = p[0], h01 = p[1], h02 = p[2], h03 = p[3];
+        double h10 = p[4], h11 = p[5], h12 = p[6], h13 = p[7];
+
+        for( int i = 0, r = 0; i < 4; i++, r += 4 ) {
+            // K(k) = P(k)- * H' * S^-1
+            double k0 = p[r] * i00 + p[r + 1] * i10;
+            double k1 = p[r] * i01 + p[r + 1] * i11;
+
+            // xHat(k) = xHat(k)- + K * Inn
+            x[i] += k0 * y0 + k1 * y1;
+            gain[2 * i] = k0;
+            gain[2 * i + 1] = k1;
+
+            // P(k) = (I - K * H) * P(k)-
+            p[r] -= k0 * h00 + k1 * h10;
+            p[r + 1] -= k0 * h01 + k1 * h11;
+            p[r + 2] -= k0 * h02 + k1 * h12;
+            p[r + 3] -= k0 * h03 + k1 * h13;
+        }
+
+        if( steadyStateEnabled ) {
+            steady = isSteadyCycle() && hasConverged();
+            System.arraycopy( p, 0, lastP, 0, 16 );
+            lastCycleDt = cycleDt;
+            lastCycleQ33 = cycleQ33;
+            lastRx = rx;
+            lastRy = ry;
+        }
+        resetCycle();
+    }
+
+    /**
+     * Scalar update of a single state component, z = x[index] + v with var(v) = r. Components measured with
+     * independent noise can be fused one after the other, with the same result as a joint update and no
+     * matrix inversion. Leaves the steady state.
+     */
+    public void correct( int index, double z, double r ) throws SingularMatrixException {
+        if( steady ) {
+            restorePrior( p );
+            steady = false;
+        }
+        double s = p[index * 5] + r;
+        if( !( s > 0d ) ) {
+            throw new SingularMatrixException();
+        }
+        double innovation = z - x[index];
+        for( int i = 0; i < 4; i++ ) {
+            column[i] = p[i * 4 + index];
+        }
+        for( int i = 0, r0 = 0; i < 4; i++, r0 += 4 ) {
+            double k = column[i] / s;
+            x[i] += k * innovation;
+            // P(k) = P(k)- - K * H * P(k)-, H * P(k)- is the column by symmetry
+            p[r0] -= k * column[0];
+            p[r0 + 1] -= k * column[1];
+            p[r0 + 2] -= k * column[2];
+            p[r0 + 3] -= k * column[3];
+        }
+        resetCycle();
+    }
+
+    private void correctSteady( double z0, double z1 ) {
+        double y0 = z0 - x[0];
+        double y1 = z1 - x[1];
+        for( int i = 0; i < 4; i++ ) {
+            x[i] += gain[2 * i] * y0 + gain[2 * i + 1] * y1;
+        }
+        resetCycle();
+    }
+
+    private boolean isSteadyCycle() {
+        return isClose( cycleDt, lastCycleDt ) && isClose( cycleQ33, lastCycleQ33 ) && isClose( rx, lastRx ) && isClose( ry, lastRy );
+    }
+
+    private boolean isClose( double value, double reference ) {
+        return Math.abs( value - reference ) <= tolerance * Math.abs( reference );
+    }
+
+    private boolean hasConverged() {
+        double scale = Math.max( Math.max( p[0], p[5] ), Math.max( p[10], p[15] ) );
+        for( int i = 0; i < 16; i++ ) {
+            if( Math.abs( p[i] - lastP[i] ) > convergenceThreshold * scale ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the posterior of the last correction carried over the cycle since
+    private void restorePrior( double[] out ) {
+        System.arraycopy( lastP, 0, out, 0, 16 );
+        propagateCovariance( out, cycleDt, cycleQ11, cycleQ13, cycleQ33 );
+    }
+
+    private void resetCycle() {
+        cycleDt = 0d;
+        cycleQ11 = 0d;
+        cycleQ13 = 0d;
+        cycleQ33 = 0d;
+    }
+
+    private void leaveSteadyState() {
+        steady = false;
+        resetCycle();
+    }
+
+    /** Writes the state and the error covariance, {@link #SNAPSHOT_SIZE} values. */
+    public void saveState( double[] out, int offset ) {
+        System.arraycopy( x, 0, out, offset, 4 );
+        getErrorCovariance( out, offset + 4 );
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        System.arraycopy( in, offset, x, 0, 4 );
+        System.arraycopy( in, offset + 4, p, 0, 16 );
+        leaveSteadyState();
+    }
+
+    public double[] getStateEstimation( double[] out ) {
+        System.arraycopy( x, 0, out, 0, 4 );
+        return out;
+    }
+
+    public double[] getErrorCovariance( double[] out ) {
+        getErrorCovariance( out, 0 );
+        return out;
+    }
+
+    private void getErrorCovariance( double[] out, int offset ) {
+        if( steady ) {
+            // only the cycle is tracked, the covariance is the converged posterior carried over it
+            restorePrior( prior );
+            System.arraycopy( prior, 0, out, offset, 16 );
+        } else {
+            System.arraycopy( p, 0, out, offset, 16 );
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+/**
+ * Same model as {@link KalmanFilterModel}, running on {@link KalmanFilterKernel} instead of commons-math.
+ * The returned state array is reused between calls.
+ */
+public class KalmanFilterKernelModel implements IKalmanFilterModel {
+
+    // relative change of the posterior covariance between two fixes that counts as converged, above the jitter of the sensor timestamps
+    private static final double STEADY_STATE_CONVERGENCE = 2e-3d;
+    // relative change of the GPS interval or accuracy that falls back to the full recursion
+    private static final double STEADY_STATE_TOLERANCE = 0.05d;
+
+    private double positionNoise;
+    private double velocityNoise = 1d;
+    private double measurementVariance;
+    private double accelerationNoise = 0.1d;
+
+    private final KalmanFilterKernel kernel = new KalmanFilterKernel();
+    private final boolean steadyState;
+    private final double[] state = new double[4];
+    private final LocalTangentPlane projection;
+    // the velocity measured by a fix
+    private final double[] velocity = new double[2];
+
+    private long lastPredictTimeStamp;
+
+    public KalmanFilterKernelModel( GpsItem item ) {
+        this( item, false );
+    }
+
+    /** @param steadyState switch to a constant gain while the GPS interval and accuracy are stable */
+    public KalmanFilterKernelModel( GpsItem item, boolean steadyState ) {
+        // a fix without a speed, or moving without a course, starts the filter at rest
+        GpsVelocity.measure( item, 0d, 0d, velocity );
+        double xVelocity = velocity[0];
+        double yVelocity = velocity[1];
+
+        this.positionNoise = item.positionNoise;
+        this.lastPredictTimeStamp = item.timestamp;
+        this.projection = new LocalTangentPlane( item.latitude, item.longitude );
+
+        kernel.setState( projection.toNorth( item.latitude ), projection.toEast( item.latitude, item.longitude ), xVelocity, yVelocity );
+        kernel.setErrorCovariance( positionNoise );
+        kernel.setProcessModel( 1d, accelerationNoise * accelerationNoise );
+        this.measurementVariance = positionNoise * positionNoise;
+        kernel.setMeasurementNoise( measurementVariance, measurementVariance );
+        this.steadyState = steadyState;
+        if( steadyState ) {
+            kernel.enableSteadyState( STEADY_STATE_CONVERGENCE, STEADY_STATE_TOLERANCE );
+        }
+    }
+
+    public void updateProcessModel( SensorItem item ) {
+        double dt = ( item.timestamp - lastPredictTimeStamp ) / 1000.0;
+        kernel.setProcessModel( dt, accelerationNoise * accelerationNoise );
+
+        this.lastPredictTimeStamp = item.timestamp;
+    }
+
+    public double[] predict( SensorItem item ) {
+        kernel.predict( item.northAcceleration, item.eastAcceleration );
+        return kernel.getStateEstimation( state );
+    }
+
+    public double[] predict( ImuPreIntegrator integrator ) {
+        double variance = accelerationNoise * accelerationNoise;
+        kernel.setProcessModel( integrator.getDuration(),
+                                variance * integrator.getNoise00(),
+                                variance * integrator.getNoise01(),
+                                variance * integrator.getNoise11() );
+        kernel.propagate( integrator.getDeltaPositionX(),
+                          integrator.getDeltaPositionY(),
+                          integrator.getDeltaVelocityX(),
+                          integrator.getDeltaVelocityY() );
+
+        this.lastPredictTimeStamp = integrator.getEndTimestamp();
+        return kernel.getStateEstimation( state );
+    }
+
+    public void updateMeasurementModel( GpsItem item ) {
+        measurementVariance = item.positionNoise * item.positionNoise;
+        kernel.setMeasurementNoise( measurementVariance, measurementVariance );
+    }
+
+    public double[] correct( GpsItem item ) {
+        recenter();
+        double north = projection.toNorth( item.latitude );
+        double east = projection.toEast( item.latitude, item.longitude );
+        if( steadyState ) {
+            // the constant gain covers the position only
+            kernel.correct( north, east );
+        } else {
+            // the components of the fix have independent noise, so they are fused one scalar at a time
+            kernel.correct( 0, north, measurementVariance );
+            kernel.correct( 1, east, measurementVariance );
+            kernel.getStateEstimation( state );
+            if( GpsVelocity.measure( item, state[2], state[3], velocity ) ) {
+                // a standing fix counts too, it keeps the velocity from drifting while the device does not move
+                kernel.correct( 2, velocity[0], velocityNoise * velocityNoise );
+                kernel.correct( 3, velocity[1], velocityNoise * velocityNoise );
+            }
+        }
+        return kernel.getStateEstimation( state );
+    }
+
+    public double[] getStateEstimation() {
+        return kernel.getStateEstimation( state );
+    }
+
+    public double[] getErrorCovariance( double[] out ) {
+        return kernel.getErrorCovariance( out );
+    }
+
+    public LocalTangentPlane getProjection() {
+        return projection;
+    }
+
+    public int getSnapshotSize() {
+        return 3 + KalmanFilterKernel.SNAPSHOT_SIZE;
+    }
+
+    public void saveState( double[] out, int offset ) {
+        out[offset] = lastPredictTimeStamp;
+        out[offset + 1] = projection.getOriginLatitude();
+        out[offset + 2] = projection.getOriginLongitude();
+        kernel.saveState( out, offset + 3 );
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        lastPredictTimeStamp = ( long ) in[offset];
+        projection.setOrigin( in[offset + 1], in[offset + 2] );
+        kernel.restoreState( in, offset + 3 );
+    }
+
+    private void recenter() {
+        kernel.getStateEstimation( state );
+        if( projection.isFar( state[0], state[1] ) ) {
+            projection.moveOrigin( state[0], state[1] );
+            kernel.setState( 0d, 0d, state[2], state[3] );
+        }
+    }
+}
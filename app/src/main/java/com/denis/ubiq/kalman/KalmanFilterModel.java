@@ -1,16 +1,17 @@
 package com.denis.ubiq.kalman;
 
-import android.location.Location;
 import org.apache.commons.math3.filter.*;
 import org.apache.commons.math3.linear.*;
 
 import com.denis.ubiq.items.*;
-
-import static com.denis.ubiq.utils.CalculationUtils.*;
-import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import com.denis.ubiq.projection.LocalTangentPlane;
 
 public class KalmanFilterModel implements IKalmanFilterModel {
 
+    // timestamps are in milliseconds, so this resolution keeps dt exact
+    public static final double DT_RESOLUTION = 0.001d;
+    private static final int PROCESS_MODEL_CACHE_SIZE = 64;
+
     private double dt = 1d;
 
     private double positionNoise = 10d;
@@ -53,16 +54,28 @@ public class KalmanFilterModel implements IKalmanFilterModel {
     private DefaultProcessModel processModel;
     private DefaultMeasurementModel measurementModel;
 
-    public KalmanFilterModel( Location location ) {
-        double latitude = location.getLatitude();
-        double longitude = location.getLongitude();
-        double xVelocity = location.getSpeed() * Math.cos( location.getBearing() );
-        double yVelocity = location.getSpeed() * Math.sin( location.getBearing() );
+    private final ProcessModelCache<TransitionModel> processModelCache;
+    private final LocalTangentPlane projection;
+    // the velocity measured by a fix
+    private final double[] velocity = new double[2];
+
+    public KalmanFilterModel( GpsItem item ) {
+        this( item, DT_RESOLUTION );
+    }
+
+    public KalmanFilterModel( GpsItem item, double dtResolution ) {
+        double latitude = item.latitude;
+        double longitude = item.longitude;
+        // a fix without a speed, or moving without a course, starts the filter at rest
+        GpsVelocity.measure( item, 0d, 0d, velocity );
+        double xVelocity = velocity[0];
+        double yVelocity = velocity[1];
 
-        this.positionNoise = location.getAccuracy();
-        this.lastPredictTimeStamp = NANOSECONDS.toMillis( location.getElapsedRealtimeNanos() );
+        this.positionNoise = item.positionNoise;
+        this.lastPredictTimeStamp = item.timestamp;
+        this.projection = new LocalTangentPlane( latitude, longitude );
 
-        this.x = new ArrayRealVector( new double[] { latitudeToMeters( latitude ), longitudeToMeters( longitude ), xVelocity, yVelocity } );
+        this.x = new ArrayRealVector( new double[] { projection.toNorth( latitude ), projection.toEast( latitude, longitude ), xVelocity, yVelocity } );
         this.Q = Q.scalarMultiply( Math.pow( accelerationNoise, 2 ) );
         this.P = P.scalarMultiply( positionNoise );
 
@@ -74,33 +87,84 @@ public class KalmanFilterModel implements IKalmanFilterModel {
         this.measurementModel = new DefaultMeasurementModel( H, R );
 
         this.filter = new KalmanFilter( processModel, measurementModel );
+
+        this.processModelCache = new ProcessModelCache<TransitionModel>( PROCESS_MODEL_CACHE_SIZE, dtResolution ) {
+            @Override
+            protected TransitionModel create( double dt ) {
+                return createTransitionModel( dt );
+            }
+        };
     }
 
     public void updateProcessModel( SensorItem item ) {
         this.dt = ( item.timestamp - lastPredictTimeStamp ) / 1000.0;
 
-        this.A = new Array2DRowRealMatrix( new double[][] { { 1, 0, dt, 0 }, { 0, 1, 0, dt }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } } );
-        this.B = new Array2DRowRealMatrix( new double[][] { { Math.pow( dt, 2d ) / 2d, 0 }, { 0, Math.pow( dt, 2d ) / 2d }, { dt, 0 }, { 0, dt } } );
-        this.Q = new Array2DRowRealMatrix( new double[][] { { Math.pow( dt, 4d ) / 4d, 0d, Math.pow( dt, 3d ) / 2d, 0d },
-                                                            { 0d, Math.pow( dt, 4d ) / 4d, 0d, Math.pow( dt, 3d ) / 2d },
-                                                            { Math.pow( dt, 3d ) / 2d, 0d, Math.pow( dt, 2d ), 0d },
-                                                            { 0d, Math.pow( dt, 3d ) / 2d, 0d, Math.pow( dt, 2d ) } } );
-        this.Q = this.Q.scalarMultiply( Math.pow( accelerationNoise, 2 ) );
+        TransitionModel transitionModel = processModelCache.get( dt );
+        this.A = transitionModel.processModel.getStateTransitionMatrix();
+        this.B = transitionModel.processModel.getControlMatrix();
+        this.Q = transitionModel.processModel.getProcessNoise();
 
-        this.P = new Array2DRowRealMatrix( new double[][] { { 1, 0, 0, 0 }, { 0, 1, 0, 0 }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } } );
-        this.P = P.scalarMultiply( positionNoise );
-
-        this.filter.processModel = this.processModel = new DefaultProcessModel( A, B, Q, x, P );
+        this.filter.processModel = this.processModel = transitionModel.processModel;
+        // the filter reads A and B from its own fields, so they have to follow dt as well
+        this.filter.transitionMatrix = A;
+        this.filter.transitionMatrixT = transitionModel.transitionMatrixT;
+        this.filter.controlMatrix = B;
 
         this.lastPredictTimeStamp = item.timestamp;
     }
 
+    private TransitionModel createTransitionModel( double dt ) {
+        double dt2 = dt * dt;
+        double dt3 = dt2 * dt;
+        double dt4 = dt2 * dt2;
+        double accelerationVariance = accelerationNoise * accelerationNoise;
+
+        RealMatrix A = new Array2DRowRealMatrix( new double[][] { { 1, 0, dt, 0 }, { 0, 1, 0, dt }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } } );
+        RealMatrix B = new Array2DRowRealMatrix( new double[][] { { dt2 / 2d, 0 }, { 0, dt2 / 2d }, { dt, 0 }, { 0, dt } } );
+        RealMatrix Q = new Array2DRowRealMatrix( new double[][] { { dt4 / 4d, 0d, dt3 / 2d, 0d },
+                                                                  { 0d, dt4 / 4d, 0d, dt3 / 2d },
+                                                                  { dt3 / 2d, 0d, dt2, 0d },
+                                                                  { 0d, dt3 / 2d, 0d, dt2 } } ).scalarMultiply( accelerationVariance );
+
+        return new TransitionModel( new DefaultProcessModel( A, B, Q, x, P ), A.transpose() );
+    }
+
+    public ProcessModelCache<?> getProcessModelCache() {
+        return processModelCache;
+    }
+
     public double[] predict( SensorItem item ) {
-        RealVector u = new ArrayRealVector( new double[] { item.eastAcceleration, item.northAcceleration } );
+        RealVector u = new ArrayRealVector( new double[] { item.northAcceleration, item.eastAcceleration } );
         filter.predict( u );
         return filter.getStateEstimation();
     }
 
+    public double[] predict( ImuPreIntegrator integrator ) {
+        double variance = Math.pow( accelerationNoise, 2 );
+        double q00 = variance * integrator.getNoise00();
+        double q01 = variance * integrator.getNoise01();
+        double q11 = variance * integrator.getNoise11();
+
+        TransitionModel transitionModel = processModelCache.get( integrator.getDuration() );
+        this.A = transitionModel.processModel.getStateTransitionMatrix();
+        // the control input is already mapped into the state space
+        this.B = MatrixUtils.createRealIdentityMatrix( 4 );
+        this.Q = new Array2DRowRealMatrix( new double[][] { { q00, 0d, q01, 0d }, { 0d, q00, 0d, q01 }, { q01, 0d, q11, 0d }, { 0d, q01, 0d, q11 } } );
+
+        this.filter.processModel = this.processModel = new DefaultProcessModel( A, B, Q, x, P );
+        this.filter.transitionMatrix = A;
+        this.filter.transitionMatrixT = transitionModel.transitionMatrixT;
+        this.filter.controlMatrix = B;
+
+        filter.predict( new double[] { integrator.getDeltaPositionX(),
+                                       integrator.getDeltaPositionY(),
+                                       integrator.getDeltaVelocityX(),
+                                       integrator.getDeltaVelocityY() } );
+
+        this.lastPredictTimeStamp = integrator.getEndTimestamp();
+        return filter.getStateEstimation();
+    }
+
     public void updateMeasurementModel( GpsItem item ) {
         this.R = new Array2DRowRealMatrix( new double[][] { { 1, 0 }, { 0, 1 } } );
         this.R = R.scalarMultiply( Math.pow( item.positionNoise, 2 ) );
@@ -108,9 +172,87 @@ public class KalmanFilterModel implements IKalmanFilterModel {
         this.filter.measurementModel = this.measurementModel = new DefaultMeasurementModel( H, R );
     }
 
+    // the components of the fix have independent noise, so they are fused one scalar at a time
     public double[] correct( GpsItem item ) {
-        RealVector z = new ArrayRealVector( new double[] { latitudeToMeters( item.latitude ), longitudeToMeters( item.longitude ) } );
-        filter.correct( z );
+        recenter();
+        filter.correct( 0, projection.toNorth( item.latitude ), R.getEntry( 0, 0 ) );
+        filter.correct( 1, projection.toEast( item.latitude, item.longitude ), R.getEntry( 1, 1 ) );
+        double[] state = filter.getStateEstimation();
+        if( GpsVelocity.measure( item, state[2], state[3], velocity ) ) {
+            // a standing fix counts too, it keeps the velocity from drifting while the device does not move
+            double variance = velocityNoise * velocityNoise;
+            filter.correct( 2, velocity[0], variance );
+            filter.correct( 3, velocity[1], variance );
+        }
+        return filter.getStateEstimation();
+    }
+
+    public double[] getStateEstimation() {
         return filter.getStateEstimation();
     }
+
+    public double[] getErrorCovariance( double[] out ) {
+        for( int i = 0; i < 4; i++ ) {
+            for( int j = 0; j < 4; j++ ) {
+                out[i * 4 + j] = filter.errorCovariance.getEntry( i, j );
+            }
+        }
+        return out;
+    }
+
+    public LocalTangentPlane getProjection() {
+        return projection;
+    }
+
+    public int getSnapshotSize() {
+        return 3 + 4 + 16;
+    }
+
+    public void saveState( double[] out, int offset ) {
+        out[offset] = lastPredictTimeStamp;
+        out[offset + 1] = projection.getOriginLatitude();
+        out[offset + 2] = projection.getOriginLongitude();
+        for( int i = 0; i < 4; i++ ) {
+            out[offset + 3 + i] = filter.stateEstimation.getEntry( i );
+            for( int j = 0; j < 4; j++ ) {
+                out[offset + 7 + i * 4 + j] = filter.errorCovariance.getEntry( i, j );
+            }
+        }
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        lastPredictTimeStamp = ( long ) in[offset];
+        projection.setOrigin( in[offset + 1], in[offset + 2] );
+        double[][] covariance = new double[4][4];
+        for( int i = 0; i < 4; i++ ) {
+            System.arraycopy( in, offset + 7 + i * 4, covariance[i], 0, 4 );
+        }
+        // the filter replaces both on every step, so they are never shared with a saved state
+        filter.stateEstimation = new ArrayRealVector( in, offset + 3, 4 );
+        filter.errorCovariance = new Array2DRowRealMatrix( covariance, false );
+    }
+
+    // moves the origin of the projection to the current position once it is too far for the flat approximation
+    private void recenter() {
+        double north = filter.stateEstimation.getEntry( 0 );
+        double east = filter.stateEstimation.getEntry( 1 );
+        if( projection.isFar( north, east ) ) {
+            projection.moveOrigin( north, east );
+            RealVector state = filter.stateEstimation.copy();
+            state.setEntry( 0, 0d );
+            state.setEntry( 1, 0d );
+            filter.stateEstimation = state;
+        }
+    }
+
+    private static class TransitionModel {
+
+        final DefaultProcessModel processModel;
+        final RealMatrix transitionMatrixT;
+
+        TransitionModel( DefaultProcessModel processModel, RealMatrix transitionMatrixT ) {
+            this.processModel = processModel;
+            this.transitionMatrixT = transitionMatrixT;
+        }
+    }
 }
@@ -1,7 +1,7 @@
 package com.denis.ubiq.kalman;
 
-import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
@@ -11,14 +11,17 @@ import android.location.LocationListener;
 import android.opengl.Matrix;
 import android.os.*;
 import android.support.v4.app.ActivityCompat;
-import android.util.Pair;
 
 import com.denis.ubiq.MapActivity;
+import com.denis.ubiq.ingestion.*;
 import com.denis.ubiq.items.*;
 import com.denis.ubiq.listeners.*;
+import com.denis.ubiq.logging.*;
+import com.denis.ubiq.metrics.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+import com.denis.ubiq.sensors.*;
 import com.denis.ubiq.utils.WriteUtils;
 import com.google.android.gms.location.*;
-import com.google.android.gms.maps.model.LatLng;
 
 import static android.content.Context.*;
 import static android.hardware.Sensor.*;
@@ -26,23 +29,27 @@ import static android.location.LocationManager.*;
 import static android.os.SystemClock.elapsedRealtimeNanos;
 import static com.denis.ubiq.utils.CalculationUtils.*;
 import static com.denis.ubiq.utils.Constants.*;
-import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.*;
 
-public class KalmanFilterWorker implements SensorEventListener, LocationListener, Runnable, IKalmanFilterWorker {
+public class KalmanFilterWorker implements SensorHub.Consumer, LocationListener, Runnable, IKalmanFilterWorker {
 
     private static String TAG = "KalmanFilterWorker";
-    private static int DELAY = 500;
+    private static final int SENSOR_BUFFER_CAPACITY = 1024;
+    private static final int GPS_BUFFER_CAPACITY = 64;
+    private static final int SENSOR_SOURCE = 0;
+    private static final int GPS_SOURCE = 1;
 
     private static int tooOldLocationDelta = 5000; // 1000 * 60 * 2;
     public final AtomicBoolean isRunning = new AtomicBoolean( false );
     private final MapActivity mapActivity;
     private final SettingsClient settingsClient;
     private final LocationManager locationManager;
-    private final SensorManager sensorManager;
+    private final SensorHub sensorHub;
     public int rate;
     private long stepCounter = 1;
 
-    private KalmanFilterModel kalmanFilterModel;
+    private final AsyncLogger logger = WriteUtils.getLogger();
+    private LazyKalmanFilterModel kalmanFilterModel;
     private LocationRequest locationRequest;
     private LocationSettingsRequest locationSettingsRequest;
 
@@ -52,13 +59,43 @@ public class KalmanFilterWorker implements SensorEventListener, LocationListener
     private float[] acceleration = new float[4];
     private float magneticDeclination = 0.0F;
 
-    private Queue<TimestampItem> sensorFusionItems = new PriorityQueue<>();
+    // written by the sensor and location callbacks, read by the worker thread
+    private final SensorItemBuffer sensorItems = new SensorItemBuffer( SENSOR_BUFFER_CAPACITY );
+    private final GpsItemBuffer gpsItems = new GpsItemBuffer( GPS_BUFFER_CAPACITY );
+    private final TimestampMerger sensorFusionItems = new TimestampMerger( sensorItems, gpsItems );
+    // reused by the worker thread for every polled record
+    private final SensorItem sensorItem = new SensorItem( 0d, 0d, 0F, 0L );
+    private final GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+    private final double[] smoothedState = new double[4];
+    // the running worker, replaced on start and cleared on stop; a worker loops only while it is the one here
+    private final AtomicReference<Thread> workerThread = new AtomicReference<>();
+    // the last worker started, joined by the main thread before the next one takes over the buffers
+    private Thread lastWorker;
+    private long lastStepTimestamp;
     private long predictionStep = 5;
-    private Location lastBestLocation;
+    // read by the sensor thread for the accuracy of the acceleration
+    private volatile Location lastBestLocation;
+    // elapsed realtime, in milliseconds, of the last fix given to the filter, on the location callback thread
+    private long lastOfferedTimestamp = Long.MIN_VALUE;
+
+    // per stage metrics, only recorded when METRICS_ENABLED
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LatencyHistogram sensorQueueWait = metrics.histogram( "kalman.sensorQueueWait", METRICS_SAMPLE_PERIOD );
+    private final LatencyHistogram predictLatency = metrics.histogram( "kalman.predict", METRICS_SAMPLE_PERIOD );
+    private final LatencyHistogram correctLatency = metrics.histogram( "kalman.correct" );
+    private final Gauge sensorQueueDepth = metrics.gauge( "kalman.sensorQueueDepth" );
+    private final Gauge sensorItemsDropped = metrics.gauge( "kalman.sensorItemsDropped" );
+    private final Counter gpsFixes = metrics.counter( "kalman.gpsFixes" );
 
     public KalmanFilterWorker( MapActivity mapActivity, Location location, int rate ) {
         this( mapActivity );
-        this.kalmanFilterModel = new KalmanFilterModel( location );
+        GpsItem initialItem = toGpsItem( location );
+        this.kalmanFilterModel = new LazyKalmanFilterModel( KALMAN_ENGINE.create( initialItem ),
+                                                            initialItem.timestamp,
+                                                            GPS_HISTORY_CAPACITY,
+                                                            SMOOTHING_LAG );
+        this.lastStepTimestamp = initialItem.timestamp;
+        this.lastOfferedTimestamp = initialItem.timestamp;
         this.rate = rate;
         this.tooOldLocationDelta = rate * 1000;
     }
@@ -67,7 +104,10 @@ public class KalmanFilterWorker implements SensorEventListener, LocationListener
         this.mapActivity = mapActivity;
         this.settingsClient = LocationServices.getSettingsClient( mapActivity );
         this.locationManager = ( LocationManager ) mapActivity.getSystemService( LOCATION_SERVICE );
-        this.sensorManager = ( SensorManager ) mapActivity.getSystemService( SENSOR_SERVICE );
+        this.sensorHub = mapActivity.sensorHub;
+        // sensor items are timestamped on arrival, GPS fixes may show up to MAX_GPS_LATENESS after their timestamp;
+        // with a history the model puts late fixes in their place instead, so nothing has to wait for them
+        this.sensorFusionItems.setMaxLateness( GPS_SOURCE, GPS_HISTORY_CAPACITY > 0 ? 0L : MAX_GPS_LATENESS );
 
         buildLocationSettings();
     }
@@ -96,93 +136,145 @@ public class KalmanFilterWorker implements SensorEventListener, LocationListener
 
     @Override
     public void run() {
-        isRunning.set( true );
-        while( isRunning.get() ) {
-            try {
-                Thread.sleep( DELAY );
-            } catch( InterruptedException e ) {
-                e.printStackTrace();
-                continue;
-            }
+        Thread current = Thread.currentThread();
+        try {
+            loop( current );
+        } finally {
+            // the buffers may only be consumed from this thread, the next worker waits for this one to finish
+            sensorFusionItems.clear();
+            workerThread.compareAndSet( current, null );
+        }
+    }
 
-            TimestampItem item;
-            while( ( item = sensorFusionItems.poll() ) != null ) {
-                if( item instanceof SensorItem ) {
-                    kalmanFilterModel.updateProcessModel( ( SensorItem ) item );
-                    double[] predictedPosition = kalmanFilterModel.predict( ( ( SensorItem ) item ) );
-                    LatLng position = convertMetersToLatLng( predictedPosition[0], predictedPosition[1] );
-
-                    String kalmanString;
-                    if( ++stepCounter > predictionStep ) {
-                        Message message = Message.obtain();
-                        message.obj = new Pair<>( null, position );
-                        mapActivity.mapHandler.sendMessage( message );
-                        kalmanString = "KalmanForetell";
-                    } else {
-                        kalmanString = "KalmanPredict";
+    private void loop( Thread current ) {
+        while( workerThread.get() == current ) {
+            if( METRICS_ENABLED ) {
+                sensorQueueDepth.set( sensorItems.size() );
+                sensorItemsDropped.set( sensorItems.getDropped() );
+            }
+            int source;
+            while( ( source = sensorFusionItems.next( NANOSECONDS.toMillis( elapsedRealtimeNanos() ) ) ) >= 0 ) {
+                if( source == SENSOR_SOURCE ) {
+                    SensorItem item = sensorItems.poll( sensorItem );
+                    // only the items closing a window are timed for the predict, the others just add to the pre-integration
+                    boolean closesWindow = item.timestamp - lastStepTimestamp >= PRE_INTEGRATION_WINDOW;
+                    boolean timeWait = METRICS_ENABLED && sensorQueueWait.sample();
+                    boolean timePredict = METRICS_ENABLED && closesWindow && predictLatency.sample();
+                    long start = timeWait || timePredict ? elapsedRealtimeNanos() : 0L;
+                    if( timeWait ) {
+                        sensorQueueWait.record( start - item.enqueueNanos );
+                    }
+                    kalmanFilterModel.addInput( item );
+                    if( closesWindow ) {
+                        lastStepTimestamp = item.timestamp;
+                        onPredictionStep( item );
+                        if( timePredict ) {
+                            predictLatency.record( elapsedRealtimeNanos() - start );
+                        }
                     }
-
-                    WriteUtils.writeToLog( "%s, %s, %s: PositionX=%s PositionY=%s; VelocityX=%s VelocityY=%s",
-                                           getCurrentTime(),
-                                           item.timestamp,
-                                           kalmanString,
-                                           position.latitude,
-                                           position.longitude,
-                                           predictedPosition[2],
-                                           predictedPosition[3] );
                 } else {
-                    kalmanFilterModel.updateMeasurementModel( ( GpsItem ) item );
-                    double[] stateEstimation = kalmanFilterModel.correct( ( GpsItem ) item );
+                    GpsItem item = gpsItems.poll( gpsItem );
+                    long start = METRICS_ENABLED ? elapsedRealtimeNanos() : 0L;
+                    double[] stateEstimation = kalmanFilterModel.correct( item );
+                    if( METRICS_ENABLED ) {
+                        correctLatency.record( elapsedRealtimeNanos() - start );
+                        gpsFixes.increment();
+                    }
+                    logSmoothed();
 
                     if( stepCounter >= rate ) {
-                        Location estimatedLocation = getEstimatedLocation( stateEstimation );
-                        LatLng measuredPosition = new LatLng( ( ( GpsItem ) item ).latitude, ( ( GpsItem ) item ).longitude );
-                        LatLng estimatedPosition = new LatLng( estimatedLocation.getLatitude(), estimatedLocation.getLongitude() );
+                        LocalTangentPlane projection = kalmanFilterModel.getModel().getProjection();
+                        double latitude = projection.toLatitude( stateEstimation[0] );
+                        double longitude = projection.toLongitude( stateEstimation[0], stateEstimation[1] );
+                        double speed = Math.sqrt( stateEstimation[2] * stateEstimation[2] + stateEstimation[3] * stateEstimation[3] );
 
-                        Message message = Message.obtain();
-                        message.obj = new Pair<>( measuredPosition, estimatedPosition );
-                        mapActivity.mapHandler.sendMessage( message );
+                        mapActivity.mailbox.postMeasurement( item.latitude, item.longitude );
+                        mapActivity.mailbox.postEstimate( latitude, longitude, item.enqueueNanos );
                         stepCounter = 0;
 
-                        WriteUtils.writeToLog( "%s, %s, %s: latitude=%s; longitude=%s; accuracy=%s; speed=%s; bearing=%s",
-                                               getCurrentTime(),
-                                               NANOSECONDS.toMillis( estimatedLocation.getElapsedRealtimeNanos() ),
-                                               "KalmanUpdate",
-                                               estimatedLocation.getLatitude(),
-                                               estimatedLocation.getLongitude(),
-                                               estimatedLocation.getAccuracy(),
-                                               estimatedLocation.getSpeed(),
-                                               estimatedLocation.getBearing() );
+                        // the estimate carries no accuracy or bearing
+                        logger.log( LogFormat.LOCATION,
+                                    "KalmanUpdate",
+                                    NANOSECONDS.toMillis( elapsedRealtimeNanos() ),
+                                    latitude,
+                                    longitude,
+                                    0d,
+                                    speed,
+                                    0d );
                     }
                 }
             }
+
+            // wait for the next record, or until the one held back for late GPS fixes is due
+            long holdUntil = sensorFusionItems.getHoldUntil();
+            if( holdUntil == Long.MAX_VALUE ) {
+                LockSupport.park( this );
+            } else {
+                LockSupport.parkNanos( this, MILLISECONDS.toNanos( holdUntil - NANOSECONDS.toMillis( elapsedRealtimeNanos() ) ) );
+            }
         }
     }
 
-    private Location getEstimatedLocation( double[] stateEstimation ) {
-        double velocityX = stateEstimation[2];
-        double velocityY = stateEstimation[3];
-        long duration = elapsedRealtimeNanos();
+    // the state SMOOTHING_LAG fixes back, refined by the fixes after it
+    private void logSmoothed() {
+        FixedLagSmoother smoother = kalmanFilterModel.getSmoother();
+        if( smoother == null || !smoother.isReady() ) {
+            return;
+        }
+        smoother.getSmoothedState( smoothedState );
+        LocalTangentPlane projection = kalmanFilterModel.getModel().getProjection();
+        logger.log( LogFormat.LOCATION,
+                    "KalmanSmoothed",
+                    smoother.getSmoothedTimestamp(),
+                    projection.toLatitude( smoothedState[0] ),
+                    projection.toLongitude( smoothedState[0], smoothedState[1] ),
+                    0d,
+                    Math.sqrt( smoothedState[2] * smoothedState[2] + smoothedState[3] * smoothedState[3] ),
+                    0d );
+    }
+
+    private void onPredictionStep( SensorItem item ) {
+        boolean isForetell = ++stepCounter > predictionStep;
+        if( !isForetell && LAZY_PREDICTION ) {
+            // nobody reads this estimate, the inputs stay pending until the next one that is
+            return;
+        }
 
-        LatLng position = convertMetersToLatLng( stateEstimation[0], stateEstimation[1] );
+        double[] predictedPosition = kalmanFilterModel.getStateEstimation();
+        LocalTangentPlane projection = kalmanFilterModel.getModel().getProjection();
+        double latitude = projection.toLatitude( predictedPosition[0] );
+        double longitude = projection.toLongitude( predictedPosition[0], predictedPosition[1] );
+
+        String kalmanString;
+        if( isForetell ) {
+            mapActivity.mailbox.postEstimate( latitude, longitude, item.enqueueNanos );
+            kalmanString = "KalmanForetell";
+        } else {
+            kalmanString = "KalmanPredict";
+        }
 
-        Location location = new Location( TAG );
-        location.setLatitude( position.latitude );
-        location.setLongitude( position.longitude );
-        location.setAltitude( location.getAltitude() );
-        location.setSpeed( ( float ) Math.sqrt( velocityX * velocityX + velocityY * velocityY ) );
-        location.setTime( NANOSECONDS.toMillis( duration ) );
-        location.setElapsedRealtimeNanos( duration );
-        location.setAccuracy( location.getAccuracy() );
+        logger.log( LogFormat.STATE,
+                    kalmanString,
+                    kalmanFilterModel.getTimestamp(),
+                    latitude,
+                    longitude,
+                    predictedPosition[2],
+                    predictedPosition[3],
+                    0d );
+    }
 
-        return location;
+    private void signalWorker() {
+        Thread thread = workerThread.get();
+        if( thread != null ) {
+            LockSupport.unpark( thread );
+        }
     }
 
     @Override
-    public void onSensorChanged( SensorEvent event ) {
-        switch( event.sensor.getType() ) {
+    public void onSensorEvent( SensorSample sample ) {
+        switch( sample.type ) {
             case TYPE_LINEAR_ACCELERATION:
-                System.arraycopy( event.values, 0, linearAcceleration, 0, event.values.length );
+                System.arraycopy( sample.values, 0, linearAcceleration, 0, 3 );
                 Matrix.multiplyMV( acceleration, 0, rotationMatrixInv, 0, linearAcceleration, 0 );
 
                 float eastAcceleration = acceleration[0];
@@ -193,61 +285,84 @@ public class KalmanFilterWorker implements SensorEventListener, LocationListener
                 double absoluteNorthAcceleration = northAcceleration * Math.cos( magneticDeclination ) + eastAcceleration * Math.sin(
                     magneticDeclination );
                 float accuracy = lastBestLocation != null ? lastBestLocation.getAccuracy() : 0.0F;
-                SensorItem sensorItem = new SensorItem( absoluteEastAcceleration,
-                                                        absoluteNorthAcceleration,
-                                                        accuracy,
-                                                        NANOSECONDS.toMillis( elapsedRealtimeNanos() ) );
-                sensorFusionItems.add( sensorItem );
-
-                WriteUtils.writeToLog( "%s, %s, %s: eastAcceleration=%s northAcceleration=%s noise=%s;",
-                                       getCurrentTime(),
-                                       NANOSECONDS.toMillis( elapsedRealtimeNanos() ),
-                                       "LinearAcceleration",
-                                       sensorItem.eastAcceleration,
-                                       sensorItem.northAcceleration,
-                                       sensorItem.positionNoise );
+                long now = elapsedRealtimeNanos();
+                long timestamp = NANOSECONDS.toMillis( now );
+                sensorItems.offer( absoluteEastAcceleration, absoluteNorthAcceleration, accuracy, timestamp, now );
+                signalWorker();
+
+                logger.log( LogFormat.ACCELERATION,
+                            "LinearAcceleration",
+                            timestamp,
+                            absoluteEastAcceleration,
+                            absoluteNorthAcceleration,
+                            accuracy,
+                            0d,
+                            0d );
                 break;
-            case Sensor.TYPE_ROTATION_VECTOR:
-                SensorManager.getRotationMatrixFromVector( rotationMatrix, event.values );
+            case TYPE_ROTATION_VECTOR:
+                // only the first four values are read, the scalar component is always reported since API 18
+                SensorManager.getRotationMatrixFromVector( rotationMatrix, sample.values );
                 Matrix.invertM( rotationMatrixInv, 0, rotationMatrix, 0 );
                 break;
         }
     }
 
-    @Override
-    public void onAccuracyChanged( Sensor sensor, int accuracy ) { }
-
     @Override
     public void onLocationChanged( Location location ) {
         lastBestLocation = getBetterLocation( location, lastBestLocation );
 
         long timestamp = NANOSECONDS.toMillis( lastBestLocation.getElapsedRealtimeNanos() );
-
-        GpsItem gpsItem = new GpsItem( lastBestLocation.getLatitude(),
-                                       lastBestLocation.getLongitude(),
-                                       lastBestLocation.getAltitude(),
-                                       lastBestLocation.getSpeed(),
-                                       lastBestLocation.getBearing(),
-                                       lastBestLocation.getAccuracy(),
-                                       timestamp );
-        sensorFusionItems.add( gpsItem );
+        if( timestamp == lastOfferedTimestamp ) {
+            // the new fix was worse than the best one, which the filter already has; offered again it would be
+            // a late fix, rolled back and applied twice
+            return;
+        }
+        lastOfferedTimestamp = timestamp;
+
+        gpsItems.offer( lastBestLocation.getLatitude(),
+                        lastBestLocation.getLongitude(),
+                        lastBestLocation.getAltitude(),
+                        speedOf( lastBestLocation ),
+                        courseOf( lastBestLocation ),
+                        lastBestLocation.getAccuracy(),
+                        timestamp,
+                        elapsedRealtimeNanos() );
+        signalWorker();
 
         magneticDeclination = new GeomagneticField( ( float ) lastBestLocation.getLatitude(),
                                                     ( float ) lastBestLocation.getLongitude(),
                                                     ( float ) lastBestLocation.getAltitude(),
                                                     timestamp ).getDeclination();
 
-        WriteUtils.writeToLog( "%s, %s, %s(%s): latitude=%s; longitude=%s; accuracy=%s; speed=%s; bearing=%s",
-                               getCurrentTime(),
-                               timestamp,
-                               "GPS",
-                               lastBestLocation.getProvider(),
-                               lastBestLocation.getLatitude(),
-                               lastBestLocation.getLongitude(),
-                               lastBestLocation.getAccuracy(),
-                               lastBestLocation.getSpeed(),
-                               lastBestLocation.getBearing() );
+        logger.log( LogFormat.LOCATION,
+                    "GPS",
+                    lastBestLocation.getProvider(),
+                    timestamp,
+                    lastBestLocation.getLatitude(),
+                    lastBestLocation.getLongitude(),
+                    lastBestLocation.getAccuracy(),
+                    speedOf( lastBestLocation ),
+                    courseOf( lastBestLocation ) );
+
+    }
+
+    private GpsItem toGpsItem( Location location ) {
+        return new GpsItem( location.getLatitude(),
+                            location.getLongitude(),
+                            location.getAltitude(),
+                            speedOf( location ),
+                            courseOf( location ),
+                            location.getAccuracy(),
+                            NANOSECONDS.toMillis( location.getElapsedRealtimeNanos() ) );
+    }
+
+    // a fix without a speed or bearing reports 0, which the filter would take for standing still
+    private static double speedOf( Location location ) {
+        return location.hasSpeed() ? location.getSpeed() : Double.NaN;
+    }
 
+    private static double courseOf( Location location ) {
+        return location.hasBearing() ? location.getBearing() : Double.NaN;
     }
 
     protected Location getBetterLocation( Location newLocation, Location currentBestLocation ) {
@@ -312,7 +427,29 @@ public class KalmanFilterWorker implements SensorEventListener, LocationListener
     public void start() {
         requestLocationUpdates();
         registerSensorListeners();
-        new Thread( this ).start();
+        if( isRunning.compareAndSet( false, true ) ) {
+            // the ring buffers allow a single consumer only, a stopped worker may still be draining them
+            if( lastWorker != null ) {
+                join( lastWorker );
+            }
+            lastWorker = new Thread( this, TAG );
+            workerThread.set( lastWorker );
+            lastWorker.start();
+        }
+    }
+
+    private static void join( Thread thread ) {
+        boolean interrupted = false;
+        while( thread.isAlive() ) {
+            try {
+                thread.join();
+            } catch( InterruptedException e ) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public void requestLocationUpdates() {
@@ -327,18 +464,21 @@ public class KalmanFilterWorker implements SensorEventListener, LocationListener
     }
 
     public void registerSensorListeners() {
-        sensorManager.registerListener( this, sensorManager.getDefaultSensor( TYPE_LINEAR_ACCELERATION ), hertz2periodUs( Hz ) );
-        sensorManager.registerListener( this, sensorManager.getDefaultSensor( TYPE_ROTATION_VECTOR ), hertz2periodUs( Hz ) );
+        sensorHub.subscribe( TYPE_LINEAR_ACCELERATION, hertz2periodUs( Hz ), this );
+        sensorHub.subscribe( TYPE_ROTATION_VECTOR, hertz2periodUs( Hz ), this );
     }
 
     public void stop() {
         isRunning.set( false );
-        sensorFusionItems.clear();
+        Thread thread = workerThread.getAndSet( null );
+        if( thread != null ) {
+            LockSupport.unpark( thread );
+        }
         unregisterListeners();
     }
 
     public void unregisterListeners() {
         locationManager.removeUpdates( this );
-        sensorManager.unregisterListener( this );
+        sensorHub.unsubscribe( this );
     }
 }
@@ -0,0 +1,222 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+/**
+ * Defers the predictions of an {@link IKalmanFilterModel} until an estimate is actually consumed.
+ * <p>
+ * Sensor items only accumulate in an {@link ImuPreIntegrator}. The state is advanced in a single
+ * propagation over every pending input when it is read or corrected, so steps nobody looks at cost
+ * no covariance work.
+ * <p>
+ * With a {@link KalmanFilterHistory}, a GPS fix older than sensor items already added is applied in its
+ * place: the state is rolled back to the last checkpoint before the fix and the records after it are replayed.
+ * <p>
+ * With a {@link FixedLagSmoother}, every GPS fix is a step of the smoother, which follows the rollbacks
+ * and the moves of the projection origin.
+ */
+public class LazyKalmanFilterModel {
+
+    // a checkpoint per propagation, far more than the sensor items of a GPS interval need
+    private static final int CHECKPOINT_CAPACITY = 64;
+
+    private final IKalmanFilterModel model;
+    private final ImuPreIntegrator pending;
+    private final KalmanFilterHistory history;
+    private final FixedLagSmoother smoother;
+    // reused while replaying the history
+    private final SensorItem sensorItem = new SensorItem( 0d, 0d, 0F, 0L );
+    private final GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+
+    private long rollbacks;
+    private long replayed;
+    private long unordered;
+
+    public LazyKalmanFilterModel( IKalmanFilterModel model, long timestamp ) {
+        this( model, timestamp, 0 );
+    }
+
+    /** @param historyCapacity records kept to apply late GPS fixes in order, 0 applies them on arrival */
+    public LazyKalmanFilterModel( IKalmanFilterModel model, long timestamp, int historyCapacity ) {
+        this( model, timestamp, historyCapacity, 0 );
+    }
+
+    /** @param smoothingLag GPS fixes the smoothed state lags behind, 0 for no smoothing */
+    public LazyKalmanFilterModel( IKalmanFilterModel model, long timestamp, int historyCapacity, int smoothingLag ) {
+        this.model = model;
+        this.pending = new ImuPreIntegrator( timestamp );
+        if( historyCapacity > 0 ) {
+            this.history = new KalmanFilterHistory( historyCapacity, CHECKPOINT_CAPACITY, model.getSnapshotSize() );
+            this.history.checkpoint( model, timestamp, timestamp );
+        } else {
+            this.history = null;
+        }
+        if( smoothingLag > 0 ) {
+            final FixedLagSmoother smoother = new FixedLagSmoother( smoothingLag );
+            // the first fix is the first step
+            smoother.predicted( timestamp, model );
+            model.getProjection().setOriginListener( new LocalTangentPlane.OriginListener() {
+                @Override
+                public void onOriginMoved( double north, double east ) {
+                    smoother.translate( north, east );
+                }
+            } );
+            this.smoother = smoother;
+        } else {
+            this.smoother = null;
+        }
+    }
+
+    public void addInput( SensorItem item ) {
+        if( history != null ) {
+            history.addSensor( item );
+        }
+        pending.integrate( item );
+    }
+
+    public int getPendingCount() {
+        return pending.getSampleCount();
+    }
+
+    /** Timestamp of the last sensor item, the time the state refers to once the pending inputs are applied. */
+    public long getTimestamp() {
+        return pending.getEndTimestamp();
+    }
+
+    /** Applies the pending inputs and returns the state of the underlying model. */
+    public double[] getStateEstimation() {
+        if( pending.getSampleCount() > 0 ) {
+            propagate();
+        }
+        return model.getStateEstimation();
+    }
+
+    private void propagate() {
+        model.predict( pending );
+        long timestamp = pending.getEndTimestamp();
+        pending.reset( timestamp );
+        if( history != null ) {
+            history.checkpoint( model, timestamp, timestamp );
+        }
+    }
+
+    /**
+     * Copies the state extrapolated to the given time into out, at constant velocity past the last sensor item.
+     * The pending inputs are added to the state as a propagation would, but stay pending: the filter is not
+     * advanced and its covariance is untouched.
+     */
+    public double[] predictTo( long timestamp, double[] out ) {
+        double[] state = model.getStateEstimation();
+        System.arraycopy( state, 0, out, 0, state.length );
+
+        // x(T) = A(T) * x(0) + [dp, dv] over the pending window, then A(dt) past its end
+        double window = pending.getDuration();
+        double dt = Math.max( 0d, ( timestamp - pending.getEndTimestamp() ) / 1000.0 );
+        out[2] += pending.getDeltaVelocityX();
+        out[3] += pending.getDeltaVelocityY();
+        out[0] += window * state[2] + pending.getDeltaPositionX() + dt * out[2];
+        out[1] += window * state[3] + pending.getDeltaPositionY() + dt * out[3];
+        if( state.length > 5 ) {
+            out[4] += ( window + dt ) * state[5];
+        }
+        return out;
+    }
+
+    public double[] correct( GpsItem item ) {
+        if( history == null ) {
+            return apply( item );
+        }
+        if( item.timestamp < pending.getEndTimestamp() ) {
+            long checkpoint = history.findCheckpoint( item.timestamp );
+            if( checkpoint >= 0 ) {
+                return replay( checkpoint, item );
+            }
+            // older than the history, applied now as without one
+            unordered++;
+        }
+        history.addGps( item );
+        double[] state = apply( item );
+        history.checkpoint( model, Math.max( item.timestamp, pending.getEndTimestamp() ), pending.getEndTimestamp() );
+        return state;
+    }
+
+    private double[] apply( GpsItem item ) {
+        // the state has to catch up with the pending sensor items before it is corrected
+        getStateEstimation();
+        return correctModel( item );
+    }
+
+    // the state has been propagated to the last sensor item, which is the time of the smoother step
+    private double[] correctModel( GpsItem item ) {
+        model.updateMeasurementModel( item );
+        if( smoother == null ) {
+            return model.correct( item );
+        }
+        smoother.predicted( pending.getEndTimestamp(), model );
+        // a recenter in correct translates the step along with the rest of the window
+        model.correct( item );
+        smoother.corrected( model );
+        return model.getStateEstimation();
+    }
+
+    private double[] replay( long checkpoint, GpsItem item ) {
+        history.rollback( checkpoint, model );
+        long position = history.getCheckpointPosition( checkpoint );
+        pending.reset( history.getStateTimestamp( checkpoint ) );
+        if( smoother != null ) {
+            // every fix after the checkpoint is a step to redo
+            int steps = 0;
+            for( long i = position; i < history.getHead(); i++ ) {
+                if( history.getType( i ) == KalmanFilterHistory.GPS ) {
+                    steps++;
+                }
+            }
+            smoother.rewind( steps );
+        }
+        history.insertGps( position, item );
+
+        long head = history.getHead();
+        for( ; position < head; position++ ) {
+            if( history.getType( position ) == KalmanFilterHistory.SENSOR ) {
+                pending.integrate( history.getSensorItem( position, sensorItem ) );
+            } else {
+                GpsItem fix = history.getGpsItem( position, gpsItem );
+                if( pending.getSampleCount() > 0 ) {
+                    model.predict( pending );
+                    pending.reset( pending.getEndTimestamp() );
+                }
+                correctModel( fix );
+                history.checkpoint( model, Math.max( fix.timestamp, pending.getEndTimestamp() ), pending.getEndTimestamp() );
+            }
+        }
+        rollbacks++;
+        replayed += head - history.getCheckpointPosition( checkpoint );
+        // the sensor items after the last replayed fix are applied as well, the state is as current as after a fix in order
+        return getStateEstimation();
+    }
+
+    /** Late fixes applied in their place. */
+    public long getRollbacks() {
+        return rollbacks;
+    }
+
+    /** Records replayed after late fixes. */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /** Late fixes older than the history, applied on arrival. */
+    public long getUnordered() {
+        return unordered;
+    }
+
+    public IKalmanFilterModel getModel() {
+        return model;
+    }
+
+    /** The smoother stepped at every GPS fix, null without a smoothing lag. */
+    public FixedLagSmoother getSmoother() {
+        return smoother;
+    }
+}
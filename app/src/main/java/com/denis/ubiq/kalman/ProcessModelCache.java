@@ -0,0 +1,77 @@
+package com.denis.ubiq.kalman;
+
+/**
+ * Bounded, direct-mapped cache of process model terms keyed on dt quantized to a fixed resolution.
+ * A slot is simply overwritten on collision, so lookups never allocate.
+ * <p>
+ * Not thread safe, it is meant to be owned by a single filter model.
+ */
+public abstract class ProcessModelCache<T> {
+
+    private final double resolution;
+    private final long[] keys;
+    private final Object[] values;
+    private final int mask;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity   number of slots, rounded up to a power of two
+     * @param resolution quantization step of dt in seconds
+     */
+    public ProcessModelCache( int capacity, double resolution ) {
+        if( capacity <= 0 || resolution <= 0d ) {
+            throw new IllegalArgumentException( "capacity and resolution must be positive" );
+        }
+        int size = Integer.highestOneBit( capacity );
+        if( size < capacity ) {
+            size <<= 1;
+        }
+        this.resolution = resolution;
+        this.keys = new long[size];
+        this.values = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /** Creates the terms for the quantized step length. */
+    protected abstract T create( double dt );
+
+    @SuppressWarnings( "unchecked" )
+    public T get( double dt ) {
+        long key = Math.round( dt / resolution );
+        int index = ( int ) ( key ^ ( key >>> 32 ) ) & mask;
+
+        Object value = values[index];
+        if( value != null && keys[index] == key ) {
+            hits++;
+            return ( T ) value;
+        }
+
+        misses++;
+        T created = create( key * resolution );
+        keys[index] = key;
+        values[index] = created;
+        return created;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public void clear() {
+        for( int i = 0; i < values.length; i++ ) {
+            values[i] = null;
+        }
+        hits = 0;
+        misses = 0;
+    }
+}
@@ -0,0 +1,277 @@
+package com.denis.ubiq.kalman;
+
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+
+/**
+ * The constant-velocity filter of {@link KalmanFilterKernel} in single precision, with the error covariance
+ * kept as its U-D factors P = U * D * U', U unit upper triangular and D diagonal.
+ * <p>
+ * Propagating P directly loses symmetry and positive definiteness in float once a measurement is much more
+ * accurate than the prior. Here predictions use Thornton's weighted Gram-Schmidt on [A * U | G], with
+ * Q = G * Dq * G', and corrections use Bierman's scalar update, so D stays non-negative by construction.
+ * Measurements are fused one component at a time, their noise has to be diagonal.
+ * Every array is a float and preallocated, a step performs no allocation.
+ */
+public class UdKalmanFilter {
+
+    public static final int SNAPSHOT_SIZE = 4 + 6 + 4;
+
+    // state estimation
+    private final float[] x = new float[4];
+
+    // unit upper triangular factor, row-major 4x4, and the diagonal factor
+    private final float[] u = new float[16];
+    private final float[] d = new float[4];
+
+    // transition terms and the factors of the per axis process noise, q = [1 g; 0 1] * diag(q0, q1) * [1 g; 0 1]'
+    private float dt;
+    private float halfDt2;
+    private float g;
+    private float q0;
+    private float q1;
+
+    // diagonal measurement noise
+    private float rx;
+    private float ry;
+
+    // [A * U | G] row-major 4x8 with its weights, and the unscaled gain of a scalar update
+    private final float[] w = new float[32];
+    private final float[] dw = new float[8];
+    private final float[] b = new float[4];
+
+    public UdKalmanFilter() {
+        setErrorCovariance( 1d );
+    }
+
+    public void setState( double x0, double x1, double x2, double x3 ) {
+        x[0] = ( float ) x0;
+        x[1] = ( float ) x1;
+        x[2] = ( float ) x2;
+        x[3] = ( float ) x3;
+    }
+
+    public void setErrorCovariance( double variance ) {
+        for( int i = 0; i < 16; i++ ) {
+            u[i] = i % 5 == 0 ? 1F : 0F;
+        }
+        for( int i = 0; i < 4; i++ ) {
+            d[i] = ( float ) variance;
+        }
+    }
+
+    /** Factors a symmetric positive definite covariance, row-major 4x4, in double before rounding to float. */
+    public void setErrorCovariance( double[] covariance ) throws NonPositiveDefiniteMatrixException {
+        double[] factor = new double[16];
+        double[] diagonal = new double[4];
+        for( int j = 3; j >= 0; j-- ) {
+            double djj = covariance[j * 5];
+            for( int k = j + 1; k < 4; k++ ) {
+                djj -= diagonal[k] * factor[j * 4 + k] * factor[j * 4 + k];
+            }
+            if( !( djj > 0d ) ) {
+                throw new NonPositiveDefiniteMatrixException( djj, j, 0d );
+            }
+            diagonal[j] = djj;
+            factor[j * 5] = 1d;
+            for( int i = 0; i < j; i++ ) {
+                double pij = covariance[i * 4 + j];
+                for( int k = j + 1; k < 4; k++ ) {
+                    pij -= diagonal[k] * factor[i * 4 + k] * factor[j * 4 + k];
+                }
+                factor[i * 4 + j] = pij / djj;
+            }
+        }
+        for( int i = 0; i < 16; i++ ) {
+            u[i] = ( float ) factor[i];
+        }
+        for( int i = 0; i < 4; i++ ) {
+            d[i] = ( float ) diagonal[i];
+        }
+    }
+
+    /**
+     * @param dt                   step length in seconds
+     * @param accelerationVariance variance of the acceleration driving the process noise
+     */
+    public void setProcessModel( double dt, double accelerationVariance ) {
+        double dt2 = dt * dt;
+        setProcessModel( dt, accelerationVariance * dt2 * dt2 / 4d, accelerationVariance * dt2 * dt / 2d, accelerationVariance * dt2 );
+    }
+
+    /**
+     * Process model with explicit noise terms, q11 the position variance, q13 the position/velocity
+     * covariance and q33 the velocity variance of each axis.
+     */
+    public void setProcessModel( double dt, double q11, double q13, double q33 ) {
+        this.dt = ( float ) dt;
+        this.halfDt2 = ( float ) ( dt * dt / 2d );
+        // U-D factors of the 2x2 axis noise, the constant acceleration noise is rank one and leaves q0 at zero
+        if( q33 > 0d ) {
+            this.g = ( float ) ( q13 / q33 );
+            this.q0 = ( float ) Math.max( 0d, q11 - q13 * q13 / q33 );
+            this.q1 = ( float ) q33;
+        } else {
+            this.g = 0F;
+            this.q0 = ( float ) q11;
+            this.q1 = 0F;
+        }
+    }
+
+    public void setMeasurementNoise( double rx, double ry ) {
+        this.rx = ( float ) rx;
+        this.ry = ( float ) ry;
+    }
+
+    public void predict( double ax, double ay ) {
+        // xHat(k)- = A * xHat(k-1) + B * u(k-1)
+        propagate( halfDt2 * ax, halfDt2 * ay, dt * ax, dt * ay );
+    }
+
+    /** Predicts with a control input already mapped into the state space, see {@link ImuPreIntegrator}. */
+    public void propagate( double dx0, double dx1, double dx2, double dx3 ) {
+        x[0] += dt * x[2] + ( float ) dx0;
+        x[1] += dt * x[3] + ( float ) dx1;
+        x[2] += ( float ) dx2;
+        x[3] += ( float ) dx3;
+
+        // W = [A * U | G], A only adds dt times the velocity rows to the position rows
+        for( int j = 0; j < 4; j++ ) {
+            w[j] = u[j] + dt * u[8 + j];
+            w[8 + j] = u[4 + j] + dt * u[12 + j];
+            w[16 + j] = u[8 + j];
+            w[24 + j] = u[12 + j];
+        }
+        for( int i = 0; i < 4; i++ ) {
+            for( int j = 4; j < 8; j++ ) {
+                w[i * 8 + j] = 0F;
+            }
+        }
+        w[4] = 1F;
+        w[5] = g;
+        w[21] = 1F;
+        w[14] = 1F;
+        w[15] = g;
+        w[31] = 1F;
+        dw[0] = d[0];
+        dw[1] = d[1];
+        dw[2] = d[2];
+        dw[3] = d[3];
+        dw[4] = q0;
+        dw[5] = q1;
+        dw[6] = q0;
+        dw[7] = q1;
+
+        // P(k)- = W * Dw * W', orthogonalise the rows of W from the last one up
+        for( int k = 3; k >= 0; k-- ) {
+            int rk = k * 8;
+            float dk = 0F;
+            for( int j = 0; j < 8; j++ ) {
+                dk += w[rk + j] * w[rk + j] * dw[j];
+            }
+            d[k] = dk;
+            for( int i = 0; i < k; i++ ) {
+                int ri = i * 8;
+                float uik = 0F;
+                if( dk > 0F ) {
+                    for( int j = 0; j < 8; j++ ) {
+                        uik += w[ri + j] * dw[j] * w[rk + j];
+                    }
+                    uik /= dk;
+                    for( int j = 0; j < 8; j++ ) {
+                        w[ri + j] -= uik * w[rk + j];
+                    }
+                }
+                u[i * 4 + k] = uik;
+            }
+        }
+    }
+
+    public void correct( double z0, double z1 ) {
+        correct( 0, z0, rx );
+        correct( 1, z1, ry );
+    }
+
+    /** Scalar update of a single state component, z = x[index] + v with var(v) = r. */
+    public void correct( int index, double z, double r ) {
+        if( !( r > 0d ) ) {
+            throw new IllegalArgumentException( "measurement variance must be positive" );
+        }
+        // f = U' * H', H selects a component, so f is row index of U, zero before the diagonal
+        float alpha = ( float ) r;
+        for( int j = 0; j < 4; j++ ) {
+            float f = j < index ? 0F : j == index ? 1F : u[index * 4 + j];
+            float v = d[j] * f;
+            float previous = alpha;
+            alpha += f * v;
+            d[j] *= previous / alpha;
+            float lambda = -f / previous;
+            for( int i = 0; i < j; i++ ) {
+                float uij = u[i * 4 + j];
+                u[i * 4 + j] = uij + b[i] * lambda;
+                b[i] += uij * v;
+            }
+            b[j] = v;
+        }
+
+        // K = b / alpha, alpha = H * P(k)- * H' + r
+        float innovation = ( float ) ( z - x[index] ) / alpha;
+        for( int i = 0; i < 4; i++ ) {
+            x[i] += b[i] * innovation;
+        }
+    }
+
+    /** Writes the state, the strict upper triangle of U and D, {@link #SNAPSHOT_SIZE} values. */
+    public void saveState( double[] out, int offset ) {
+        for( int i = 0; i < 4; i++ ) {
+            out[offset + i] = x[i];
+            out[offset + 10 + i] = d[i];
+        }
+        out[offset + 4] = u[1];
+        out[offset + 5] = u[2];
+        out[offset + 6] = u[3];
+        out[offset + 7] = u[6];
+        out[offset + 8] = u[7];
+        out[offset + 9] = u[11];
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        setErrorCovariance( 1d );
+        for( int i = 0; i < 4; i++ ) {
+            x[i] = ( float ) in[offset + i];
+            d[i] = ( float ) in[offset + 10 + i];
+        }
+        u[1] = ( float ) in[offset + 4];
+        u[2] = ( float ) in[offset + 5];
+        u[3] = ( float ) in[offset + 6];
+        u[6] = ( float ) in[offset + 7];
+        u[7] = ( float ) in[offset + 8];
+        u[11] = ( float ) in[offset + 9];
+    }
+
+    public double[] getStateEstimation( double[] out ) {
+        for( int i = 0; i < 4; i++ ) {
+            out[i] = x[i];
+        }
+        return out;
+    }
+
+    /** Expands U * D * U' into out, row-major 4x4, as {@link KalmanFilterKernel} does. */
+    public double[] getErrorCovariance( double[] out ) {
+        for( int i = 0; i < 4; i++ ) {
+            for( int j = i; j < 4; j++ ) {
+                // U is upper triangular, the sum starts at the later of the two rows
+                double pij = 0d;
+                for( int k = j; k < 4; k++ ) {
+                    pij += ( double ) u[i * 4 + k] * d[k] * u[j * 4 + k];
+                }
+                out[i * 4 + j] = out[j * 4 + i] = pij;
+            }
+        }
+        return out;
+    }
+
+    /** The diagonal factor D, non-negative for as long as the filter runs. */
+    public double getDiagonalFactor( int index ) {
+        return d[index];
+    }
+}
@@ -0,0 +1,126 @@
+package com.denis.ubiq.kalman;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+/**
+ * Same model as {@link KalmanFilterModel}, running on the single precision {@link UdKalmanFilter}.
+ * Positions are relative to the projection origin, which keeps them small enough for a float.
+ * The returned state array is reused between calls.
+ */
+public class UdKalmanFilterModel implements IKalmanFilterModel {
+
+    private double positionNoise;
+    private double velocityNoise = 1d;
+    private double measurementVariance;
+    private double accelerationNoise = 0.1d;
+
+    private final UdKalmanFilter filter = new UdKalmanFilter();
+    private final double[] state = new double[4];
+    private final LocalTangentPlane projection;
+    // the velocity measured by a fix
+    private final double[] velocity = new double[2];
+
+    private long lastPredictTimeStamp;
+
+    public UdKalmanFilterModel( GpsItem item ) {
+        // a fix without a speed, or moving without a course, starts the filter at rest
+        GpsVelocity.measure( item, 0d, 0d, velocity );
+        double xVelocity = velocity[0];
+        double yVelocity = velocity[1];
+
+        this.positionNoise = item.positionNoise;
+        this.lastPredictTimeStamp = item.timestamp;
+        this.projection = new LocalTangentPlane( item.latitude, item.longitude );
+
+        filter.setState( projection.toNorth( item.latitude ), projection.toEast( item.latitude, item.longitude ), xVelocity, yVelocity );
+        filter.setErrorCovariance( positionNoise );
+        filter.setProcessModel( 1d, accelerationNoise * accelerationNoise );
+        this.measurementVariance = positionNoise * positionNoise;
+        filter.setMeasurementNoise( measurementVariance, measurementVariance );
+    }
+
+    public void updateProcessModel( SensorItem item ) {
+        double dt = ( item.timestamp - lastPredictTimeStamp ) / 1000.0;
+        filter.setProcessModel( dt, accelerationNoise * accelerationNoise );
+
+        this.lastPredictTimeStamp = item.timestamp;
+    }
+
+    public double[] predict( SensorItem item ) {
+        filter.predict( item.northAcceleration, item.eastAcceleration );
+        return filter.getStateEstimation( state );
+    }
+
+    public double[] predict( ImuPreIntegrator integrator ) {
+        double variance = accelerationNoise * accelerationNoise;
+        filter.setProcessModel( integrator.getDuration(),
+                                variance * integrator.getNoise00(),
+                                variance * integrator.getNoise01(),
+                                variance * integrator.getNoise11() );
+        filter.propagate( integrator.getDeltaPositionX(),
+                          integrator.getDeltaPositionY(),
+                          integrator.getDeltaVelocityX(),
+                          integrator.getDeltaVelocityY() );
+
+        this.lastPredictTimeStamp = integrator.getEndTimestamp();
+        return filter.getStateEstimation( state );
+    }
+
+    public void updateMeasurementModel( GpsItem item ) {
+        measurementVariance = item.positionNoise * item.positionNoise;
+        filter.setMeasurementNoise( measurementVariance, measurementVariance );
+    }
+
+    public double[] correct( GpsItem item ) {
+        recenter();
+        double north = projection.toNorth( item.latitude );
+        double east = projection.toEast( item.latitude, item.longitude );
+        filter.correct( 0, north, measurementVariance );
+        filter.correct( 1, east, measurementVariance );
+        filter.getStateEstimation( state );
+        if( GpsVelocity.measure( item, state[2], state[3], velocity ) ) {
+            // a standing fix counts too, it keeps the velocity from drifting while the device does not move
+            filter.correct( 2, velocity[0], velocityNoise * velocityNoise );
+            filter.correct( 3, velocity[1], velocityNoise * velocityNoise );
+        }
+        return filter.getStateEstimation( state );
+    }
+
+    public double[] getStateEstimation() {
+        return filter.getStateEstimation( state );
+    }
+
+    public double[] getErrorCovariance( double[] out ) {
+        return filter.getErrorCovariance( out );
+    }
+
+    public LocalTangentPlane getProjection() {
+        return projection;
+    }
+
+    public int getSnapshotSize() {
+        return 3 + UdKalmanFilter.SNAPSHOT_SIZE;
+    }
+
+    public void saveState( double[] out, int offset ) {
+        out[offset] = lastPredictTimeStamp;
+        out[offset + 1] = projection.getOriginLatitude();
+        out[offset + 2] = projection.getOriginLongitude();
+        filter.saveState( out, offset + 3 );
+    }
+
+    public void restoreState( double[] in, int offset ) {
+        lastPredictTimeStamp = ( long ) in[offset];
+        projection.setOrigin( in[offset + 1], in[offset + 2] );
+        filter.restoreState( in, offset + 3 );
+    }
+
+    private void recenter() {
+        filter.getStateEstimation( state );
+        if( projection.isFar( state[0], state[1] ) ) {
+            projection.moveOrigin( state[0], state[1] );
+            filter.setState( 0d, 0d, state[2], state[3] );
+        }
+    }
+}
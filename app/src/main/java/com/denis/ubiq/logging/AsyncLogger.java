@@ -0,0 +1,249 @@
+package com.denis.ubiq.logging;
+
+import java.io.*;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes log records as primitive fields on the calling thread and formats and writes them in batches
+ * on a background thread.
+ * <p>
+ * Records are copied into a preallocated multi-producer ring, so {@link #log} neither allocates nor
+ * formats. When the ring is full the record is either dropped or the caller waits for a free slot,
+ * depending on the {@link OverflowPolicy}. Labels and qualifiers are stored by reference and should be constants.
+ * Lines look like {@code 10:15:02.310, 4523310, GPS(gps): latitude=42.69; longitude=23.32; ...}
+ */
+public class AsyncLogger implements Closeable {
+
+    public enum OverflowPolicy {
+        DROP,
+        BLOCK
+    }
+
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 10000000L;
+    private static final long BLOCK_PARK_NANOS = 100000L;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final int capacity;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final Writer writer;
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    // slot i is free for position p when sequences[i] == p, and readable when it is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final LogFormat[] formats;
+    private final String[] labels;
+    private final String[] qualifiers;
+    private final long[] wallTimes;
+    private final long[] timestamps;
+    private final double[] values;
+
+    // consumer side
+    private final StringBuilder batch = new StringBuilder( 16 * 1024 );
+    private char[] chars = new char[16 * 1024];
+    private long tail;
+    private long reportedDropped;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public AsyncLogger( int capacity, OverflowPolicy overflowPolicy, Writer writer ) {
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "capacity must be positive" );
+        }
+        int size = Integer.highestOneBit( capacity );
+        if( size < capacity ) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.writer = writer;
+
+        this.sequences = new AtomicLongArray( size );
+        for( int i = 0; i < size; i++ ) {
+            sequences.set( i, i );
+        }
+        this.formats = new LogFormat[size];
+        this.labels = new String[size];
+        this.qualifiers = new String[size];
+        this.wallTimes = new long[size];
+        this.timestamps = new long[size];
+        this.values = new double[size * LogFormat.MAX_FIELDS];
+
+        this.thread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "AsyncLogger" );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+
+    public boolean log( LogFormat format, String label, long timestamp, double v0, double v1, double v2, double v3, double v4 ) {
+        return log( format, label, null, timestamp, v0, v1, v2, v3, v4 );
+    }
+
+    /**
+     * Queues a record, the values beyond the fields of the format are ignored.
+     * Returns false if the record was dropped.
+     */
+    public boolean log( LogFormat format, String label, String qualifier, long timestamp, double v0, double v1, double v2, double v3, double v4 ) {
+        long wallTime = System.currentTimeMillis();
+        long position;
+        while( true ) {
+            position = head.get();
+            long sequence = sequences.get( ( int ) ( position & mask ) );
+            if( sequence == position ) {
+                if( head.compareAndSet( position, position + 1 ) ) {
+                    break;
+                }
+            } else if( sequence < position ) {
+                // full, the consumer has not released this slot yet
+                if( overflowPolicy == OverflowPolicy.DROP || !running ) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                // wake the writer up rather than waiting out its idle park
+                LockSupport.unpark( thread );
+                LockSupport.parkNanos( BLOCK_PARK_NANOS );
+            }
+        }
+
+        int slot = ( int ) ( position & mask );
+        formats[slot] = format;
+        labels[slot] = label;
+        qualifiers[slot] = qualifier;
+        wallTimes[slot] = wallTime;
+        timestamps[slot] = timestamp;
+        int offset = slot * LogFormat.MAX_FIELDS;
+        values[offset] = v0;
+        values[offset + 1] = v1;
+        values[offset + 2] = v2;
+        values[offset + 3] = v3;
+        values[offset + 4] = v4;
+        sequences.lazySet( slot, position + 1 );
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Writes the remaining records, stops the background thread and closes the writer. */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark( thread );
+        try {
+            thread.join();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+    private void drainLoop() {
+        while( true ) {
+            // read the flag first, so the records published before close() are still drained
+            boolean stopping = !running;
+            try {
+                boolean written = false;
+                while( drainBatch() > 0 ) {
+                    writeBatch();
+                    written = true;
+                }
+                // once per drained ring rather than per batch, a burst goes out in as few writes as the buffer allows
+                if( written || stopping ) {
+                    writer.flush();
+                }
+                if( stopping ) {
+                    return;
+                }
+            } catch( IOException e ) {
+                e.printStackTrace();
+            }
+            LockSupport.parkNanos( this, IDLE_PARK_NANOS );
+        }
+    }
+
+    private int drainBatch() {
+        int count = 0;
+        while( count < MAX_BATCH ) {
+            int slot = ( int ) ( tail & mask );
+            if( sequences.get( slot ) != tail + 1 ) {
+                break;
+            }
+            append( formats[slot], labels[slot], qualifiers[slot], wallTimes[slot], timestamps[slot], slot * LogFormat.MAX_FIELDS );
+            labels[slot] = null;
+            qualifiers[slot] = null;
+            sequences.lazySet( slot, tail + capacity );
+            tail++;
+            count++;
+        }
+
+        long droppedCount = dropped.get();
+        if( droppedCount != reportedDropped ) {
+            batch.append( "AsyncLogger: dropped " ).append( droppedCount - reportedDropped ).append( " records\n" );
+            reportedDropped = droppedCount;
+            count++;
+        }
+        return count;
+    }
+
+    private void writeBatch() throws IOException {
+        int length = batch.length();
+        if( chars.length < length ) {
+            chars = new char[Math.max( length, chars.length * 2 )];
+        }
+        batch.getChars( 0, length, chars, 0 );
+        batch.setLength( 0 );
+        writer.write( chars, 0, length );
+    }
+
+    private void append( LogFormat format, String label, String qualifier, long wallTime, long timestamp, int offset ) {
+        appendTime( wallTime );
+        batch.append( ", " ).append( timestamp ).append( ", " ).append( label );
+        if( qualifier != null ) {
+            batch.append( '(' ).append( qualifier ).append( ')' );
+        }
+        batch.append( ": " );
+        String[] fields = format.fields;
+        for( int i = 0; i < fields.length; i++ ) {
+            batch.append( fields[i] ).append( values[offset + i] );
+        }
+        batch.append( format.suffix ).append( '\n' );
+    }
+
+    // HH:mm:ss.SSS in the default time zone, without a SimpleDateFormat
+    private void appendTime( long wallTime ) {
+        long local = wallTime + timeZone.getOffset( wallTime );
+        long millisOfDay = ( local % MILLIS_PER_DAY + MILLIS_PER_DAY ) % MILLIS_PER_DAY;
+        appendDigits( millisOfDay / 3600000L, 2 );
+        batch.append( ':' );
+        appendDigits( millisOfDay / 60000L % 60, 2 );
+        batch.append( ':' );
+        appendDigits( millisOfDay / 1000L % 60, 2 );
+        batch.append( '.' );
+        appendDigits( millisOfDay % 1000L, 3 );
+    }
+
+    private void appendDigits( long value, int width ) {
+        for( long limit = 10; width > 1; width--, limit *= 10 ) {
+            if( value < limit ) {
+                batch.append( '0' );
+            }
+        }
+        batch.append( value );
+    }
+}
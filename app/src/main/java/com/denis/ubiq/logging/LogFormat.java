@@ -0,0 +1,25 @@
+package com.denis.ubiq.logging;
+
+/**
+ * Field layout of a log record: the text written before each value and after the last one.
+ * The lines keep the format that {@link com.denis.ubiq.replay.LogRecordParser} reads back.
+ */
+public enum LogFormat {
+
+    ACCELERATION( ";", "eastAcceleration=", " northAcceleration=", " noise=" ),
+    LOCATION( "", "latitude=", "; longitude=", "; accuracy=", "; speed=", "; bearing=" ),
+    STATE( "", "PositionX=", " PositionY=", "; VelocityX=", " VelocityY=" ),
+    COUNTER( "", "count=" ),
+    GAUGE( "", "value=", "; max=" ),
+    HISTOGRAM( "", "count=", "; mean=", "; p50=", "; p99=", "; p999=" );
+
+    public static final int MAX_FIELDS = 5;
+
+    final String suffix;
+    final String[] fields;
+
+    LogFormat( String suffix, String... fields ) {
+        this.suffix = suffix;
+        this.fields = fields;
+    }
+}
@@ -0,0 +1,100 @@
+package com.denis.ubiq.mailbox;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.*;
+import android.view.Choreographer;
+
+/**
+ * Hands the latest measurement, estimate and orientation from the workers to the main thread, at most
+ * once per display frame.
+ * <p>
+ * Each kind of update is a {@link LatestValue}, so a worker overwrites what the screen has not shown yet
+ * instead of queueing it. The first update after a frame schedules a {@link Choreographer} callback, which
+ * delivers whatever is newest when the next vsync comes. The main thread load depends on the frame rate
+ * only, however fast the filters run, and posting allocates nothing.
+ */
+public class FrameMailbox implements Choreographer.FrameCallback {
+
+    public interface Listener {
+
+        void onMeasurement( double latitude, double longitude );
+
+        /** @param enqueueNanos elapsed realtime, in nanoseconds, at which the record behind the estimate was queued */
+        void onEstimate( double latitude, double longitude, long enqueueNanos );
+
+        void onOrientation( float azimuth, float pitch, float roll );
+    }
+
+    private final Listener listener;
+    private final Handler mainHandler = new Handler( Looper.getMainLooper() );
+    private final LatestValue measurement = new LatestValue( 2 );
+    private final LatestValue estimate = new LatestValue( 3 );
+    private final LatestValue orientation = new LatestValue( 3 );
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable schedule = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback( FrameMailbox.this );
+        }
+    };
+
+    public FrameMailbox( Listener listener ) {
+        this.listener = listener;
+    }
+
+    /** From the fusion worker thread only. */
+    public void postMeasurement( double latitude, double longitude ) {
+        double[] value = measurement.edit();
+        value[0] = latitude;
+        value[1] = longitude;
+        measurement.publish();
+        schedule();
+    }
+
+    /** From the fusion worker thread only. */
+    public void postEstimate( double latitude, double longitude, long enqueueNanos ) {
+        double[] value = estimate.edit();
+        value[0] = latitude;
+        value[1] = longitude;
+        // exact in a double for the first hundred days of uptime
+        value[2] = enqueueNanos;
+        estimate.publish();
+        schedule();
+    }
+
+    /** From the orientation worker thread only, the values are copied. */
+    public void postOrientation( float[] fusedOrientation ) {
+        double[] value = orientation.edit();
+        value[0] = fusedOrientation[0];
+        value[1] = fusedOrientation[1];
+        value[2] = fusedOrientation[2];
+        orientation.publish();
+        schedule();
+    }
+
+    @Override
+    public void doFrame( long frameTimeNanos ) {
+        // cleared first, an update published while this frame runs schedules the next one
+        scheduled.set( false );
+        if( measurement.poll() ) {
+            double[] value = measurement.get();
+            listener.onMeasurement( value[0], value[1] );
+        }
+        if( estimate.poll() ) {
+            double[] value = estimate.get();
+            listener.onEstimate( value[0], value[1], ( long ) value[2] );
+        }
+        if( orientation.poll() ) {
+            double[] value = orientation.get();
+            listener.onOrientation( ( float ) value[0], ( float ) value[1], ( float ) value[2] );
+        }
+    }
+
+    // the Choreographer belongs to the main thread, so the callback is registered from there
+    private void schedule() {
+        if( scheduled.compareAndSet( false, true ) ) {
+            mainHandler.post( schedule );
+        }
+    }
+}
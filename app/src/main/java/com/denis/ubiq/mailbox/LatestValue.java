@@ -0,0 +1,54 @@
+package com.denis.ubiq.mailbox;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-producer/single-consumer slot holding the latest of a series of primitive values.
+ * <p>
+ * A triple buffer: the producer fills its own back slot and swaps it with the middle one, the consumer
+ * swaps its front slot with the middle one when that holds something new. Values published in between
+ * are overwritten, only the latest is ever read. Both sides are wait-free and nothing is allocated.
+ */
+public class LatestValue {
+
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final double[][] slots;
+    // index of the middle slot, FRESH while it holds a value the consumer has not taken yet
+    private final AtomicInteger middle = new AtomicInteger( 1 );
+
+    // producer side
+    private int back = 0;
+
+    // consumer side
+    private int front = 2;
+
+    public LatestValue( int size ) {
+        this.slots = new double[3][size];
+    }
+
+    /** Producer: the slot to fill with a complete value before {@link #publish()}. */
+    public double[] edit() {
+        return slots[back];
+    }
+
+    /** Producer: makes the edited value the latest one, replacing a value not taken yet. */
+    public void publish() {
+        back = middle.getAndSet( back | FRESH ) & INDEX_MASK;
+    }
+
+    /** Consumer: takes the latest value if there is a new one, see {@link #get()}. */
+    public boolean poll() {
+        if( ( middle.get() & FRESH ) == 0 ) {
+            return false;
+        }
+        front = middle.getAndSet( front ) & INDEX_MASK;
+        return true;
+    }
+
+    /** Consumer: the value taken by the last successful {@link #poll()}. */
+    public double[] get() {
+        return slots[front];
+    }
+}
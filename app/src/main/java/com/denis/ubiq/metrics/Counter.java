@@ -0,0 +1,30 @@
+package com.denis.ubiq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Monotonic count of events, safe to increment from any thread. */
+public class Counter {
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+
+    Counter( String name ) {
+        this.name = name;
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add( long delta ) {
+        count.addAndGet( delta );
+    }
+
+    public long get() {
+        return count.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,36 @@
+package com.denis.ubiq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Last value set, such as a queue depth, with the highest value seen so far. Set from a single thread. */
+public class Gauge {
+
+    private final String name;
+    private final AtomicLong value = new AtomicLong();
+    private final AtomicLong max = new AtomicLong( Long.MIN_VALUE );
+
+    Gauge( String name ) {
+        this.name = name;
+    }
+
+    public void set( long value ) {
+        this.value.lazySet( value );
+        if( value > max.get() ) {
+            max.lazySet( value );
+        }
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    /** The highest value set, or 0 if none was. */
+    public long getMax() {
+        long current = max.get();
+        return current == Long.MIN_VALUE ? 0L : current;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
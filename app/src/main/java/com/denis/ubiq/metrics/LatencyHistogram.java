@@ -0,0 +1,150 @@
+package com.denis.ubiq.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed-memory histogram of latencies in nanoseconds, recorded into by a single thread and read from any.
+ * <p>
+ * Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so a percentile is reported as the
+ * upper bound of its bucket, at most 1/8 above the exact value. The buckets cover the whole non-negative
+ * long range in 488 counters. With one writer, recording is a few plain additions published by ordered
+ * writes, without read-modify-write instructions, locks or allocation.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+    private final String name;
+    private final long sampleMask;
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private long sections;
+
+    LatencyHistogram( String name, int samplePeriod ) {
+        if( samplePeriod <= 0 || Integer.bitCount( samplePeriod ) != 1 ) {
+            throw new IllegalArgumentException( "samplePeriod must be a power of two" );
+        }
+        this.name = name;
+        this.sampleMask = samplePeriod - 1;
+    }
+
+    /**
+     * Whether to time the next section: true once every sample period, so the clock reads of the other
+     * sections are saved. The count of a sampled histogram is the number of sections timed. From the owning
+     * thread only.
+     */
+    public boolean sample() {
+        return ( sections++ & sampleMask ) == 0L;
+    }
+
+    /** Records a latency in nanoseconds, negative values count as zero. From the owning thread only. */
+    public void record( long latency ) {
+        if( latency < 0L ) {
+            latency = 0L;
+        }
+        int index = indexOf( latency );
+        counts.lazySet( index, counts.get( index ) + 1L );
+        total.lazySet( total.get() + latency );
+        if( latency > max.get() ) {
+            max.lazySet( latency );
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Copies the buckets, concurrent records may or may not be part of it. */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0L;
+        for( int i = 0; i < BUCKETS; i++ ) {
+            copy[i] = counts.get( i );
+            count += copy[i];
+        }
+        return new Snapshot( name, copy, count, total.get(), max.get() );
+    }
+
+    static int indexOf( long value ) {
+        if( value < SUB_BUCKETS ) {
+            return ( int ) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = ( int ) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    // the largest value that falls into the bucket
+    static long upperBoundOf( int index ) {
+        if( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowerBound = ( long ) ( SUB_BUCKETS + index % SUB_BUCKETS ) << shift;
+        return lowerBound + ( 1L << shift ) - 1L;
+    }
+
+    public static class Snapshot {
+
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot( String name, long[] counts, long count, long total, long max ) {
+            this.name = name;
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0L ? 0d : ( double ) total / count;
+        }
+
+        /** @param percentile between 0 and 100, reported as the upper bound of its bucket and never above the max */
+        public long getPercentile( double percentile ) {
+            if( count == 0L ) {
+                return 0L;
+            }
+            long rank = Math.max( 1L, ( long ) Math.ceil( percentile / 100d * count ) );
+            long seen = 0L;
+            for( int i = 0; i < counts.length; i++ ) {
+                seen += counts[i];
+                if( seen >= rank ) {
+                    return Math.min( upperBoundOf( i ), max );
+                }
+            }
+            return max;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "%s: count=%d mean=%.0fns p50=%dns p99=%dns p999=%dns max=%dns",
+                                  name,
+                                  count,
+                                  getMean(),
+                                  getPercentile( 50d ),
+                                  getPercentile( 99d ),
+                                  getPercentile( 99.9d ),
+                                  max );
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.denis.ubiq.metrics;
+
+import java.util.*;
+
+/**
+ * Named counters, gauges and latency histograms of the fusion pipeline.
+ * <p>
+ * Metrics are looked up once, when a worker is created, and then updated through the returned instance,
+ * so the hot path never touches the registry. Asking twice for the same name returns the same metric.
+ */
+public class MetricsRegistry {
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    /** The registry shared by the workers, created on first use. */
+    public static MetricsRegistry getDefault() {
+        return RegistryHolder.REGISTRY;
+    }
+
+    public synchronized Counter counter( String name ) {
+        Counter counter = counters.get( name );
+        if( counter == null ) {
+            counters.put( name, counter = new Counter( name ) );
+        }
+        return counter;
+    }
+
+    public synchronized Gauge gauge( String name ) {
+        Gauge gauge = gauges.get( name );
+        if( gauge == null ) {
+            gauges.put( name, gauge = new Gauge( name ) );
+        }
+        return gauge;
+    }
+
+    public LatencyHistogram histogram( String name ) {
+        return histogram( name, 1 );
+    }
+
+    /** @param samplePeriod a power of two, see {@link LatencyHistogram#sample()}; only used when the histogram is created */
+    public synchronized LatencyHistogram histogram( String name, int samplePeriod ) {
+        LatencyHistogram histogram = histograms.get( name );
+        if( histogram == null ) {
+            histograms.put( name, histogram = new LatencyHistogram( name, samplePeriod ) );
+        }
+        return histogram;
+    }
+
+    /** Reads every metric, in registration order. The metrics keep counting while this runs. */
+    public synchronized MetricsSnapshot snapshot() {
+        return new MetricsSnapshot( new ArrayList<>( counters.values() ), new ArrayList<>( gauges.values() ), histograms.values() );
+    }
+
+    private static class RegistryHolder {
+        static final MetricsRegistry REGISTRY = new MetricsRegistry();
+    }
+}
@@ -0,0 +1,65 @@
+package com.denis.ubiq.metrics;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.denis.ubiq.logging.*;
+
+/**
+ * Writes a {@link MetricsRegistry} snapshot to an {@link AsyncLogger} at a fixed rate, one line per metric:
+ * {@code 10:15:02.310, 4523310, Metric(kalman.predict): count=120.0; mean=8512.0; p50=7935.0; p99=20479.0; p999=32767.0}
+ * <p>
+ * Latencies are in nanoseconds and cumulative since the start of the process.
+ */
+public class MetricsReporter extends TimerTask {
+
+    private static final String LABEL = "Metric";
+
+    private final MetricsRegistry registry;
+    private final AsyncLogger logger;
+    private Timer timer;
+
+    public MetricsReporter( MetricsRegistry registry, AsyncLogger logger ) {
+        this.registry = registry;
+        this.logger = logger;
+    }
+
+    /** Reports every period milliseconds on a daemon timer thread, until {@link #cancel()}. */
+    public void start( long period ) {
+        timer = new Timer( "MetricsReporter", true );
+        timer.scheduleAtFixedRate( this, period, period );
+    }
+
+    @Override
+    public boolean cancel() {
+        if( timer != null ) {
+            timer.cancel();
+        }
+        return super.cancel();
+    }
+
+    @Override
+    public void run() {
+        report( registry.snapshot(), System.currentTimeMillis() );
+    }
+
+    public void report( MetricsSnapshot snapshot, long timestamp ) {
+        for( int i = 0; i < snapshot.getCounterCount(); i++ ) {
+            logger.log( LogFormat.COUNTER, LABEL, snapshot.getCounterName( i ), timestamp, snapshot.getCount( i ), 0d, 0d, 0d, 0d );
+        }
+        for( int i = 0; i < snapshot.getGaugeCount(); i++ ) {
+            logger.log( LogFormat.GAUGE, LABEL, snapshot.getGaugeName( i ), timestamp, snapshot.getValue( i ), snapshot.getMaxValue( i ), 0d, 0d, 0d );
+        }
+        for( LatencyHistogram.Snapshot histogram : snapshot.getHistograms() ) {
+            logger.log( LogFormat.HISTOGRAM,
+                        LABEL,
+                        histogram.getName(),
+                        timestamp,
+                        histogram.getCount(),
+                        histogram.getMean(),
+                        histogram.getPercentile( 50d ),
+                        histogram.getPercentile( 99d ),
+                        histogram.getPercentile( 99.9d ) );
+        }
+    }
+}
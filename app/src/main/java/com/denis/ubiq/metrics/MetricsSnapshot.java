@@ -0,0 +1,91 @@
+package com.denis.ubiq.metrics;
+
+import java.util.*;
+
+/**
+ * The values of a {@link MetricsRegistry} at one point in time, copied when the snapshot is taken.
+ */
+public class MetricsSnapshot {
+
+    private final List<Counter> counters;
+    private final long[] counts;
+    private final List<Gauge> gauges;
+    private final long[] values;
+    private final long[] maxValues;
+    private final List<LatencyHistogram.Snapshot> histograms = new ArrayList<>();
+
+    MetricsSnapshot( List<Counter> counters, List<Gauge> gauges, Collection<LatencyHistogram> histograms ) {
+        this.counters = counters;
+        this.counts = new long[counters.size()];
+        for( int i = 0; i < counts.length; i++ ) {
+            counts[i] = counters.get( i ).get();
+        }
+        this.gauges = gauges;
+        this.values = new long[gauges.size()];
+        this.maxValues = new long[gauges.size()];
+        for( int i = 0; i < values.length; i++ ) {
+            values[i] = gauges.get( i ).get();
+            maxValues[i] = gauges.get( i ).getMax();
+        }
+        for( LatencyHistogram histogram : histograms ) {
+            this.histograms.add( histogram.snapshot() );
+        }
+    }
+
+    public int getCounterCount() {
+        return counters.size();
+    }
+
+    public String getCounterName( int index ) {
+        return counters.get( index ).getName();
+    }
+
+    public long getCount( int index ) {
+        return counts[index];
+    }
+
+    public int getGaugeCount() {
+        return gauges.size();
+    }
+
+    public String getGaugeName( int index ) {
+        return gauges.get( index ).getName();
+    }
+
+    public long getValue( int index ) {
+        return values[index];
+    }
+
+    public long getMaxValue( int index ) {
+        return maxValues[index];
+    }
+
+    public List<LatencyHistogram.Snapshot> getHistograms() {
+        return histograms;
+    }
+
+    /** The snapshot of the named histogram, or null if there is none. */
+    public LatencyHistogram.Snapshot getHistogram( String name ) {
+        for( LatencyHistogram.Snapshot histogram : histograms ) {
+            if( histogram.getName().equals( name ) ) {
+                return histogram;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for( int i = 0; i < counts.length; i++ ) {
+            builder.append( getCounterName( i ) ).append( ": count=" ).append( counts[i] ).append( '\n' );
+        }
+        for( int i = 0; i < values.length; i++ ) {
+            builder.append( getGaugeName( i ) ).append( ": value=" ).append( values[i] ).append( " max=" ).append( maxValues[i] ).append( '\n' );
+        }
+        for( LatencyHistogram.Snapshot histogram : histograms ) {
+            builder.append( histogram ).append( '\n' );
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,204 @@
+package com.denis.ubiq.orientation;
+
+/**
+ * Complementary filter of the device orientation on a unit quaternion q = [x, y, z, w], the rotation from
+ * the device to the world frame as in {@link android.hardware.SensorManager#getRotationMatrixFromVector}.
+ * <p>
+ * Gyroscope rates are integrated in place, q = q * dq. The accelerometer/magnetometer orientation pulls
+ * the result back by a slerp towards it, with a weight that only depends on the time since the previous
+ * correction: over every period the gyroscope keeps the given coefficient. There are no Euler angles in
+ * the loop, so nothing degenerates when the device points straight up or down. Nothing is allocated after
+ * construction. Not thread-safe.
+ */
+public class QuaternionComplementaryFilter {
+
+    private static final float EPSILON = 0.000000001f;
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    // below this angle between the two orientations the slerp is replaced by a normalised lerp
+    private static final float SLERP_THRESHOLD = 0.9995f;
+
+    private final double logCoefficient;
+    private final long periodNanos;
+
+    private float x;
+    private float y;
+    private float z;
+    private float w = 1f;
+    private boolean initialized;
+    private long gyroTimestamp;
+    private long correctionTimestamp;
+
+    /**
+     * @param coefficient weight kept by the gyroscope over one period, the rest goes to the accelerometer/magnetometer
+     * @param periodNanos period of the coefficient
+     */
+    public QuaternionComplementaryFilter( float coefficient, long periodNanos ) {
+        this.logCoefficient = Math.log( coefficient );
+        this.periodNanos = periodNanos;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public void reset() {
+        x = y = z = 0f;
+        w = 1f;
+        initialized = false;
+        gyroTimestamp = 0L;
+        correctionTimestamp = 0L;
+    }
+
+    /** Rotates by the angular rates, in rad/s around the device axes, since the previous gyroscope event. */
+    public void integrateGyro( float wx, float wy, float wz, long timestamp ) {
+        long previous = gyroTimestamp;
+        gyroTimestamp = timestamp;
+        if( !initialized || previous == 0L ) {
+            return;
+        }
+
+        float omega = ( float ) Math.sqrt( wx * wx + wy * wy + wz * wz );
+        if( omega < EPSILON ) {
+            return;
+        }
+        float halfTheta = omega * ( timestamp - previous ) * NS2S / 2f;
+        float sin = ( float ) Math.sin( halfTheta ) / omega;
+        float dx = wx * sin;
+        float dy = wy * sin;
+        float dz = wz * sin;
+        float dw = ( float ) Math.cos( halfTheta );
+
+        // q = q * dq, the rotation is around the device axes
+        float qx = w * dx + x * dw + y * dz - z * dy;
+        float qy = w * dy - x * dz + y * dw + z * dx;
+        float qz = w * dz + x * dy - y * dx + z * dw;
+        float qw = w * dw - x * dx - y * dy - z * dz;
+        set( qx, qy, qz, qw );
+    }
+
+    /**
+     * Pulls the orientation towards the one measured by the accelerometer and magnetometer.
+     *
+     * @param rotationMatrix row-major 3x3 rotation from the device to the world frame, as filled by
+     *                       {@link android.hardware.SensorManager#getRotationMatrix}
+     */
+    public void correct( float[] rotationMatrix, long timestamp ) {
+        float[] r = rotationMatrix;
+        float mx;
+        float my;
+        float mz;
+        float mw;
+        // Shepperd's method, divides by the largest of the four components
+        float trace = r[0] + r[4] + r[8];
+        if( trace > 0f ) {
+            float s = ( float ) Math.sqrt( trace + 1f ) * 2f;
+            mw = s / 4f;
+            mx = ( r[7] - r[5] ) / s;
+            my = ( r[2] - r[6] ) / s;
+            mz = ( r[3] - r[1] ) / s;
+        } else if( r[0] > r[4] && r[0] > r[8] ) {
+            float s = ( float ) Math.sqrt( 1f + r[0] - r[4] - r[8] ) * 2f;
+            mw = ( r[7] - r[5] ) / s;
+            mx = s / 4f;
+            my = ( r[1] + r[3] ) / s;
+            mz = ( r[2] + r[6] ) / s;
+        } else if( r[4] > r[8] ) {
+            float s = ( float ) Math.sqrt( 1f + r[4] - r[0] - r[8] ) * 2f;
+            mw = ( r[2] - r[6] ) / s;
+            mx = ( r[1] + r[3] ) / s;
+            my = s / 4f;
+            mz = ( r[5] + r[7] ) / s;
+        } else {
+            float s = ( float ) Math.sqrt( 1f + r[8] - r[0] - r[4] ) * 2f;
+            mw = ( r[3] - r[1] ) / s;
+            mx = ( r[2] + r[6] ) / s;
+            my = ( r[5] + r[7] ) / s;
+            mz = s / 4f;
+        }
+
+        long previous = correctionTimestamp;
+        correctionTimestamp = timestamp;
+        if( !initialized ) {
+            set( mx, my, mz, mw );
+            initialized = true;
+            return;
+        }
+        if( previous == 0L || timestamp <= previous ) {
+            return;
+        }
+        float t = ( float ) ( 1d - Math.exp( logCoefficient * ( timestamp - previous ) / periodNanos ) );
+        slerp( mx, my, mz, mw, t );
+    }
+
+    // q = slerp(q, m, t) along the shorter arc
+    private void slerp( float mx, float my, float mz, float mw, float t ) {
+        float dot = x * mx + y * my + z * mz + w * mw;
+        if( dot < 0f ) {
+            mx = -mx;
+            my = -my;
+            mz = -mz;
+            mw = -mw;
+            dot = -dot;
+        }
+        float from;
+        float to;
+        if( dot > SLERP_THRESHOLD ) {
+            from = 1f - t;
+            to = t;
+        } else {
+            float theta = ( float ) Math.acos( dot );
+            float sin = ( float ) Math.sin( theta );
+            from = ( float ) Math.sin( ( 1f - t ) * theta ) / sin;
+            to = ( float ) Math.sin( t * theta ) / sin;
+        }
+        set( from * x + to * mx, from * y + to * my, from * z + to * mz, from * w + to * mw );
+    }
+
+    // keeps q a unit quaternion against rounding
+    private void set( float qx, float qy, float qz, float qw ) {
+        float norm = ( float ) Math.sqrt( qx * qx + qy * qy + qz * qz + qw * qw );
+        x = qx / norm;
+        y = qy / norm;
+        z = qz / norm;
+        w = qw / norm;
+    }
+
+    /** Writes [x, y, z, w]. */
+    public float[] getQuaternion( float[] out ) {
+        out[0] = x;
+        out[1] = y;
+        out[2] = z;
+        out[3] = w;
+        return out;
+    }
+
+    /** Writes the row-major 3x3 rotation matrix of the orientation. */
+    public float[] getRotationMatrix( float[] out ) {
+        float xx = x * x, yy = y * y, zz = z * z;
+        float xy = x * y, xz = x * z, yz = y * z;
+        float xw = x * w, yw = y * w, zw = z * w;
+        out[0] = 1f - 2f * ( yy + zz );
+        out[1] = 2f * ( xy - zw );
+        out[2] = 2f * ( xz + yw );
+        out[3] = 2f * ( xy + zw );
+        out[4] = 1f - 2f * ( xx + zz );
+        out[5] = 2f * ( yz - xw );
+        out[6] = 2f * ( xz - yw );
+        out[7] = 2f * ( yz + xw );
+        out[8] = 1f - 2f * ( xx + yy );
+        return out;
+    }
+
+    /** Writes [azimuth, pitch, roll] in radians, as {@link android.hardware.SensorManager#getOrientation} would. */
+    public float[] getOrientation( float[] out ) {
+        float r1 = 2f * ( x * y - z * w );
+        float r4 = 1f - 2f * ( x * x + z * z );
+        float r6 = 2f * ( x * z - y * w );
+        float r7 = 2f * ( y * z + x * w );
+        float r8 = 1f - 2f * ( x * x + y * y );
+        out[0] = ( float ) Math.atan2( r1, r4 );
+        out[1] = ( float ) Math.asin( -Math.max( -1f, Math.min( 1f, r7 ) ) );
+        out[2] = ( float ) Math.atan2( -r6, r8 );
+        return out;
+    }
+}
@@ -0,0 +1,151 @@
+package com.denis.ubiq.projection;
+
+/**
+ * Local north/east projection in meters around an anchor point on the WGS84 ellipsoid.
+ * <p>
+ * The scale factors are computed once per anchor, so a conversion is a few multiplies. The east scale
+ * follows the latitude to first order, which keeps the error in the centimeter range within
+ * {@link #DEFAULT_MAX_ANCHOR_DISTANCE} of the anchor. Callers move the anchor with
+ * {@link #moveOrigin(double, double)} once a position gets farther than that, see {@link #isFar(double, double)}.
+ */
+public class LocalTangentPlane {
+
+    /** Told when the anchor moves, so that positions kept in the old frame can follow. */
+    public interface OriginListener {
+
+        /** The new origin is at north, east in the old frame, positions have to be shifted by -north, -east. */
+        void onOriginMoved( double north, double east );
+    }
+
+    public static final double DEFAULT_MAX_ANCHOR_DISTANCE = 10000d;
+
+    private static final double SEMI_MAJOR_AXIS = 6378137d;
+    private static final double ECCENTRICITY2 = 6.69437999014e-3;
+
+    private final double maxAnchorDistance2;
+
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLatitude;
+    private double metersPerDegreeLongitude;
+    private double degreesPerMeterLatitude;
+    // relative change of the east scale per degree of latitude away from the anchor
+    private double longitudeScaleSlope;
+    private OriginListener originListener;
+
+    public LocalTangentPlane( double latitude, double longitude ) {
+        this( latitude, longitude, DEFAULT_MAX_ANCHOR_DISTANCE );
+    }
+
+    public LocalTangentPlane( double latitude, double longitude, double maxAnchorDistance ) {
+        this.maxAnchorDistance2 = maxAnchorDistance * maxAnchorDistance;
+        anchor( latitude, longitude );
+    }
+
+    public void anchor( double latitude, double longitude ) {
+        double phi = Math.toRadians( latitude );
+        double sin = Math.sin( phi );
+        double cos = Math.cos( phi );
+        double w2 = 1d - ECCENTRICITY2 * sin * sin;
+        double w = Math.sqrt( w2 );
+        // meridional and prime vertical radii of curvature
+        double m = SEMI_MAJOR_AXIS * ( 1d - ECCENTRICITY2 ) / ( w2 * w );
+        double n = SEMI_MAJOR_AXIS / w;
+
+        this.originLatitude = latitude;
+        this.originLongitude = longitude;
+        this.metersPerDegreeLatitude = Math.toRadians( m );
+        this.metersPerDegreeLongitude = Math.toRadians( n * cos );
+        this.degreesPerMeterLatitude = 1d / metersPerDegreeLatitude;
+        this.longitudeScaleSlope = -Math.toRadians( sin / cos );
+    }
+
+    /** Anchors the plane at a saved origin, keeping the current scales when it is the same one. */
+    public void setOrigin( double latitude, double longitude ) {
+        if( latitude != originLatitude || longitude != originLongitude ) {
+            double north = toNorth( latitude );
+            double east = toEast( latitude, longitude );
+            anchor( latitude, longitude );
+            notifyOriginMoved( north, east );
+        }
+    }
+
+    /** Moves the anchor to the given local point. Positions in the old frame have to be shifted by -north, -east. */
+    public void moveOrigin( double north, double east ) {
+        anchor( toLatitude( north ), toLongitude( north, east ) );
+        notifyOriginMoved( north, east );
+    }
+
+    /** Called by {@link #moveOrigin} and {@link #setOrigin}, not when the plane is first anchored. */
+    public void setOriginListener( OriginListener originListener ) {
+        this.originListener = originListener;
+    }
+
+    private void notifyOriginMoved( double north, double east ) {
+        if( originListener != null ) {
+            originListener.onOriginMoved( north, east );
+        }
+    }
+
+    public boolean isFar( double north, double east ) {
+        return north * north + east * east > maxAnchorDistance2;
+    }
+
+    public double toNorth( double latitude ) {
+        return ( latitude - originLatitude ) * metersPerDegreeLatitude;
+    }
+
+    public double toEast( double latitude, double longitude ) {
+        return wrap( longitude - originLongitude ) * eastScale( latitude - originLatitude );
+    }
+
+    public double toLatitude( double north ) {
+        return originLatitude + north * degreesPerMeterLatitude;
+    }
+
+    public double toLongitude( double north, double east ) {
+        return wrap( originLongitude + east / eastScale( north * degreesPerMeterLatitude ) );
+    }
+
+    /** Projects count points, the output arrays may be the input ones. */
+    public void toLocal( double[] latitudes, double[] longitudes, double[] north, double[] east, int count ) {
+        for( int i = 0; i < count; i++ ) {
+            double deltaLatitude = latitudes[i] - originLatitude;
+            double deltaLongitude = wrap( longitudes[i] - originLongitude );
+            north[i] = deltaLatitude * metersPerDegreeLatitude;
+            east[i] = deltaLongitude * eastScale( deltaLatitude );
+        }
+    }
+
+    /** Inverse of {@link #toLocal}, the output arrays may be the input ones. */
+    public void toGeodetic( double[] north, double[] east, double[] latitudes, double[] longitudes, int count ) {
+        for( int i = 0; i < count; i++ ) {
+            double deltaLatitude = north[i] * degreesPerMeterLatitude;
+            double longitude = wrap( originLongitude + east[i] / eastScale( deltaLatitude ) );
+            latitudes[i] = originLatitude + deltaLatitude;
+            longitudes[i] = longitude;
+        }
+    }
+
+    public double getOriginLatitude() {
+        return originLatitude;
+    }
+
+    public double getOriginLongitude() {
+        return originLongitude;
+    }
+
+    private double eastScale( double deltaLatitude ) {
+        return metersPerDegreeLongitude * ( 1d + longitudeScaleSlope * deltaLatitude );
+    }
+
+    private static double wrap( double longitude ) {
+        if( longitude >= 180d ) {
+            return longitude - 360d;
+        }
+        if( longitude < -180d ) {
+            return longitude + 360d;
+        }
+        return longitude;
+    }
+}
@@ -0,0 +1,63 @@
+package com.denis.ubiq.recording;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of a binary session recording.
+ * <pre>
+ * header, 24 bytes:  int magic 'UBIQ' | short version | short reserved | long base timestamp | long record count
+ * record head:       byte type | byte field count | short reserved | int timestamp delta
+ * SENSOR, 20 bytes:  head | 3 x float fields
+ * GPS, 56 bytes:     head | 6 x double fields
+ * STATE:             head | field count x double fields
+ * </pre>
+ * Each type has its own width, the sensor records that make up most of a recording keep the float
+ * precision of the sensors. Timestamps are in milliseconds. The delta is taken from the previous record,
+ * or from the base timestamp for the first one, and may be negative for late GPS fixes. A record count of
+ * zero means the writer was not closed; readers then stop at the first record of type {@link #END}.
+ */
+public final class SessionRecordingFormat {
+
+    public static final int MAGIC = 0x55424951;
+    public static final short VERSION = 2;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int HEADER_SIZE = 24;
+    public static final int HEAD_SIZE = 8;
+    public static final int SENSOR_RECORD_SIZE = HEAD_SIZE + 3 * 4;
+    public static final int GPS_RECORD_SIZE = HEAD_SIZE + 6 * 8;
+    public static final int MAX_FIELDS = 6;
+    public static final int MAX_RECORD_SIZE = HEAD_SIZE + MAX_FIELDS * 8;
+
+    public static final byte END = 0;
+    /** eastAcceleration, northAcceleration, noise */
+    public static final byte SENSOR = 1;
+    /** latitude, longitude, altitude, speed, course, noise */
+    public static final byte GPS = 2;
+    /** the state estimation of the filter, 4 or 6 fields */
+    public static final byte STATE = 3;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int BASE_TIMESTAMP_OFFSET = 8;
+    static final int RECORD_COUNT_OFFSET = 16;
+
+    static final int TYPE_OFFSET = 0;
+    static final int FIELD_COUNT_OFFSET = 1;
+    static final int DELTA_OFFSET = 4;
+    static final int FIELDS_OFFSET = HEAD_SIZE;
+
+    private SessionRecordingFormat() { }
+
+    /** Size in bytes of a record, head included. */
+    public static int recordSize( byte type, int fieldCount ) {
+        switch( type ) {
+            case SENSOR:
+                return SENSOR_RECORD_SIZE;
+            case GPS:
+                return GPS_RECORD_SIZE;
+            default:
+                return HEAD_SIZE + 8 * fieldCount;
+        }
+    }
+}
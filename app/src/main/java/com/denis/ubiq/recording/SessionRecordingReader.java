@@ -0,0 +1,132 @@
+package com.denis.ubiq.recording;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.denis.ubiq.items.*;
+
+import static com.denis.ubiq.recording.SessionRecordingFormat.*;
+
+/**
+ * Reads a session recording in place from a read-only mapping of the file.
+ * <p>
+ * The cursor decodes fields straight from the mapping as they are asked for; nothing is copied
+ * or allocated per record.
+ * <pre>
+ * while( reader.next() ) {
+ *     if( reader.getType() == SessionRecordingFormat.GPS ) {
+ *         reader.getGpsItem( gpsItem );
+ *     }
+ * }
+ * </pre>
+ */
+public class SessionRecordingReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long recordCount;
+
+    private long index = -1;
+    private int offset;
+    private int nextOffset = HEADER_SIZE;
+    private long timestamp;
+
+    public SessionRecordingReader( File file ) throws IOException {
+        this.file = new RandomAccessFile( file, "r" );
+        FileChannel channel = this.file.getChannel();
+        long size = channel.size();
+        if( size > Integer.MAX_VALUE ) {
+            this.file.close();
+            throw new IOException( "Recording too large to map: " + size );
+        }
+        if( size < HEADER_SIZE ) {
+            this.file.close();
+            throw new IOException( "Not a session recording: " + file );
+        }
+
+        buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+        buffer.order( BYTE_ORDER );
+        if( buffer.getInt( MAGIC_OFFSET ) != MAGIC ) {
+            this.file.close();
+            throw new IOException( "Not a session recording: " + file );
+        }
+        if( buffer.getShort( VERSION_OFFSET ) != VERSION ) {
+            this.file.close();
+            throw new IOException( "Unsupported recording version " + buffer.getShort( VERSION_OFFSET ) );
+        }
+
+        long count = buffer.getLong( RECORD_COUNT_OFFSET );
+        recordCount = count > 0 ? count : ( size - HEADER_SIZE ) / SENSOR_RECORD_SIZE;
+        timestamp = buffer.getLong( BASE_TIMESTAMP_OFFSET );
+    }
+
+    /** Moves to the next record, returns false at the end of the recording. */
+    public boolean next() {
+        if( index + 1 >= recordCount || nextOffset + HEAD_SIZE > buffer.limit() ) {
+            return false;
+        }
+        byte type = buffer.get( nextOffset + TYPE_OFFSET );
+        if( type == END ) {
+            // the writer was not closed, the rest of the last region is empty
+            return false;
+        }
+        int size = recordSize( type, buffer.get( nextOffset + FIELD_COUNT_OFFSET ) );
+        if( nextOffset + size > buffer.limit() ) {
+            return false;
+        }
+        index++;
+        offset = nextOffset;
+        nextOffset += size;
+        timestamp += buffer.getInt( offset + DELTA_OFFSET );
+        return true;
+    }
+
+    /** Number of records, an upper bound if the writer was not closed. */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public byte getType() {
+        return buffer.get( offset + TYPE_OFFSET );
+    }
+
+    public int getFieldCount() {
+        return buffer.get( offset + FIELD_COUNT_OFFSET );
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getField( int field ) {
+        if( getType() == SENSOR ) {
+            return buffer.getFloat( offset + FIELDS_OFFSET + 4 * field );
+        }
+        return buffer.getDouble( offset + FIELDS_OFFSET + 8 * field );
+    }
+
+    public SensorItem getSensorItem( SensorItem item ) {
+        item.eastAcceleration = getField( 0 );
+        item.northAcceleration = getField( 1 );
+        item.positionNoise = ( float ) getField( 2 );
+        item.timestamp = timestamp;
+        return item;
+    }
+
+    public GpsItem getGpsItem( GpsItem item ) {
+        item.latitude = getField( 0 );
+        item.longitude = getField( 1 );
+        item.altitude = getField( 2 );
+        item.speed = getField( 3 );
+        item.course = getField( 4 );
+        item.positionNoise = getField( 5 );
+        item.timestamp = timestamp;
+        return item;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,125 @@
+package com.denis.ubiq.recording;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.denis.ubiq.items.*;
+
+import static com.denis.ubiq.recording.SessionRecordingFormat.*;
+
+/**
+ * Appends records to a new session recording through memory-mapped regions of the file.
+ * <p>
+ * Writing a record is a handful of stores into the current region; a new region of {@link #REGION_SIZE}
+ * bytes is mapped when the next record does not fit. Not thread-safe, a single thread has to do all the
+ * writing.
+ */
+public class SessionRecordingWriter implements Closeable {
+
+    public static final int REGION_SIZE = 1 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer region;
+    // file position of the region, and of the next record
+    private long regionPosition;
+    private long position = HEADER_SIZE;
+
+    private long recordCount;
+    private long lastTimestamp;
+
+    public SessionRecordingWriter( File file ) throws IOException {
+        this.file = new RandomAccessFile( file, "rw" );
+        this.file.setLength( 0 );
+        this.channel = this.file.getChannel();
+
+        header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+        header.order( BYTE_ORDER );
+        header.putInt( MAGIC_OFFSET, MAGIC );
+        header.putShort( VERSION_OFFSET, VERSION );
+    }
+
+    public void writeSensor( SensorItem item ) throws IOException {
+        writeSensor( item.eastAcceleration, item.northAcceleration, item.positionNoise, item.timestamp );
+    }
+
+    public void writeGps( GpsItem item ) throws IOException {
+        writeGps( item.latitude, item.longitude, item.altitude, item.speed, item.course, item.positionNoise, item.timestamp );
+    }
+
+    public void writeSensor( double eastAcceleration, double northAcceleration, double noise, long timestamp ) throws IOException {
+        int offset = begin( SENSOR, 3, timestamp );
+        region.putFloat( offset, ( float ) eastAcceleration );
+        region.putFloat( offset + 4, ( float ) northAcceleration );
+        region.putFloat( offset + 8, ( float ) noise );
+    }
+
+    public void writeGps( double latitude, double longitude, double altitude, double speed, double course, double noise, long timestamp )
+        throws IOException {
+        int offset = begin( GPS, 6, timestamp );
+        region.putDouble( offset, latitude );
+        region.putDouble( offset + 8, longitude );
+        region.putDouble( offset + 16, altitude );
+        region.putDouble( offset + 24, speed );
+        region.putDouble( offset + 32, course );
+        region.putDouble( offset + 40, noise );
+    }
+
+    /** Writes every field of the state, which has to fit in {@link SessionRecordingFormat#MAX_FIELDS}. */
+    public void writeState( double[] stateEstimation, long timestamp ) throws IOException {
+        int length = stateEstimation.length;
+        if( length > MAX_FIELDS ) {
+            throw new IllegalArgumentException( "State of " + length + " fields, a record holds at most " + MAX_FIELDS );
+        }
+        int offset = begin( STATE, length, timestamp );
+        for( int i = 0; i < length; i++ ) {
+            region.putDouble( offset + 8 * i, stateEstimation[i] );
+        }
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /** Writes the record count, trims the file to the records written and closes it. */
+    @Override
+    public void close() throws IOException {
+        header.putLong( RECORD_COUNT_OFFSET, recordCount );
+        header.force();
+        if( region != null ) {
+            region.force();
+        }
+        channel.truncate( position );
+        file.close();
+    }
+
+    // writes the record head and returns the offset of its first field in the region
+    private int begin( byte type, int fieldCount, long timestamp ) throws IOException {
+        if( recordCount == 0 ) {
+            header.putLong( BASE_TIMESTAMP_OFFSET, timestamp );
+            lastTimestamp = timestamp;
+        }
+        long delta = timestamp - lastTimestamp;
+        if( delta < Integer.MIN_VALUE || delta > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Timestamp delta out of range: " + delta );
+        }
+
+        int size = recordSize( type, fieldCount );
+        if( region == null || position + size > regionPosition + REGION_SIZE ) {
+            regionPosition = position;
+            region = channel.map( FileChannel.MapMode.READ_WRITE, regionPosition, REGION_SIZE );
+            region.order( BYTE_ORDER );
+        }
+        int offset = ( int ) ( position - regionPosition );
+        region.put( offset + TYPE_OFFSET, type );
+        region.put( offset + FIELD_COUNT_OFFSET, ( byte ) fieldCount );
+        region.putInt( offset + DELTA_OFFSET, ( int ) delta );
+
+        lastTimestamp = timestamp;
+        position += size;
+        recordCount++;
+        return offset + FIELDS_OFFSET;
+    }
+}
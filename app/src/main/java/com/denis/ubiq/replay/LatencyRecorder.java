@@ -0,0 +1,69 @@
+package com.denis.ubiq.replay;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every recorded latency, in nanoseconds, to report exact percentiles at the end of a replay.
+ */
+public class LatencyRecorder {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private long total;
+    private boolean sorted = true;
+
+    public void record( long latency ) {
+        if( count == latencies.length ) {
+            latencies = Arrays.copyOf( latencies, count * 2 );
+        }
+        latencies[count++] = latency;
+        total += latency;
+        sorted = false;
+    }
+
+    public void merge( LatencyRecorder other ) {
+        if( count + other.count > latencies.length ) {
+            latencies = Arrays.copyOf( latencies, Math.max( latencies.length * 2, count + other.count ) );
+        }
+        System.arraycopy( other.latencies, 0, latencies, count, other.count );
+        count += other.count;
+        total += other.total;
+        sorted = false;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0d : ( double ) total / count;
+    }
+
+    /** @param percentile between 0 and 100 */
+    public long getPercentile( double percentile ) {
+        if( count == 0 ) {
+            return 0L;
+        }
+        if( !sorted ) {
+            Arrays.sort( latencies, 0, count );
+            sorted = true;
+        }
+        int index = ( int ) Math.ceil( percentile / 100d * count ) - 1;
+        return latencies[Math.max( 0, Math.min( count - 1, index ) )];
+    }
+
+    public long getMax() {
+        return getPercentile( 100d );
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "count=%d mean=%.0fns p50=%dns p99=%dns p999=%dns max=%dns",
+                              count,
+                              getMean(),
+                              getPercentile( 50d ),
+                              getPercentile( 99d ),
+                              getPercentile( 99.9d ),
+                              getMax() );
+    }
+}
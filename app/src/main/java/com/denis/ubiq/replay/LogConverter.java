@@ -0,0 +1,40 @@
+package com.denis.ubiq.replay;
+
+import java.io.*;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.recording.SessionRecordingWriter;
+
+/**
+ * Converts the sensor and GPS lines of a text log into a binary session recording.
+ * <pre>
+ * java com.denis.ubiq.replay.LogConverter session.txt session.ubiq
+ * </pre>
+ */
+public class LogConverter {
+
+    public static void main( String[] args ) throws IOException {
+        if( args.length < 2 ) {
+            System.err.println( "usage: LogConverter <log file> <recording file>" );
+            System.exit( 1 );
+        }
+        try( BufferedReader reader = new BufferedReader( new FileReader( args[0] ) );
+             SessionRecordingWriter writer = new SessionRecordingWriter( new File( args[1] ) ) ) {
+            System.out.println( convert( reader, writer ) + " records written" );
+        }
+    }
+
+    public static long convert( BufferedReader reader, SessionRecordingWriter writer ) throws IOException {
+        LogRecordParser parser = new LogRecordParser();
+        String line;
+        while( ( line = reader.readLine() ) != null ) {
+            TimestampItem item = parser.parse( line );
+            if( item instanceof SensorItem ) {
+                writer.writeSensor( ( SensorItem ) item );
+            } else if( item instanceof GpsItem ) {
+                writer.writeGps( ( GpsItem ) item );
+            }
+        }
+        return writer.getRecordCount();
+    }
+}
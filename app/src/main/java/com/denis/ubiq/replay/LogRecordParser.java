@@ -0,0 +1,67 @@
+package com.denis.ubiq.replay;
+
+import com.denis.ubiq.items.*;
+
+/**
+ * Parses the sensor and GPS lines written by {@link com.denis.ubiq.kalman.KalmanFilterWorker} through
+ * {@link com.denis.ubiq.logging.AsyncLogger}, with or without a logcat prefix:
+ * <pre>
+ * 10:15:02.310, 4523310, LinearAcceleration: eastAcceleration=0.12 northAcceleration=-0.03 noise=4.0;
+ * 10:15:02.402, 4523120, GPS(gps): latitude=42.69; longitude=23.32; accuracy=4.0; speed=1.2; bearing=87.0
+ * </pre>
+ * Every other line is ignored. The returned items are reused between calls.
+ */
+public class LogRecordParser {
+
+    private static final String SENSOR_TAG = ", LinearAcceleration: ";
+    private static final String GPS_TAG = ", GPS(";
+
+    private final SensorItem sensorItem = new SensorItem( 0d, 0d, 0F, 0L );
+    private final GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+
+    /** Returns the parsed item, or null if the line is neither a sensor nor a GPS record. */
+    public TimestampItem parse( String line ) {
+        int index = line.indexOf( SENSOR_TAG );
+        if( index >= 0 ) {
+            sensorItem.timestamp = parseTimestamp( line, index );
+            sensorItem.eastAcceleration = parseField( line, "eastAcceleration=", index );
+            sensorItem.northAcceleration = parseField( line, "northAcceleration=", index );
+            sensorItem.positionNoise = ( float ) parseField( line, "noise=", index );
+            return sensorItem;
+        }
+
+        index = line.indexOf( GPS_TAG );
+        if( index >= 0 ) {
+            gpsItem.timestamp = parseTimestamp( line, index );
+            gpsItem.latitude = parseField( line, "latitude=", index );
+            gpsItem.longitude = parseField( line, "longitude=", index );
+            gpsItem.altitude = 0d;
+            gpsItem.positionNoise = parseField( line, "accuracy=", index );
+            gpsItem.speed = parseField( line, "speed=", index );
+            gpsItem.course = parseField( line, "bearing=", index );
+            return gpsItem;
+        }
+        return null;
+    }
+
+    private static long parseTimestamp( String line, int end ) {
+        int start = line.lastIndexOf( ", ", end - 1 );
+        if( start < 0 ) {
+            throw new IllegalArgumentException( "Missing timestamp: " + line );
+        }
+        return Long.parseLong( line.substring( start + 2, end ).trim() );
+    }
+
+    private static double parseField( String line, String name, int from ) {
+        int start = line.indexOf( name, from );
+        if( start < 0 ) {
+            throw new IllegalArgumentException( "Missing " + name + " " + line );
+        }
+        start += name.length();
+        int end = start;
+        while( end < line.length() && line.charAt( end ) != ';' && line.charAt( end ) != ' ' ) {
+            end++;
+        }
+        return Double.parseDouble( line.substring( start, end ) );
+    }
+}
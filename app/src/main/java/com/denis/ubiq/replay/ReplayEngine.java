@@ -0,0 +1,261 @@
+package com.denis.ubiq.replay;
+
+import java.io.*;
+
+import com.denis.ubiq.ingestion.*;
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.kalman.*;
+import com.denis.ubiq.recording.*;
+
+/**
+ * Drives a filter engine with recorded sensor and GPS records on a plain JVM, as fast as the CPU allows.
+ * <p>
+ * Records go through the same buffers, watermark merge and {@link LazyKalmanFilterModel} as on the device,
+ * configured as KalmanFilterWorker configures them: sensor items are pre-integrated, the filter is only
+ * advanced for the estimates that are shown, and late GPS fixes are rolled back into place rather than
+ * held back, and every fix steps the fixed-lag smoother. The clock is simulated: sensor items are timestamped on arrival, so the latest sensor
+ * timestamp stands in for the current time. Every sensor item and GPS fix is timed. Text logs and binary
+ * {@link SessionRecordingFormat} recordings, with the .ubiq extension, are both accepted.
+ * <pre>
+ * java com.denis.ubiq.replay.ReplayEngine session.txt|session.ubiq [COMMONS_MATH|KERNEL|KERNEL_STEADY_STATE|UD_FLOAT|DECOUPLED|DECOUPLED_3D] [GPS history capacity]
+ * </pre>
+ * A history capacity of 0 holds GPS fixes back for the maximum lateness instead, as the device did before.
+ */
+public class ReplayEngine {
+
+    // same as Constants.MAX_GPS_LATENESS, GPS_HISTORY_CAPACITY, SMOOTHING_LAG, PRE_INTEGRATION_WINDOW and LAZY_PREDICTION on the device
+    private static final long MAX_GPS_LATENESS = 250;
+    private static final int DEFAULT_GPS_HISTORY_CAPACITY = 1024;
+    private static final int SMOOTHING_LAG = 5;
+    private static final long PRE_INTEGRATION_WINDOW = 100;
+    private static final boolean LAZY_PREDICTION = true;
+    // same as KalmanFilterWorker.predictionStep and the rate MapActivity starts it with
+    private static final long PREDICTION_STEP = 5;
+    private static final long RATE = 3;
+    private static final String RECORDING_EXTENSION = ".ubiq";
+    private static final int BUFFER_CAPACITY = 4096;
+    private static final int SENSOR_SOURCE = 0;
+    private static final int GPS_SOURCE = 1;
+
+    private final KalmanFilterEngine engine;
+    private final int historyCapacity;
+    private final SensorItemBuffer sensorItems = new SensorItemBuffer( BUFFER_CAPACITY );
+    private final GpsItemBuffer gpsItems = new GpsItemBuffer( BUFFER_CAPACITY );
+    private final TimestampMerger merger = new TimestampMerger( sensorItems, gpsItems );
+    private final SensorItem sensorItem = new SensorItem( 0d, 0d, 0F, 0L );
+    private final GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+
+    private final LatencyRecorder predictLatency = new LatencyRecorder();
+    private final LatencyRecorder correctLatency = new LatencyRecorder();
+    private final double[] smoothedState = new double[4];
+
+    private LazyKalmanFilterModel model;
+    private long lastStepTimestamp;
+    private long stepCounter = 1;
+    private long clock = Long.MIN_VALUE;
+    private long records;
+    private long skipped;
+    private long smoothed;
+    private long elapsed;
+
+    /** Configured as on the device. */
+    public ReplayEngine( KalmanFilterEngine engine ) {
+        this( engine, DEFAULT_GPS_HISTORY_CAPACITY );
+    }
+
+    /** @param historyCapacity records kept to roll back for late GPS fixes, 0 holds the fixes back instead */
+    public ReplayEngine( KalmanFilterEngine engine, int historyCapacity ) {
+        this.engine = engine;
+        this.historyCapacity = historyCapacity;
+        this.merger.setMaxLateness( GPS_SOURCE, historyCapacity > 0 ? 0L : MAX_GPS_LATENESS );
+    }
+
+    public static void main( String[] args ) throws IOException {
+        if( args.length < 1 ) {
+            System.err.println( "usage: ReplayEngine <log file|recording> [engine] [GPS history capacity]" );
+            System.exit( 1 );
+        }
+        KalmanFilterEngine engine = args.length > 1 ? KalmanFilterEngine.valueOf( args[1] ) : KalmanFilterEngine.COMMONS_MATH;
+        int historyCapacity = args.length > 2 ? Integer.parseInt( args[2] ) : DEFAULT_GPS_HISTORY_CAPACITY;
+
+        ReplayEngine replayEngine = new ReplayEngine( engine, historyCapacity );
+        if( args[0].endsWith( RECORDING_EXTENSION ) ) {
+            try( SessionRecordingReader reader = new SessionRecordingReader( new File( args[0] ) ) ) {
+                replayEngine.replay( reader );
+            }
+        } else {
+            try( BufferedReader reader = new BufferedReader( new FileReader( args[0] ) ) ) {
+                replayEngine.replay( reader );
+            }
+        }
+        replayEngine.printReport( System.out );
+    }
+
+    /** Replays every sensor and GPS line of a log, see {@link LogRecordParser}. */
+    public void replay( BufferedReader reader ) throws IOException {
+        long start = System.nanoTime();
+        LogRecordParser parser = new LogRecordParser();
+        String line;
+        while( ( line = reader.readLine() ) != null ) {
+            TimestampItem item = parser.parse( line );
+            if( item != null ) {
+                offer( item );
+            }
+        }
+        finish();
+        elapsed += System.nanoTime() - start;
+    }
+
+    /** Replays the sensor and GPS records of a binary recording, the filter states in it are ignored. */
+    public void replay( SessionRecordingReader reader ) {
+        long start = System.nanoTime();
+        SensorItem sensor = new SensorItem( 0d, 0d, 0F, 0L );
+        GpsItem gps = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+        while( reader.next() ) {
+            byte type = reader.getType();
+            if( type == SessionRecordingFormat.SENSOR ) {
+                offer( reader.getSensorItem( sensor ) );
+            } else if( type == SessionRecordingFormat.GPS ) {
+                offer( reader.getGpsItem( gps ) );
+            }
+        }
+        finish();
+        elapsed += System.nanoTime() - start;
+    }
+
+    /** Feeds a single record, in the order it arrived on the device. */
+    public void offer( TimestampItem item ) {
+        records++;
+        if( item instanceof SensorItem ) {
+            SensorItem sensor = ( SensorItem ) item;
+            while( !sensorItems.offer( sensor.eastAcceleration, sensor.northAcceleration, sensor.positionNoise, sensor.timestamp ) ) {
+                drain( Long.MAX_VALUE );
+            }
+            clock = Math.max( clock, sensor.timestamp );
+        } else {
+            GpsItem gps = ( GpsItem ) item;
+            while( !gpsItems.offer( gps.latitude, gps.longitude, gps.altitude, gps.speed, gps.course, gps.positionNoise, gps.timestamp ) ) {
+                drain( Long.MAX_VALUE );
+            }
+        }
+        drain( clock );
+    }
+
+    /** Releases the records still held back for late GPS fixes. */
+    public void finish() {
+        drain( Long.MAX_VALUE );
+    }
+
+    private void drain( long now ) {
+        int source;
+        while( ( source = merger.next( now ) ) >= 0 ) {
+            if( source == SENSOR_SOURCE ) {
+                predict( sensorItems.poll( sensorItem ) );
+            } else {
+                correct( gpsItems.poll( gpsItem ) );
+            }
+        }
+    }
+
+    private void predict( SensorItem item ) {
+        if( model == null ) {
+            // nothing to predict from until the first fix
+            skipped++;
+            return;
+        }
+        long start = System.nanoTime();
+        model.addInput( item );
+        if( item.timestamp - lastStepTimestamp >= PRE_INTEGRATION_WINDOW ) {
+            lastStepTimestamp = item.timestamp;
+            onPredictionStep();
+        }
+        predictLatency.record( System.nanoTime() - start );
+    }
+
+    // as KalmanFilterWorker.onPredictionStep, without the map and the log
+    private void onPredictionStep() {
+        boolean isForetell = ++stepCounter > PREDICTION_STEP;
+        if( !isForetell && LAZY_PREDICTION ) {
+            return;
+        }
+        model.getStateEstimation();
+    }
+
+    private void correct( GpsItem item ) {
+        if( model == null ) {
+            model = new LazyKalmanFilterModel( engine.create( item ), item.timestamp, historyCapacity, SMOOTHING_LAG );
+            lastStepTimestamp = item.timestamp;
+            return;
+        }
+        long start = System.nanoTime();
+        model.correct( item );
+        correctLatency.record( System.nanoTime() - start );
+        // as KalmanFilterWorker.logSmoothed
+        FixedLagSmoother smoother = model.getSmoother();
+        if( smoother.isReady() ) {
+            smoother.getSmoothedState( smoothedState );
+            smoothed++;
+        }
+        if( stepCounter >= RATE ) {
+            stepCounter = 0;
+        }
+    }
+
+    /** The state once the pending sensor items are applied, null before the first fix. */
+    public double[] getStateEstimation() {
+        return model != null ? model.getStateEstimation() : null;
+    }
+
+    /** The last smoothed [north, east, vNorth, vEast], in the frame of the filter, valid once {@link #getSmoothed()} is positive. */
+    public double[] getSmoothedState() {
+        return smoothedState;
+    }
+
+    /** GPS fixes that gave a smoothed state, all but the first ones of the window. */
+    public long getSmoothed() {
+        return smoothed;
+    }
+
+    public LazyKalmanFilterModel getModel() {
+        return model;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public LatencyRecorder getPredictLatency() {
+        return predictLatency;
+    }
+
+    public LatencyRecorder getCorrectLatency() {
+        return correctLatency;
+    }
+
+    /** Records per second of wall time spent replaying, parsing included. */
+    public double getThroughput() {
+        return elapsed == 0 ? 0d : records * 1e9 / elapsed;
+    }
+
+    public void printReport( PrintStream out ) {
+        out.println( String.format( "engine=%s records=%d skipped=%d elapsed=%.3fs throughput=%.0f samples/s",
+                                    engine,
+                                    records,
+                                    skipped,
+                                    elapsed / 1e9,
+                                    getThroughput() ) );
+        if( model != null ) {
+            out.println( String.format( "rollbacks=%d replayed=%d unordered=%d smoothed=%d",
+                                        model.getRollbacks(),
+                                        model.getReplayed(),
+                                        model.getUnordered(),
+                                        smoothed ) );
+        }
+        out.println( "predict: " + predictLatency );
+        out.println( "correct: " + correctLatency );
+    }
+}
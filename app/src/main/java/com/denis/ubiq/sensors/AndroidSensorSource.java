@@ -0,0 +1,60 @@
+package com.denis.ubiq.sensors;
+
+import android.hardware.*;
+import android.os.*;
+import android.os.Process;
+
+/**
+ * The platform sensors, delivered on a dedicated {@link HandlerThread} instead of the main looper, so
+ * sensor handling never competes with drawing the map.
+ */
+public class AndroidSensorSource implements SensorSource, SensorEventListener {
+
+    private final SensorManager sensorManager;
+    // a step above ordinary threads, so events do not queue up behind background work, but below the display
+    // priority of the UI and render threads it is meant to keep out of the way of
+    private final HandlerThread thread = new HandlerThread( "SensorHub", Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE );
+    private final Handler handler;
+    // set before the first registration, the handler publishes it to the sensor thread
+    private SensorHub hub;
+
+    public AndroidSensorSource( SensorManager sensorManager ) {
+        this.sensorManager = sensorManager;
+        thread.start();
+        this.handler = new Handler( thread.getLooper() );
+    }
+
+    @Override
+    public boolean start( int type, int periodUs, SensorHub hub ) {
+        Sensor sensor = sensorManager.getDefaultSensor( type );
+        if( sensor == null ) {
+            return false;
+        }
+        this.hub = hub;
+        // a registered listener keeps its rate, changing it takes a new registration
+        sensorManager.unregisterListener( this, sensor );
+        return sensorManager.registerListener( this, sensor, periodUs, handler );
+    }
+
+    @Override
+    public void stop( int type ) {
+        Sensor sensor = sensorManager.getDefaultSensor( type );
+        if( sensor != null ) {
+            sensorManager.unregisterListener( this, sensor );
+        }
+    }
+
+    @Override
+    public void onSensorChanged( SensorEvent event ) {
+        hub.dispatch( event.sensor.getType(), event.values, event.timestamp );
+    }
+
+    @Override
+    public void onAccuracyChanged( Sensor sensor, int accuracy ) { }
+
+    /** Stops every sensor and the thread, the source cannot be started again. */
+    public void quit() {
+        sensorManager.unregisterListener( this );
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,167 @@
+package com.denis.ubiq.sensors;
+
+import java.util.Arrays;
+
+/**
+ * Registers each sensor once, however many consumers want it, and fans its events out to them.
+ * <p>
+ * A sensor is started with the shortest period any of its consumers asked for, and stopped with the last
+ * one gone. If the source refuses to restart it at a new period, it is started again at the previous one. Every event is copied into the {@link SensorSample} preallocated for its type before the
+ * consumers see it, so dispatching allocates nothing. Consumers are called on the thread of the
+ * {@link SensorSource} and must not block it. Subscribing copies the consumer list, the dispatching thread
+ * never takes a lock.
+ */
+public class SensorHub {
+
+    public interface Consumer {
+
+        /** The sample is only valid during the call. */
+        void onSensorEvent( SensorSample sample );
+    }
+
+    // platform sensor types are small integers, vendor ones are not supported
+    private static final int MAX_TYPES = 64;
+    private static final int STOPPED = -1;
+
+    private final SensorSource source;
+    // written under the lock before the type is started, so the source publishes them with its first event
+    private final Channel[] channels = new Channel[MAX_TYPES];
+
+    public SensorHub( SensorSource source ) {
+        this.source = source;
+    }
+
+    /**
+     * Delivers the events of a sensor type to the consumer, at least every periodUs microseconds. Returns
+     * false, without subscribing, if the sensor is missing.
+     */
+    public synchronized boolean subscribe( int type, int periodUs, Consumer consumer ) {
+        if( type < 0 || type >= MAX_TYPES ) {
+            throw new IllegalArgumentException( "unsupported sensor type " + type );
+        }
+        Channel channel = channels[type];
+        if( channel == null ) {
+            channels[type] = channel = new Channel( type );
+        }
+        int index = channel.indexOf( consumer );
+        int previousPeriodUs = STOPPED;
+        if( index >= 0 ) {
+            previousPeriodUs = channel.periods[index];
+            channel.periods[index] = periodUs;
+        } else {
+            int count = channel.consumers.length;
+            Consumer[] consumers = Arrays.copyOf( channel.consumers, count + 1 );
+            consumers[count] = consumer;
+            channel.periods = Arrays.copyOf( channel.periods, count + 1 );
+            channel.periods[count] = periodUs;
+            channel.consumers = consumers;
+        }
+        if( !update( channel ) ) {
+            // a consumer that was subscribed already keeps its previous rate
+            if( index >= 0 ) {
+                channel.periods[index] = previousPeriodUs;
+            } else {
+                remove( channel, consumer );
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** Stops delivering every sensor type to the consumer. */
+    public synchronized void unsubscribe( Consumer consumer ) {
+        for( Channel channel : channels ) {
+            if( channel != null && remove( channel, consumer ) ) {
+                update( channel );
+            }
+        }
+    }
+
+    /** From the source thread only. */
+    public void dispatch( int type, float[] values, long timestamp ) {
+        Channel channel = type >= 0 && type < MAX_TYPES ? channels[type] : null;
+        if( channel == null ) {
+            return;
+        }
+        SensorSample sample = channel.sample;
+        int length = Math.min( values.length, SensorSample.MAX_VALUES );
+        System.arraycopy( values, 0, sample.values, 0, length );
+        sample.length = length;
+        sample.timestamp = timestamp;
+        for( Consumer consumer : channel.consumers ) {
+            consumer.onSensorEvent( sample );
+        }
+    }
+
+    /** The period the sensor runs at, in microseconds, or -1 if it is stopped. */
+    public synchronized int getPeriodUs( int type ) {
+        Channel channel = type >= 0 && type < MAX_TYPES ? channels[type] : null;
+        return channel != null ? channel.periodUs : STOPPED;
+    }
+
+    // starts, restarts or stops the sensor to match its consumers
+    private boolean update( Channel channel ) {
+        int periodUs = STOPPED;
+        for( int period : channel.periods ) {
+            periodUs = periodUs == STOPPED ? period : Math.min( periodUs, period );
+        }
+        if( periodUs == channel.periodUs ) {
+            return true;
+        }
+        if( periodUs == STOPPED ) {
+            source.stop( channel.type );
+            channel.periodUs = STOPPED;
+            return true;
+        }
+        if( !source.start( channel.type, periodUs, this ) ) {
+            // a failed restart may have left the sensor unregistered, the other consumers get the previous rate back
+            if( channel.periodUs != STOPPED && !source.start( channel.type, channel.periodUs, this ) ) {
+                channel.periodUs = STOPPED;
+            }
+            return false;
+        }
+        channel.periodUs = periodUs;
+        return true;
+    }
+
+    private static boolean remove( Channel channel, Consumer consumer ) {
+        int index = channel.indexOf( consumer );
+        if( index < 0 ) {
+            return false;
+        }
+        int count = channel.consumers.length - 1;
+        Consumer[] consumers = new Consumer[count];
+        int[] periods = new int[count];
+        System.arraycopy( channel.consumers, 0, consumers, 0, index );
+        System.arraycopy( channel.consumers, index + 1, consumers, index, count - index );
+        System.arraycopy( channel.periods, 0, periods, 0, index );
+        System.arraycopy( channel.periods, index + 1, periods, index, count - index );
+        channel.periods = periods;
+        channel.consumers = consumers;
+        return true;
+    }
+
+    private static final class Channel {
+
+        final int type;
+        final SensorSample sample;
+        // replaced, never modified, once the dispatching thread can see them
+        volatile Consumer[] consumers = new Consumer[0];
+        int[] periods = new int[0];
+        int periodUs = STOPPED;
+
+        Channel( int type ) {
+            this.type = type;
+            this.sample = new SensorSample( type );
+        }
+
+        int indexOf( Consumer consumer ) {
+            for( int i = 0; i < consumers.length; i++ ) {
+                if( consumers[i] == consumer ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.denis.ubiq.sensors;
+
+/**
+ * The values of one sensor event as handed to the consumers of a {@link SensorHub}. There is one sample per
+ * sensor type, overwritten by every event of that type, so consumers have to copy what they keep.
+ */
+public class SensorSample {
+
+    /** Enough for every platform sensor, the largest report fifteen values. */
+    public static final int MAX_VALUES = 16;
+
+    public final int type;
+    public final float[] values = new float[MAX_VALUES];
+    public int length;
+    /** Nanoseconds, on the elapsed realtime clock for platform sensors. */
+    public long timestamp;
+
+    SensorSample( int type ) {
+        this.type = type;
+    }
+}
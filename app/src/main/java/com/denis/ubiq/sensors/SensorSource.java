@@ -0,0 +1,16 @@
+package com.denis.ubiq.sensors;
+
+/**
+ * Where a {@link SensorHub} gets its events from, the platform sensors or a fake one in tests. Events are
+ * passed to {@link SensorHub#dispatch} from a single thread.
+ */
+public interface SensorSource {
+
+    /**
+     * Starts delivering the events of a sensor type, or changes their rate if it is started already.
+     * Returns false if the device has no such sensor.
+     */
+    boolean start( int type, int periodUs, SensorHub hub );
+
+    void stop( int type );
+}
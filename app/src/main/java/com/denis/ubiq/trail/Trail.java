@@ -0,0 +1,295 @@
+package com.denis.ubiq.trail;
+
+/**
+ * Bounded history of the positions of one track, as shown on the map: the latest points as individual
+ * markers and everything older as a simplified polyline.
+ * <p>
+ * Points leaving the marker ring go through an online Douglas-Peucker simplification: a point becomes a
+ * vertex only once the segment from the last vertex to the newest point no longer passes within the
+ * tolerance of every point since. Raising the tolerance, when the map zooms out, re-simplifies the
+ * existing vertices. When the vertices fill up they are re-simplified with twice the tolerance, so memory
+ * stays fixed however long the session runs.
+ * <p>
+ * Distances use an equirectangular projection around the first point, good enough at trail scale.
+ * Positions are kept as primitive coordinates, nothing is allocated after construction. Not thread-safe.
+ */
+public class Trail {
+
+    private static final double EARTH_RADIUS = 6371 * 1000;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180d;
+    // pending points checked against a candidate segment, bounds the cost of a single point
+    private static final int MAX_PENDING = 64;
+
+    // newest markers, a ring of markerCapacity points
+    private final double[] markerLatitudes;
+    private final double[] markerLongitudes;
+    private int markerCount;
+    private int nextMarker;
+
+    // simplified polyline
+    private final double[] vertexLatitudes;
+    private final double[] vertexLongitudes;
+    private final boolean[] keep;
+    private final int[] stack;
+    private int vertexCount;
+
+    // points since the last vertex, the newest one ends the polyline
+    private final double[] pendingLatitudes = new double[MAX_PENDING];
+    private final double[] pendingLongitudes = new double[MAX_PENDING];
+    private int pendingCount;
+
+    private double tolerance;
+    private double metersPerLongitude = Double.NaN;
+    private int version;
+    // vertices only, and the re-simplifications that may have changed existing ones rather than appended
+    private int vertexVersion;
+    private int resimplifications;
+
+    public Trail( int markerCapacity, int maxVertices, double tolerance ) {
+        if( markerCapacity < 1 || maxVertices < 3 ) {
+            throw new IllegalArgumentException( "a trail needs at least one marker and three vertices" );
+        }
+        this.markerLatitudes = new double[markerCapacity];
+        this.markerLongitudes = new double[markerCapacity];
+        this.vertexLatitudes = new double[maxVertices];
+        this.vertexLongitudes = new double[maxVertices];
+        this.keep = new boolean[maxVertices];
+        this.stack = new int[2 * maxVertices];
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Adds the newest position. Returns the marker slot it took, which held the evicted point, if any,
+     * before. The evicted point is merged into the polyline.
+     */
+    public int add( double latitude, double longitude ) {
+        if( Double.isNaN( metersPerLongitude ) ) {
+            metersPerLongitude = METERS_PER_DEGREE * Math.cos( Math.toRadians( latitude ) );
+        }
+        int slot = nextMarker;
+        if( markerCount == markerLatitudes.length ) {
+            simplify( markerLatitudes[slot], markerLongitudes[slot] );
+        } else {
+            markerCount++;
+        }
+        markerLatitudes[slot] = latitude;
+        markerLongitudes[slot] = longitude;
+        nextMarker = ( slot + 1 ) % markerLatitudes.length;
+        return slot;
+    }
+
+    /** Sets the tolerance in meters for the points still to come, re-simplifying the polyline when it grows. */
+    public void setTolerance( double tolerance ) {
+        boolean coarser = tolerance > this.tolerance;
+        this.tolerance = tolerance;
+        if( coarser ) {
+            resimplify();
+        }
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void clear() {
+        markerCount = 0;
+        nextMarker = 0;
+        vertexCount = 0;
+        pendingCount = 0;
+        metersPerLongitude = Double.NaN;
+        version++;
+        vertexVersion++;
+        resimplifications++;
+    }
+
+    public int getMarkerCapacity() {
+        return markerLatitudes.length;
+    }
+
+    public int getMarkerCount() {
+        return markerCount;
+    }
+
+    /** Marker slots are the values returned by {@link #add}, in [0, markerCount). */
+    public double getMarkerLatitude( int slot ) {
+        return markerLatitudes[slot];
+    }
+
+    public double getMarkerLongitude( int slot ) {
+        return markerLongitudes[slot];
+    }
+
+    /** Points of the polyline, the vertices followed by the newest point evicted from the markers. */
+    public int getPointCount() {
+        return vertexCount + ( pendingCount > 0 ? 1 : 0 );
+    }
+
+    public double getPointLatitude( int index ) {
+        return index < vertexCount ? vertexLatitudes[index] : pendingLatitudes[pendingCount - 1];
+    }
+
+    public double getPointLongitude( int index ) {
+        return index < vertexCount ? vertexLongitudes[index] : pendingLongitudes[pendingCount - 1];
+    }
+
+    /** Changes whenever the polyline does. */
+    public int getVersion() {
+        return version;
+    }
+
+    /** The first getVertexCount() points are the simplified vertices, the rest is the newest evicted point. */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /** Changes whenever the vertices do, not when only the newest point moves. */
+    public int getVertexVersion() {
+        return vertexVersion;
+    }
+
+    /** Changes when existing vertices may have been dropped, while it stays the same vertices are only appended. */
+    public int getResimplifications() {
+        return resimplifications;
+    }
+
+    /**
+     * Writes the first and last index of the polyline points worth drawing in the given bounds, into
+     * range[0] and range[1]. Everything between them is kept, so the line stays connected. Returns false
+     * if no segment comes near the bounds. Bounds crossing the antimeridian are not supported.
+     */
+    public boolean getVisibleRange( double south, double west, double north, double east, int[] range ) {
+        int count = getPointCount();
+        int first = -1;
+        int last = -1;
+        for( int i = 0; i < count; i++ ) {
+            double latitude = getPointLatitude( i );
+            double longitude = getPointLongitude( i );
+            // a segment is kept if its bounding box overlaps, a lone point if it is inside
+            double previousLatitude = i > 0 ? getPointLatitude( i - 1 ) : latitude;
+            double previousLongitude = i > 0 ? getPointLongitude( i - 1 ) : longitude;
+            if( Math.max( latitude, previousLatitude ) >= south
+                && Math.min( latitude, previousLatitude ) <= north
+                && Math.max( longitude, previousLongitude ) >= west
+                && Math.min( longitude, previousLongitude ) <= east ) {
+                if( first < 0 ) {
+                    first = Math.max( 0, i - 1 );
+                }
+                last = i;
+            }
+        }
+        range[0] = first;
+        range[1] = last;
+        return first >= 0;
+    }
+
+    private void simplify( double latitude, double longitude ) {
+        if( vertexCount == 0 ) {
+            addVertex( latitude, longitude );
+            version++;
+            return;
+        }
+        if( pendingCount == MAX_PENDING || !coversPending( latitude, longitude ) ) {
+            // the previous point is as far as the last vertex can reach within the tolerance
+            addVertex( pendingLatitudes[pendingCount - 1], pendingLongitudes[pendingCount - 1] );
+            pendingCount = 0;
+        }
+        pendingLatitudes[pendingCount] = latitude;
+        pendingLongitudes[pendingCount] = longitude;
+        pendingCount++;
+        version++;
+    }
+
+    // whether the segment from the last vertex to the point passes within the tolerance of every pending point
+    private boolean coversPending( double latitude, double longitude ) {
+        double fromLatitude = vertexLatitudes[vertexCount - 1];
+        double fromLongitude = vertexLongitudes[vertexCount - 1];
+        for( int i = 0; i < pendingCount; i++ ) {
+            if( distance( pendingLatitudes[i], pendingLongitudes[i], fromLatitude, fromLongitude, latitude, longitude ) > tolerance ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addVertex( double latitude, double longitude ) {
+        if( vertexCount == vertexLatitudes.length ) {
+            // full, coarsen until there is room for the vertex
+            do {
+                tolerance *= 2d;
+                resimplify();
+            } while( vertexCount == vertexLatitudes.length );
+        }
+        vertexLatitudes[vertexCount] = latitude;
+        vertexLongitudes[vertexCount] = longitude;
+        vertexCount++;
+        vertexVersion++;
+    }
+
+    // Douglas-Peucker over the vertices with the current tolerance, the pending points are left as they are
+    private void resimplify() {
+        if( vertexCount < 3 ) {
+            return;
+        }
+        keep[0] = true;
+        keep[vertexCount - 1] = true;
+        for( int i = 1; i < vertexCount - 1; i++ ) {
+            keep[i] = false;
+        }
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = vertexCount - 1;
+        while( top > 0 ) {
+            int to = stack[--top];
+            int from = stack[--top];
+            double farthest = -1d;
+            int index = -1;
+            for( int i = from + 1; i < to; i++ ) {
+                double distance = distance( vertexLatitudes[i],
+                                            vertexLongitudes[i],
+                                            vertexLatitudes[from],
+                                            vertexLongitudes[from],
+                                            vertexLatitudes[to],
+                                            vertexLongitudes[to] );
+                if( distance > farthest ) {
+                    farthest = distance;
+                    index = i;
+                }
+            }
+            if( farthest > tolerance ) {
+                keep[index] = true;
+                stack[top++] = from;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = to;
+            }
+        }
+
+        int count = 0;
+        for( int i = 0; i < vertexCount; i++ ) {
+            if( keep[i] ) {
+                vertexLatitudes[count] = vertexLatitudes[i];
+                vertexLongitudes[count] = vertexLongitudes[i];
+                count++;
+            }
+        }
+        if( count != vertexCount ) {
+            vertexCount = count;
+            version++;
+            vertexVersion++;
+            resimplifications++;
+        }
+    }
+
+    // distance in meters from a point to the segment between two others
+    private double distance( double latitude, double longitude, double fromLatitude, double fromLongitude, double toLatitude, double toLongitude ) {
+        double px = ( longitude - fromLongitude ) * metersPerLongitude;
+        double py = ( latitude - fromLatitude ) * METERS_PER_DEGREE;
+        double sx = ( toLongitude - fromLongitude ) * metersPerLongitude;
+        double sy = ( toLatitude - fromLatitude ) * METERS_PER_DEGREE;
+        double length2 = sx * sx + sy * sy;
+        double t = length2 > 0d ? Math.max( 0d, Math.min( 1d, ( px * sx + py * sy ) / length2 ) ) : 0d;
+        double dx = px - t * sx;
+        double dy = py - t * sy;
+        return Math.sqrt( dx * dx + dy * dy );
+    }
+}
@@ -0,0 +1,160 @@
+package com.denis.ubiq.trail;
+
+import java.util.*;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.*;
+
+/**
+ * Draws a {@link Trail} on the map: one reused {@link Circle} per marker slot, a {@link Polyline} for the
+ * simplified vertices and a two point one joining them to the newest evicted point.
+ * <p>
+ * Circles outside the camera bounds are hidden and the polyline only gets the vertices between the first
+ * and last segment near them. The tolerance follows the zoom, so the polyline never has more detail than
+ * the screen can show. The vertex positions are cached and only appended to, and the vertex polyline is
+ * only uploaded when the vertices or the camera change; between vertices an estimate just moves the
+ * short one. Must be used on the main thread.
+ */
+public class TrailLayer {
+
+    private static final double EARTH_CIRCUMFERENCE = 2 * Math.PI * 6378137d;
+    private static final int TILE_SIZE = 256;
+
+    private final GoogleMap map;
+    private final Trail trail;
+    private final CircleOptions circleOptions;
+    private final PolylineOptions polylineOptions;
+    private final double tolerancePixels;
+
+    private final Circle[] circles;
+    private Polyline polyline;
+    private Polyline tail;
+    private boolean polylineVisible;
+    private int renderedVersion = -1;
+    private int renderedVertexVersion = -1;
+    // positions of the vertices, valid while the trail has not re-simplified them
+    private final List<LatLng> vertices = new ArrayList<>();
+    private int cachedResimplifications = -1;
+    private final List<LatLng> tailPoints = new ArrayList<>( 2 );
+    private final int[] range = new int[2];
+
+    // camera bounds, with a margin so panning a little does not show a gap
+    private double south = -90d;
+    private double west = -180d;
+    private double north = 90d;
+    private double east = 180d;
+
+    public TrailLayer( GoogleMap map, CircleOptions circleOptions, PolylineOptions polylineOptions, int markers, int maxVertices, double tolerancePixels ) {
+        this.map = map;
+        this.circleOptions = circleOptions;
+        this.polylineOptions = polylineOptions;
+        this.tolerancePixels = tolerancePixels;
+        // about a meter per pixel until the camera reports its zoom
+        this.trail = new Trail( markers, maxVertices, tolerancePixels );
+        this.circles = new Circle[markers];
+    }
+
+    public void add( LatLng position ) {
+        int slot = trail.add( position.latitude, position.longitude );
+        Circle circle = circles[slot];
+        if( circle == null ) {
+            circles[slot] = circle = map.addCircle( circleOptions.center( position ) );
+        } else {
+            // the oldest marker moves to the newest position, its point went into the polyline
+            circle.setCenter( position );
+        }
+        circle.setVisible( contains( position.latitude, position.longitude ) );
+        renderPolyline();
+    }
+
+    /** Follows the camera, to be called once it settles. */
+    public void onCameraIdle( CameraPosition camera, LatLngBounds bounds ) {
+        double latitudeMargin = ( bounds.northeast.latitude - bounds.southwest.latitude ) / 2d;
+        double longitudeMargin = ( bounds.northeast.longitude - bounds.southwest.longitude ) / 2d;
+        south = bounds.southwest.latitude - latitudeMargin;
+        north = bounds.northeast.latitude + latitudeMargin;
+        west = bounds.southwest.longitude - longitudeMargin;
+        east = bounds.northeast.longitude + longitudeMargin;
+        if( west > east ) {
+            // across the antimeridian, give up culling the longitude
+            west = -180d;
+            east = 180d;
+        }
+
+        double metersPerPixel = EARTH_CIRCUMFERENCE * Math.cos( Math.toRadians( camera.target.latitude ) ) / ( TILE_SIZE * Math.pow( 2d, camera.zoom ) );
+        trail.setTolerance( tolerancePixels * metersPerPixel );
+
+        for( int slot = 0; slot < trail.getMarkerCount(); slot++ ) {
+            circles[slot].setVisible( contains( trail.getMarkerLatitude( slot ), trail.getMarkerLongitude( slot ) ) );
+        }
+        renderedVertexVersion = -1;
+        renderPolyline();
+    }
+
+    public void setPolylineVisible( boolean visible ) {
+        polylineVisible = visible;
+        if( !visible && polyline != null ) {
+            polyline.remove();
+            tail.remove();
+            polyline = null;
+            tail = null;
+        }
+        renderedVersion = -1;
+        renderedVertexVersion = -1;
+        renderPolyline();
+    }
+
+    /** Forgets the trail, after the map was cleared and with it every circle and polyline. */
+    public void clear() {
+        trail.clear();
+        Arrays.fill( circles, null );
+        polyline = null;
+        tail = null;
+        renderedVersion = -1;
+        renderedVertexVersion = -1;
+        renderPolyline();
+    }
+
+    private void renderPolyline() {
+        if( !polylineVisible || renderedVersion == trail.getVersion() && renderedVertexVersion == trail.getVertexVersion() ) {
+            return;
+        }
+        renderedVersion = trail.getVersion();
+        if( polyline == null ) {
+            polyline = map.addPolyline( polylineOptions );
+            tail = map.addPolyline( polylineOptions );
+        }
+        int count = trail.getVertexCount();
+        if( renderedVertexVersion != trail.getVertexVersion() ) {
+            renderedVertexVersion = trail.getVertexVersion();
+            syncVertices( count );
+            if( count > 0 && trail.getVisibleRange( south, west, north, east, range ) ) {
+                // the range may end at the newest evicted point, which the tail draws
+                polyline.setPoints( vertices.subList( Math.min( range[0], count - 1 ), Math.min( range[1], count - 1 ) + 1 ) );
+            } else {
+                polyline.setPoints( Collections.<LatLng>emptyList() );
+            }
+        }
+
+        tailPoints.clear();
+        if( count > 0 && trail.getPointCount() > count ) {
+            tailPoints.add( vertices.get( count - 1 ) );
+            tailPoints.add( new LatLng( trail.getPointLatitude( count ), trail.getPointLongitude( count ) ) );
+        }
+        tail.setPoints( tailPoints );
+    }
+
+    private void syncVertices( int count ) {
+        if( cachedResimplifications != trail.getResimplifications() || vertices.size() > count ) {
+            cachedResimplifications = trail.getResimplifications();
+            vertices.clear();
+        }
+        for( int i = vertices.size(); i < count; i++ ) {
+            vertices.add( new LatLng( trail.getPointLatitude( i ), trail.getPointLongitude( i ) ) );
+        }
+    }
+
+    private boolean contains( double latitude, double longitude ) {
+        return latitude >= south && latitude <= north && longitude >= west && longitude <= east;
+    }
+}
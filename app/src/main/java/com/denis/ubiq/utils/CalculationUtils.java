@@ -1,13 +1,20 @@
 package com.denis.ubiq.utils;
 
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 
 import com.google.android.gms.maps.model.LatLng;
 
 public class CalculationUtils {
 
     private static final double EARTH_RADIUS = 6371 * 1000;
+    // SimpleDateFormat is not thread-safe, each thread keeps its own instead of creating one per call
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat( "HH:mm:ss.SSS" );
+        }
+    };
 
     public static double longitudeToMeters( double lon ) {
         double distance = calculateDistance( 0.0, lon, 0.0, 0.0 );
@@ -64,9 +71,7 @@ public class CalculationUtils {
     }
 
     public static String getCurrentTime() {
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat( "HH:mm:ss.SSS" ); //.format( new Date() )
-        return sdf.format( cal.getTime() );
+        return TIME_FORMAT.get().format( new Date() );
     }
 
     public static int hertz2periodUs( double hz ) { return ( int ) ( 1.0e6 / ( 1.0 / hz ) );}
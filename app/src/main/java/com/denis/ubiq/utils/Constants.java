@@ -1,6 +1,8 @@
 package com.denis.ubiq.utils;
 
 import com.denis.ubiq.*;
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+import com.denis.ubiq.logging.AsyncLogger.OverflowPolicy;
 import com.google.android.gms.maps.model.*;
 
 import static android.graphics.Color.*;
@@ -13,7 +15,33 @@ public final class Constants {
     public static final int REQUEST_PERMISSIONS_REQUEST_CODE = 34;
     public static final long UPDATE_INTERVAL = 1000;
     public static final long FASTEST_UPDATE_INTERVAL = UPDATE_INTERVAL / 2;
+    public static final long MAX_GPS_LATENESS = 250;
+    // records kept to roll back and replay for late GPS fixes, which then are not held back; 0 holds them back for MAX_GPS_LATENESS
+    public static final int GPS_HISTORY_CAPACITY = 1024;
+    // GPS fixes the smoothed track, logged as KalmanSmoothed, lags behind the filter; 0 turns the smoother off
+    public static final int SMOOTHING_LAG = 5;
     public static final int Hz = 10;
+    // sensor items are folded into a single filter prediction per window, in milliseconds
+    public static final long PRE_INTEGRATION_WINDOW = 100;
+    // only advance the filter for the estimates that are shown, instead of every window
+    public static final boolean LAZY_PREDICTION = true;
+    public static final KalmanFilterEngine KALMAN_ENGINE = KalmanFilterEngine.COMMONS_MATH;
+    // records are written to Download/output/All.txt instead of logcat
+    public static final boolean LOG_TO_FILE = false;
+    public static final int LOG_CAPACITY = 8192;
+    // DROP keeps the sensor thread from ever waiting on the log writer
+    public static final OverflowPolicy LOG_OVERFLOW_POLICY = OverflowPolicy.DROP;
+    // time the pipeline stages into the shared MetricsRegistry, dumped to the log every METRICS_REPORT_INTERVAL ms;
+    // recording costs about 3 ns but the two clock reads of a timed section about 75 ns, so the per sensor item
+    // sections are only timed once every METRICS_SAMPLE_PERIOD
+    public static final boolean METRICS_ENABLED = true;
+    public static final long METRICS_REPORT_INTERVAL = 10000;
+    public static final int METRICS_SAMPLE_PERIOD = 64;
+
+    // newest points drawn as circles, older ones merged into a polyline simplified to a couple of pixels
+    public static final int TRAIL_MARKERS = 60;
+    public static final int TRAIL_MAX_VERTICES = 2000;
+    public static final double TRAIL_TOLERANCE_PIXELS = 2d;
 
     public static CircleOptions greenCircleOptions = new CircleOptions().clickable( true )
                                                                         .radius( 7 )
@@ -1,36 +1,73 @@
 package com.denis.ubiq.utils;
 
 import java.io.*;
+import java.nio.channels.*;
 
 import android.os.Environment;
 import android.util.Log;
 
-import static com.denis.ubiq.utils.Constants.TAG;
+import com.denis.ubiq.logging.AsyncLogger;
 
-public class WriteUtils {
+import static com.denis.ubiq.utils.Constants.*;
 
-    public static void writeToLog( String format, Object... args ) {
-        String log = String.format( format, args );
-        Log.i( TAG, log );
+public class WriteUtils {
 
-        //        WriteUtils.writeToFile( log, ( String ) args[2] );
-        //        WriteUtils.writeToFile( log, "All" );
+    /** The shared logger, created on first use. Writes to Download/output/All.txt when LOG_TO_FILE is set, to logcat otherwise. */
+    public static AsyncLogger getLogger() {
+        return LoggerHolder.LOGGER;
     }
 
-    public static void writeToFile( String log, String fileName ) {
-        try {
-            File root = new File( Environment.getExternalStorageDirectory().getAbsolutePath() + "/Download/output" );
-            if( !root.exists() ) {
-                root.mkdirs();
+    private static AsyncLogger createLogger() {
+        Writer writer = null;
+        if( LOG_TO_FILE ) {
+            try {
+                writer = openLogFile( "All" );
+            } catch( IOException e ) {
+                e.printStackTrace();
             }
+        }
+        if( writer == null ) {
+            writer = new LogcatWriter();
+        }
+        return new AsyncLogger( LOG_CAPACITY, LOG_OVERFLOW_POLICY, writer );
+    }
+
+    // the file stays open for the lifetime of the logger
+    private static Writer openLogFile( String fileName ) throws IOException {
+        File root = new File( Environment.getExternalStorageDirectory().getAbsolutePath() + "/Download/output" );
+        if( !root.exists() ) {
+            root.mkdirs();
+        }
 
-            File file = new File( root, fileName + ".txt" );
-            try( BufferedWriter writer = new BufferedWriter( new FileWriter( file, true ) ) ) {
-                writer.append( log );
-                writer.newLine();
+        FileChannel channel = new FileOutputStream( new File( root, fileName + ".txt" ), true ).getChannel();
+        return Channels.newWriter( channel, "UTF-8" );
+    }
+
+    private static class LoggerHolder {
+        static final AsyncLogger LOGGER = createLogger();
+    }
+
+    // forwards every complete line to logcat
+    private static class LogcatWriter extends Writer {
+
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write( char[] buffer, int offset, int length ) {
+            for( int i = offset; i < offset + length; i++ ) {
+                if( buffer[i] == '\n' ) {
+                    Log.i( TAG, line.toString() );
+                    line.setLength( 0 );
+                } else {
+                    line.append( buffer[i] );
+                }
             }
-        } catch( IOException e ) {
-            e.printStackTrace();
         }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
     }
 }
@@ -0,0 +1,139 @@
+package com.denis.ubiq.ingestion;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+
+import static org.junit.Assert.*;
+
+public class TimestampMergerTest {
+
+    @Test
+    public void mergeTest() {
+        SensorItemBuffer sensorItems = new SensorItemBuffer( 8 );
+        GpsItemBuffer gpsItems = new GpsItemBuffer( 8 );
+        TimestampMerger merger = new TimestampMerger( sensorItems, gpsItems );
+
+        sensorItems.offer( 1.0D, 0.0D, 0.0F, 1 );
+        sensorItems.offer( 3.0D, 0.0D, 0.0F, 3 );
+        sensorItems.offer( 6.0D, 0.0D, 0.0F, 6 );
+        gpsItems.offer( 2.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 2 );
+        gpsItems.offer( 4.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 4 );
+        gpsItems.offer( 5.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 5 );
+
+        SensorItem sensorItem = new SensorItem( 0.0D, 0.0D, 0.0F, 0 );
+        GpsItem gpsItem = new GpsItem( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0 );
+        long[] expectedTimestamps = { 1, 2, 3, 4, 5, 6 };
+        int[] expectedSources = { 0, 1, 0, 1, 1, 0 };
+        for( int i = 0; i < expectedTimestamps.length; i++ ) {
+            int source = merger.next();
+            assertEquals( expectedSources[i], source );
+            if( source == 0 ) {
+                sensorItems.poll( sensorItem );
+                assertEquals( expectedTimestamps[i], sensorItem.timestamp );
+                assertEquals( expectedTimestamps[i], sensorItem.eastAcceleration, 0.0D );
+            } else {
+                gpsItems.poll( gpsItem );
+                assertEquals( expectedTimestamps[i], gpsItem.timestamp );
+                assertEquals( expectedTimestamps[i], gpsItem.latitude, 0.0D );
+            }
+        }
+        assertEquals( -1, merger.next() );
+    }
+
+    @Test
+    public void holdsBackUntilWatermark() {
+        SensorItemBuffer sensorItems = new SensorItemBuffer( 8 );
+        GpsItemBuffer gpsItems = new GpsItemBuffer( 8 );
+        TimestampMerger merger = new TimestampMerger( sensorItems, gpsItems );
+        merger.setMaxLateness( 1, 100 );
+
+        sensorItems.offer( 0.0D, 0.0D, 0.0F, 1000 );
+        sensorItems.offer( 0.0D, 0.0D, 0.0F, 1050 );
+
+        // a GPS fix with an earlier timestamp may still arrive
+        assertEquals( -1, merger.next( 1020 ) );
+        assertEquals( 1100, merger.getHoldUntil() );
+
+        // the late fix is merged in front of the held sensor items
+        gpsItems.offer( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 990 );
+        assertEquals( 1, merger.next( 1030 ) );
+        gpsItems.poll( new GpsItem( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0 ) );
+
+        // the lateness limit releases the sensor items without another fix
+        assertEquals( -1, merger.next( 1099 ) );
+        assertEquals( 0, merger.next( 1100 ) );
+        sensorItems.poll( new SensorItem( 0.0D, 0.0D, 0.0F, 0 ) );
+        assertEquals( -1, merger.next( 1100 ) );
+
+        // a fix past the sensor item proves nothing earlier is coming
+        gpsItems.offer( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 1060 );
+        assertEquals( 0, merger.next( 1100 ) );
+        sensorItems.poll( new SensorItem( 0.0D, 0.0D, 0.0F, 0 ) );
+        assertEquals( 1, merger.next( 1100 ) );
+        gpsItems.poll( new GpsItem( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0 ) );
+        assertEquals( -1, merger.next( 1100 ) );
+        assertEquals( Long.MAX_VALUE, merger.getHoldUntil() );
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        SensorItemBuffer sensorItems = new SensorItemBuffer( 3 );
+        assertEquals( 4, sensorItems.getCapacity() );
+
+        for( int i = 0; i < 4; i++ ) {
+            assertTrue( sensorItems.offer( 0.0D, 0.0D, 0.0F, i ) );
+        }
+        assertFalse( sensorItems.offer( 0.0D, 0.0D, 0.0F, 4 ) );
+        assertEquals( 1, sensorItems.getDropped() );
+
+        sensorItems.poll( new SensorItem( 0.0D, 0.0D, 0.0F, 0 ) );
+        assertTrue( sensorItems.offer( 0.0D, 0.0D, 0.0F, 5 ) );
+        assertEquals( 4, sensorItems.size() );
+    }
+
+    @Test
+    public void carriesTheEnqueueTime() {
+        SensorItemBuffer sensorItems = new SensorItemBuffer( 4 );
+        GpsItemBuffer gpsItems = new GpsItemBuffer( 4 );
+        sensorItems.offer( 0.0D, 0.0D, 0.0F, 1, 1000999L );
+        sensorItems.offer( 0.0D, 0.0D, 0.0F, 2 );
+        gpsItems.offer( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 1, 1000001L );
+
+        SensorItem sensorItem = new SensorItem( 0.0D, 0.0D, 0.0F, 0 );
+        assertEquals( 1000999L, sensorItems.poll( sensorItem ).enqueueNanos );
+        assertEquals( 0L, sensorItems.poll( sensorItem ).enqueueNanos );
+        assertEquals( 1000001L, gpsItems.poll( new GpsItem( 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0.0D, 0 ) ).enqueueNanos );
+    }
+
+    @Test
+    public void concurrentProducer() throws InterruptedException {
+        final int count = 1000000;
+        final SensorItemBuffer sensorItems = new SensorItemBuffer( 64 );
+
+        Thread producer = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                for( int i = 0; i < count; i++ ) {
+                    while( !sensorItems.offer( i, -i, 0.0F, i ) ) {
+                        Thread.yield();
+                    }
+                }
+            }
+        } );
+        producer.start();
+
+        SensorItem item = new SensorItem( 0.0D, 0.0D, 0.0F, 0 );
+        for( int i = 0; i < count; i++ ) {
+            while( sensorItems.isEmpty() ) {
+                Thread.yield();
+            }
+            sensorItems.poll( item );
+            assertEquals( i, item.timestamp );
+            assertEquals( i, item.eastAcceleration, 0.0D );
+            assertEquals( -i, item.northAcceleration, 0.0D );
+        }
+        producer.join();
+        assertTrue( sensorItems.isEmpty() );
+    }
+}
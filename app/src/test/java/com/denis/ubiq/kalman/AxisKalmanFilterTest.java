@@ -0,0 +1,65 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AxisKalmanFilterTest {
+
+    @Test
+    public void matchesCoupledKernel() {
+        Random random = new Random( 7 );
+        double accelerationVariance = 0.01d;
+        double positionNoise = 8d;
+
+        KalmanFilterKernel kernel = new KalmanFilterKernel();
+        kernel.setState( 10d, 20d, 1d, -1d );
+        kernel.setErrorCovariance( positionNoise );
+
+        AxisKalmanFilter xAxis = new AxisKalmanFilter();
+        AxisKalmanFilter yAxis = new AxisKalmanFilter();
+        xAxis.setState( 10d, 1d );
+        yAxis.setState( 20d, -1d );
+        xAxis.setErrorCovariance( positionNoise );
+        yAxis.setErrorCovariance( positionNoise );
+
+        double[] state = new double[4];
+        double[] covariance = new double[16];
+        for( int step = 0; step < 1000; step++ ) {
+            double dt = 0.05d + random.nextDouble() * 0.1d;
+            double ax = random.nextGaussian();
+            double ay = random.nextGaussian();
+
+            kernel.setProcessModel( dt, accelerationVariance );
+            xAxis.setProcessModel( dt, accelerationVariance );
+            yAxis.setProcessModel( dt, accelerationVariance );
+            kernel.predict( ax, ay );
+            xAxis.predict( ax );
+            yAxis.predict( ay );
+
+            if( step % 10 == 9 ) {
+                double variance = Math.pow( 2d + random.nextDouble() * 10d, 2d );
+                double zx = state[0] + random.nextGaussian();
+                double zy = state[1] + random.nextGaussian();
+
+                kernel.setMeasurementNoise( variance, variance );
+                xAxis.setMeasurementNoise( variance );
+                yAxis.setMeasurementNoise( variance );
+                kernel.correct( zx, zy );
+                xAxis.correct( zx );
+                yAxis.correct( zy );
+            }
+
+            kernel.getStateEstimation( state );
+            kernel.getErrorCovariance( covariance );
+            assertEquals( state[0], xAxis.getPosition(), 1e-9 * Math.abs( state[0] ) );
+            assertEquals( state[1], yAxis.getPosition(), 1e-9 * Math.abs( state[1] ) );
+            assertEquals( state[2], xAxis.getVelocity(), 1e-9 );
+            assertEquals( state[3], yAxis.getVelocity(), 1e-9 );
+            assertEquals( covariance[0], xAxis.getPositionVariance(), 1e-9 );
+            assertEquals( covariance[5], yAxis.getPositionVariance(), 1e-9 );
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.denis.ubiq.kalman;
+
+import java.util.*;
+
+import org.apache.commons.math3.linear.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FixedLagSmootherTest {
+
+    private static final double ACCELERATION_VARIANCE = 0.01d;
+    private static final int LAG = 20;
+
+    @Test
+    public void matchesFullRauchTungStriebelPass() {
+        Random random = new Random( 42 );
+        KalmanFilterKernel kernel = new KalmanFilterKernel();
+        kernel.setState( 0d, 0d, 1d, -0.5d );
+        kernel.setErrorCovariance( 5d );
+        FixedLagSmoother smoother = new FixedLagSmoother( LAG );
+
+        List<double[]> predicted = new ArrayList<>();
+        List<double[]> filtered = new ArrayList<>();
+        List<Double> dts = new ArrayList<>();
+        double[] state = new double[4];
+        double[] smoothed = new double[4];
+        double[] covariance = new double[16];
+        for( int step = 0; step < 200; step++ ) {
+            double dt = 0.01d + random.nextDouble() * 0.02d;
+            kernel.setProcessModel( dt, ACCELERATION_VARIANCE );
+            kernel.predict( random.nextGaussian() * 0.2d, random.nextGaussian() * 0.2d );
+            smoother.predicted( step, dt, kernel );
+            predicted.add( snapshot( kernel ) );
+            if( step % 25 == 0 ) {
+                kernel.getStateEstimation( state );
+                kernel.setMeasurementNoise( 16d, 16d );
+                kernel.correct( state[0] + random.nextGaussian() * 4d, state[1] + random.nextGaussian() * 4d );
+                smoother.corrected( kernel );
+            }
+            filtered.add( snapshot( kernel ) );
+            dts.add( dt );
+
+            assertEquals( step >= LAG, smoother.isReady() );
+            if( smoother.isReady() ) {
+                double[][] expected = smooth( predicted, filtered, dts, step - LAG );
+                assertEquals( step - LAG, smoother.getSmoothedTimestamp() );
+                assertArrayEquals( expected[0], smoother.getSmoothedState( smoothed ), 1e-9d );
+                assertArrayEquals( expected[1], smoother.getSmoothedCovariance( covariance ), 1e-9d );
+            }
+        }
+    }
+
+    @Test
+    public void translatesWithTheForwardFilter() {
+        KalmanFilterKernel kernel = new KalmanFilterKernel();
+        kernel.setState( 100d, 50d, 1d, 0d );
+        kernel.setErrorCovariance( 5d );
+        kernel.setProcessModel( 0.1d, ACCELERATION_VARIANCE );
+        FixedLagSmoother smoother = new FixedLagSmoother( 3 );
+        for( int step = 0; step < 4; step++ ) {
+            kernel.predict( 0d, 0d );
+            smoother.predicted( step, 0.1d, kernel );
+        }
+        double[] before = smoother.getSmoothedState( new double[4] );
+        smoother.translate( 100d, 50d );
+        double[] after = smoother.getSmoothedState( new double[4] );
+
+        assertEquals( before[0] - 100d, after[0], 1e-9d );
+        assertEquals( before[1] - 50d, after[1], 1e-9d );
+        assertEquals( before[2], after[2], 1e-12d );
+    }
+
+    private static double[] snapshot( KalmanFilterKernel kernel ) {
+        double[] snapshot = new double[KalmanFilterKernel.SNAPSHOT_SIZE];
+        kernel.saveState( snapshot, 0 );
+        return snapshot;
+    }
+
+    // textbook RTS pass over steps from..last on commons-math matrices, returns the smoothed state and covariance of from
+    private static double[][] smooth( List<double[]> predicted, List<double[]> filtered, List<Double> dts, int from ) {
+        int last = filtered.size() - 1;
+        RealVector x = state( filtered.get( last ) );
+        RealMatrix p = covariance( filtered.get( last ) );
+        for( int k = last - 1; k >= from; k-- ) {
+            double dt = dts.get( k + 1 );
+            RealMatrix a = new Array2DRowRealMatrix( new double[][] { { 1, 0, dt, 0 }, { 0, 1, 0, dt }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } } );
+            RealMatrix pk = covariance( filtered.get( k ) );
+            RealMatrix pNext = covariance( predicted.get( k + 1 ) );
+            RealMatrix c = pk.multiply( a.transpose() ).multiply( new LUDecomposition( pNext ).getSolver().getInverse() );
+            x = state( filtered.get( k ) ).add( c.operate( x.subtract( state( predicted.get( k + 1 ) ) ) ) );
+            p = pk.add( c.multiply( p.subtract( pNext ) ).multiply( c.transpose() ) );
+        }
+        double[] flat = new double[16];
+        for( int i = 0; i < 4; i++ ) {
+            System.arraycopy( p.getRow( i ), 0, flat, i * 4, 4 );
+        }
+        return new double[][] { x.toArray(), flat };
+    }
+
+    private static RealVector state( double[] snapshot ) {
+        return new ArrayRealVector( snapshot, 0, 4 );
+    }
+
+    private static RealMatrix covariance( double[] snapshot ) {
+        double[][] data = new double[4][4];
+        for( int i = 0; i < 4; i++ ) {
+            System.arraycopy( snapshot, 4 + i * 4, data[i], 0, 4 );
+        }
+        return new Array2DRowRealMatrix( data, false );
+    }
+}
@@ -0,0 +1,88 @@
+package com.denis.ubiq.kalman;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KalmanFilterBankTest {
+
+    private static final double ACCELERATION_VARIANCE = 0.01d;
+
+    @Test
+    public void matchesKernelPerTrack() {
+        Random random = new Random( 5 );
+        KalmanFilterBank bank = new KalmanFilterBank();
+        Map<Integer, KalmanFilterKernel> kernels = new HashMap<>();
+        List<Integer> live = new ArrayList<>();
+
+        double[] expected = new double[16];
+        double[] actual = new double[16];
+        for( int step = 0; step < 200; step++ ) {
+            // spans a few segments while tracks come and go
+            for( int i = 0; i < 30; i++ ) {
+                double x = random.nextGaussian() * 100d;
+                double y = random.nextGaussian() * 100d;
+                double vx = random.nextGaussian();
+                double vy = random.nextGaussian();
+                int track = bank.addTrack( x, y, vx, vy, 5d );
+                KalmanFilterKernel kernel = new KalmanFilterKernel();
+                kernel.setState( x, y, vx, vy );
+                kernel.setErrorCovariance( 5d );
+                assertNull( kernels.put( track, kernel ) );
+                live.add( track );
+            }
+            for( int i = 0; i < 20; i++ ) {
+                int track = live.remove( random.nextInt( live.size() ) );
+                bank.removeTrack( track );
+                kernels.remove( track );
+            }
+
+            double dt = 0.05d + random.nextDouble() * 0.1d;
+            for( int track : live ) {
+                KalmanFilterKernel kernel = kernels.get( track );
+                kernel.setProcessModel( dt, ACCELERATION_VARIANCE );
+                if( random.nextBoolean() ) {
+                    double ax = random.nextGaussian();
+                    double ay = random.nextGaussian();
+                    bank.setInput( track, ax, ay );
+                    kernel.predict( ax, ay );
+                } else {
+                    kernel.predict( 0d, 0d );
+                }
+            }
+            bank.predictAll( dt, ACCELERATION_VARIANCE );
+
+            for( int track : live ) {
+                if( random.nextInt( 3 ) == 0 ) {
+                    double noise = 2d + random.nextDouble() * 10d;
+                    double zx = random.nextGaussian() * 100d;
+                    double zy = random.nextGaussian() * 100d;
+                    bank.setMeasurement( track, zx, zy, noise * noise );
+                    KalmanFilterKernel kernel = kernels.get( track );
+                    kernel.setMeasurementNoise( noise * noise, noise * noise );
+                    kernel.correct( zx, zy );
+                }
+            }
+            bank.correctAll();
+
+            assertEquals( live.size(), bank.size() );
+            for( int track : live ) {
+                KalmanFilterKernel kernel = kernels.get( track );
+                assertArrayEquals( kernel.getStateEstimation( expected ), bank.getState( track, actual ), 1e-9 );
+                assertArrayEquals( kernel.getErrorCovariance( expected ), bank.getErrorCovariance( track, actual ), 1e-9 );
+            }
+        }
+        assertTrue( bank.size() > KalmanFilterBank.SEGMENT_SIZE );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsRemovedTrack() {
+        KalmanFilterBank bank = new KalmanFilterBank();
+        int track = bank.addTrack( 0d, 0d, 0d, 0d, 1d );
+        bank.addTrack( 1d, 1d, 0d, 0d, 1d );
+        bank.removeTrack( track );
+        bank.setInput( track, 1d, 1d );
+    }
+}
@@ -0,0 +1,113 @@
+package com.denis.ubiq.kalman;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+
+import static org.junit.Assert.*;
+
+public class KalmanFilterEngineTest {
+
+    @Test
+    public void everyEngineReadsTheCourseTheSameWayAtInitAndCorrect() {
+        // 10 m/s towards 60 degrees clockwise from north
+        double north = 10d * Math.cos( Math.toRadians( 60d ) );
+        double east = 10d * Math.sin( Math.toRadians( 60d ) );
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            GpsItem fix = new GpsItem( 42.69d, 23.32d, 550d, 10d, 60d, 5d, 1000L );
+            IKalmanFilterModel model = engine.create( fix );
+            double[] state = model.getStateEstimation();
+            assertEquals( engine.name(), north, state[2], 1e-5d );
+            assertEquals( engine.name(), east, state[3], 1e-5d );
+
+            // the same fix again agrees with the state, so the velocity must not move
+            model.updateMeasurementModel( fix );
+            state = model.correct( new GpsItem( 42.69d, 23.32d, 550d, 10d, 60d, 5d, 1000L ) );
+            assertEquals( engine.name(), north, state[2], 1e-5d );
+            assertEquals( engine.name(), east, state[3], 1e-5d );
+        }
+    }
+
+    @Test
+    public void aNorthAccelerationOnlyMovesTheNorthComponents() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            for( boolean preIntegrated : new boolean[] { false, true } ) {
+                String message = engine.name() + ( preIntegrated ? " pre-integrated" : "" );
+                // moving north at 5 m/s
+                IKalmanFilterModel model = engine.create( new GpsItem( 42.69d, 23.32d, 550d, 5d, 0d, 5d, 0L ) );
+                ImuPreIntegrator integrator = new ImuPreIntegrator( 0L );
+                for( long timestamp = 20L; timestamp <= 1000L; timestamp += 20L ) {
+                    SensorItem item = new SensorItem( 0d, 1d, 4F, timestamp );
+                    if( preIntegrated ) {
+                        integrator.integrate( item );
+                    } else {
+                        model.updateProcessModel( item );
+                        model.predict( item );
+                    }
+                }
+                if( preIntegrated ) {
+                    model.predict( integrator );
+                }
+                double[] state = model.getStateEstimation();
+                // 5 m/s plus 1 m/s2 over a second
+                assertEquals( message, 5.5d, state[0], 1e-3d );
+                assertEquals( message, 6d, state[2], 1e-3d );
+                assertEquals( message, 0d, state[1], 1e-9d );
+                assertEquals( message, 0d, state[3], 1e-9d );
+
+                // a fix further north, due north of the first
+                model.updateMeasurementModel( new GpsItem( 42.69005d, 23.32d, 550d, 6d, 0d, 5d, 1000L ) );
+                state = model.correct( new GpsItem( 42.69005d, 23.32d, 550d, 6d, 0d, 5d, 1000L ) );
+                assertTrue( message, state[0] > 5.5d );
+                assertEquals( message, 0d, state[1], 1e-6d );
+                assertEquals( message, 0d, state[3], 1e-6d );
+            }
+        }
+    }
+
+    @Test
+    public void aStandingFixStopsTheFilter() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            if( engine == KalmanFilterEngine.KERNEL_STEADY_STATE ) {
+                // its constant gain only covers the position
+                continue;
+            }
+            IKalmanFilterModel model = engine.create( new GpsItem( 42.69d, 23.32d, 550d, 3d, 45d, 5d, 0L ) );
+            // no bearing, as the platform reports a device standing still
+            GpsItem standing = new GpsItem( 42.69d, 23.32d, 550d, 0d, Double.NaN, 5d, 0L );
+            double speed = Math.hypot( model.getStateEstimation()[2], model.getStateEstimation()[3] );
+            for( int i = 0; i < 5; i++ ) {
+                model.updateMeasurementModel( standing );
+                double[] state = model.correct( standing );
+                double slower = Math.hypot( state[2], state[3] );
+                assertTrue( engine.name(), slower < speed );
+                speed = slower;
+            }
+            assertEquals( engine.name(), 0d, speed, 0.5d );
+        }
+    }
+
+    @Test
+    public void aSpeedWithoutACourseActsAlongTheEstimatedDirection() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            if( engine == KalmanFilterEngine.KERNEL_STEADY_STATE ) {
+                // its constant gain only covers the position
+                continue;
+            }
+            // 3 m/s towards the north east
+            IKalmanFilterModel model = engine.create( new GpsItem( 42.69d, 23.32d, 550d, 3d, 45d, 5d, 0L ) );
+            GpsItem faster = new GpsItem( 42.69d, 23.32d, 550d, 10d, Double.NaN, 5d, 0L );
+            model.updateMeasurementModel( faster );
+            double[] state = model.correct( faster );
+            assertTrue( engine.name(), Math.hypot( state[2], state[3] ) > 3.5d );
+            assertEquals( engine.name(), state[2], state[3], 1e-6d );
+
+            // without a speed the velocity is left to the positions
+            GpsItem none = new GpsItem( 42.69d, 23.32d, 550d, Double.NaN, Double.NaN, 5d, 0L );
+            IKalmanFilterModel positions = engine.create( new GpsItem( 42.69d, 23.32d, 550d, 3d, 45d, 5d, 0L ) );
+            positions.updateMeasurementModel( none );
+            state = positions.correct( none );
+            assertEquals( engine.name(), 3d, Math.hypot( state[2], state[3] ), 1e-6d );
+        }
+    }
+}
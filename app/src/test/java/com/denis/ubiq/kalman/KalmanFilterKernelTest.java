@@ -0,0 +1,264 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Random;
+
+import org.apache.commons.math3.filter.*;
+import org.apache.commons.math3.linear.*;
+import org.junit.Test;
+
+import com.denis.ubiq.items.SensorItem;
+
+import static org.junit.Assert.*;
+
+public class KalmanFilterKernelTest {
+
+    private static final double ACCELERATION_VARIANCE = 0.01d;
+
+    @Test
+    public void matchesCommonsMathFilter() {
+        Random random = new Random( 42 );
+        double positionNoise = 5d;
+        double[] x0 = { 100d, -50d, 1.5d, -0.5d };
+
+        KalmanFilter filter = new KalmanFilter( processModel( 1d, x0, positionNoise ), measurementModel( positionNoise ) );
+
+        KalmanFilterKernel kernel = new KalmanFilterKernel();
+        kernel.setState( x0[0], x0[1], x0[2], x0[3] );
+        kernel.setErrorCovariance( positionNoise );
+
+        double[] state = new double[4];
+        double[] covariance = new double[16];
+        for( int step = 0; step < 1000; step++ ) {
+            double dt = 0.05d + random.nextDouble() * 0.1d;
+            double ax = random.nextGaussian();
+            double ay = random.nextGaussian();
+
+            DefaultProcessModel processModel = processModel( dt, null, positionNoise );
+            filter.processModel = processModel;
+            filter.transitionMatrix = processModel.getStateTransitionMatrix();
+            filter.transitionMatrixT = filter.transitionMatrix.transpose();
+            filter.controlMatrix = processModel.getControlMatrix();
+            filter.predict( new double[] { ax, ay } );
+
+            kernel.setProcessModel( dt, ACCELERATION_VARIANCE );
+            kernel.predict( ax, ay );
+
+            if( step % 10 == 9 ) {
+                double noise = 2d + random.nextDouble() * 10d;
+                double[] z = { state[0] + random.nextGaussian() * noise, state[1] + random.nextGaussian() * noise };
+
+                filter.measurementModel = measurementModel( noise );
+                filter.correct( z );
+
+                kernel.setMeasurementNoise( noise * noise, noise * noise );
+                kernel.correct( z[0], z[1] );
+            }
+
+            assertArrayEquals( filter.getStateEstimation(), kernel.getStateEstimation( state ) );
+            assertArrayEquals( flatten( filter.getErrorCovariance() ), kernel.getErrorCovariance( covariance ) );
+        }
+    }
+
+    @Test
+    public void preIntegratedMatchesPerSamplePredict() {
+        Random random = new Random( 3 );
+        KalmanFilterKernel perSample = new KalmanFilterKernel();
+        KalmanFilterKernel preIntegrated = new KalmanFilterKernel();
+        perSample.setState( 1d, 2d, 3d, 4d );
+        preIntegrated.setState( 1d, 2d, 3d, 4d );
+        perSample.setErrorCovariance( 5d );
+        preIntegrated.setErrorCovariance( 5d );
+
+        long timestamp = 1000;
+        ImuPreIntegrator integrator = new ImuPreIntegrator( timestamp );
+        for( int step = 0; step < 20; step++ ) {
+            long dt = 5 + random.nextInt( 10 );
+            timestamp += dt;
+            SensorItem item = new SensorItem( random.nextGaussian(), random.nextGaussian(), 0F, timestamp );
+
+            perSample.setProcessModel( dt / 1000.0, ACCELERATION_VARIANCE );
+            perSample.predict( item.northAcceleration, item.eastAcceleration );
+            integrator.integrate( item );
+        }
+
+        preIntegrated.setProcessModel( integrator.getDuration(),
+                                       ACCELERATION_VARIANCE * integrator.getNoise00(),
+                                       ACCELERATION_VARIANCE * integrator.getNoise01(),
+                                       ACCELERATION_VARIANCE * integrator.getNoise11() );
+        preIntegrated.propagate( integrator.getDeltaPositionX(),
+                                 integrator.getDeltaPositionY(),
+                                 integrator.getDeltaVelocityX(),
+                                 integrator.getDeltaVelocityY() );
+
+        assertArrayEquals( perSample.getStateEstimation( new double[4] ), preIntegrated.getStateEstimation( new double[4] ) );
+        assertArrayEquals( perSample.getErrorCovariance( new double[16] ), preIntegrated.getErrorCovariance( new double[16] ) );
+    }
+
+    @Test
+    public void sequentialUpdatesMatchBatchUpdate() {
+        Random random = new Random( 11 );
+        double positionNoise = 5d;
+        double velocityNoise = 1d;
+        double[] x0 = { 10d, -20d, 2d, 1d };
+
+        // position and velocity measured together, with a diagonal noise
+        KalmanFilter batch = new KalmanFilter( processModel( 1d, x0, positionNoise ),
+                                               new DefaultMeasurementModel( MatrixUtils.createRealIdentityMatrix( 4 ),
+                                                                            MatrixUtils.createRealDiagonalMatrix( new double[] { 1d, 1d, 1d, 1d } ) ) );
+        KalmanFilter commonsSequential = new KalmanFilter( processModel( 1d, x0, positionNoise ), measurementModel( positionNoise ) );
+        KalmanFilterKernel kernelSequential = new KalmanFilterKernel();
+        kernelSequential.setState( x0[0], x0[1], x0[2], x0[3] );
+        kernelSequential.setErrorCovariance( positionNoise );
+
+        double[] state = new double[4];
+        double[] covariance = new double[16];
+        for( int step = 0; step < 500; step++ ) {
+            double dt = 0.05d + random.nextDouble() * 0.1d;
+            double ax = random.nextGaussian();
+            double ay = random.nextGaussian();
+            DefaultProcessModel processModel = processModel( dt, null, positionNoise );
+            for( KalmanFilter filter : new KalmanFilter[] { batch, commonsSequential } ) {
+                filter.processModel = processModel;
+                filter.transitionMatrix = processModel.getStateTransitionMatrix();
+                filter.transitionMatrixT = filter.transitionMatrix.transpose();
+                filter.controlMatrix = processModel.getControlMatrix();
+                filter.predict( new double[] { ax, ay } );
+            }
+            kernelSequential.setProcessModel( dt, ACCELERATION_VARIANCE );
+            kernelSequential.predict( ax, ay );
+
+            if( step % 10 == 9 ) {
+                double[] r = { square( 2d + random.nextDouble() * 10d ),
+                               square( 2d + random.nextDouble() * 10d ),
+                               square( velocityNoise ),
+                               square( velocityNoise * 2d ) };
+                double[] z = { state[0] + random.nextGaussian() * 5d,
+                               state[1] + random.nextGaussian() * 5d,
+                               state[2] + random.nextGaussian(),
+                               state[3] + random.nextGaussian() };
+
+                batch.measurementModel = new DefaultMeasurementModel( MatrixUtils.createRealIdentityMatrix( 4 ),
+                                                                      MatrixUtils.createRealDiagonalMatrix( r ) );
+                batch.correct( z );
+                for( int i = 0; i < 4; i++ ) {
+                    commonsSequential.correct( i, z[i], r[i] );
+                    kernelSequential.correct( i, z[i], r[i] );
+                }
+            }
+
+            assertArrayEquals( batch.getStateEstimation(), commonsSequential.getStateEstimation() );
+            assertArrayEquals( flatten( batch.getErrorCovariance() ), flatten( commonsSequential.getErrorCovariance() ) );
+            assertArrayEquals( batch.getStateEstimation(), kernelSequential.getStateEstimation( state ) );
+            assertArrayEquals( flatten( batch.getErrorCovariance() ), kernelSequential.getErrorCovariance( covariance ) );
+        }
+    }
+
+    @Test
+    public void sequentialPositionUpdatesMatchJointUpdate() {
+        KalmanFilterKernel joint = new KalmanFilterKernel();
+        KalmanFilterKernel sequential = new KalmanFilterKernel();
+        for( KalmanFilterKernel kernel : new KalmanFilterKernel[] { joint, sequential } ) {
+            kernel.setState( 1d, 2d, 3d, 4d );
+            kernel.setErrorCovariance( new double[] { 9d, 1d, 2d, 0.5d, 1d, 8d, 0.3d, 1.5d, 2d, 0.3d, 4d, 0.2d, 0.5d, 1.5d, 0.2d, 3d } );
+            kernel.setProcessModel( 0.1d, ACCELERATION_VARIANCE );
+            kernel.predict( 0.5d, -0.5d );
+        }
+        joint.setMeasurementNoise( 16d, 25d );
+        joint.correct( 3d, -1d );
+        sequential.correct( 0, 3d, 16d );
+        sequential.correct( 1, -1d, 25d );
+
+        assertArrayEquals( joint.getStateEstimation( new double[4] ), sequential.getStateEstimation( new double[4] ) );
+        assertArrayEquals( joint.getErrorCovariance( new double[16] ), sequential.getErrorCovariance( new double[16] ) );
+    }
+
+    @Test
+    public void steadyStateFollowsFullRecursion() {
+        Random random = new Random( 7 );
+        KalmanFilterKernel full = new KalmanFilterKernel();
+        KalmanFilterKernel steady = new KalmanFilterKernel();
+        for( KalmanFilterKernel kernel : new KalmanFilterKernel[] { full, steady } ) {
+            kernel.setState( 0d, 0d, 1d, 1d );
+            kernel.setErrorCovariance( 5d );
+            kernel.setMeasurementNoise( 16d, 16d );
+        }
+        steady.enableSteadyState( 1e-6d, 0.05d );
+
+        double[] expected = new double[4];
+        double[] actual = new double[4];
+        int steadyCorrections = 0;
+        for( int fix = 0; fix < 500; fix++ ) {
+            for( int step = 0; step < 50; step++ ) {
+                double dt = 0.02d;
+                double ax = random.nextGaussian() * 0.1d;
+                double ay = random.nextGaussian() * 0.1d;
+                full.setProcessModel( dt, ACCELERATION_VARIANCE );
+                full.predict( ax, ay );
+                steady.setProcessModel( dt, ACCELERATION_VARIANCE );
+                steady.predict( ax, ay );
+            }
+            if( fix == 250 ) {
+                // a worse fix leaves the steady state, the prior is rebuilt from the cycle
+                assertTrue( steady.isSteadyState() );
+                assertArrayEquals( full.getErrorCovariance( new double[16] ), steady.getErrorCovariance( new double[16] ), 1e-4d );
+                full.setMeasurementNoise( 64d, 64d );
+                steady.setMeasurementNoise( 64d, 64d );
+            }
+            double z0 = fix + random.nextGaussian() * 4d;
+            double z1 = fix + random.nextGaussian() * 4d;
+            steadyCorrections += steady.isSteadyState() ? 1 : 0;
+            full.correct( z0, z1 );
+            steady.correct( z0, z1 );
+            if( fix == 250 ) {
+                assertFalse( steady.isSteadyState() );
+            }
+
+            assertArrayEquals( full.getStateEstimation( expected ), steady.getStateEstimation( actual ), 1e-4d );
+        }
+        // and converges again under the new noise
+        assertTrue( steadyCorrections > 150 );
+        assertTrue( steady.isSteadyState() );
+    }
+
+    private static DefaultProcessModel processModel( double dt, double[] x, double positionNoise ) {
+        double[][] a = { { 1, 0, dt, 0 }, { 0, 1, 0, dt }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } };
+        double[][] b = { { dt * dt / 2d, 0 }, { 0, dt * dt / 2d }, { dt, 0 }, { 0, dt } };
+        double[][] q = { { Math.pow( dt, 4d ) / 4d, 0d, Math.pow( dt, 3d ) / 2d, 0d },
+                         { 0d, Math.pow( dt, 4d ) / 4d, 0d, Math.pow( dt, 3d ) / 2d },
+                         { Math.pow( dt, 3d ) / 2d, 0d, Math.pow( dt, 2d ), 0d },
+                         { 0d, Math.pow( dt, 3d ) / 2d, 0d, Math.pow( dt, 2d ) } };
+        RealMatrix p = MatrixUtils.createRealIdentityMatrix( 4 ).scalarMultiply( positionNoise );
+        return new DefaultProcessModel( new Array2DRowRealMatrix( a ),
+                                        new Array2DRowRealMatrix( b ),
+                                        new Array2DRowRealMatrix( q ).scalarMultiply( ACCELERATION_VARIANCE ),
+                                        x == null ? null : new ArrayRealVector( x ),
+                                        p );
+    }
+
+    private static DefaultMeasurementModel measurementModel( double positionNoise ) {
+        return new DefaultMeasurementModel( new double[][] { { 1d, 0d, 0d, 0d }, { 0d, 1d, 0d, 0d } },
+                                            new double[][] { { positionNoise * positionNoise, 0d }, { 0d, positionNoise * positionNoise } } );
+    }
+
+    private static double square( double value ) {
+        return value * value;
+    }
+
+    private static double[] flatten( double[][] matrix ) {
+        double[] result = new double[matrix.length * matrix[0].length];
+        for( int i = 0; i < matrix.length; i++ ) {
+            System.arraycopy( matrix[i], 0, result, i * matrix[0].length, matrix[0].length );
+        }
+        return result;
+    }
+
+    private static void assertArrayEquals( double[] expected, double[] actual ) {
+        assertArrayEquals( expected, actual, 1e-9 );
+    }
+
+    private static void assertArrayEquals( double[] expected, double[] actual, double tolerance ) {
+        for( int i = 0; i < expected.length; i++ ) {
+            assertEquals( expected[i], actual[i], tolerance * Math.max( 1d, Math.abs( expected[i] ) ) );
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+import static org.junit.Assert.*;
+
+public class LazyKalmanFilterModelTest {
+
+    private static final int SENSOR_PERIOD = 20;
+    private static final int SENSORS_PER_FIX = 50;
+
+    @Test
+    public void lateFixesMatchTimestampOrder() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            LazyKalmanFilterModel ordered = create( engine, 0 );
+            LazyKalmanFilterModel late = create( engine, 1024 );
+            // every fix shows up 7 sensor items after its timestamp
+            feed( ordered, late, 7, 20 );
+
+            assertEquals( 18, late.getRollbacks() );
+            assertEquals( 0, late.getUnordered() );
+            assertArrayEquals( engine.name(), ordered.getStateEstimation(), late.getStateEstimation() );
+        }
+    }
+
+    @Test
+    public void fixesOlderThanTheHistoryAreAppliedOnArrival() {
+        LazyKalmanFilterModel ordered = create( KalmanFilterEngine.KERNEL, 0 );
+        LazyKalmanFilterModel late = create( KalmanFilterEngine.KERNEL, 16 );
+        feed( ordered, late, 40, 5 );
+
+        assertEquals( 0, late.getRollbacks() );
+        assertEquals( 3, late.getUnordered() );
+    }
+
+    @Test
+    public void smootherFollowsLateFixes() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            LazyKalmanFilterModel ordered = create( engine, 0, 4 );
+            LazyKalmanFilterModel late = create( engine, 1024, 4 );
+            Random random = new Random( 42 );
+            GpsItem held = null;
+            long timestamp = 0L;
+            for( int fix = 1; fix < 20; fix++ ) {
+                for( int i = 0; i < SENSORS_PER_FIX; i++ ) {
+                    timestamp += SENSOR_PERIOD;
+                    SensorItem sensor = new SensorItem( random.nextGaussian() * 0.2d, random.nextGaussian() * 0.2d, 4F, timestamp );
+                    ordered.addInput( sensor );
+                    late.addInput( sensor );
+                }
+                GpsItem gps = new GpsItem( 42.6977d + fix * 2e-5d + random.nextGaussian() * 2e-5d,
+                                           23.3219d + fix * 1e-5d + random.nextGaussian() * 2e-5d,
+                                           550d,
+                                           5d,
+                                           0.5d,
+                                           4d,
+                                           timestamp + SENSOR_PERIOD / 2 );
+                ordered.correct( gps );
+                // every odd fix shows up after the next one
+                if( fix % 2 == 1 ) {
+                    held = gps;
+                } else {
+                    late.correct( gps );
+                    late.correct( held );
+                }
+            }
+            late.correct( held );
+
+            // the steps after each late fix are dropped and redone in order
+            assertEquals( 9, late.getRollbacks() );
+            FixedLagSmoother expected = ordered.getSmoother();
+            FixedLagSmoother actual = late.getSmoother();
+            assertTrue( actual.isReady() );
+            assertEquals( expected.getSmoothedTimestamp(), actual.getSmoothedTimestamp() );
+            assertArrayEquals( engine.name(), expected.getSmoothedState( new double[4] ), actual.getSmoothedState( new double[4] ) );
+        }
+    }
+
+    @Test
+    public void smootherFollowsTheProjectionOrigin() {
+        LocalTangentPlane reference = new LocalTangentPlane( 42.6977d, 23.3219d );
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            // due north at 400 m/s, past the anchor distance halfway through
+            LazyKalmanFilterModel lazy = new LazyKalmanFilterModel( engine.create( fix( reference, 0L ) ), 0L, 1024, 4 );
+            FixedLagSmoother smoother = lazy.getSmoother();
+            double[] smoothed = new double[4];
+            int checked = 0;
+            for( int second = 1; second <= 50; second++ ) {
+                for( int i = 1; i <= 10; i++ ) {
+                    lazy.addInput( new SensorItem( 0d, 0d, 3F, ( second - 1 ) * 1000L + i * 100L ) );
+                }
+                lazy.correct( fix( reference, second * 1000L ) );
+                if( second >= 10 && smoother.isReady() ) {
+                    // the window is in the frame of the filter, whichever origin its steps were added with
+                    LocalTangentPlane projection = lazy.getModel().getProjection();
+                    long timestamp = smoother.getSmoothedTimestamp();
+                    smoother.getSmoothedState( smoothed );
+                    assertEquals( engine.name(), reference.toLatitude( 0.4d * timestamp ), projection.toLatitude( smoothed[0] ), 1e-5d );
+                    assertEquals( engine.name(), 400d, smoothed[2], 0.5d );
+                    checked++;
+                }
+            }
+            assertTrue( engine.name(), lazy.getModel().getProjection().getOriginLatitude() > 42.7d );
+            assertEquals( engine.name(), 41, checked );
+        }
+    }
+
+    @Test
+    public void deferredPropagationMatchesEagerPrediction() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            LazyKalmanFilterModel lazy = create( engine, 0 );
+            // predicts every window of 5 sensor items, as the worker does with lazy prediction off
+            IKalmanFilterModel eager = engine.create( initial() );
+            ImuPreIntegrator window = new ImuPreIntegrator( 0L );
+
+            Random random = new Random( 42 );
+            long timestamp = 0L;
+            for( int fix = 1; fix < 10; fix++ ) {
+                for( int i = 0; i < SENSORS_PER_FIX; i++ ) {
+                    timestamp += SENSOR_PERIOD;
+                    SensorItem sensor = new SensorItem( random.nextGaussian() * 0.2d, random.nextGaussian() * 0.2d, 4F, timestamp );
+                    lazy.addInput( sensor );
+                    window.integrate( sensor );
+                    if( window.getSampleCount() == 5 ) {
+                        eager.predict( window );
+                        window.reset( timestamp );
+                    }
+                }
+                assertEquals( SENSORS_PER_FIX, lazy.getPendingCount() );
+
+                GpsItem gps = new GpsItem( 42.6977d + fix * 2e-5d, 23.3219d + fix * 1e-5d, 550d, 5d, 0.5d, 4d, timestamp );
+                eager.updateMeasurementModel( gps );
+                assertArrayEquals( engine.name(), eager.correct( gps ), lazy.correct( gps ) );
+                assertEquals( 0, lazy.getPendingCount() );
+            }
+        }
+    }
+
+    @Test
+    public void predictToExtrapolatesWithoutConsumingPendingInputs() {
+        for( KalmanFilterEngine engine : KalmanFilterEngine.values() ) {
+            LazyKalmanFilterModel lazy = create( engine, 0 );
+            Random random = new Random( 42 );
+            for( long timestamp = SENSOR_PERIOD; timestamp <= 30 * SENSOR_PERIOD; timestamp += SENSOR_PERIOD ) {
+                lazy.addInput( new SensorItem( 0.5d + random.nextGaussian() * 0.2d, -0.3d + random.nextGaussian() * 0.2d, 4F, timestamp ) );
+            }
+            double[] before = lazy.getModel().getStateEstimation().clone();
+            long end = lazy.getTimestamp();
+
+            double[] atEnd = lazy.predictTo( end, new double[before.length] );
+            double[] later = lazy.predictTo( end + 500, new double[before.length] );
+            assertEquals( 30, lazy.getPendingCount() );
+            assertArrayEquals( engine.name(), before, lazy.getModel().getStateEstimation() );
+
+            // the same state as propagating the pending inputs, then constant velocity for 0.5 s
+            double[] state = lazy.getStateEstimation();
+            assertEquals( 0, lazy.getPendingCount() );
+            assertArrayEquals( engine.name(), state, atEnd );
+            double[] expected = state.clone();
+            expected[0] += 0.5d * state[2];
+            expected[1] += 0.5d * state[3];
+            if( state.length > 5 ) {
+                expected[4] += 0.5d * state[5];
+            }
+            assertArrayEquals( engine.name(), expected, later );
+        }
+    }
+
+    private static GpsItem initial() {
+        return new GpsItem( 42.6977d, 23.3219d, 550d, 5d, 0.5d, 4d, 0L );
+    }
+
+    private static LazyKalmanFilterModel create( KalmanFilterEngine engine, int historyCapacity ) {
+        return create( engine, historyCapacity, 0 );
+    }
+
+    private static LazyKalmanFilterModel create( KalmanFilterEngine engine, int historyCapacity, int smoothingLag ) {
+        GpsItem initial = initial();
+        return new LazyKalmanFilterModel( engine.create( initial ), initial.timestamp, historyCapacity, smoothingLag );
+    }
+
+    // an exact fix at 400 m/s due north, timestamp milliseconds after the reference origin
+    private static GpsItem fix( LocalTangentPlane reference, long timestamp ) {
+        return new GpsItem( reference.toLatitude( 0.4d * timestamp ), reference.getOriginLongitude(), 550d, 400d, 0d, 3d, timestamp );
+    }
+
+    // feeds the first model in timestamp order and the second with every fix delayed by the given sensor items
+    private static void feed( LazyKalmanFilterModel ordered, LazyKalmanFilterModel late, int delay, int fixes ) {
+        Random random = new Random( 42 );
+        GpsItem pending = null;
+        int pendingDelay = 0;
+        long timestamp = 0L;
+        for( int fix = 1; fix < fixes; fix++ ) {
+            for( int i = 0; i < SENSORS_PER_FIX; i++ ) {
+                timestamp += SENSOR_PERIOD;
+                SensorItem sensor = new SensorItem( random.nextGaussian() * 0.2d, random.nextGaussian() * 0.2d, 4F, timestamp );
+                ordered.addInput( sensor );
+                late.addInput( sensor );
+                if( pending != null && --pendingDelay == 0 ) {
+                    late.correct( pending );
+                    pending = null;
+                }
+            }
+            // a fix halfway between two sensor items
+            GpsItem gps = new GpsItem( 42.6977d + fix * 2e-5d + random.nextGaussian() * 2e-5d,
+                                       23.3219d + fix * 1e-5d + random.nextGaussian() * 2e-5d,
+                                       550d + random.nextGaussian(),
+                                       5d,
+                                       0.5d,
+                                       3d + random.nextDouble() * 5d,
+                                       timestamp + SENSOR_PERIOD / 2 );
+            ordered.correct( gps );
+            pending = gps;
+            pendingDelay = delay;
+        }
+        // the last fix has no later sensor items, so it is in order
+        if( pending != null ) {
+            late.correct( pending );
+        }
+    }
+
+    private static void assertArrayEquals( String message, double[] expected, double[] actual ) {
+        assertEquals( message, expected.length, actual.length );
+        for( int i = 0; i < expected.length; i++ ) {
+            assertEquals( message, expected[i], actual[i], 1e-6d * Math.max( 1d, Math.abs( expected[i] ) ) );
+        }
+    }
+}
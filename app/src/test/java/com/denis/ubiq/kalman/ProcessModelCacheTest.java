@@ -0,0 +1,86 @@
+package com.denis.ubiq.kalman;
+
+import org.apache.commons.math3.linear.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProcessModelCacheTest {
+
+    private static final double RESOLUTION = 0.001d;
+
+    @Test
+    public void countsHitsAndMisses() {
+        TransitionMatrixCache cache = new TransitionMatrixCache( 16 );
+        RealMatrix first = cache.get( 0.02d );
+        assertSame( first, cache.get( 0.02d ) );
+        cache.get( 0.03d );
+        cache.get( 0.02d );
+        assertEquals( 2, cache.getHits() );
+        assertEquals( 2, cache.getMisses() );
+        assertEquals( 2, cache.created );
+
+        cache.clear();
+        assertEquals( 0, cache.getHits() );
+        assertEquals( 0, cache.getMisses() );
+        assertNotSame( first, cache.get( 0.02d ) );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    @Test
+    public void quantizesDtToTheResolution() {
+        TransitionMatrixCache cache = new TransitionMatrixCache( 16 );
+        RealMatrix matrix = cache.get( 0.0201d );
+        // built for the quantized step, and shared by every dt rounding to it
+        assertEquals( 0.02d, matrix.getEntry( 0, 2 ), 0d );
+        assertSame( matrix, cache.get( 0.0196d ) );
+        assertSame( matrix, cache.get( 0.020499d ) );
+        assertNotSame( matrix, cache.get( 0.0206d ) );
+        assertEquals( 0.021d, cache.get( 0.0206d ).getEntry( 0, 2 ), 1e-15 );
+        assertEquals( RESOLUTION, cache.getResolution(), 0d );
+    }
+
+    @Test
+    public void aCollidingDtOverwritesItsSlot() {
+        // 4 slots, the steps of 5 and 9 ms land in the same one
+        TransitionMatrixCache cache = new TransitionMatrixCache( 3 );
+        RealMatrix five = cache.get( 0.005d );
+        RealMatrix nine = cache.get( 0.009d );
+        assertEquals( 0.005d, five.getEntry( 0, 2 ), 1e-15 );
+        assertEquals( 0.009d, nine.getEntry( 0, 2 ), 1e-15 );
+        assertEquals( 2, cache.getMisses() );
+
+        // the slot now holds 9 ms, so 5 ms is created again rather than served the wrong matrix
+        RealMatrix again = cache.get( 0.005d );
+        assertNotSame( five, again );
+        assertEquals( 0.005d, again.getEntry( 0, 2 ), 1e-15 );
+        assertEquals( 3, cache.getMisses() );
+        assertEquals( 0.009d, cache.get( 0.009d ).getEntry( 1, 3 ), 1e-15 );
+        assertEquals( 0, cache.getHits() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsANonPositiveResolution() {
+        new ProcessModelCache<RealMatrix>( 16, 0d ) {
+            @Override
+            protected RealMatrix create( double dt ) {
+                return null;
+            }
+        };
+    }
+
+    private static class TransitionMatrixCache extends ProcessModelCache<RealMatrix> {
+
+        int created;
+
+        TransitionMatrixCache( int capacity ) {
+            super( capacity, RESOLUTION );
+        }
+
+        @Override
+        protected RealMatrix create( double dt ) {
+            created++;
+            return new Array2DRowRealMatrix( new double[][] { { 1, 0, dt, 0 }, { 0, 1, 0, dt }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } } );
+        }
+    }
+}
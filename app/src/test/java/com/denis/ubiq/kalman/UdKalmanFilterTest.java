@@ -0,0 +1,146 @@
+package com.denis.ubiq.kalman;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UdKalmanFilterTest {
+
+    private static final double ACCELERATION_VARIANCE = 0.01d;
+
+    @Test
+    public void longRandomizedRunFollowsDoubleReference() {
+        Random random = new Random( 20 );
+        KalmanFilterKernel reference = new KalmanFilterKernel();
+        UdKalmanFilter filter = new UdKalmanFilter();
+        reference.setState( 10d, -5d, 1d, 0.5d );
+        filter.setState( 10d, -5d, 1d, 0.5d );
+        reference.setErrorCovariance( 25d );
+        filter.setErrorCovariance( 25d );
+
+        double[] truth = { 10d, -5d, 1d, 0.5d };
+        double[] expectedState = new double[4];
+        double[] actualState = new double[4];
+        double[] expectedCovariance = new double[16];
+        double[] actualCovariance = new double[16];
+        for( int step = 0; step < 200000; step++ ) {
+            double dt = 0.005d + random.nextDouble() * 0.015d;
+            // pulled back towards the origin, as the projection does by recentering
+            double ax = random.nextGaussian() - 0.01d * truth[0] - 0.2d * truth[2];
+            double ay = random.nextGaussian() - 0.01d * truth[1] - 0.2d * truth[3];
+            truth[0] += dt * truth[2] + dt * dt / 2d * ax;
+            truth[1] += dt * truth[3] + dt * dt / 2d * ay;
+            truth[2] += dt * ax;
+            truth[3] += dt * ay;
+
+            if( step % 1000 == 999 ) {
+                // an explicit process noise that is not rank one, as the pre-integrated input has
+                double q11 = 1e-4d * random.nextDouble();
+                double q13 = 1e-4d * random.nextDouble();
+                double q33 = 1e-3d + 1e-3d * random.nextDouble();
+                reference.setProcessModel( dt, q11, q13, q33 );
+                filter.setProcessModel( dt, q11, q13, q33 );
+            } else {
+                reference.setProcessModel( dt, ACCELERATION_VARIANCE );
+                filter.setProcessModel( dt, ACCELERATION_VARIANCE );
+            }
+            reference.predict( ax, ay );
+            filter.predict( ax, ay );
+
+            if( step % 100 == 99 ) {
+                double noise = 1d + random.nextDouble() * 15d;
+                double z0 = truth[0] + random.nextGaussian() * noise;
+                double z1 = truth[1] + random.nextGaussian() * noise;
+                reference.correct( 0, z0, noise * noise );
+                reference.correct( 1, z1, noise * noise );
+                filter.correct( 0, z0, noise * noise );
+                filter.correct( 1, z1, noise * noise );
+                if( random.nextBoolean() ) {
+                    double z2 = truth[2] + random.nextGaussian() * 0.5d;
+                    double z3 = truth[3] + random.nextGaussian() * 0.5d;
+                    reference.correct( 2, z2, 0.25d );
+                    reference.correct( 3, z3, 0.25d );
+                    filter.correct( 2, z2, 0.25d );
+                    filter.correct( 3, z3, 0.25d );
+                }
+            }
+
+            if( step % 97 == 0 ) {
+                assertFollows( reference.getStateEstimation( expectedState ),
+                               reference.getErrorCovariance( expectedCovariance ),
+                               filter.getStateEstimation( actualState ),
+                               filter.getErrorCovariance( actualCovariance ) );
+            }
+        }
+        for( int i = 0; i < 4; i++ ) {
+            assertTrue( filter.getDiagonalFactor( i ) > 0d );
+        }
+    }
+
+    @Test
+    public void staysPositiveDefiniteWithVeryAccurateMeasurements() {
+        Random random = new Random( 7 );
+        KalmanFilterKernel reference = new KalmanFilterKernel();
+        UdKalmanFilter filter = new UdKalmanFilter();
+        // a vague prior against centimetre fixes, the conditioning a float covariance does not survive
+        reference.setErrorCovariance( 1e6d );
+        filter.setErrorCovariance( 1e6d );
+
+        double[] expectedState = new double[4];
+        double[] actualState = new double[4];
+        double[] expectedCovariance = new double[16];
+        double[] actualCovariance = new double[16];
+        for( int step = 0; step < 10000; step++ ) {
+            double dt = 0.001d + random.nextDouble() * 0.01d;
+            reference.setProcessModel( dt, 1e-6d );
+            filter.setProcessModel( dt, 1e-6d );
+            reference.predict( 0d, 0d );
+            filter.predict( 0d, 0d );
+            if( step % 10 == 0 ) {
+                double z0 = random.nextGaussian() * 0.01d;
+                double z1 = random.nextGaussian() * 0.01d;
+                reference.correct( 0, z0, 1e-4d );
+                reference.correct( 1, z1, 1e-4d );
+                filter.correct( 0, z0, 1e-4d );
+                filter.correct( 1, z1, 1e-4d );
+            }
+
+            for( int i = 0; i < 4; i++ ) {
+                assertTrue( filter.getDiagonalFactor( i ) >= 0d );
+            }
+            assertFollows( reference.getStateEstimation( expectedState ),
+                           reference.getErrorCovariance( expectedCovariance ),
+                           filter.getStateEstimation( actualState ),
+                           filter.getErrorCovariance( actualCovariance ) );
+        }
+    }
+
+    @Test
+    public void factorsAndRestoresCovariance() {
+        double[] covariance = { 9d, 1d, 2d, 0.5d, 1d, 8d, 0.3d, 1.5d, 2d, 0.3d, 4d, 0.2d, 0.5d, 1.5d, 0.2d, 3d };
+        UdKalmanFilter filter = new UdKalmanFilter();
+        filter.setState( 1d, 2d, 3d, 4d );
+        filter.setErrorCovariance( covariance );
+        assertArrayEquals( covariance, filter.getErrorCovariance( new double[16] ), 1e-6d );
+
+        double[] snapshot = new double[UdKalmanFilter.SNAPSHOT_SIZE];
+        filter.saveState( snapshot, 0 );
+        UdKalmanFilter restored = new UdKalmanFilter();
+        restored.restoreState( snapshot, 0 );
+        assertArrayEquals( filter.getStateEstimation( new double[4] ), restored.getStateEstimation( new double[4] ), 0d );
+        assertArrayEquals( filter.getErrorCovariance( new double[16] ), restored.getErrorCovariance( new double[16] ), 0d );
+    }
+
+    // the state within a hundredth of a standard deviation, the covariance within a thousandth of the variances
+    private static void assertFollows( double[] expectedState, double[] expectedCovariance, double[] actualState, double[] actualCovariance ) {
+        for( int i = 0; i < 4; i++ ) {
+            assertEquals( expectedState[i], actualState[i], 1e-2d * Math.sqrt( expectedCovariance[i * 5] ) );
+            for( int j = 0; j < 4; j++ ) {
+                double scale = Math.sqrt( expectedCovariance[i * 5] * expectedCovariance[j * 5] );
+                assertEquals( expectedCovariance[i * 4 + j], actualCovariance[i * 4 + j], 1e-3d * scale );
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.denis.ubiq.logging;
+
+import java.io.*;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.logging.AsyncLogger.OverflowPolicy;
+import com.denis.ubiq.replay.LogRecordParser;
+
+import static org.junit.Assert.*;
+
+public class AsyncLoggerTest {
+
+    @Test
+    public void writesEveryRecordFromConcurrentProducers() throws Exception {
+        StringWriter output = new StringWriter();
+        final AsyncLogger logger = new AsyncLogger( 64, OverflowPolicy.BLOCK, output );
+        final int count = 10000;
+
+        Thread gps = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                for( int i = 0; i < count; i++ ) {
+                    logger.log( LogFormat.LOCATION, "GPS", "gps", i, 42.69, 23.32, 4d, 1.2, 87d );
+                }
+            }
+        } );
+        gps.start();
+        for( int i = 0; i < count; i++ ) {
+            logger.log( LogFormat.ACCELERATION, "LinearAcceleration", i, 0.12, -0.03, 4d, 0d, 0d );
+        }
+        gps.join();
+        logger.close();
+
+        LogRecordParser parser = new LogRecordParser();
+        BufferedReader reader = new BufferedReader( new StringReader( output.toString() ) );
+        int sensorItems = 0;
+        int gpsItems = 0;
+        String line;
+        while( ( line = reader.readLine() ) != null ) {
+            TimestampItem item = parser.parse( line );
+            if( item instanceof SensorItem ) {
+                assertEquals( 0.12, ( ( SensorItem ) item ).eastAcceleration, 0d );
+                sensorItems++;
+            } else if( item instanceof GpsItem ) {
+                assertEquals( 87d, ( ( GpsItem ) item ).course, 0d );
+                gpsItems++;
+            }
+        }
+        assertEquals( count, sensorItems );
+        assertEquals( count, gpsItems );
+        assertEquals( 0, logger.getDropped() );
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final StringWriter output = new StringWriter();
+        Writer stalled = new Writer() {
+            @Override
+            public void write( char[] buffer, int offset, int length ) throws IOException {
+                try {
+                    release.await();
+                } catch( InterruptedException e ) {
+                    throw new InterruptedIOException();
+                }
+                output.write( buffer, offset, length );
+            }
+
+            @Override
+            public void flush() { }
+
+            @Override
+            public void close() { }
+        };
+
+        AsyncLogger logger = new AsyncLogger( 4, OverflowPolicy.DROP, stalled );
+        int written = 0;
+        for( int i = 0; i < 100; i++ ) {
+            if( logger.log( LogFormat.STATE, "KalmanPredict", i, 1d, 2d, 3d, 4d, 0d ) ) {
+                written++;
+            }
+        }
+        release.countDown();
+        logger.close();
+
+        assertTrue( written <= 2 * logger.getCapacity() );
+        assertEquals( 100 - written, logger.getDropped() );
+        assertTrue( output.toString().contains( "AsyncLogger: dropped " ) );
+    }
+
+    @Test
+    public void flushesOnceTheRingIsDrained() throws Exception {
+        final CountDownLatch writing = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final int[] calls = new int[2];
+        Writer counting = new Writer() {
+            @Override
+            public void write( char[] buffer, int offset, int length ) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch( InterruptedException e ) {
+                    throw new InterruptedIOException();
+                }
+                calls[0]++;
+            }
+
+            @Override
+            public void flush() {
+                calls[1]++;
+            }
+
+            @Override
+            public void close() { }
+        };
+
+        AsyncLogger logger = new AsyncLogger( 1024, OverflowPolicy.BLOCK, counting );
+        logger.log( LogFormat.STATE, "KalmanPredict", 0, 1d, 2d, 3d, 4d, 0d );
+        writing.await();
+        // a burst piles up behind the stalled write
+        for( int i = 1; i < 1000; i++ ) {
+            logger.log( LogFormat.STATE, "KalmanPredict", i, 1d, 2d, 3d, 4d, 0d );
+        }
+        release.countDown();
+        logger.close();
+
+        // the first record, then the burst in batches of 256, flushed once drained and once on close
+        assertEquals( 5, calls[0] );
+        assertEquals( 2, calls[1] );
+    }
+}
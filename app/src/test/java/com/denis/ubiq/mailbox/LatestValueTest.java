@@ -0,0 +1,68 @@
+package com.denis.ubiq.mailbox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatestValueTest {
+
+    @Test
+    public void keepsOnlyTheLatestValue() {
+        LatestValue value = new LatestValue( 2 );
+        assertFalse( value.poll() );
+
+        for( int i = 1; i <= 3; i++ ) {
+            value.edit()[0] = i;
+            value.edit()[1] = -i;
+            value.publish();
+        }
+        assertTrue( value.poll() );
+        assertEquals( 3d, value.get()[0], 0d );
+        assertEquals( -3d, value.get()[1], 0d );
+        assertFalse( value.poll() );
+        // still readable until the next poll
+        assertEquals( 3d, value.get()[0], 0d );
+
+        value.edit()[0] = 4;
+        value.edit()[1] = -4;
+        value.publish();
+        assertTrue( value.poll() );
+        assertEquals( -4d, value.get()[1], 0d );
+    }
+
+    @Test
+    public void neverTearsAValueAcrossThreads() throws Exception {
+        final LatestValue value = new LatestValue( 4 );
+        final int count = 2000000;
+        Thread producer = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                for( int i = 1; i <= count; i++ ) {
+                    double[] slot = value.edit();
+                    for( int j = 0; j < slot.length; j++ ) {
+                        slot[j] = i;
+                    }
+                    value.publish();
+                }
+            }
+        } );
+        producer.start();
+
+        double last = 0d;
+        int polls = 0;
+        while( last < count ) {
+            if( value.poll() ) {
+                double[] slot = value.get();
+                for( int j = 1; j < slot.length; j++ ) {
+                    assertEquals( slot[0], slot[j], 0d );
+                }
+                assertTrue( slot[0] > last );
+                last = slot[0];
+                polls++;
+            }
+        }
+        producer.join();
+        assertTrue( polls > 0 );
+        assertFalse( value.poll() );
+    }
+}
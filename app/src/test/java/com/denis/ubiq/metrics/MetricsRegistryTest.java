@@ -0,0 +1,127 @@
+package com.denis.ubiq.metrics;
+
+import java.io.*;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.denis.ubiq.logging.AsyncLogger;
+import com.denis.ubiq.logging.AsyncLogger.OverflowPolicy;
+import com.denis.ubiq.replay.LatencyRecorder;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void percentilesStayWithinTheirBucket() {
+        Random random = new Random( 21 );
+        LatencyHistogram histogram = new MetricsRegistry().histogram( "latency" );
+        LatencyRecorder exact = new LatencyRecorder();
+        for( int i = 0; i < 100000; i++ ) {
+            // log-normal around 10 microseconds, with a long tail
+            long latency = ( long ) Math.exp( 9.2d + random.nextGaussian() * 1.5d );
+            histogram.record( latency );
+            exact.record( latency );
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals( exact.getCount(), snapshot.getCount() );
+        assertEquals( exact.getMean(), snapshot.getMean(), 1e-6d * exact.getMean() );
+        assertEquals( exact.getMax(), snapshot.getMax() );
+        for( double percentile : new double[] { 50d, 99d, 99.9d, 100d } ) {
+            long expected = exact.getPercentile( percentile );
+            long actual = snapshot.getPercentile( percentile );
+            assertTrue( actual >= expected );
+            assertTrue( actual <= expected + expected / LatencyHistogram.SUB_BUCKETS );
+        }
+    }
+
+    @Test
+    public void bucketsCoverTheLongRange() {
+        long previous = -1L;
+        for( long value : new long[] { 0L, 1L, 7L, 8L, 15L, 16L, 1000L, 1L << 40, Long.MAX_VALUE } ) {
+            int index = LatencyHistogram.indexOf( value );
+            assertTrue( value <= LatencyHistogram.upperBoundOf( index ) );
+            assertTrue( index == 0 || value > LatencyHistogram.upperBoundOf( index - 1 ) );
+            assertTrue( index > previous );
+            previous = index;
+        }
+        assertEquals( Long.MAX_VALUE, LatencyHistogram.upperBoundOf( LatencyHistogram.indexOf( Long.MAX_VALUE ) ) );
+    }
+
+    @Test
+    public void countsEveryRecordFromConcurrentThreads() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        final Counter counter = registry.counter( "events" );
+        final LatencyHistogram histogram = registry.histogram( "latency" );
+        final int count = 100000;
+        Thread[] threads = new Thread[4];
+        for( int t = 0; t < threads.length; t++ ) {
+            // the counter is shared by all threads, the histogram has a single writer
+            final boolean writer = t == 0;
+            threads[t] = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    for( int i = 0; i < count; i++ ) {
+                        counter.increment();
+                        if( writer ) {
+                            histogram.record( i );
+                        }
+                    }
+                }
+            } );
+            threads[t].start();
+        }
+        // snapshots taken while recording never see more than was recorded
+        long previous = 0L;
+        while( threads[0].isAlive() ) {
+            long recorded = histogram.snapshot().getCount();
+            assertTrue( recorded >= previous && recorded <= count );
+            previous = recorded;
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertSame( counter, registry.counter( "events" ) );
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals( threads.length * count, snapshot.getCount( 0 ) );
+        assertEquals( count, snapshot.getHistogram( "latency" ).getCount() );
+        assertEquals( count - 1, snapshot.getHistogram( "latency" ).getMax() );
+    }
+
+    @Test
+    public void samplesOneSectionPerPeriod() {
+        LatencyHistogram histogram = new MetricsRegistry().histogram( "latency", 8 );
+        int sampled = 0;
+        for( int i = 0; i < 64; i++ ) {
+            if( histogram.sample() ) {
+                assertEquals( 0, i % 8 );
+                sampled++;
+            }
+        }
+        assertEquals( 8, sampled );
+    }
+
+    @Test
+    public void reportsOneLinePerMetric() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter( "kalman.gpsFixes" ).add( 3 );
+        Gauge gauge = registry.gauge( "kalman.sensorQueueDepth" );
+        gauge.set( 12 );
+        gauge.set( 4 );
+        registry.histogram( "kalman.predict" ).record( 1000 );
+
+        StringWriter output = new StringWriter();
+        AsyncLogger logger = new AsyncLogger( 16, OverflowPolicy.BLOCK, output );
+        new MetricsReporter( registry, logger ).report( registry.snapshot(), 1L );
+        logger.close();
+
+        String[] lines = output.toString().split( "\n" );
+        assertEquals( 3, lines.length );
+        assertTrue( lines[0].endsWith( ", 1, Metric(kalman.gpsFixes): count=3.0" ) );
+        assertTrue( lines[1].endsWith( ", 1, Metric(kalman.sensorQueueDepth): value=4.0; max=12.0" ) );
+        assertTrue( lines[2].endsWith( ", 1, Metric(kalman.predict): count=1.0; mean=1000.0; p50=1000.0; p99=1000.0; p999=1000.0" ) );
+    }
+}
@@ -0,0 +1,140 @@
+package com.denis.ubiq.orientation;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QuaternionComplementaryFilterTest {
+
+    private static final long PERIOD = 30000000L;
+    private static final float[] IDENTITY = { 1f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 1f };
+
+    @Test
+    public void takesTheQuaternionOfAnyRotationMatrix() {
+        Random random = new Random( 3 );
+        float[] matrix = new float[9];
+        float[] expected = new float[4];
+        float[] actual = new float[4];
+        for( int i = 0; i < 10000; i++ ) {
+            // covers every branch of the conversion, including rotations by nearly half a turn
+            float[] q = axisAngle( random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, ( float ) ( random.nextFloat() * Math.PI ) );
+            QuaternionComplementaryFilter reference = initialized( q );
+            QuaternionComplementaryFilter filter = new QuaternionComplementaryFilter( 0.98f, PERIOD );
+            filter.correct( reference.getRotationMatrix( matrix ), 1L );
+            assertSameRotation( reference.getQuaternion( expected ), filter.getQuaternion( actual ), 1e-5f );
+        }
+    }
+
+    @Test
+    public void integratesTheGyroscopeAroundTheDeviceAxes() {
+        QuaternionComplementaryFilter filter = new QuaternionComplementaryFilter( 0.98f, PERIOD );
+        filter.integrateGyro( 1f, 1f, 1f, 1L );
+        assertArrayEquals( new float[] { 0f, 0f, 0f, 1f }, filter.getQuaternion( new float[4] ), 0f );
+
+        filter.correct( IDENTITY, 1L );
+        float[] axis = { 0.4f, -0.8f, 0.2f };
+        // one radian per second for a second, at 200 Hz, from the event before the filter was initialized
+        for( int step = 1; step <= 200; step++ ) {
+            filter.integrateGyro( axis[0] / norm( axis ), axis[1] / norm( axis ), axis[2] / norm( axis ), 1L + step * 5000000L );
+        }
+        assertSameRotation( axisAngle( axis[0], axis[1], axis[2], 1f ), filter.getQuaternion( new float[4] ), 1e-5f );
+    }
+
+    @Test
+    public void staysExactThroughPitchingStraightUp() {
+        QuaternionComplementaryFilter filter = initialized( axisAngle( 0f, 0f, 1f, 0.5f ) );
+        // a quarter turn per second around the device x axis, then yawing while vertical
+        long timestamp = 1000000000L;
+        filter.integrateGyro( 0f, 0f, 0f, timestamp );
+        for( int step = 0; step < 200; step++ ) {
+            filter.integrateGyro( ( float ) Math.PI / 2f, 0f, 0f, timestamp += 5000000L );
+        }
+        float[] orientation = filter.getOrientation( new float[3] );
+        assertEquals( -Math.PI / 2d, orientation[1], 1e-3d );
+        for( int step = 0; step < 200; step++ ) {
+            filter.integrateGyro( 0f, 1f, 0f, timestamp += 5000000L );
+        }
+
+        float[] expected = multiply( multiply( axisAngle( 0f, 0f, 1f, 0.5f ), axisAngle( 1f, 0f, 0f, ( float ) Math.PI / 2f ) ), axisAngle( 0f, 1f, 0f, 1f ) );
+        assertSameRotation( expected, filter.getQuaternion( new float[4] ), 1e-4f );
+        float[] q = filter.getQuaternion( new float[4] );
+        assertEquals( 1f, norm( q ), 1e-6f );
+    }
+
+    @Test
+    public void reportsTheAnglesOfSensorManager() {
+        float[] orientation = initialized( axisAngle( 0f, 0f, 1f, 0.3f ) ).getOrientation( new float[3] );
+        // getOrientation: azimuth = atan2(R[1], R[4]), pitch = asin(-R[7]), roll = atan2(-R[6], R[8])
+        assertEquals( -0.3f, orientation[0], 1e-6f );
+        assertEquals( 0f, orientation[1], 1e-6f );
+        assertEquals( 0f, orientation[2], 1e-6f );
+
+        orientation = initialized( axisAngle( 0f, 1f, 0f, 0.2f ) ).getOrientation( new float[3] );
+        assertEquals( 0f, orientation[0], 1e-6f );
+        assertEquals( 0.2f, orientation[2], 1e-6f );
+    }
+
+    @Test
+    public void decaysTowardsTheAccMagOrientationAtTheSameRateForAnySampling() {
+        float[] target = axisAngle( 0.3f, 0.2f, 1f, 1f );
+        float[] matrix = initialized( target ).getRotationMatrix( new float[9] );
+        long[] intervals = { 5000000L, PERIOD, 100000000L };
+        for( long interval : intervals ) {
+            QuaternionComplementaryFilter filter = new QuaternionComplementaryFilter( 0.98f, PERIOD );
+            filter.correct( IDENTITY, 1L );
+            // 300 ms of corrections, ten periods
+            for( long timestamp = 1L + interval; timestamp <= 1L + 10 * PERIOD; timestamp += interval ) {
+                filter.correct( matrix, timestamp );
+            }
+            float[] q = filter.getQuaternion( new float[4] );
+            float dot = q[0] * target[0] + q[1] * target[1] + q[2] * target[2] + q[3] * target[3];
+            float remaining = 2f * ( float ) Math.acos( Math.min( 1f, Math.abs( dot ) ) );
+            assertEquals( Math.pow( 0.98d, 10d ), remaining, 1e-3d );
+        }
+    }
+
+    private static QuaternionComplementaryFilter initialized( float[] q ) {
+        // drives a filter from identity to q with a single gyroscope step
+        QuaternionComplementaryFilter filter = new QuaternionComplementaryFilter( 0.98f, PERIOD );
+        filter.correct( IDENTITY, 1L );
+        float angle = 2f * ( float ) Math.acos( Math.min( 1f, q[3] ) );
+        float sin = ( float ) Math.sin( angle / 2f );
+        if( sin > 1e-6f ) {
+            filter.integrateGyro( 0f, 0f, 0f, 1L );
+            filter.integrateGyro( q[0] / sin * angle, q[1] / sin * angle, q[2] / sin * angle, 1000000001L );
+        }
+        return filter;
+    }
+
+    private static float[] axisAngle( float x, float y, float z, float angle ) {
+        float norm = norm( new float[] { x, y, z } );
+        float sin = ( float ) Math.sin( angle / 2f ) / norm;
+        return new float[] { x * sin, y * sin, z * sin, ( float ) Math.cos( angle / 2f ) };
+    }
+
+    private static float[] multiply( float[] a, float[] b ) {
+        return new float[] {
+            a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1],
+            a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0],
+            a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3],
+            a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2] };
+    }
+
+    private static float norm( float[] v ) {
+        float sum = 0f;
+        for( float value : v ) {
+            sum += value * value;
+        }
+        return ( float ) Math.sqrt( sum );
+    }
+
+    // q and -q are the same rotation
+    private static void assertSameRotation( float[] expected, float[] actual, float delta ) {
+        float sign = expected[0] * actual[0] + expected[1] * actual[1] + expected[2] * actual[2] + expected[3] * actual[3] < 0f ? -1f : 1f;
+        for( int i = 0; i < 4; i++ ) {
+            assertEquals( expected[i], sign * actual[i], delta );
+        }
+    }
+}
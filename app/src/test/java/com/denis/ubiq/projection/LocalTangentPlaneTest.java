@@ -0,0 +1,92 @@
+package com.denis.ubiq.projection;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.kalman.*;
+import com.denis.ubiq.utils.CalculationUtils;
+
+import static org.junit.Assert.*;
+
+public class LocalTangentPlaneTest {
+
+    private static final double LATITUDE = 42.6977d;
+    private static final double LONGITUDE = 23.3219d;
+
+    @Test
+    public void roundTrip() {
+        Random random = new Random( 7 );
+        LocalTangentPlane projection = new LocalTangentPlane( LATITUDE, LONGITUDE );
+        int count = 1000;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for( int i = 0; i < count; i++ ) {
+            latitudes[i] = LATITUDE + ( random.nextDouble() - 0.5d ) * 0.2d;
+            longitudes[i] = LONGITUDE + ( random.nextDouble() - 0.5d ) * 0.2d;
+        }
+
+        double[] north = new double[count];
+        double[] east = new double[count];
+        projection.toLocal( latitudes, longitudes, north, east, count );
+        double[] roundTripLatitudes = new double[count];
+        double[] roundTripLongitudes = new double[count];
+        projection.toGeodetic( north, east, roundTripLatitudes, roundTripLongitudes, count );
+
+        for( int i = 0; i < count; i++ ) {
+            assertEquals( north[i], projection.toNorth( latitudes[i] ), 0d );
+            assertEquals( east[i], projection.toEast( latitudes[i], longitudes[i] ), 0d );
+            assertEquals( latitudes[i], roundTripLatitudes[i], 1e-9 );
+            assertEquals( longitudes[i], roundTripLongitudes[i], 1e-9 );
+        }
+    }
+
+    @Test
+    public void matchesGreatCircleDistance() {
+        Random random = new Random( 11 );
+        LocalTangentPlane projection = new LocalTangentPlane( LATITUDE, LONGITUDE );
+        for( int i = 0; i < 1000; i++ ) {
+            double latitude = LATITUDE + ( random.nextDouble() - 0.5d ) * 0.15d;
+            double longitude = LONGITUDE + ( random.nextDouble() - 0.5d ) * 0.15d;
+            double north = projection.toNorth( latitude );
+            double east = projection.toEast( latitude, longitude );
+
+            double distance = CalculationUtils.calculateDistance( LATITUDE, LONGITUDE, latitude, longitude );
+            // the great circle distance is on a sphere, which is within half a percent of the ellipsoid
+            assertEquals( distance, Math.sqrt( north * north + east * east ), distance * 0.005d );
+        }
+    }
+
+    @Test
+    public void wrapsAroundTheAntimeridian() {
+        LocalTangentPlane projection = new LocalTangentPlane( -17.7d, 179.99d );
+        double east = projection.toEast( -17.7d, -179.99d );
+        assertEquals( 0.02d * 111320d * Math.cos( Math.toRadians( 17.7d ) ), east, 5d );
+        assertEquals( -179.99d, projection.toLongitude( 0d, east ), 1e-9 );
+    }
+
+    @Test
+    public void filterFollowsTheAnchor() {
+        IKalmanFilterModel model = KalmanFilterEngine.KERNEL.create( new GpsItem( LATITUDE, LONGITUDE, 0d, 0d, 0d, 3d, 0L ) );
+        double latitude = LATITUDE;
+        double longitude = LONGITUDE;
+        double[] state = null;
+        for( int i = 1; i <= 300; i++ ) {
+            latitude += 0.001d;
+            longitude += 0.001d;
+            // fixes without a speed, only the positions move the filter
+            GpsItem item = new GpsItem( latitude, longitude, 0d, Double.NaN, Double.NaN, 3d, i * 1000L );
+            model.updateProcessModel( new SensorItem( 0d, 0d, 3F, item.timestamp ) );
+            model.predict( new SensorItem( 0d, 0d, 3F, item.timestamp ) );
+            model.updateMeasurementModel( item );
+            state = model.correct( item );
+        }
+
+        LocalTangentPlane projection = model.getProjection();
+        assertTrue( projection.getOriginLatitude() > LATITUDE + 0.2d );
+        assertFalse( projection.isFar( state[0], state[1] ) );
+        assertEquals( latitude, projection.toLatitude( state[0] ), 1e-5 );
+        assertEquals( longitude, projection.toLongitude( state[0], state[1] ), 1e-5 );
+    }
+}
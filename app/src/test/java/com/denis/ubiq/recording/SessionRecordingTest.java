@@ -0,0 +1,131 @@
+package com.denis.ubiq.recording;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+
+import static org.junit.Assert.*;
+
+public class SessionRecordingTest {
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = File.createTempFile( "session", ".ubiq" );
+        // spans several mapped regions, with late GPS fixes giving negative deltas
+        int count = SessionRecordingWriter.REGION_SIZE / SessionRecordingFormat.SENSOR_RECORD_SIZE * 2 + 100;
+        long base = 1539856502310L;
+        long length = SessionRecordingFormat.HEADER_SIZE;
+        try {
+            try( SessionRecordingWriter writer = new SessionRecordingWriter( file ) ) {
+                for( int i = 0; i < count; i++ ) {
+                    long timestamp = base + 10L * i;
+                    if( i % 100 == 50 ) {
+                        writer.writeGps( 42.69 + i * 1e-6, 23.32, 550d, 1.2, 87d, 4d, timestamp - 25 );
+                        length += SessionRecordingFormat.GPS_RECORD_SIZE;
+                    } else if( i % 100 == 99 ) {
+                        writer.writeState( new double[] { i, -i, 0.5, 0.25 }, timestamp );
+                        length += SessionRecordingFormat.HEAD_SIZE + 4 * 8;
+                    } else {
+                        writer.writeSensor( 0.01 * i, -0.01 * i, 3F, timestamp );
+                        length += SessionRecordingFormat.SENSOR_RECORD_SIZE;
+                    }
+                }
+            }
+            assertEquals( length, file.length() );
+
+            SensorItem sensorItem = new SensorItem( 0d, 0d, 0F, 0L );
+            GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+            try( SessionRecordingReader reader = new SessionRecordingReader( file ) ) {
+                assertEquals( count, reader.getRecordCount() );
+                int i = 0;
+                while( reader.next() ) {
+                    long timestamp = base + 10L * i;
+                    if( i % 100 == 50 ) {
+                        assertEquals( SessionRecordingFormat.GPS, reader.getType() );
+                        reader.getGpsItem( gpsItem );
+                        assertEquals( timestamp - 25, gpsItem.timestamp );
+                        assertEquals( 42.69 + i * 1e-6, gpsItem.latitude, 0d );
+                        assertEquals( 550d, gpsItem.altitude, 0d );
+                        assertEquals( 4d, gpsItem.positionNoise, 0d );
+                    } else if( i % 100 == 99 ) {
+                        assertEquals( SessionRecordingFormat.STATE, reader.getType() );
+                        assertEquals( 4, reader.getFieldCount() );
+                        assertEquals( timestamp, reader.getTimestamp() );
+                        assertEquals( -i, reader.getField( 1 ), 0d );
+                    } else {
+                        assertEquals( SessionRecordingFormat.SENSOR, reader.getType() );
+                        reader.getSensorItem( sensorItem );
+                        assertEquals( timestamp, sensorItem.timestamp );
+                        // sensor fields are stored as floats
+                        assertEquals( ( float ) ( 0.01 * i ), sensorItem.eastAcceleration, 0d );
+                        assertEquals( ( float ) ( -0.01 * i ), reader.getField( 1 ), 0d );
+                        assertEquals( 3F, sensorItem.positionNoise, 0F );
+                    }
+                    i++;
+                }
+                assertEquals( count, i );
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writesTheWholeStateOrNothing() throws IOException {
+        File file = File.createTempFile( "session", ".ubiq" );
+        try {
+            try( SessionRecordingWriter writer = new SessionRecordingWriter( file ) ) {
+                // the state of DECOUPLED_3D, with the altitude axis
+                writer.writeState( new double[] { 1d, 2d, 3d, 4d, 550d, 0.5d }, 1000L );
+                try {
+                    writer.writeState( new double[SessionRecordingFormat.MAX_FIELDS + 1], 1010L );
+                    fail( "a state that does not fit was written" );
+                } catch( IllegalArgumentException e ) {
+                    // nothing of it is in the recording
+                }
+                assertEquals( 1, writer.getRecordCount() );
+            }
+            assertEquals( SessionRecordingFormat.HEADER_SIZE + SessionRecordingFormat.HEAD_SIZE + 6 * 8, file.length() );
+
+            try( SessionRecordingReader reader = new SessionRecordingReader( file ) ) {
+                assertTrue( reader.next() );
+                assertEquals( 6, reader.getFieldCount() );
+                assertEquals( 550d, reader.getField( 4 ), 0d );
+                assertEquals( 0.5d, reader.getField( 5 ), 0d );
+                assertFalse( reader.next() );
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsAnUnclosedRecordingUpToItsLastRecord() throws IOException {
+        File file = File.createTempFile( "session", ".ubiq" );
+        try {
+            SessionRecordingWriter writer = new SessionRecordingWriter( file );
+            writer.writeSensor( 0.5, -0.5, 3F, 1000L );
+            writer.writeGps( 42.69, 23.32, 550d, 1.2, 87d, 4d, 990L );
+            writer.writeSensor( 0.25, -0.25, 3F, 1010L );
+            // the record count is only written on close, the rest of the region is empty
+
+            GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+            try( SessionRecordingReader reader = new SessionRecordingReader( file ) ) {
+                assertTrue( reader.next() );
+                assertEquals( SessionRecordingFormat.SENSOR, reader.getType() );
+                assertTrue( reader.next() );
+                assertEquals( 42.69, reader.getGpsItem( gpsItem ).latitude, 0d );
+                assertEquals( 990L, gpsItem.timestamp );
+                assertTrue( reader.next() );
+                assertEquals( 1010L, reader.getTimestamp() );
+                assertEquals( 0.25, reader.getField( 0 ), 0d );
+                assertFalse( reader.next() );
+            }
+            writer.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.denis.ubiq.replay;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.kalman.*;
+import com.denis.ubiq.recording.*;
+
+import static org.junit.Assert.*;
+
+public class ReplayEngineTest {
+
+    private static final String LOG = "10:15:02.290, 980, LinearAcceleration: eastAcceleration=0.5 northAcceleration=0.1 noise=4.0;\n"
+                                      + "10:15:02.300, 1000, GPS(gps): latitude=42.69; longitude=23.32; accuracy=4.0; speed=1.2; bearing=87.0\n"
+                                      + "10:15:02.310, 1010, LinearAcceleration: eastAcceleration=0.12 northAcceleration=-0.03 noise=4.0;\n"
+                                      + "10:15:02.320, 1020, LinearAcceleration: eastAcceleration=0.2 northAcceleration=-0.1 noise=4.0;\n"
+                                      + "some unrelated line\n"
+                                      + "10:15:02.330, 1030, LinearAcceleration: eastAcceleration=0.1 northAcceleration=0.2 noise=4.0;\n"
+                                      + "10:15:02.340, 1015, GPS(gps): latitude=42.6901; longitude=23.3201; accuracy=5.0; speed=1.3; bearing=88.0\n"
+                                      + "10:15:02.350, 1040, LinearAcceleration: eastAcceleration=-0.3 northAcceleration=0.0 noise=4.0;\n";
+
+    @Test
+    public void rollsLateFixesIntoTimestampOrder() throws IOException {
+        ReplayEngine replayEngine = new ReplayEngine( KalmanFilterEngine.KERNEL );
+        replayEngine.replay( new BufferedReader( new StringReader( LOG ) ) );
+
+        // the late fix is applied between the sensor items at 1010 and 1020, as if it had arrived in order
+        LazyKalmanFilterModel model = new LazyKalmanFilterModel( KalmanFilterEngine.KERNEL.create( new GpsItem( 42.69, 23.32, 0d, 1.2, 87.0, 4.0, 1000 ) ), 1000 );
+        model.addInput( new SensorItem( 0.12, -0.03, 4F, 1010 ) );
+        model.correct( new GpsItem( 42.6901, 23.3201, 0d, 1.3, 88.0, 5.0, 1015 ) );
+        model.addInput( new SensorItem( 0.2, -0.1, 4F, 1020 ) );
+        model.addInput( new SensorItem( 0.1, 0.2, 4F, 1030 ) );
+        model.addInput( new SensorItem( -0.3, 0d, 4F, 1040 ) );
+
+        assertEquals( 7, replayEngine.getRecords() );
+        assertEquals( 1, replayEngine.getSkipped() );
+        assertEquals( 4, replayEngine.getPredictLatency().getCount() );
+        assertEquals( 1, replayEngine.getCorrectLatency().getCount() );
+        assertEquals( 1, replayEngine.getModel().getRollbacks() );
+        assertArrayEquals( model.getStateEstimation(), replayEngine.getStateEstimation(), 1e-9 );
+        assertTrue( replayEngine.getThroughput() > 0d );
+    }
+
+    @Test
+    public void holdsLateFixesBackWithoutHistory() throws IOException {
+        ReplayEngine heldBack = new ReplayEngine( KalmanFilterEngine.KERNEL, 0 );
+        heldBack.replay( new BufferedReader( new StringReader( LOG ) ) );
+        ReplayEngine rolledBack = new ReplayEngine( KalmanFilterEngine.KERNEL );
+        rolledBack.replay( new BufferedReader( new StringReader( LOG ) ) );
+
+        // the merge puts the late fix in place before the filter sees it
+        assertEquals( 0, heldBack.getModel().getRollbacks() );
+        assertArrayEquals( rolledBack.getStateEstimation(), heldBack.getStateEstimation(), 1e-9 );
+    }
+
+    @Test
+    public void replaysBinaryRecording() throws IOException {
+        File file = File.createTempFile( "session", ".ubiq" );
+        try {
+            try( SessionRecordingWriter writer = new SessionRecordingWriter( file ) ) {
+                assertEquals( 7, LogConverter.convert( new BufferedReader( new StringReader( LOG ) ), writer ) );
+            }
+            ReplayEngine fromText = new ReplayEngine( KalmanFilterEngine.KERNEL );
+            fromText.replay( new BufferedReader( new StringReader( LOG ) ) );
+
+            ReplayEngine fromRecording = new ReplayEngine( KalmanFilterEngine.KERNEL );
+            try( SessionRecordingReader reader = new SessionRecordingReader( file ) ) {
+                fromRecording.replay( reader );
+            }
+
+            assertEquals( fromText.getRecords(), fromRecording.getRecords() );
+            // the recording keeps the accelerations as floats
+            assertArrayEquals( fromText.getStateEstimation(), fromRecording.getStateEstimation(), 1e-6 );
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.denis.ubiq.sensors;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorHubTest {
+
+    private static final int ACCELEROMETER = 1;
+    private static final int GYROSCOPE = 4;
+    private static final int ROTATION_VECTOR = 11;
+    private static final int MISSING = 20;
+
+    @Test
+    public void registersEachSensorOnceAtTheFastestRequestedRate() {
+        FakeSensorSource source = new FakeSensorSource();
+        SensorHub hub = new SensorHub( source );
+        RecordingConsumer orientation = new RecordingConsumer();
+        RecordingConsumer kalman = new RecordingConsumer();
+
+        assertTrue( hub.subscribe( ACCELEROMETER, 20000, kalman ) );
+        assertTrue( hub.subscribe( ACCELEROMETER, 5000, orientation ) );
+        assertTrue( hub.subscribe( ACCELEROMETER, 5000, orientation ) );
+        assertTrue( hub.subscribe( GYROSCOPE, 5000, orientation ) );
+        assertEquals( Arrays.asList( "start 1 20000", "start 1 5000", "start 4 5000" ), source.calls );
+        assertEquals( 5000, hub.getPeriodUs( ACCELEROMETER ) );
+
+        // back to the slower rate, and only stopped with the last consumer
+        hub.unsubscribe( orientation );
+        assertEquals( Arrays.asList( "start 1 20000", "start 1 5000", "start 4 5000", "start 1 20000", "stop 4" ), source.calls );
+        hub.unsubscribe( kalman );
+        assertEquals( "stop 1", source.calls.get( source.calls.size() - 1 ) );
+        assertEquals( -1, hub.getPeriodUs( ACCELEROMETER ) );
+        assertEquals( -1, hub.getPeriodUs( GYROSCOPE ) );
+    }
+
+    @Test
+    public void fansEventsOutToTheConsumersOfTheirType() {
+        FakeSensorSource source = new FakeSensorSource();
+        SensorHub hub = new SensorHub( source );
+        RecordingConsumer orientation = new RecordingConsumer();
+        RecordingConsumer kalman = new RecordingConsumer();
+        hub.subscribe( ACCELEROMETER, 0, orientation );
+        hub.subscribe( GYROSCOPE, 0, orientation );
+        hub.subscribe( ACCELEROMETER, 0, kalman );
+        hub.subscribe( ROTATION_VECTOR, 0, kalman );
+
+        source.emit( ACCELEROMETER, 100L, 0.1f, 0.2f, 9.8f );
+        source.emit( GYROSCOPE, 110L, 0.01f, 0f, -0.02f );
+        source.emit( ROTATION_VECTOR, 120L, 0f, 0f, 0.6f, 0.8f, 0.1f );
+        // nobody asked for it
+        source.emit( MISSING, 130L, 1f );
+
+        assertEquals( Arrays.asList( "1 100 [0.1, 0.2, 9.8]", "4 110 [0.01, 0.0, -0.02]" ), orientation.events );
+        assertEquals( Arrays.asList( "1 100 [0.1, 0.2, 9.8]", "11 120 [0.0, 0.0, 0.6, 0.8, 0.1]" ), kalman.events );
+
+        hub.unsubscribe( orientation );
+        source.emit( ACCELEROMETER, 140L, 0f, 0f, 9.8f );
+        assertEquals( 2, orientation.events.size() );
+        assertEquals( 3, kalman.events.size() );
+    }
+
+    @Test
+    public void reusesOneSamplePerType() {
+        FakeSensorSource source = new FakeSensorSource();
+        SensorHub hub = new SensorHub( source );
+        final List<SensorSample> samples = new ArrayList<>();
+        SensorHub.Consumer consumer = new SensorHub.Consumer() {
+            @Override
+            public void onSensorEvent( SensorSample sample ) {
+                samples.add( sample );
+            }
+        };
+        hub.subscribe( ACCELEROMETER, 0, consumer );
+        hub.subscribe( GYROSCOPE, 0, consumer );
+        for( int i = 0; i < 3; i++ ) {
+            source.emit( ACCELEROMETER, i, i, 0f, 0f );
+            source.emit( GYROSCOPE, i, 0f, i, 0f );
+        }
+        assertSame( samples.get( 0 ), samples.get( 2 ) );
+        assertSame( samples.get( 1 ), samples.get( 5 ) );
+        assertNotSame( samples.get( 0 ), samples.get( 1 ) );
+        assertEquals( 2f, samples.get( 0 ).values[0], 0f );
+    }
+
+    @Test
+    public void refusesMissingSensors() {
+        FakeSensorSource source = new FakeSensorSource();
+        SensorHub hub = new SensorHub( source );
+        RecordingConsumer consumer = new RecordingConsumer();
+        assertFalse( hub.subscribe( MISSING, 0, consumer ) );
+        assertEquals( -1, hub.getPeriodUs( MISSING ) );
+        hub.dispatch( MISSING, new float[] { 1f }, 1L );
+        assertTrue( consumer.events.isEmpty() );
+    }
+
+    @Test
+    public void aRefusedRestartKeepsThePreviousRate() {
+        FakeSensorSource source = new FakeSensorSource();
+        SensorHub hub = new SensorHub( source );
+        RecordingConsumer orientation = new RecordingConsumer();
+        RecordingConsumer kalman = new RecordingConsumer();
+        assertTrue( hub.subscribe( ACCELEROMETER, 20000, kalman ) );
+
+        source.minPeriodUs = 10000;
+        assertFalse( hub.subscribe( ACCELEROMETER, 5000, orientation ) );
+        assertEquals( Arrays.asList( "start 1 20000", "refuse 1 5000", "start 1 20000" ), source.calls );
+        assertEquals( 20000, hub.getPeriodUs( ACCELEROMETER ) );
+        source.emit( ACCELEROMETER, 100L, 0f, 0f, 9.8f );
+        assertEquals( 1, kalman.events.size() );
+        assertTrue( orientation.events.isEmpty() );
+
+        // a consumer asking for a rate it cannot get keeps the one it had
+        assertFalse( hub.subscribe( ACCELEROMETER, 5000, kalman ) );
+        assertTrue( hub.subscribe( ACCELEROMETER, 40000, orientation ) );
+        assertEquals( 20000, hub.getPeriodUs( ACCELEROMETER ) );
+    }
+
+    @Test
+    public void aSensorLostOnRestartIsReportedStopped() {
+        FakeSensorSource source = new FakeSensorSource();
+        SensorHub hub = new SensorHub( source );
+        RecordingConsumer kalman = new RecordingConsumer();
+        assertTrue( hub.subscribe( ACCELEROMETER, 20000, kalman ) );
+
+        source.minPeriodUs = Integer.MAX_VALUE;
+        assertFalse( hub.subscribe( ACCELEROMETER, 5000, new RecordingConsumer() ) );
+        assertEquals( Arrays.asList( "start 1 20000", "refuse 1 5000", "refuse 1 20000" ), source.calls );
+        assertEquals( -1, hub.getPeriodUs( ACCELEROMETER ) );
+
+        // started again once the source takes it
+        source.minPeriodUs = 0;
+        assertTrue( hub.subscribe( ACCELEROMETER, 20000, kalman ) );
+        assertEquals( 20000, hub.getPeriodUs( ACCELEROMETER ) );
+    }
+
+    // the sensors of a device without MISSING, events are emitted on the calling thread
+    private static class FakeSensorSource implements SensorSource {
+
+        final List<String> calls = new ArrayList<>();
+        // faster rates are refused, as a registration the platform turns down
+        int minPeriodUs;
+        private SensorHub hub;
+
+        @Override
+        public boolean start( int type, int periodUs, SensorHub hub ) {
+            if( type == MISSING ) {
+                return false;
+            }
+            if( periodUs < minPeriodUs ) {
+                calls.add( "refuse " + type + " " + periodUs );
+                return false;
+            }
+            this.hub = hub;
+            calls.add( "start " + type + " " + periodUs );
+            return true;
+        }
+
+        @Override
+        public void stop( int type ) {
+            calls.add( "stop " + type );
+        }
+
+        void emit( int type, long timestamp, float... values ) {
+            hub.dispatch( type, values, timestamp );
+        }
+    }
+
+    private static class RecordingConsumer implements SensorHub.Consumer {
+
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onSensorEvent( SensorSample sample ) {
+            events.add( sample.type + " " + sample.timestamp + " " + Arrays.toString( Arrays.copyOf( sample.values, sample.length ) ) );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.denis.ubiq.trail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrailTest {
+
+    private static final double METERS_PER_DEGREE = 6371 * 1000 * Math.PI / 180d;
+    private static final double LATITUDE = 42.69d;
+    private static final double LONGITUDE = 23.32d;
+
+    @Test
+    public void keepsNewestPointsAsMarkersAndOlderOnesWithinTolerance() {
+        Random random = new Random( 22 );
+        Trail trail = new Trail( 10, 1000, 2d );
+        double[][] points = randomWalk( random, 2000 );
+        for( int i = 0; i < points.length; i++ ) {
+            int slot = trail.add( points[i][0], points[i][1] );
+            assertEquals( i % 10, slot );
+            assertEquals( Math.min( i + 1, 10 ), trail.getMarkerCount() );
+        }
+
+        // every point that left the markers is within the tolerance of the polyline
+        assertEquals( 2d, trail.getTolerance(), 0d );
+        for( int i = 0; i < points.length - 10; i++ ) {
+            assertTrue( distanceToPolyline( trail, points[i] ) <= 2d + 1e-6d );
+        }
+        assertTrue( trail.getPointCount() < ( points.length - 10 ) / 2 );
+        // and the polyline ends with the newest of them
+        int last = trail.getPointCount() - 1;
+        assertEquals( points[points.length - 11][0], trail.getPointLatitude( last ), 0d );
+        assertEquals( points[points.length - 11][1], trail.getPointLongitude( last ), 0d );
+    }
+
+    @Test
+    public void staysBoundedOverLongSessions() {
+        Random random = new Random( 5 );
+        Trail trail = new Trail( 10, 100, 1d );
+        double[][] points = randomWalk( random, 100000 );
+        for( double[] point : points ) {
+            trail.add( point[0], point[1] );
+            assertTrue( trail.getPointCount() <= 101 );
+        }
+
+        // coarsened on the way, every re-simplification adds at most its own tolerance to the earlier ones
+        assertTrue( trail.getTolerance() > 1d );
+        for( int i = 0; i < points.length - 10; i += 7 ) {
+            assertTrue( distanceToPolyline( trail, points[i] ) <= 2d * trail.getTolerance() + 1d );
+        }
+    }
+
+    @Test
+    public void coarserToleranceResimplifies() {
+        Random random = new Random( 9 );
+        Trail trail = new Trail( 1, 1000, 0.5d );
+        double[][] points = randomWalk( random, 1000 );
+        for( double[] point : points ) {
+            trail.add( point[0], point[1] );
+        }
+        int fine = trail.getPointCount();
+        int version = trail.getVersion();
+
+        trail.setTolerance( 20d );
+        assertTrue( trail.getPointCount() < fine );
+        assertNotEquals( version, trail.getVersion() );
+        for( int i = 0; i < points.length - 1; i++ ) {
+            assertTrue( distanceToPolyline( trail, points[i] ) <= 20.5d + 1e-6d );
+        }
+    }
+
+    @Test
+    public void visibleRangeCoversSegmentsNearTheBounds() {
+        Trail trail = new Trail( 1, 100, 0.1d );
+        // an L-shaped path, east then north, with a corner every 0.01 degrees
+        for( int i = 0; i <= 10; i++ ) {
+            trail.add( LATITUDE, LONGITUDE + i * 0.01d );
+            trail.add( LATITUDE + 0.001d * ( i % 2 ), LONGITUDE + i * 0.01d + 0.005d );
+        }
+        trail.add( LATITUDE, LONGITUDE );
+
+        int[] range = new int[2];
+        assertTrue( trail.getVisibleRange( LATITUDE - 0.01d, LONGITUDE + 0.031d, LATITUDE + 0.01d, LONGITUDE + 0.049d, range ) );
+        for( int i = range[0]; i <= range[1]; i++ ) {
+            assertTrue( trail.getPointLongitude( i ) >= LONGITUDE + 0.02d );
+            assertTrue( trail.getPointLongitude( i ) <= LONGITUDE + 0.06d );
+        }
+        assertTrue( trail.getPointLongitude( range[0] ) <= LONGITUDE + 0.031d );
+        assertTrue( trail.getPointLongitude( range[1] ) >= LONGITUDE + 0.049d );
+
+        assertFalse( trail.getVisibleRange( LATITUDE + 1d, LONGITUDE, LATITUDE + 2d, LONGITUDE + 1d, range ) );
+    }
+
+    // a walker at a few meters per step that changes its heading slowly
+    @Test
+    public void vertexVersionOnlyChangesWithTheVertices() {
+        Random random = new Random( 5 );
+        Trail trail = new Trail( 10, 100, 2d );
+        double[][] points = randomWalk( random, 3000 );
+        double[] cachedLatitudes = new double[100];
+        int cachedCount = 0;
+        int vertexVersion = trail.getVertexVersion();
+        int resimplifications = trail.getResimplifications();
+        int vertexChanges = 0;
+        for( double[] point : points ) {
+            trail.add( point[0], point[1] );
+            if( trail.getVertexVersion() == vertexVersion ) {
+                continue;
+            }
+            vertexVersion = trail.getVertexVersion();
+            vertexChanges++;
+            if( trail.getResimplifications() == resimplifications ) {
+                // only appended, what a layer cached is still valid
+                assertTrue( trail.getVertexCount() > cachedCount );
+                for( int i = 0; i < cachedCount; i++ ) {
+                    assertEquals( cachedLatitudes[i], trail.getPointLatitude( i ), 0d );
+                }
+            } else {
+                resimplifications = trail.getResimplifications();
+            }
+            cachedCount = trail.getVertexCount();
+            for( int i = 0; i < cachedCount; i++ ) {
+                cachedLatitudes[i] = trail.getPointLatitude( i );
+            }
+        }
+        // the newest point moves with every add, the vertices far less often
+        assertTrue( trail.getVersion() > 2 * vertexChanges );
+        assertTrue( trail.getResimplifications() > 0 );
+    }
+
+    private static double[][] randomWalk( Random random, int count ) {
+        double[][] points = new double[count][];
+        double north = 0d;
+        double east = 0d;
+        double heading = 0d;
+        for( int i = 0; i < count; i++ ) {
+            heading += random.nextGaussian() * 0.2d;
+            north += 3d * Math.cos( heading ) + random.nextGaussian();
+            east += 3d * Math.sin( heading ) + random.nextGaussian();
+            points[i] = new double[] { LATITUDE + north / METERS_PER_DEGREE, LONGITUDE + east / ( METERS_PER_DEGREE * Math.cos( Math.toRadians( LATITUDE ) ) ) };
+        }
+        return points;
+    }
+
+    private static double distanceToPolyline( Trail trail, double[] point ) {
+        double metersPerLongitude = METERS_PER_DEGREE * Math.cos( Math.toRadians( LATITUDE ) );
+        double best = Double.MAX_VALUE;
+        for( int i = 0; i < trail.getPointCount(); i++ ) {
+            int from = Math.max( 0, i - 1 );
+            double px = ( point[1] - trail.getPointLongitude( from ) ) * metersPerLongitude;
+            double py = ( point[0] - trail.getPointLatitude( from ) ) * METERS_PER_DEGREE;
+            double sx = ( trail.getPointLongitude( i ) - trail.getPointLongitude( from ) ) * metersPerLongitude;
+            double sy = ( trail.getPointLatitude( i ) - trail.getPointLatitude( from ) ) * METERS_PER_DEGREE;
+            double length2 = sx * sx + sy * sy;
+            double t = length2 > 0d ? Math.max( 0d, Math.min( 1d, ( px * sx + py * sy ) / length2 ) ) : 0d;
+            best = Math.min( best, Math.hypot( px - t * sx, py - t * sy ) );
+        }
+        return best;
+    }
+}
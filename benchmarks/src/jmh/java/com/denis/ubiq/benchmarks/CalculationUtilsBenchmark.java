@@ -0,0 +1,39 @@
+package com.denis.ubiq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.utils.CalculationUtils;
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * The haversine conversions between coordinates and meters.
+ */
+@State( Scope.Thread )
+public class CalculationUtilsBenchmark {
+
+    // not final, so the conversions cannot be constant folded
+    private double latitude = 42.6977d;
+    private double longitude = 23.3219d;
+    private double latitudeMeters = 4747800d;
+    private double longitudeMeters = 2593300d;
+
+    @Benchmark
+    public double latitudeToMeters() {
+        return CalculationUtils.latitudeToMeters( latitude );
+    }
+
+    @Benchmark
+    public double longitudeToMeters() {
+        return CalculationUtils.longitudeToMeters( longitude );
+    }
+
+    @Benchmark
+    public double calculateDistance() {
+        return CalculationUtils.calculateDistance( latitude, longitude, latitude + 0.001d, longitude + 0.001d );
+    }
+
+    @Benchmark
+    public LatLng convertMetersToLatLng() {
+        return CalculationUtils.convertMetersToLatLng( latitudeMeters, longitudeMeters );
+    }
+}
@@ -0,0 +1,57 @@
+package com.denis.ubiq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.kalman.*;
+
+/**
+ * Forward kernel step plus the smoothed state at the lag, as it runs for every IMU sample.
+ */
+@State( Scope.Thread )
+public class FixedLagSmootherBenchmark {
+
+    private static final double DT = 0.01d;
+    private static final double ACCELERATION_VARIANCE = 0.01d;
+
+    // 0.1 to 1 s behind at 100 Hz
+    @Param( { "10", "50", "100" } )
+    public int lag;
+
+    private final KalmanFilterKernel kernel = new KalmanFilterKernel();
+    private final double[] smoothed = new double[4];
+    private FixedLagSmoother smoother;
+    private long step;
+
+    @Setup( Level.Iteration )
+    public void setUp() {
+        kernel.setState( 100d, -50d, 1.5d, -0.5d );
+        kernel.setErrorCovariance( 5d );
+        kernel.setProcessModel( DT, ACCELERATION_VARIANCE );
+        kernel.setMeasurementNoise( 25d, 25d );
+        smoother = new FixedLagSmoother( lag );
+        for( step = 0; !smoother.isReady(); step++ ) {
+            kernel.predict( 0.3d, -0.2d );
+            smoother.predicted( step, DT, kernel );
+        }
+    }
+
+    @Benchmark
+    public KalmanFilterKernel kernelStep() {
+        kernel.predict( 0.3d, -0.2d );
+        if( ++step % 100 == 0 ) {
+            kernel.correct( 100.5d, -49.5d );
+        }
+        return kernel;
+    }
+
+    @Benchmark
+    public double[] smoothedStep() {
+        kernel.predict( 0.3d, -0.2d );
+        smoother.predicted( ++step, DT, kernel );
+        if( step % 100 == 0 ) {
+            kernel.correct( 100.5d, -49.5d );
+            smoother.corrected( kernel );
+        }
+        return smoother.getSmoothedState( smoothed );
+    }
+}
@@ -0,0 +1,51 @@
+package com.denis.ubiq.benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.kalman.KalmanFilterBank;
+
+/**
+ * A predict and correct pass over the whole bank; the score is per track update.
+ */
+@State( Scope.Thread )
+public class KalmanFilterBankBenchmark {
+
+    private static final int TRACKS = 65536;
+
+    private KalmanFilterBank bank;
+    private double[] zx;
+    private double[] zy;
+
+    @Setup( Level.Iteration )
+    public void setUp() {
+        Random random = new Random( 1 );
+        bank = new KalmanFilterBank();
+        zx = new double[TRACKS];
+        zy = new double[TRACKS];
+        for( int i = 0; i < TRACKS; i++ ) {
+            bank.addTrack( random.nextGaussian() * 100d, random.nextGaussian() * 100d, random.nextGaussian(), random.nextGaussian(), 5d );
+            zx[i] = random.nextGaussian() * 100d;
+            zy[i] = random.nextGaussian() * 100d;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( TRACKS )
+    public KalmanFilterBank predictAll() {
+        bank.predictAll( 0.1d, 0.01d );
+        return bank;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( TRACKS )
+    public KalmanFilterBank predictAndCorrectAll() {
+        bank.predictAll( 0.1d, 0.01d );
+        for( int track = 0; track < TRACKS; track++ ) {
+            bank.setMeasurement( track, zx[track], zy[track], 25d );
+        }
+        bank.correctAll();
+        return bank;
+    }
+}
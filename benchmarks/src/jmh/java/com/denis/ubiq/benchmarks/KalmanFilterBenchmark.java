@@ -0,0 +1,94 @@
+package com.denis.ubiq.benchmarks;
+
+import org.apache.commons.math3.filter.*;
+import org.apache.commons.math3.linear.*;
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.kalman.KalmanFilter;
+import com.denis.ubiq.kalman.KalmanFilterModel;
+
+/**
+ * The Commons Math filter as KalmanFilterModel drives it, one call at a time.
+ */
+@State( Scope.Thread )
+public class KalmanFilterBenchmark {
+
+    private static final double DT = 0.02d;
+    private static final double ACCELERATION_VARIANCE = 0.01d;
+    private static final double POSITION_NOISE = 5d;
+
+    private final double[] control = { 0.3d, -0.2d };
+    private final double[] measurement = { 100.5d, -49.5d };
+
+    private KalmanFilter filter;
+    private KalmanFilterModel model;
+    private SensorItem[] sensorItems;
+    private int next;
+
+    @Setup( Level.Iteration )
+    public void setUp() {
+        double[][] a = { { 1, 0, DT, 0 }, { 0, 1, 0, DT }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } };
+        double[][] b = { { DT * DT / 2d, 0 }, { 0, DT * DT / 2d }, { DT, 0 }, { 0, DT } };
+        double[][] q = { { Math.pow( DT, 4d ) / 4d, 0d, Math.pow( DT, 3d ) / 2d, 0d },
+                         { 0d, Math.pow( DT, 4d ) / 4d, 0d, Math.pow( DT, 3d ) / 2d },
+                         { Math.pow( DT, 3d ) / 2d, 0d, Math.pow( DT, 2d ), 0d },
+                         { 0d, Math.pow( DT, 3d ) / 2d, 0d, Math.pow( DT, 2d ) } };
+        ProcessModel processModel = new DefaultProcessModel( new Array2DRowRealMatrix( a ),
+                                                             new Array2DRowRealMatrix( b ),
+                                                             new Array2DRowRealMatrix( q ).scalarMultiply( ACCELERATION_VARIANCE ),
+                                                             new ArrayRealVector( new double[] { 100d, -50d, 1.5d, -0.5d } ),
+                                                             MatrixUtils.createRealIdentityMatrix( 4 ).scalarMultiply( POSITION_NOISE ) );
+        MeasurementModel measurementModel = new DefaultMeasurementModel( new double[][] { { 1d, 0d, 0d, 0d }, { 0d, 1d, 0d, 0d } },
+                                                                         new double[][] { { POSITION_NOISE * POSITION_NOISE, 0d },
+                                                                                          { 0d, POSITION_NOISE * POSITION_NOISE } } );
+        filter = new KalmanFilter( processModel, measurementModel );
+
+        model = new KalmanFilterModel( new GpsItem( 42.69d, 23.32d, 0d, 1.2d, 87d, POSITION_NOISE, 0L ) );
+        // dt varies between 15 and 25 ms, as with a sensor delivered at 50 Hz
+        sensorItems = new SensorItem[1024];
+        long timestamp = 0L;
+        for( int i = 0; i < sensorItems.length; i++ ) {
+            timestamp += 15 + i % 11;
+            sensorItems[i] = new SensorItem( 0.3d, -0.2d, 5F, timestamp );
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public KalmanFilter predict() {
+        filter.predict( control );
+        return filter;
+    }
+
+    @Benchmark
+    public KalmanFilter correct() {
+        filter.correct( measurement );
+        return filter;
+    }
+
+    @Benchmark
+    public KalmanFilter predictAndCorrect() {
+        filter.predict( control );
+        filter.correct( measurement );
+        return filter;
+    }
+
+    @Benchmark
+    public KalmanFilterModel updateProcessModel() {
+        if( next == sensorItems.length ) {
+            // keep the timestamps increasing across the whole iteration
+            shiftTimestamps();
+        }
+        model.updateProcessModel( sensorItems[next++] );
+        return model;
+    }
+
+    private void shiftTimestamps() {
+        long offset = sensorItems[sensorItems.length - 1].timestamp;
+        for( SensorItem item : sensorItems ) {
+            item.timestamp += offset;
+        }
+        next = 0;
+    }
+}
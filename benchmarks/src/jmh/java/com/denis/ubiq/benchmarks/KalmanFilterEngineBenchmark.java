@@ -0,0 +1,41 @@
+package com.denis.ubiq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.kalman.*;
+
+/**
+ * A prediction and a correction step through {@link IKalmanFilterModel}, for every engine.
+ */
+@State( Scope.Thread )
+public class KalmanFilterEngineBenchmark {
+
+    @Param( { "COMMONS_MATH", "KERNEL", "KERNEL_STEADY_STATE", "UD_FLOAT", "DECOUPLED", "DECOUPLED_3D" } )
+    public KalmanFilterEngine engine;
+
+    private IKalmanFilterModel model;
+    private SensorItem sensorItem;
+    private GpsItem gpsItem;
+
+    @Setup( Level.Iteration )
+    public void setUp() {
+        model = engine.create( new GpsItem( 42.69d, 23.32d, 550d, 1.2d, 87d, 5d, 0L ) );
+        sensorItem = new SensorItem( 0.3d, -0.2d, 5F, 0L );
+        gpsItem = new GpsItem( 42.6901d, 23.3201d, 551d, 1.3d, 88d, 4d, 0L );
+    }
+
+    @Benchmark
+    public double[] predict() {
+        sensorItem.timestamp += 20;
+        model.updateProcessModel( sensorItem );
+        return model.predict( sensorItem );
+    }
+
+    @Benchmark
+    public double[] correct() {
+        gpsItem.timestamp += 1000;
+        model.updateMeasurementModel( gpsItem );
+        return model.correct( gpsItem );
+    }
+}
@@ -0,0 +1,55 @@
+package com.denis.ubiq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+/**
+ * The local projection that replaced the haversine conversions, see {@link CalculationUtilsBenchmark}.
+ */
+@State( Scope.Thread )
+public class LocalTangentPlaneBenchmark {
+
+    private static final int POINTS = 1024;
+
+    private final LocalTangentPlane projection = new LocalTangentPlane( 42.6977d, 23.3219d );
+    private double latitude = 42.7012d;
+    private double longitude = 23.3305d;
+    private double north = 389.5d;
+    private double east = 702.3d;
+
+    private final double[] latitudes = new double[POINTS];
+    private final double[] longitudes = new double[POINTS];
+    private final double[] northArray = new double[POINTS];
+    private final double[] eastArray = new double[POINTS];
+
+    @Setup
+    public void setUp() {
+        for( int i = 0; i < POINTS; i++ ) {
+            latitudes[i] = 42.6977d + i * 1e-5;
+            longitudes[i] = 23.3219d + i * 1e-5;
+        }
+    }
+
+    @Benchmark
+    public double toNorth() {
+        return projection.toNorth( latitude );
+    }
+
+    @Benchmark
+    public double toEast() {
+        return projection.toEast( latitude, longitude );
+    }
+
+    @Benchmark
+    public double toLongitude() {
+        return projection.toLongitude( north, east );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( POINTS )
+    public double[] toLocal() {
+        projection.toLocal( latitudes, longitudes, northArray, eastArray, POINTS );
+        return eastArray;
+    }
+}
@@ -0,0 +1,47 @@
+package com.denis.ubiq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.metrics.*;
+
+/**
+ * The cost the metrics add to a pipeline step: a timed section, sampled or not, and a counter increment.
+ */
+@State( Scope.Thread )
+public class MetricsBenchmark {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final LatencyHistogram histogram = registry.histogram( "latency" );
+    private final LatencyHistogram sampled = registry.histogram( "sampled", 64 );
+    private final Counter counter = registry.counter( "events" );
+
+    @Benchmark
+    public void timedSection() {
+        long start = System.nanoTime();
+        histogram.record( System.nanoTime() - start );
+    }
+
+    @Benchmark
+    public void sampledSection() {
+        if( sampled.sample() ) {
+            long start = System.nanoTime();
+            sampled.record( System.nanoTime() - start );
+        }
+    }
+
+    @Benchmark
+    public long clockReads() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    @Benchmark
+    public void record() {
+        histogram.record( 1234L );
+    }
+
+    @Benchmark
+    public void increment() {
+        counter.increment();
+    }
+}
@@ -0,0 +1,50 @@
+package com.denis.ubiq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.denis.ubiq.orientation.QuaternionComplementaryFilter;
+import com.denis.ubiq.utils.CalculationUtils;
+
+/**
+ * The orientation fusion for one sensor event: the rotation matrix helpers the Euler angle filter used for
+ * every gyroscope event, against the in place quaternion filter OrientationWorker now runs.
+ */
+@State( Scope.Thread )
+public class OrientationBenchmark {
+
+    private float[] orientation = { 0.3F, -0.1F, 0.05F };
+    private float[] a = CalculationUtils.getRotationMatrixFromOrientation( orientation );
+    private float[] b = CalculationUtils.getRotationMatrixFromOrientation( new float[] { -0.2F, 0.4F, 0.1F } );
+
+    private final QuaternionComplementaryFilter filter = new QuaternionComplementaryFilter( 0.98F, 30000000L );
+    private final float[] fused = new float[3];
+    private long timestamp = 1L;
+
+    @Setup
+    public void setUp() {
+        filter.correct( a, timestamp );
+    }
+
+    @Benchmark
+    public float[] matrixMultiplication() {
+        return CalculationUtils.matrixMultiplication( a, b );
+    }
+
+    @Benchmark
+    public float[] getRotationMatrixFromOrientation() {
+        return CalculationUtils.getRotationMatrixFromOrientation( orientation );
+    }
+
+    @Benchmark
+    public float[] quaternionGyroEvent() {
+        filter.integrateGyro( 0.02F, -0.01F, 0.3F, timestamp += 5000000L );
+        return filter.getOrientation( fused );
+    }
+
+    @Benchmark
+    public float[] quaternionAccMagCorrection() {
+        // alternates between two orientations, so the slerp always has an angle to cover
+        filter.correct( ( timestamp & 1L ) == 0L ? a : b, timestamp += 5000001L );
+        return filter.getOrientation( fused );
+    }
+}
@@ -0,0 +1,16 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * Stand-in for the Play Services value class, so CalculationUtils can be benchmarked off the device.
+ * Unlike the real one it does not clamp or wrap the coordinates.
+ */
+public final class LatLng {
+
+    public final double latitude;
+    public final double longitude;
+
+    public LatLng( double latitude, double longitude ) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+}
@@ -0,0 +1,145 @@
+package com.denis.ubiq.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+
+/**
+ * A {@link FusionSession} served by the connection threads of {@link IngestionServer}, which outlives its
+ * connections until it is evicted. Estimates are written back to the connection that sent the fix.
+ * <p>
+ * A reconnecting device may briefly overlap with its old connection, so records are processed under a
+ * lock; it is a {@link ReentrantLock} so that virtual threads are not pinned while the estimate is written.
+ * Attaching and evicting take the lock too, so a connection never attaches to a session that is being evicted.
+ */
+public class DeviceSession implements FusionSession.EstimateListener {
+
+    private final FusionSession session;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // the stream of the record being processed, guarded by the lock
+    private DataOutputStream out;
+
+    private volatile long lastActivity;
+    private volatile Socket socket;
+    // guarded by the lock, an evicted session takes no more connections
+    private boolean evicted;
+
+    public DeviceSession( long deviceId, KalmanFilterEngine engine, long maxGpsLateness, long now ) {
+        this.session = new FusionSession( deviceId, engine, maxGpsLateness );
+        this.lastActivity = now;
+    }
+
+    /**
+     * Makes the socket the current connection of the device, closing the previous one. Returns false if the
+     * session has been evicted, the device then needs a new one.
+     */
+    public boolean attach( Socket socket, long now ) {
+        lock.lock();
+        try {
+            if( evicted ) {
+                return false;
+            }
+            lastActivity = now;
+            Socket previous = this.socket;
+            this.socket = socket;
+            if( previous != null && previous != socket ) {
+                closeQuietly( previous );
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void detach( Socket socket ) {
+        if( this.socket == socket ) {
+            this.socket = null;
+        }
+    }
+
+    /**
+     * Evicts the session and closes its connection if nothing happened for longer than the idle timeout.
+     * A session busy with a record is not idle, so this does not wait for it.
+     */
+    public boolean evictIfIdle( long now, long idleTimeout ) {
+        if( !lock.tryLock() ) {
+            return false;
+        }
+        try {
+            if( evicted || now - lastActivity <= idleTimeout ) {
+                return false;
+            }
+            evicted = true;
+        } finally {
+            lock.unlock();
+        }
+        close();
+        return true;
+    }
+
+    /** Closes the current connection, the session can no longer be reached through it. */
+    public void close() {
+        Socket current = socket;
+        if( current != null ) {
+            closeQuietly( current );
+        }
+    }
+
+    public void onSensor( long timestamp, double eastAcceleration, double northAcceleration, float noise, DataOutputStream out, long now )
+        throws IOException {
+        lock.lock();
+        try {
+            lastActivity = now;
+            this.out = out;
+            session.onSensor( timestamp, eastAcceleration, northAcceleration, noise, this );
+        } finally {
+            this.out = null;
+            lock.unlock();
+        }
+    }
+
+    public void onGps( long timestamp,
+                       double latitude,
+                       double longitude,
+                       double altitude,
+                       double speed,
+                       double course,
+                       double noise,
+                       DataOutputStream out,
+                       long now ) throws IOException {
+        lock.lock();
+        try {
+            lastActivity = now;
+            this.out = out;
+            session.onGps( timestamp, latitude, longitude, altitude, speed, course, noise, this );
+        } finally {
+            this.out = null;
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onEstimate( FusionSession session, long timestamp, double latitude, double longitude, double velocityNorth, double velocityEast )
+        throws IOException {
+        Protocol.writeEstimate( out, timestamp, latitude, longitude, velocityNorth, velocityEast );
+    }
+
+    public long getDeviceId() {
+        return session.getDeviceId();
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    private static void closeQuietly( Socket socket ) {
+        try {
+            socket.close();
+        } catch( IOException e ) {
+            // already closed
+        }
+    }
+}
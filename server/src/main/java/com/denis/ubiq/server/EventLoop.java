@@ -0,0 +1,166 @@
+package com.denis.ubiq.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+
+/**
+ * Single thread owning the {@link FusionSession}s of the devices hashed to it by {@link ShardedEventLoops}.
+ * No other thread touches those sessions, so they are processed without locks. Records arrive through an
+ * {@link MpscMailbox} and are handled in batches; the thread parks when the mailbox is empty and is unparked
+ * by the next producer.
+ */
+class EventLoop implements Runnable, MpscMailbox.Handler {
+
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 10000000L;
+    private static final long EVICTION_INTERVAL_NANOS = 1000000000L;
+
+    private final MpscMailbox mailbox;
+    private final KalmanFilterEngine engine;
+    private final long maxGpsLateness;
+    private final long idleTimeoutNanos;
+    private final FusionSession.EstimateListener listener;
+    private final Thread thread;
+
+    // owned by the loop thread
+    private final LongHashMap<FusionSession> sessions = new LongHashMap<>();
+    private long now;
+    private long lastEviction;
+
+    private final AtomicLong processed = new AtomicLong();
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    EventLoop( String name,
+               int mailboxCapacity,
+               KalmanFilterEngine engine,
+               long maxGpsLateness,
+               long idleTimeoutNanos,
+               FusionSession.EstimateListener listener ) {
+        this.mailbox = new MpscMailbox( mailboxCapacity );
+        this.engine = engine;
+        this.maxGpsLateness = maxGpsLateness;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.listener = listener;
+        this.thread = new Thread( this, name );
+        this.thread.setDaemon( true );
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void submitSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) {
+        while( !mailbox.offerSensor( deviceId, timestamp, eastAcceleration, northAcceleration, noise ) ) {
+            waitForSpace();
+        }
+        wake();
+    }
+
+    void submitGps( long deviceId, long timestamp, double latitude, double longitude, double altitude, double speed, double course, double noise ) {
+        while( !mailbox.offerGps( deviceId, timestamp, latitude, longitude, altitude, speed, course, noise ) ) {
+            waitForSpace();
+        }
+        wake();
+    }
+
+    private void waitForSpace() {
+        if( !running ) {
+            throw new IllegalStateException( thread.getName() + " is closed" );
+        }
+        // the loop is behind, it is runnable already
+        LockSupport.unpark( thread );
+        Thread.yield();
+    }
+
+    private void wake() {
+        // the slot was published with a volatile write, and the loop sets the flag with one before it checks
+        // the mailbox a last time, so either the loop sees the message or this sees the flag
+        if( sleeping ) {
+            LockSupport.unpark( thread );
+        }
+    }
+
+    @Override
+    public void run() {
+        now = System.nanoTime();
+        lastEviction = now;
+        while( true ) {
+            // read the flag first, so the records submitted before close() are still processed
+            boolean stopping = !running;
+            int count;
+            try {
+                count = mailbox.drain( this, MAX_BATCH );
+            } catch( IOException e ) {
+                e.printStackTrace();
+                count = 1;
+            }
+            now = System.nanoTime();
+            if( count > 0 ) {
+                processed.lazySet( processed.get() + count );
+            }
+            if( now - lastEviction > EVICTION_INTERVAL_NANOS ) {
+                evictIdle();
+                lastEviction = now;
+            }
+            if( count == 0 ) {
+                if( stopping ) {
+                    return;
+                }
+                sleeping = true;
+                if( mailbox.isEmpty() && running ) {
+                    LockSupport.parkNanos( this, IDLE_PARK_NANOS );
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    @Override
+    public void onSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) throws IOException {
+        getSession( deviceId ).onSensor( timestamp, eastAcceleration, northAcceleration, noise, listener );
+    }
+
+    @Override
+    public void onGps( long deviceId, long timestamp, double latitude, double longitude, double altitude, double speed, double course, double noise )
+        throws IOException {
+        getSession( deviceId ).onGps( timestamp, latitude, longitude, altitude, speed, course, noise, listener );
+    }
+
+    private FusionSession getSession( long deviceId ) {
+        FusionSession session = sessions.get( deviceId );
+        if( session == null ) {
+            session = new FusionSession( deviceId, engine, maxGpsLateness );
+            sessions.put( deviceId, session );
+        }
+        // the time of the batch is close enough for eviction
+        session.setLastActivity( now );
+        return session;
+    }
+
+    private void evictIdle() {
+        for( int i = sessions.capacity() - 1; i >= 0; i-- ) {
+            FusionSession session = sessions.valueAt( i );
+            if( session != null && now - session.getLastActivity() > idleTimeoutNanos ) {
+                sessions.removeAt( i );
+            }
+        }
+    }
+
+    long getProcessed() {
+        return processed.get();
+    }
+
+    void close() {
+        running = false;
+        LockSupport.unpark( thread );
+        try {
+            thread.join();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
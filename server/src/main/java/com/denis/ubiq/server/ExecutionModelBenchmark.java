@@ -0,0 +1,219 @@
+package com.denis.ubiq.server;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+import com.denis.ubiq.projection.LocalTangentPlane;
+import com.denis.ubiq.replay.LatencyRecorder;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Compares the {@link SharedLockExecutor} baseline with {@link ShardedEventLoops} in process, without the network.
+ * <p>
+ * A few producer threads stand in for the connection threads. Each simulated device sends accelerometer records
+ * at its own rate between 10 and 100 Hz and a GPS fix every second, moving at a constant velocity. With a speedup
+ * of 0 the producers send as fast as the executor takes the records; otherwise device time runs that many times
+ * faster than real time. Reports the processed record rate and the latency from submitting a fix to its estimate.
+ * <pre>
+ * java com.denis.ubiq.server.ExecutionModelBenchmark [devices] [duration s] [speedup] [producers] [loops] [engine]
+ * </pre>
+ */
+public class ExecutionModelBenchmark {
+
+    private static final int MIN_RATE = 10;
+    private static final int MAX_RATE = 100;
+    private static final int FIX_PERIOD = 1000;
+    private static final int TICK = 5;
+    // fixes in flight per device
+    private static final int IN_FLIGHT = 8;
+    // release fixes as soon as they arrive, so the latency is that of the execution model alone
+    private static final long MAX_GPS_LATENESS = 0L;
+    private static final long IDLE_TIMEOUT = 60000L;
+
+    private final int devices;
+    private final double speedup;
+    private final int producers;
+    private final int[] periods;
+    private final LocalTangentPlane[] projections;
+    private final double[] velocities;
+    private final AtomicLongArray sendTimes;
+
+    public ExecutionModelBenchmark( int devices, double speedup, int producers, long seed ) {
+        this.devices = devices;
+        this.speedup = speedup;
+        this.producers = producers;
+        this.periods = new int[devices];
+        this.projections = new LocalTangentPlane[devices];
+        this.velocities = new double[devices * 2];
+        this.sendTimes = new AtomicLongArray( devices * IN_FLIGHT );
+        Random random = new Random( seed );
+        for( int i = 0; i < devices; i++ ) {
+            periods[i] = 1000 / ( MIN_RATE + random.nextInt( MAX_RATE - MIN_RATE + 1 ) );
+            projections[i] = new LocalTangentPlane( 42.6977d + ( random.nextDouble() - 0.5d ) * 0.2d,
+                                                    23.3219d + ( random.nextDouble() - 0.5d ) * 0.2d );
+            velocities[i * 2] = ( random.nextDouble() - 0.5d ) * 20d;
+            velocities[i * 2 + 1] = ( random.nextDouble() - 0.5d ) * 20d;
+        }
+    }
+
+    public static void main( String[] args ) throws InterruptedException {
+        int devices = args.length > 0 ? Integer.parseInt( args[0] ) : 5000;
+        long duration = args.length > 1 ? Long.parseLong( args[1] ) : 20;
+        double speedup = args.length > 2 ? Double.parseDouble( args[2] ) : 1d;
+        int producers = args.length > 3 ? Integer.parseInt( args[3] ) : 4;
+        int loops = args.length > 4 ? Integer.parseInt( args[4] ) : Runtime.getRuntime().availableProcessors();
+        KalmanFilterEngine engine = args.length > 5 ? KalmanFilterEngine.valueOf( args[5] ) : KalmanFilterEngine.KERNEL;
+
+        ExecutionModelBenchmark benchmark = new ExecutionModelBenchmark( devices, speedup, producers, 42L );
+        System.out.println( String.format( "devices=%d offered=%.0f records/s producers=%d cores=%d engine=%s",
+                                           devices,
+                                           benchmark.getOfferedRate(),
+                                           producers,
+                                           Runtime.getRuntime().availableProcessors(),
+                                           engine ) );
+
+        Estimates estimates = benchmark.new Estimates();
+        benchmark.run( "shared lock", new SharedLockExecutor( engine, MAX_GPS_LATENESS, estimates ), estimates, SECONDS.toNanos( duration ), System.out );
+
+        estimates = benchmark.new Estimates();
+        benchmark.run( "sharded x" + loops,
+                       new ShardedEventLoops( loops, ShardedEventLoops.DEFAULT_MAILBOX_CAPACITY, engine, MAX_GPS_LATENESS, IDLE_TIMEOUT, estimates ),
+                       estimates,
+                       SECONDS.toNanos( duration ),
+                       System.out );
+    }
+
+    /** Records per second of real time the devices send, infinite when they are not paced. */
+    public double getOfferedRate() {
+        if( speedup <= 0d ) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double rate = 0d;
+        for( int period : periods ) {
+            rate += 1000d / period + 1000d / FIX_PERIOD;
+        }
+        return rate * speedup;
+    }
+
+    public void run( String name, final FusionExecutor executor, Estimates estimates, long durationNanos, PrintStream report )
+        throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + durationNanos;
+        final AtomicLong submitted = new AtomicLong();
+        Thread[] threads = new Thread[producers];
+        for( int i = 0; i < producers; i++ ) {
+            final int producer = i;
+            threads[i] = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    submitted.addAndGet( produce( executor, producer, start, deadline ) );
+                }
+            }, "producer-" + i );
+            threads[i].start();
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+        executor.close();
+        long elapsed = System.nanoTime() - start;
+
+        report.println( String.format( "%s: elapsed=%.1fs submitted=%d processed=%d records/s=%.0f estimates=%d",
+                                       name,
+                                       elapsed / 1e9,
+                                       submitted.get(),
+                                       executor.getProcessed(),
+                                       executor.getProcessed() * 1e9 / elapsed,
+                                       estimates.getCount() ) );
+        report.println( "  fix to estimate: " + estimates.getLatency() );
+    }
+
+    // devices are dealt to producers round robin, each producer walks device time in ticks
+    private long produce( FusionExecutor executor, int producer, long start, long deadline ) {
+        Random random = new Random( producer );
+        long[] nextSensor = new long[devices];
+        long submitted = 0L;
+        long timestamp = 0L;
+        while( System.nanoTime() < deadline ) {
+            timestamp += TICK;
+            boolean fix = timestamp % FIX_PERIOD == 0;
+            for( int device = producer; device < devices; device += producers ) {
+                while( nextSensor[device] < timestamp ) {
+                    nextSensor[device] += periods[device];
+                    executor.submitSensor( device, nextSensor[device], random.nextGaussian() * 0.1d, random.nextGaussian() * 0.1d, 4F );
+                    submitted++;
+                }
+                if( fix ) {
+                    submitFix( executor, device, timestamp, random );
+                    submitted++;
+                }
+            }
+            if( speedup > 0d ) {
+                long wait = start + ( long ) ( MILLISECONDS.toNanos( timestamp ) / speedup ) - System.nanoTime();
+                if( wait > 0 ) {
+                    LockSupport.parkNanos( wait );
+                }
+            }
+        }
+        return submitted;
+    }
+
+    private void submitFix( FusionExecutor executor, int device, long timestamp, Random random ) {
+        LocalTangentPlane projection = projections[device];
+        double velocityNorth = velocities[device * 2];
+        double velocityEast = velocities[device * 2 + 1];
+        double north = velocityNorth * timestamp / 1000d + random.nextGaussian() * 4d;
+        double east = velocityEast * timestamp / 1000d + random.nextGaussian() * 4d;
+        double speed = Math.sqrt( velocityNorth * velocityNorth + velocityEast * velocityEast );
+        double course = Math.toDegrees( Math.atan2( velocityEast, velocityNorth ) );
+        sendTimes.set( slot( device, timestamp ), System.nanoTime() );
+        executor.submitGps( device, timestamp, projection.toLatitude( north ), projection.toLongitude( north, east ), 550d, speed, course, 4d );
+    }
+
+    private int slot( long device, long timestamp ) {
+        return ( int ) ( device * IN_FLIGHT + timestamp / FIX_PERIOD % IN_FLIGHT );
+    }
+
+    /** Counts the estimates and records their latency on whichever threads deliver them. */
+    public class Estimates implements FusionSession.EstimateListener {
+
+        private final List<LatencyRecorder> recorders = Collections.synchronizedList( new ArrayList<LatencyRecorder>() );
+        private final ThreadLocal<LatencyRecorder> recorder = new ThreadLocal<LatencyRecorder>() {
+            @Override
+            protected LatencyRecorder initialValue() {
+                LatencyRecorder created = new LatencyRecorder();
+                recorders.add( created );
+                return created;
+            }
+        };
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void onEstimate( FusionSession session,
+                                long timestamp,
+                                double latitude,
+                                double longitude,
+                                double velocityNorth,
+                                double velocityEast ) {
+            recorder.get().record( System.nanoTime() - sendTimes.get( slot( session.getDeviceId(), timestamp ) ) );
+            count.increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public LatencyRecorder getLatency() {
+            LatencyRecorder latency = new LatencyRecorder();
+            synchronized( recorders ) {
+                for( LatencyRecorder recorded : recorders ) {
+                    latency.merge( recorded );
+                }
+            }
+            return latency;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.denis.ubiq.server;
+
+import java.io.Closeable;
+
+/**
+ * Execution model for the {@link FusionSession}s of many devices. Records of one device must be submitted
+ * from one thread at a time, in the order they arrived; records of different devices may be submitted concurrently.
+ */
+public interface FusionExecutor extends Closeable {
+
+    void submitSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise );
+
+    void submitGps( long deviceId, long timestamp, double latitude, double longitude, double altitude, double speed, double course, double noise );
+
+    /** Records processed so far, by every thread. */
+    long getProcessed();
+
+    /** Processes the records already submitted and releases the threads. */
+    @Override
+    void close();
+}
@@ -0,0 +1,111 @@
+package com.denis.ubiq.server;
+
+import java.io.IOException;
+
+import com.denis.ubiq.ingestion.*;
+import com.denis.ubiq.items.*;
+import com.denis.ubiq.kalman.*;
+import com.denis.ubiq.projection.LocalTangentPlane;
+
+/**
+ * Filter state of one device: the same watermark merge as on the device, with the latest sensor timestamp
+ * as the clock, feeding a {@link LazyKalmanFilterModel}. Sensor records before the first fix are dropped,
+ * and every applied fix produces an estimate.
+ * <p>
+ * Not thread-safe. The execution model decides who owns it, see {@link DeviceSession} and {@link EventLoop}.
+ */
+public class FusionSession {
+
+    public interface EstimateListener {
+
+        void onEstimate( FusionSession session, long timestamp, double latitude, double longitude, double velocityNorth, double velocityEast )
+            throws IOException;
+    }
+
+    private static final int SENSOR_BUFFER_CAPACITY = 256;
+    private static final int GPS_BUFFER_CAPACITY = 16;
+    private static final int SENSOR_SOURCE = 0;
+    private static final int GPS_SOURCE = 1;
+
+    private final long deviceId;
+    private final KalmanFilterEngine engine;
+
+    private final SensorItemBuffer sensorItems = new SensorItemBuffer( SENSOR_BUFFER_CAPACITY );
+    private final GpsItemBuffer gpsItems = new GpsItemBuffer( GPS_BUFFER_CAPACITY );
+    private final TimestampMerger merger = new TimestampMerger( sensorItems, gpsItems );
+    private final SensorItem sensorItem = new SensorItem( 0d, 0d, 0F, 0L );
+    private final GpsItem gpsItem = new GpsItem( 0d, 0d, 0d, 0d, 0d, 0d, 0L );
+
+    private LazyKalmanFilterModel model;
+    private long clock = Long.MIN_VALUE;
+    private long lastActivity;
+
+    public FusionSession( long deviceId, KalmanFilterEngine engine, long maxGpsLateness ) {
+        this.deviceId = deviceId;
+        this.engine = engine;
+        this.merger.setMaxLateness( GPS_SOURCE, maxGpsLateness );
+    }
+
+    public void onSensor( long timestamp, double eastAcceleration, double northAcceleration, float noise, EstimateListener listener )
+        throws IOException {
+        while( !sensorItems.offer( eastAcceleration, northAcceleration, noise, timestamp ) ) {
+            drain( Long.MAX_VALUE, listener );
+        }
+        clock = Math.max( clock, timestamp );
+        drain( clock, listener );
+    }
+
+    public void onGps( long timestamp,
+                       double latitude,
+                       double longitude,
+                       double altitude,
+                       double speed,
+                       double course,
+                       double noise,
+                       EstimateListener listener ) throws IOException {
+        while( !gpsItems.offer( latitude, longitude, altitude, speed, course, noise, timestamp ) ) {
+            drain( Long.MAX_VALUE, listener );
+        }
+        drain( clock, listener );
+    }
+
+    private void drain( long now, EstimateListener listener ) throws IOException {
+        int source;
+        while( ( source = merger.next( now ) ) >= 0 ) {
+            if( source == SENSOR_SOURCE ) {
+                SensorItem item = sensorItems.poll( sensorItem );
+                if( model != null ) {
+                    model.addInput( item );
+                }
+            } else {
+                GpsItem item = gpsItems.poll( gpsItem );
+                double[] state;
+                if( model == null ) {
+                    model = new LazyKalmanFilterModel( engine.create( item ), item.timestamp );
+                    state = model.getStateEstimation();
+                } else {
+                    state = model.correct( item );
+                }
+                LocalTangentPlane projection = model.getModel().getProjection();
+                listener.onEstimate( this,
+                                     item.timestamp,
+                                     projection.toLatitude( state[0] ),
+                                     projection.toLongitude( state[0], state[1] ),
+                                     state[2],
+                                     state[3] );
+            }
+        }
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity( long lastActivity ) {
+        this.lastActivity = lastActivity;
+    }
+}
@@ -0,0 +1,200 @@
+package com.denis.ubiq.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+
+import static com.denis.ubiq.server.Protocol.*;
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Accepts {@link Protocol} streams from many devices over TCP and runs a {@link DeviceSession} per device.
+ * <p>
+ * Every connection is served by its own thread doing blocking reads; on Java 21 and later those are
+ * virtual threads, see {@link Threads}. Sessions idle for longer than the idle timeout are evicted and
+ * their connections closed; a reconnect counts as activity, before the first record.
+ * <pre>
+ * java com.denis.ubiq.server.IngestionServer [port] [idle timeout s] [engine]
+ * </pre>
+ */
+public class IngestionServer implements Closeable {
+
+    // same as Constants.MAX_GPS_LATENESS on the device
+    private static final long MAX_GPS_LATENESS = 250;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60;
+    private static final long STATS_PERIOD = 10;
+
+    private final ServerSocket serverSocket;
+    private final KalmanFilterEngine engine;
+    private final long idleTimeout;
+    private final ConcurrentMap<Long, DeviceSession> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService connections = Threads.newPerTaskExecutor( "connection" );
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /** @param idleTimeout in milliseconds */
+    public IngestionServer( int port, KalmanFilterEngine engine, long idleTimeout ) throws IOException {
+        this.serverSocket = new ServerSocket( port, 1024 );
+        this.engine = engine;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public static void main( String[] args ) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_PORT;
+        long idleTimeout = SECONDS.toMillis( args.length > 1 ? Long.parseLong( args[1] ) : DEFAULT_IDLE_TIMEOUT );
+        KalmanFilterEngine engine = args.length > 2 ? KalmanFilterEngine.valueOf( args[2] ) : KalmanFilterEngine.KERNEL;
+
+        final IngestionServer server = new IngestionServer( port, engine, idleTimeout );
+        server.scheduler.scheduleAtFixedRate( new Runnable() {
+            private long lastRecords;
+
+            @Override
+            public void run() {
+                long total = server.records.sum();
+                System.out.println( String.format( "sessions=%d records/s=%.0f evicted=%d",
+                                                   server.sessions.size(),
+                                                   ( total - lastRecords ) / ( double ) STATS_PERIOD,
+                                                   server.evicted.sum() ) );
+                lastRecords = total;
+            }
+        }, STATS_PERIOD, STATS_PERIOD, SECONDS );
+        System.out.println( String.format( "listening on %d, engine=%s, virtual threads=%s", server.getPort(), engine, Threads.hasVirtualThreads() ) );
+        server.run();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /** Starts evicting idle sessions and accepts connections until {@link #close()}. */
+    public void run() {
+        long period = Math.max( 1, idleTimeout / 2 );
+        scheduler.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                evictIdle( now() );
+            }
+        }, period, period, MILLISECONDS );
+
+        while( running ) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        serve( socket );
+                    }
+                } );
+            } catch( IOException e ) {
+                if( running ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void evictIdle( long now ) {
+        for( DeviceSession session : sessions.values() ) {
+            // a connection that looked the session up before it was removed fails to attach and looks again
+            if( session.evictIfIdle( now, idleTimeout ) ) {
+                sessions.remove( session.getDeviceId(), session );
+                evicted.increment();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        scheduler.shutdownNow();
+        connections.shutdownNow();
+        for( DeviceSession session : sessions.values() ) {
+            session.close();
+        }
+        sessions.clear();
+    }
+
+    private void serve( Socket connection ) {
+        try( Socket socket = connection ) {
+            socket.setTcpNoDelay( true );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream(), 64 * 1024 ) );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(), 8 * 1024 ) );
+            if( in.readByte() != HELLO ) {
+                throw new IOException( "Expected HELLO from " + socket.getRemoteSocketAddress() );
+            }
+            long deviceId = in.readLong();
+            DeviceSession session = getSession( deviceId );
+            while( !session.attach( socket, now() ) ) {
+                // evicted in between, the map may still hold it
+                sessions.remove( deviceId, session );
+                session = getSession( deviceId );
+            }
+            try {
+                int type;
+                while( ( type = in.read() ) >= 0 ) {
+                    switch( type ) {
+                        case SENSOR:
+                            session.onSensor( in.readLong(), in.readDouble(), in.readDouble(), in.readFloat(), out, now() );
+                            break;
+                        case GPS:
+                            session.onGps( in.readLong(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           out,
+                                           now() );
+                            break;
+                        default:
+                            throw new IOException( "Unknown frame type " + type );
+                    }
+                    records.increment();
+                    // answer in batches, but never leave an estimate behind while waiting for input
+                    if( in.available() == 0 ) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } finally {
+                session.detach( socket );
+            }
+        } catch( EOFException | SocketException e ) {
+            // closed by the device, or evicted
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    private DeviceSession getSession( long deviceId ) {
+        DeviceSession session = sessions.get( deviceId );
+        if( session == null ) {
+            DeviceSession created = new DeviceSession( deviceId, engine, MAX_GPS_LATENESS, now() );
+            session = sessions.putIfAbsent( deviceId, created );
+            if( session == null ) {
+                session = created;
+            }
+        }
+        return session;
+    }
+
+    private static long now() {
+        return NANOSECONDS.toMillis( System.nanoTime() );
+    }
+}
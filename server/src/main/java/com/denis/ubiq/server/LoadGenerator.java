@@ -0,0 +1,176 @@
+package com.denis.ubiq.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import com.denis.ubiq.projection.LocalTangentPlane;
+import com.denis.ubiq.replay.LatencyRecorder;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Drives an {@link IngestionServer} with simulated devices and reports the sustained record rate and the
+ * latency from sending a GPS fix to receiving its estimate.
+ * <p>
+ * Every device moves at a constant velocity from its own starting point and sends 50 accelerometer
+ * records per GPS fix. With a speedup of 0 devices send as fast as the server takes them; otherwise
+ * device time runs that many times faster than real time.
+ * <pre>
+ * java com.denis.ubiq.server.LoadGenerator [host] [port] [devices] [duration s] [speedup]
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final int SENSOR_PERIOD = 20;
+    private static final int SENSORS_PER_FIX = 50;
+    // fixes in flight per device, far more than the server ever holds back
+    private static final int IN_FLIGHT = 1024;
+
+    private final String host;
+    private final int port;
+    private final double speedup;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final List<LatencyRecorder> latencies = Collections.synchronizedList( new ArrayList<LatencyRecorder>() );
+    private final ExecutorService readers = Threads.newPerTaskExecutor( "reader" );
+
+    public LoadGenerator( String host, int port, double speedup ) {
+        this.host = host;
+        this.port = port;
+        this.speedup = speedup;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt( args[1] ) : Protocol.DEFAULT_PORT;
+        int devices = args.length > 2 ? Integer.parseInt( args[2] ) : 1000;
+        long duration = args.length > 3 ? Long.parseLong( args[3] ) : 30;
+        double speedup = args.length > 4 ? Double.parseDouble( args[4] ) : 0d;
+
+        LoadGenerator generator = new LoadGenerator( host, port, speedup );
+        generator.run( devices, SECONDS.toNanos( duration ), System.out );
+    }
+
+    public void run( int devices, long durationNanos, PrintStream report ) throws InterruptedException {
+        ExecutorService executor = Threads.newPerTaskExecutor( "device" );
+        long start = System.nanoTime();
+        final long deadline = start + durationNanos;
+        Random random = new Random( 42 );
+        for( int i = 0; i < devices; i++ ) {
+            final long deviceId = i;
+            final long seed = random.nextLong();
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    runDevice( deviceId, seed, deadline );
+                }
+            } );
+        }
+        executor.shutdown();
+        executor.awaitTermination( durationNanos + MINUTES.toNanos( 1 ), NANOSECONDS );
+        readers.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        LatencyRecorder latency = new LatencyRecorder();
+        synchronized( latencies ) {
+            for( LatencyRecorder recorder : latencies ) {
+                latency.merge( recorder );
+            }
+        }
+        report.println( String.format( "devices=%d virtual threads=%s elapsed=%.1fs sent=%d records/s=%.0f estimates=%d",
+                                       devices,
+                                       Threads.hasVirtualThreads(),
+                                       elapsed / 1e9,
+                                       sent.sum(),
+                                       sent.sum() * 1e9 / elapsed,
+                                       received.sum() ) );
+        report.println( "fix to estimate: " + latency );
+    }
+
+    private void runDevice( long deviceId, long seed, long deadline ) {
+        try( Socket socket = new Socket( host, port ) ) {
+            socket.setTcpNoDelay( true );
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            final AtomicLongArray sendTimes = new AtomicLongArray( IN_FLIGHT );
+            final LatencyRecorder latency = new LatencyRecorder();
+
+            Future<?> reader = readers.submit( new Runnable() {
+                @Override
+                public void run() {
+                    readEstimates( in, sendTimes, latency );
+                }
+            } );
+
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(), 8 * 1024 ) );
+            Protocol.writeHello( out, deviceId );
+            sendTrack( out, new Random( seed ), sendTimes, deadline );
+            socket.shutdownOutput();
+
+            reader.get();
+            latencies.add( latency );
+        } catch( IOException | ExecutionException e ) {
+            System.err.println( "device " + deviceId + ": " + e );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendTrack( DataOutputStream out, Random random, AtomicLongArray sendTimes, long deadline ) throws IOException {
+        double latitude = 42.6977d + ( random.nextDouble() - 0.5d ) * 0.2d;
+        double longitude = 23.3219d + ( random.nextDouble() - 0.5d ) * 0.2d;
+        LocalTangentPlane projection = new LocalTangentPlane( latitude, longitude );
+        double velocityNorth = ( random.nextDouble() - 0.5d ) * 20d;
+        double velocityEast = ( random.nextDouble() - 0.5d ) * 20d;
+        double speed = Math.sqrt( velocityNorth * velocityNorth + velocityEast * velocityEast );
+        double course = Math.toDegrees( Math.atan2( velocityEast, velocityNorth ) );
+
+        long start = System.nanoTime();
+        long timestamp = 0L;
+        long fix = 0L;
+        while( System.nanoTime() < deadline ) {
+            for( int i = 0; i < SENSORS_PER_FIX; i++ ) {
+                timestamp += SENSOR_PERIOD;
+                Protocol.writeSensor( out, timestamp, random.nextGaussian() * 0.1d, random.nextGaussian() * 0.1d, 4F );
+            }
+            double north = velocityNorth * timestamp / 1000d + random.nextGaussian() * 4d;
+            double east = velocityEast * timestamp / 1000d + random.nextGaussian() * 4d;
+            Protocol.writeGps( out, timestamp, projection.toLatitude( north ), projection.toLongitude( north, east ), 550d, speed, course, 4d );
+            sendTimes.set( ( int ) ( fix++ % IN_FLIGHT ), System.nanoTime() );
+            out.flush();
+            sent.add( SENSORS_PER_FIX + 1 );
+
+            if( speedup > 0d ) {
+                long due = start + ( long ) ( MILLISECONDS.toNanos( timestamp ) / speedup );
+                long wait = due - System.nanoTime();
+                if( wait > 0 ) {
+                    LockSupport.parkNanos( wait );
+                }
+            }
+        }
+    }
+
+    private void readEstimates( DataInputStream in, AtomicLongArray sendTimes, LatencyRecorder latency ) {
+        long fix = 0L;
+        try {
+            int type;
+            while( ( type = in.read() ) >= 0 ) {
+                if( type != Protocol.ESTIMATE ) {
+                    throw new IOException( "Unexpected frame type " + type );
+                }
+                in.readLong();
+                in.readDouble();
+                in.readDouble();
+                in.readDouble();
+                in.readDouble();
+                latency.record( System.nanoTime() - sendTimes.get( ( int ) ( fix++ % IN_FLIGHT ) ) );
+                received.increment();
+            }
+        } catch( IOException e ) {
+            // connection closed
+        }
+    }
+}
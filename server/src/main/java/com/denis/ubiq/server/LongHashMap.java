@@ -0,0 +1,144 @@
+package com.denis.ubiq.server;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to values, with linear probing and backward shift deletion,
+ * so that looking up a device on the hot path neither boxes its ID nor allocates an entry.
+ * <p>
+ * Not thread-safe.
+ */
+class LongHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    LongHashMap() {
+        allocate( MIN_CAPACITY );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    V get( long key ) {
+        int index = index( key );
+        Object value;
+        while( ( value = values[index] ) != null ) {
+            if( keys[index] == key ) {
+                return ( V ) value;
+            }
+            index = ( index + 1 ) & mask;
+        }
+        return null;
+    }
+
+    void put( long key, V value ) {
+        if( value == null ) {
+            throw new IllegalArgumentException( "null value" );
+        }
+        int index = index( key );
+        while( values[index] != null ) {
+            if( keys[index] == key ) {
+                values[index] = value;
+                return;
+            }
+            index = ( index + 1 ) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        // keep the load factor under one half
+        if( ++size * 2 > values.length ) {
+            rehash( values.length * 2 );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    V remove( long key ) {
+        int index = index( key );
+        Object value;
+        while( ( value = values[index] ) != null ) {
+            if( keys[index] == key ) {
+                removeAt( index );
+                return ( V ) value;
+            }
+            index = ( index + 1 ) & mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Slot count, iterate with {@link #valueAt(int)} from the highest slot down to allow removal. */
+    int capacity() {
+        return values.length;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    V valueAt( int index ) {
+        return ( V ) values[index];
+    }
+
+    long keyAt( int index ) {
+        return keys[index];
+    }
+
+    /**
+     * Removes the entry in a slot. Entries may shift into it from the slots above, so iterating from the
+     * highest slot down never visits an entry twice; one wrapping around from the bottom is only missed.
+     */
+    void removeAt( int index ) {
+        size--;
+        int gap = index;
+        int next = ( gap + 1 ) & mask;
+        while( values[next] != null ) {
+            int home = index( keys[next] );
+            // move the entry back if its home slot is not between the gap and its current slot
+            if( ( ( next - home ) & mask ) >= ( ( next - gap ) & mask ) ) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = ( next + 1 ) & mask;
+        }
+        values[gap] = null;
+    }
+
+    private int index( long key ) {
+        // finaliser of MurmurHash3, device IDs are often sequential
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return ( int ) key & mask;
+    }
+
+    private void rehash( int capacity ) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate( capacity );
+        for( int i = 0; i < oldValues.length; i++ ) {
+            if( oldValues[i] != null ) {
+                int index = index( oldKeys[i] );
+                while( values[index] != null ) {
+                    index = ( index + 1 ) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate( int capacity ) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    void clear() {
+        Arrays.fill( values, null );
+        size = 0;
+    }
+}
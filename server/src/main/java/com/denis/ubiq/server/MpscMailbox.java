@@ -0,0 +1,155 @@
+package com.denis.ubiq.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded multi-producer, single-consumer queue of sensor and GPS messages for an {@link EventLoop}.
+ * <p>
+ * Messages are copied as primitive fields into preallocated slots, so offering one neither allocates nor
+ * takes a lock: producers claim a slot with a CAS on the head and publish it with a volatile write of its
+ * sequence. The consumer hands messages to a {@link Handler} in batches.
+ */
+class MpscMailbox {
+
+    interface Handler {
+
+        void onSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) throws IOException;
+
+        void onGps( long deviceId, long timestamp, double latitude, double longitude, double altitude, double speed, double course, double noise )
+            throws IOException;
+    }
+
+    private static final byte SENSOR = 1;
+    private static final byte GPS = 2;
+    private static final int FIELDS = 6;
+
+    private final int capacity;
+    private final int mask;
+
+    // slot i is free for position p when sequences[i] == p, and readable when it is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final byte[] types;
+    private final long[] deviceIds;
+    private final long[] timestamps;
+    private final double[] values;
+
+    // consumer side
+    private long tail;
+
+    MpscMailbox( int capacity ) {
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "capacity must be positive" );
+        }
+        int size = Integer.highestOneBit( capacity );
+        if( size < capacity ) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray( size );
+        for( int i = 0; i < size; i++ ) {
+            sequences.set( i, i );
+        }
+        this.types = new byte[size];
+        this.deviceIds = new long[size];
+        this.timestamps = new long[size];
+        this.values = new double[size * FIELDS];
+    }
+
+    /** Returns false if the mailbox is full. */
+    boolean offerSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) {
+        long position = claim();
+        if( position < 0 ) {
+            return false;
+        }
+        int slot = ( int ) ( position & mask );
+        int offset = slot * FIELDS;
+        types[slot] = SENSOR;
+        deviceIds[slot] = deviceId;
+        timestamps[slot] = timestamp;
+        values[offset] = eastAcceleration;
+        values[offset + 1] = northAcceleration;
+        values[offset + 2] = noise;
+        // a full fence, not an ordered write: the producer reads the sleeping flag of the loop next
+        sequences.set( slot, position + 1 );
+        return true;
+    }
+
+    /** Returns false if the mailbox is full. */
+    boolean offerGps( long deviceId, long timestamp, double latitude, double longitude, double altitude, double speed, double course, double noise ) {
+        long position = claim();
+        if( position < 0 ) {
+            return false;
+        }
+        int slot = ( int ) ( position & mask );
+        int offset = slot * FIELDS;
+        types[slot] = GPS;
+        deviceIds[slot] = deviceId;
+        timestamps[slot] = timestamp;
+        values[offset] = latitude;
+        values[offset + 1] = longitude;
+        values[offset + 2] = altitude;
+        values[offset + 3] = speed;
+        values[offset + 4] = course;
+        values[offset + 5] = noise;
+        // a full fence, not an ordered write: the producer reads the sleeping flag of the loop next
+        sequences.set( slot, position + 1 );
+        return true;
+    }
+
+    private long claim() {
+        while( true ) {
+            long position = head.get();
+            long sequence = sequences.get( ( int ) ( position & mask ) );
+            if( sequence == position ) {
+                if( head.compareAndSet( position, position + 1 ) ) {
+                    return position;
+                }
+            } else if( sequence < position ) {
+                // the consumer has not released this slot yet
+                return -1;
+            }
+        }
+    }
+
+    /** Hands up to max messages to the handler, on the consumer thread only. Returns the number handled. */
+    int drain( Handler handler, int max ) throws IOException {
+        int count = 0;
+        while( count < max ) {
+            int slot = ( int ) ( tail & mask );
+            if( sequences.get( slot ) != tail + 1 ) {
+                break;
+            }
+            int offset = slot * FIELDS;
+            try {
+                if( types[slot] == SENSOR ) {
+                    handler.onSensor( deviceIds[slot], timestamps[slot], values[offset], values[offset + 1], ( float ) values[offset + 2] );
+                } else {
+                    handler.onGps( deviceIds[slot],
+                                   timestamps[slot],
+                                   values[offset],
+                                   values[offset + 1],
+                                   values[offset + 2],
+                                   values[offset + 3],
+                                   values[offset + 4],
+                                   values[offset + 5] );
+                }
+            } finally {
+                sequences.lazySet( slot, tail + capacity );
+                tail++;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return sequences.get( ( int ) ( tail & mask ) ) != tail + 1;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
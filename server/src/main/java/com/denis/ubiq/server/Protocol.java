@@ -0,0 +1,68 @@
+package com.denis.ubiq.server;
+
+import java.io.*;
+
+/**
+ * Frames exchanged with the ingestion server over TCP, big-endian, each starting with a type byte.
+ * <pre>
+ * HELLO     long device id, first frame of a connection
+ * SENSOR    long timestamp | double eastAcceleration | double northAcceleration | float noise
+ * GPS       long timestamp | double latitude | double longitude | double altitude | double speed | double course | double noise
+ * ESTIMATE  long timestamp | double latitude | double longitude | double velocityNorth | double velocityEast
+ * </pre>
+ * The server answers every GPS fix with an ESTIMATE once the fix has been applied. Timestamps are in
+ * milliseconds on the device clock.
+ */
+public final class Protocol {
+
+    public static final byte HELLO = 0;
+    public static final byte SENSOR = 1;
+    public static final byte GPS = 2;
+    public static final byte ESTIMATE = 3;
+
+    public static final int DEFAULT_PORT = 7070;
+
+    private Protocol() { }
+
+    public static void writeHello( DataOutputStream out, long deviceId ) throws IOException {
+        out.writeByte( HELLO );
+        out.writeLong( deviceId );
+    }
+
+    public static void writeSensor( DataOutputStream out, long timestamp, double eastAcceleration, double northAcceleration, float noise )
+        throws IOException {
+        out.writeByte( SENSOR );
+        out.writeLong( timestamp );
+        out.writeDouble( eastAcceleration );
+        out.writeDouble( northAcceleration );
+        out.writeFloat( noise );
+    }
+
+    public static void writeGps( DataOutputStream out,
+                                 long timestamp,
+                                 double latitude,
+                                 double longitude,
+                                 double altitude,
+                                 double speed,
+                                 double course,
+                                 double noise ) throws IOException {
+        out.writeByte( GPS );
+        out.writeLong( timestamp );
+        out.writeDouble( latitude );
+        out.writeDouble( longitude );
+        out.writeDouble( altitude );
+        out.writeDouble( speed );
+        out.writeDouble( course );
+        out.writeDouble( noise );
+    }
+
+    public static void writeEstimate( DataOutputStream out, long timestamp, double latitude, double longitude, double velocityNorth, double velocityEast )
+        throws IOException {
+        out.writeByte( ESTIMATE );
+        out.writeLong( timestamp );
+        out.writeDouble( latitude );
+        out.writeDouble( longitude );
+        out.writeDouble( velocityNorth );
+        out.writeDouble( velocityEast );
+    }
+}
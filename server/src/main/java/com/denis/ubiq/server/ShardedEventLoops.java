@@ -0,0 +1,91 @@
+package com.denis.ubiq.server;
+
+import java.util.concurrent.TimeUnit;
+
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+
+/**
+ * Fixed pool of {@link EventLoop}s, by default one per core, each owning the sessions of the devices whose
+ * ID hashes to it. A device always lands on the same loop, so its records stay in order and its filter
+ * state is never shared between threads. Submitting waits while the mailbox of the loop is full.
+ * <p>
+ * Estimates are delivered on the loop threads; a listener shared by the loops has to be thread-safe.
+ */
+public class ShardedEventLoops implements FusionExecutor {
+
+    public static final int DEFAULT_MAILBOX_CAPACITY = 16384;
+
+    private final EventLoop[] loops;
+
+    public ShardedEventLoops( KalmanFilterEngine engine, long maxGpsLateness, long idleTimeoutMs, FusionSession.EstimateListener listener ) {
+        this( Runtime.getRuntime().availableProcessors(), DEFAULT_MAILBOX_CAPACITY, engine, maxGpsLateness, idleTimeoutMs, listener );
+    }
+
+    public ShardedEventLoops( int loopCount,
+                              int mailboxCapacity,
+                              KalmanFilterEngine engine,
+                              long maxGpsLateness,
+                              long idleTimeoutMs,
+                              FusionSession.EstimateListener listener ) {
+        if( loopCount <= 0 ) {
+            throw new IllegalArgumentException( "loopCount must be positive" );
+        }
+        this.loops = new EventLoop[loopCount];
+        for( int i = 0; i < loopCount; i++ ) {
+            loops[i] = new EventLoop( "EventLoop-" + i,
+                                      mailboxCapacity,
+                                      engine,
+                                      maxGpsLateness,
+                                      TimeUnit.MILLISECONDS.toNanos( idleTimeoutMs ),
+                                      listener );
+        }
+        for( EventLoop loop : loops ) {
+            loop.start();
+        }
+    }
+
+    @Override
+    public void submitSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) {
+        loops[indexOf( deviceId )].submitSensor( deviceId, timestamp, eastAcceleration, northAcceleration, noise );
+    }
+
+    @Override
+    public void submitGps( long deviceId,
+                           long timestamp,
+                           double latitude,
+                           double longitude,
+                           double altitude,
+                           double speed,
+                           double course,
+                           double noise ) {
+        loops[indexOf( deviceId )].submitGps( deviceId, timestamp, latitude, longitude, altitude, speed, course, noise );
+    }
+
+    /** Index of the loop owning a device. */
+    public int indexOf( long deviceId ) {
+        // a different mix than LongHashMap, so the devices of one loop still spread over its table
+        long hash = deviceId * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 32;
+        return ( int ) ( ( hash & Long.MAX_VALUE ) % loops.length );
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    @Override
+    public long getProcessed() {
+        long processed = 0;
+        for( EventLoop loop : loops ) {
+            processed += loop.getProcessed();
+        }
+        return processed;
+    }
+
+    @Override
+    public void close() {
+        for( EventLoop loop : loops ) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.denis.ubiq.server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.denis.ubiq.kalman.KalmanFilterEngine;
+
+/**
+ * The naive execution model, kept as the baseline of {@link ExecutionModelBenchmark}: every submitting thread
+ * processes its record itself, on a single map of sessions guarded by one lock.
+ */
+public class SharedLockExecutor implements FusionExecutor {
+
+    private final KalmanFilterEngine engine;
+    private final long maxGpsLateness;
+    private final FusionSession.EstimateListener listener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Long, FusionSession> sessions = new HashMap<>();
+    private final AtomicLong processed = new AtomicLong();
+
+    public SharedLockExecutor( KalmanFilterEngine engine, long maxGpsLateness, FusionSession.EstimateListener listener ) {
+        this.engine = engine;
+        this.maxGpsLateness = maxGpsLateness;
+        this.listener = listener;
+    }
+
+    @Override
+    public void submitSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) {
+        lock.lock();
+        try {
+            getSession( deviceId ).onSensor( timestamp, eastAcceleration, northAcceleration, noise, listener );
+        } catch( IOException e ) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        processed.incrementAndGet();
+    }
+
+    @Override
+    public void submitGps( long deviceId,
+                           long timestamp,
+                           double latitude,
+                           double longitude,
+                           double altitude,
+                           double speed,
+                           double course,
+                           double noise ) {
+        lock.lock();
+        try {
+            getSession( deviceId ).onGps( timestamp, latitude, longitude, altitude, speed, course, noise, listener );
+        } catch( IOException e ) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        processed.incrementAndGet();
+    }
+
+    private FusionSession getSession( long deviceId ) {
+        FusionSession session = sessions.get( deviceId );
+        if( session == null ) {
+            session = new FusionSession( deviceId, engine, maxGpsLateness );
+            sessions.put( deviceId, session );
+        }
+        return session;
+    }
+
+    @Override
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    @Override
+    public void close() {
+        // processed on the submitting threads, nothing left to do
+    }
+}
@@ -0,0 +1,44 @@
+package com.denis.ubiq.server;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-per-task executors on virtual threads when the JVM has them (Java 21 and later),
+ * on daemon platform threads otherwise. Looked up reflectively, so the module still builds for Java 8.
+ */
+public final class Threads {
+
+    private Threads() { }
+
+    public static ExecutorService newPerTaskExecutor( final String name ) {
+        try {
+            Method method = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            return ( ExecutorService ) method.invoke( null );
+        } catch( NoSuchMethodException e ) {
+            // no virtual threads on this JVM
+        } catch( IllegalAccessException | InvocationTargetException e ) {
+            e.printStackTrace();
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            return true;
+        } catch( NoSuchMethodException e ) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.denis.ubiq.server;
+
+import java.io.*;
+import java.net.Socket;
+
+import org.junit.*;
+
+import static com.denis.ubiq.kalman.KalmanFilterEngine.KERNEL;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.*;
+
+public class DeviceSessionTest {
+
+    private static final long DEVICE_ID = 7L;
+    private static final long IDLE_TIMEOUT = 60000;
+    private static final double LATITUDE = 42.69;
+    private static final double LONGITUDE = 23.32;
+    // north of the first fix, far enough that a filter already running does not jump all the way there
+    private static final double NEXT_LATITUDE = 42.6901;
+
+    private IngestionServer server;
+    private Thread acceptor;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new IngestionServer( 0, KERNEL, IDLE_TIMEOUT );
+        acceptor = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        } );
+        acceptor.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+        acceptor.join();
+    }
+
+    @Test
+    public void answersAFixWithAnEstimateAndRecordsTheActivity() throws IOException {
+        DeviceSession session = new DeviceSession( DEVICE_ID, KERNEL, 0, 100L );
+        assertEquals( DEVICE_ID, session.getDeviceId() );
+        assertEquals( 100L, session.getLastActivity() );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        session.onGps( 1000L, LATITUDE, LONGITUDE, 550, 0, 0, 5, out, 150L );
+        assertEquals( 150L, session.getLastActivity() );
+        // held until a sensor record shows nothing earlier can still arrive
+        assertEquals( 0, bytes.size() );
+        session.onSensor( 1100L, 0, 0, 0.5f, out, 200L );
+        assertEquals( 200L, session.getLastActivity() );
+
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+        assertEquals( Protocol.ESTIMATE, in.readByte() );
+        assertEquals( 1000L, in.readLong() );
+        assertEquals( LATITUDE, in.readDouble(), 1e-9 );
+        assertEquals( LONGITUDE, in.readDouble(), 1e-9 );
+    }
+
+    @Test
+    public void aReconnectingDeviceResumesItsSession() throws IOException {
+        Device device = new Device( server.getPort() );
+        device.sendGps( 1000L, LATITUDE );
+        assertEquals( LATITUDE, device.readEstimate( 1000L ), 1e-9 );
+        device.close();
+        assertEquals( 1, server.getSessionCount() );
+
+        // the filter is already running, so the estimate only moves part of the way to the new fix
+        device = new Device( server.getPort() );
+        device.sendGps( 2000L, NEXT_LATITUDE );
+        double latitude = device.readEstimate( 2000L );
+        assertTrue( latitude > LATITUDE && latitude < NEXT_LATITUDE - 1e-6 );
+        device.close();
+        assertEquals( 1, server.getSessionCount() );
+    }
+
+    @Test
+    public void anIdleSessionIsEvictedAndItsConnectionClosed() throws IOException {
+        Device device = new Device( server.getPort() );
+        device.sendGps( 1000L, LATITUDE );
+        device.readEstimate( 1000L );
+
+        server.evictIdle( NANOSECONDS.toMillis( System.nanoTime() ) );
+        assertEquals( 1, server.getSessionCount() );
+        server.evictIdle( NANOSECONDS.toMillis( System.nanoTime() ) + IDLE_TIMEOUT + 1 );
+        assertEquals( 0, server.getSessionCount() );
+        assertTrue( device.isClosedByServer() );
+        device.close();
+
+        // a fresh session starts over from the next fix
+        device = new Device( server.getPort() );
+        device.sendGps( 2000L, NEXT_LATITUDE );
+        assertEquals( NEXT_LATITUDE, device.readEstimate( 2000L ), 1e-9 );
+        device.close();
+        assertEquals( 1, server.getSessionCount() );
+    }
+
+    @Test
+    public void reconnectingToAnIdleSessionKeepsIt() throws IOException {
+        DeviceSession session = new DeviceSession( DEVICE_ID, KERNEL, 0, 100L );
+        // the HELLO of a new connection just before the session would have been evicted
+        Socket connection = new Socket();
+        assertTrue( session.attach( connection, 100L + IDLE_TIMEOUT ) );
+        assertEquals( 100L + IDLE_TIMEOUT, session.getLastActivity() );
+        assertFalse( session.evictIfIdle( 101L + IDLE_TIMEOUT, IDLE_TIMEOUT ) );
+        assertFalse( connection.isClosed() );
+
+        assertTrue( session.evictIfIdle( 101L + 2 * IDLE_TIMEOUT, IDLE_TIMEOUT ) );
+        assertTrue( connection.isClosed() );
+        // a connection that found the session before it was removed has to look again
+        assertFalse( session.attach( new Socket(), 102L + 2 * IDLE_TIMEOUT ) );
+        assertFalse( session.evictIfIdle( 103L + 3 * IDLE_TIMEOUT, IDLE_TIMEOUT ) );
+    }
+
+    private static class Device {
+
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Device( int port ) throws IOException {
+            socket = new Socket( "localhost", port );
+            socket.setSoTimeout( 5000 );
+            out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+            in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            Protocol.writeHello( out, DEVICE_ID );
+        }
+
+        void sendGps( long timestamp, double latitude ) throws IOException {
+            Protocol.writeGps( out, timestamp, latitude, LONGITUDE, 550, 0, 0, 5 );
+            // the sensor record moves the clock of the session past the lateness of the fix
+            Protocol.writeSensor( out, timestamp + 500, 0, 0, 0.5f );
+            out.flush();
+        }
+
+        /** Returns the latitude. */
+        double readEstimate( long timestamp ) throws IOException {
+            assertEquals( Protocol.ESTIMATE, in.readByte() );
+            assertEquals( timestamp, in.readLong() );
+            double latitude = in.readDouble();
+            in.readDouble();
+            in.readDouble();
+            in.readDouble();
+            return latitude;
+        }
+
+        boolean isClosedByServer() throws IOException {
+            try {
+                return in.read() < 0;
+            } catch( IOException e ) {
+                return true;
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
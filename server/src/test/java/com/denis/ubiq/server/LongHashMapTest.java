@@ -0,0 +1,90 @@
+package com.denis.ubiq.server;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LongHashMapTest {
+
+    @Test
+    public void putsGetsAndRemoves() {
+        LongHashMap<String> map = new LongHashMap<>();
+        for( long key = 0; key < 1000; key++ ) {
+            map.put( key, "v" + key );
+        }
+        map.put( 5L, "five" );
+        assertEquals( 1000, map.size() );
+        assertEquals( "five", map.get( 5L ) );
+        assertEquals( "v999", map.get( 999L ) );
+        assertNull( map.get( 1000L ) );
+
+        for( long key = 0; key < 1000; key += 3 ) {
+            assertNotNull( map.remove( key ) );
+        }
+        assertNull( map.remove( 0L ) );
+        for( long key = 0; key < 1000; key++ ) {
+            assertEquals( key % 3 == 0 ? null : key == 5L ? "five" : "v" + key, map.get( key ) );
+        }
+    }
+
+    @Test
+    public void removingWhileIteratingDownNeverVisitsAnEntryTwice() {
+        Random random = new Random( 42 );
+        for( int run = 0; run < 100; run++ ) {
+            LongHashMap<Long> map = new LongHashMap<>();
+            Set<Long> keys = new HashSet<>();
+            // random keys cluster and wrap around the table, so entries shift back into visited slots
+            int count = 10 + random.nextInt( 500 );
+            while( keys.size() < count ) {
+                long key = random.nextLong();
+                keys.add( key );
+                map.put( key, key );
+            }
+
+            Set<Long> visited = new HashSet<>();
+            Set<Long> removed = new HashSet<>();
+            for( int i = map.capacity() - 1; i >= 0; i-- ) {
+                Long value = map.valueAt( i );
+                if( value == null ) {
+                    continue;
+                }
+                assertEquals( value.longValue(), map.keyAt( i ) );
+                assertTrue( "visited twice", visited.add( value ) );
+                if( ( value & 1 ) == 0 ) {
+                    map.removeAt( i );
+                    removed.add( value );
+                }
+            }
+
+            // the entries that were not removed are all still found, the missed ones go on the next pass
+            assertEquals( keys.size() - removed.size(), map.size() );
+            for( long key : keys ) {
+                assertEquals( removed.contains( key ) ? null : Long.valueOf( key ), map.get( key ) );
+            }
+            for( int i = map.capacity() - 1; i >= 0; i-- ) {
+                Long value = map.valueAt( i );
+                if( value != null && ( value & 1 ) == 0 ) {
+                    assertFalse( visited.contains( value ) );
+                    map.removeAt( i );
+                }
+            }
+            for( long key : keys ) {
+                assertEquals( ( key & 1 ) == 0 ? null : Long.valueOf( key ), map.get( key ) );
+            }
+        }
+    }
+
+    @Test
+    public void clearEmptiesTheMap() {
+        LongHashMap<String> map = new LongHashMap<>();
+        map.put( 1L, "a" );
+        map.put( 2L, "b" );
+        map.clear();
+        assertEquals( 0, map.size() );
+        assertNull( map.get( 1L ) );
+        map.put( 1L, "c" );
+        assertEquals( "c", map.get( 1L ) );
+    }
+}
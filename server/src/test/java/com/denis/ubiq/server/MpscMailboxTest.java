@@ -0,0 +1,144 @@
+package com.denis.ubiq.server;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MpscMailboxTest {
+
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals( 1, new MpscMailbox( 1 ).getCapacity() );
+        assertEquals( 8, new MpscMailbox( 5 ).getCapacity() );
+        assertEquals( 16, new MpscMailbox( 16 ).getCapacity() );
+    }
+
+    @Test
+    public void refusesOffersWhenFullUntilDrained() throws IOException {
+        MpscMailbox mailbox = new MpscMailbox( 4 );
+        RecordingHandler handler = new RecordingHandler();
+        assertTrue( mailbox.isEmpty() );
+        for( int i = 0; i < 4; i++ ) {
+            assertTrue( mailbox.offerSensor( 1L, i, i, -i, 0.5f ) );
+        }
+        assertFalse( mailbox.offerSensor( 1L, 4, 0, 0, 0.5f ) );
+        assertFalse( mailbox.offerGps( 1L, 4, 42.69, 23.32, 550, 10, 60, 5 ) );
+
+        // a released slot is free again
+        assertEquals( 1, mailbox.drain( handler, 1 ) );
+        assertTrue( mailbox.offerGps( 2L, 4, 42.69, 23.32, 550, 10, 60, 5 ) );
+        assertFalse( mailbox.offerSensor( 1L, 5, 0, 0, 0.5f ) );
+
+        assertEquals( 4, mailbox.drain( handler, 10 ) );
+        assertTrue( mailbox.isEmpty() );
+        assertEquals( 0, mailbox.drain( handler, 10 ) );
+        assertEquals( Arrays.asList( "sensor 1 0 0.0 0.0 0.5",
+                                     "sensor 1 1 1.0 -1.0 0.5",
+                                     "sensor 1 2 2.0 -2.0 0.5",
+                                     "sensor 1 3 3.0 -3.0 0.5",
+                                     "gps 2 4 42.69 23.32 550.0 10.0 60.0 5.0" ), handler.messages );
+    }
+
+    @Test
+    public void keepsTheOrderOverManyWraparounds() throws IOException {
+        MpscMailbox mailbox = new MpscMailbox( 8 );
+        RecordingHandler handler = new RecordingHandler();
+        long next = 0;
+        // offer 5 and drain 3 at a time, so the head and tail wrap at different slots
+        for( int round = 0; round < 1000; round++ ) {
+            while( mailbox.offerSensor( 7L, next, next, 0, 0f ) ) {
+                next++;
+            }
+            mailbox.drain( handler, 3 );
+        }
+        mailbox.drain( handler, Integer.MAX_VALUE );
+        assertEquals( next, handler.timestamps.size() );
+        for( int i = 0; i < next; i++ ) {
+            assertEquals( i, ( long ) handler.timestamps.get( i ) );
+        }
+    }
+
+    @Test
+    public void releasesTheSlotWhenTheHandlerThrows() {
+        MpscMailbox mailbox = new MpscMailbox( 2 );
+        mailbox.offerSensor( 1L, 0, 0, 0, 0f );
+        mailbox.offerSensor( 1L, 1, 0, 0, 0f );
+        try {
+            mailbox.drain( new RecordingHandler() {
+                @Override
+                public void onSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise )
+                    throws IOException {
+                    throw new IOException( "closed" );
+                }
+            }, 10 );
+            fail();
+        } catch( IOException expected ) {
+        }
+        assertTrue( mailbox.offerSensor( 1L, 2, 0, 0, 0f ) );
+        assertFalse( mailbox.offerSensor( 1L, 3, 0, 0, 0f ) );
+    }
+
+    @Test
+    public void deliversEveryMessageOfEachProducerInOrder() throws Exception {
+        final int producers = 4;
+        final int messages = 100000;
+        final MpscMailbox mailbox = new MpscMailbox( 64 );
+        Thread[] threads = new Thread[producers];
+        for( int p = 0; p < producers; p++ ) {
+            final long deviceId = p;
+            threads[p] = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    for( int i = 0; i < messages; i++ ) {
+                        while( !mailbox.offerSensor( deviceId, i, 0, 0, 0f ) ) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            } );
+            threads[p].start();
+        }
+
+        final long[] expected = new long[producers];
+        MpscMailbox.Handler handler = new RecordingHandler() {
+            @Override
+            public void onSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise ) {
+                assertEquals( expected[( int ) deviceId]++, timestamp );
+            }
+        };
+        long received = 0;
+        while( received < ( long ) producers * messages ) {
+            received += mailbox.drain( handler, 256 );
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+        assertTrue( mailbox.isEmpty() );
+        for( long count : expected ) {
+            assertEquals( messages, count );
+        }
+    }
+
+    private static class RecordingHandler implements MpscMailbox.Handler {
+
+        final List<String> messages = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public void onSensor( long deviceId, long timestamp, double eastAcceleration, double northAcceleration, float noise )
+            throws IOException {
+            messages.add( "sensor " + deviceId + " " + timestamp + " " + eastAcceleration + " " + northAcceleration + " " + noise );
+            timestamps.add( timestamp );
+        }
+
+        @Override
+        public void onGps( long deviceId, long timestamp, double latitude, double longitude, double altitude, double speed, double course, double noise ) {
+            messages.add( "gps " + deviceId + " " + timestamp + " " + latitude + " " + longitude + " " + altitude + " " + speed + " " + course + " "
+                          + noise );
+            timestamps.add( timestamp );
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.denis.ubiq.server;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProtocolTest {
+
+    @Test
+    public void framesDecodeToWhatWasEncoded() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        Protocol.writeHello( out, -42L );
+        Protocol.writeSensor( out, 1000L, 0.25, -1.5, 0.75f );
+        Protocol.writeGps( out, 1200L, 42.69, 23.32, 550.5, 10.25, 359.5, 4.5 );
+        Protocol.writeEstimate( out, 1200L, 42.6901, 23.3202, -0.5, 9.75 );
+        out.flush();
+        // type byte and fields, big-endian
+        assertEquals( ( 1 + 8 ) + ( 1 + 8 + 8 + 8 + 4 ) + ( 1 + 8 + 6 * 8 ) + ( 1 + 8 + 4 * 8 ), bytes.size() );
+
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+        assertEquals( Protocol.HELLO, in.readByte() );
+        assertEquals( -42L, in.readLong() );
+
+        assertEquals( Protocol.SENSOR, in.readByte() );
+        assertEquals( 1000L, in.readLong() );
+        assertEquals( 0.25, in.readDouble(), 0 );
+        assertEquals( -1.5, in.readDouble(), 0 );
+        assertEquals( 0.75f, in.readFloat(), 0 );
+
+        assertEquals( Protocol.GPS, in.readByte() );
+        assertEquals( 1200L, in.readLong() );
+        assertEquals( 42.69, in.readDouble(), 0 );
+        assertEquals( 23.32, in.readDouble(), 0 );
+        assertEquals( 550.5, in.readDouble(), 0 );
+        assertEquals( 10.25, in.readDouble(), 0 );
+        assertEquals( 359.5, in.readDouble(), 0 );
+        assertEquals( 4.5, in.readDouble(), 0 );
+
+        assertEquals( Protocol.ESTIMATE, in.readByte() );
+        assertEquals( 1200L, in.readLong() );
+        assertEquals( 42.6901, in.readDouble(), 0 );
+        assertEquals( 23.3202, in.readDouble(), 0 );
+        assertEquals( -0.5, in.readDouble(), 0 );
+        assertEquals( 9.75, in.readDouble(), 0 );
+        assertEquals( -1, in.read() );
+    }
+}
@@ -0,0 +1,75 @@
+package com.denis.ubiq.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import static com.denis.ubiq.kalman.KalmanFilterEngine.KERNEL;
+import static org.junit.Assert.*;
+
+public class ShardedEventLoopsTest {
+
+    private static final int DEVICES = 64;
+    private static final int FIXES = 20;
+
+    @Test
+    public void mapsEachDeviceToOneLoop() {
+        ShardedEventLoops loops = new ShardedEventLoops( 4, 16, KERNEL, 0, 60000, null );
+        try {
+            Set<Integer> used = new HashSet<>();
+            for( long deviceId = 0; deviceId < 1000; deviceId++ ) {
+                int index = loops.indexOf( deviceId );
+                assertTrue( index >= 0 && index < 4 );
+                assertEquals( index, loops.indexOf( deviceId ) );
+                used.add( index );
+            }
+            assertEquals( 4, used.size() );
+            assertTrue( loops.indexOf( Long.MIN_VALUE ) >= 0 );
+            assertTrue( loops.indexOf( -1L ) >= 0 );
+        } finally {
+            loops.close();
+        }
+    }
+
+    @Test
+    public void processesEveryDeviceOnItsOwnLoopInOrder() {
+        final Map<Long, List<String>> threads = new ConcurrentHashMap<>();
+        final Map<Long, List<Long>> timestamps = new ConcurrentHashMap<>();
+        FusionSession.EstimateListener listener = new FusionSession.EstimateListener() {
+            @Override
+            public void onEstimate( FusionSession session, long timestamp, double latitude, double longitude, double velocityNorth, double velocityEast ) {
+                // a device is only ever touched by its own loop, so its lists are too
+                long deviceId = session.getDeviceId();
+                if( !threads.containsKey( deviceId ) ) {
+                    threads.put( deviceId, new ArrayList<String>() );
+                    timestamps.put( deviceId, new ArrayList<Long>() );
+                }
+                threads.get( deviceId ).add( Thread.currentThread().getName() );
+                timestamps.get( deviceId ).add( timestamp );
+            }
+        };
+        // small mailboxes, so submitting also waits for space
+        ShardedEventLoops loops = new ShardedEventLoops( 3, 8, KERNEL, 0, 60000, listener );
+        for( int fix = 0; fix < FIXES; fix++ ) {
+            for( long deviceId = 0; deviceId < DEVICES; deviceId++ ) {
+                long timestamp = 1000L * ( fix + 1 );
+                loops.submitGps( deviceId, timestamp, 42.69, 23.32, 550, 1, 0, 5 );
+                loops.submitSensor( deviceId, timestamp + 500, 0.1, 0.2, 0.5f );
+            }
+        }
+        loops.close();
+
+        assertEquals( 2L * DEVICES * FIXES, loops.getProcessed() );
+        assertEquals( DEVICES, threads.size() );
+        for( long deviceId = 0; deviceId < DEVICES; deviceId++ ) {
+            List<String> names = threads.get( deviceId );
+            assertEquals( FIXES, names.size() );
+            assertEquals( Collections.nCopies( FIXES, "EventLoop-" + loops.indexOf( deviceId ) ), names );
+            List<Long> times = timestamps.get( deviceId );
+            for( int fix = 0; fix < FIXES; fix++ ) {
+                assertEquals( 1000L * ( fix + 1 ), ( long ) times.get( fix ) );
+            }
+        }
+    }
+}